@@ -29,6 +29,8 @@ dependencies {
     implementation("org.springframework.boot:spring-boot-starter-web")
     implementation("org.springframework.boot:spring-boot-starter-security")
     implementation("org.springframework.boot:spring-boot-starter-quartz")
+    implementation("org.springframework.boot:spring-boot-starter-jdbc") // Quartz job store
+    implementation("org.springframework.boot:spring-boot-starter-actuator")
     implementation("org.springframework.ai:spring-ai-starter-model-ollama")
     implementation("org.apache.camel.springboot:camel-spring-boot-starter")
     implementation("org.apache.camel.springboot:camel-exec-starter")
@@ -40,6 +42,8 @@ dependencies {
     implementation("org.mnode.ical4j:ical4j:4.1.1")
     implementation("icu.neurospicy:simple-iso8601-arithmetic:1.0.0") // For parsing complex time expressions in routine templates
 
+    runtimeOnly("org.postgresql:postgresql")
+
     developmentOnly("org.springframework.boot:spring-boot-devtools")
     developmentOnly("org.springframework.boot:spring-boot-docker-compose")
     developmentOnly("org.springframework.ai:spring-ai-spring-boot-docker-compose")
@@ -57,6 +61,7 @@ dependencies {
     testRuntimeOnly("org.junit.platform:junit-platform-launcher")
     implementation(kotlin("stdlib"))
     implementation("org.jetbrains.kotlinx:kotlinx-coroutines-core:1.10.2")
+    implementation("org.jetbrains.kotlinx:kotlinx-coroutines-reactor:1.10.2") // streaming LLM responses
 }
 
 dependencyManagement {
@@ -77,6 +82,20 @@ kotlin {
 tasks.withType<Test> {
     useJUnitPlatform()
 }
+tasks.named<Test>("test") {
+    useJUnitPlatform {
+        excludeTags("benchmark")
+    }
+}
+tasks.register<Test>("benchmark") {
+    description = "Runs the micro benchmarks."
+    group = "verification"
+    testClassesDirs = sourceSets["test"].output.classesDirs
+    classpath = sourceSets["test"].runtimeClasspath
+    useJUnitPlatform {
+        includeTags("benchmark")
+    }
+}
 
 val aiTest by sourceSets.creating {
     kotlin.srcDir("src/aiTest/kotlin")
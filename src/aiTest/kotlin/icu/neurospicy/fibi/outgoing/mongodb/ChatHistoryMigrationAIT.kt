@@ -0,0 +1,98 @@
+package icu.neurospicy.fibi.outgoing.mongodb
+
+import icu.neurospicy.fibi.BaseAIT
+import icu.neurospicy.fibi.domain.model.Channel.SIGNAL
+import icu.neurospicy.fibi.domain.model.ChatHistory
+import icu.neurospicy.fibi.domain.model.FibiMessage
+import icu.neurospicy.fibi.domain.model.FibiMessageId
+import icu.neurospicy.fibi.domain.model.Message
+import icu.neurospicy.fibi.domain.model.OutgoingTextMessage
+import icu.neurospicy.fibi.domain.model.SignalMessageId
+import icu.neurospicy.fibi.domain.model.UserMessage
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.data.mongodb.core.MongoTemplate
+import org.springframework.data.mongodb.core.query.Criteria.where
+import org.springframework.data.mongodb.core.query.Query.query
+import java.time.Duration.ofMinutes
+import java.time.Instant
+import java.util.*
+
+class ChatHistoryMigrationAIT : BaseAIT() {
+
+    @Autowired
+    lateinit var mongoTemplate: MongoTemplate
+
+    @Autowired
+    lateinit var chatRepository: ChatRepositoryUsingMongodb
+
+    private val morning = Instant.parse("2025-03-01T08:00:00Z")
+
+    @Test
+    fun `moves legacy chat histories into buckets`() {
+        //given
+        val legacy = listOf(userMessage(morning), fibiMessage(morning.plus(ofMinutes(1))))
+        storeLegacyHistory(legacy)
+        //when
+        migration().onApplicationStarted()
+        //then
+        assertThat(chatRepository.findHistory(friendshipId).timeline).containsExactlyElementsOf(legacy)
+        assertThat(legacyHistoryExists()).isFalse()
+    }
+
+    @Test
+    fun `keeps chronological order when migrating into a bucket holding newer messages`() {
+        //given
+        val newer = userMessage(morning.plus(ofMinutes(10)))
+        chatRepository.add(newer)
+        val legacy = listOf(userMessage(morning), fibiMessage(morning.plus(ofMinutes(1))))
+        storeLegacyHistory(legacy)
+        //when
+        migration().onApplicationStarted()
+        //then
+        val bucket = mongoTemplate.findOne(
+            query(where("friendshipId").`is`(friendshipId.toString())), ChatBucket::class.java
+        )!!
+        assertThat(bucket.messages).containsExactlyElementsOf(legacy + newer)
+        assertThat(bucket.messageKeys).containsExactlyElementsOf((legacy + newer).map { it.messageId.toString() })
+        assertThat(chatRepository.findLatest(friendshipId, 2)).containsExactly(legacy.last(), newer)
+        assertThat(chatRepository.findHistory(friendshipId).timeline).containsExactlyElementsOf(legacy + newer)
+    }
+
+    @Test
+    fun `skips messages migrated before`() {
+        //given
+        val legacy = listOf(userMessage(morning), fibiMessage(morning.plus(ofMinutes(1))))
+        chatRepository.add(legacy.first())
+        storeLegacyHistory(legacy)
+        //when
+        migration().onApplicationStarted()
+        //then
+        assertThat(chatRepository.findHistory(friendshipId).timeline).containsExactlyElementsOf(legacy)
+    }
+
+    private fun migration() = ChatHistoryMigration(mongoTemplate, chatRepository)
+
+    private fun storeLegacyHistory(messages: List<Message>) {
+        mongoTemplate.insert(
+            ChatHistory(null, friendshipId, Stack<Message>().apply { addAll(messages) }), "chat"
+        )
+    }
+
+    private fun legacyHistoryExists() =
+        mongoTemplate.exists(query(where("friendshipId").`is`(friendshipId.toString())), ChatHistory::class.java, "chat")
+
+    private fun ChatRepositoryUsingMongodb.add(message: Message) = when (message) {
+        is UserMessage -> add(friendshipId, message)
+        is FibiMessage -> add(
+            friendshipId, OutgoingTextMessage(message.channel, message.text, messageId = message.messageId),
+            message.text, message.sentAt
+        )
+    }
+
+    private fun userMessage(at: Instant): Message =
+        UserMessage(SignalMessageId(at.toEpochMilli()), at, "Hello at $at", SIGNAL)
+
+    private fun fibiMessage(at: Instant): Message = FibiMessage(FibiMessageId(), at, "Hi at $at", SIGNAL, emptyList())
+}
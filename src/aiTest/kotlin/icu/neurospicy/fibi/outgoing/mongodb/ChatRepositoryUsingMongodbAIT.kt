@@ -0,0 +1,75 @@
+package icu.neurospicy.fibi.outgoing.mongodb
+
+import icu.neurospicy.fibi.BaseAIT
+import icu.neurospicy.fibi.domain.model.Channel.SIGNAL
+import icu.neurospicy.fibi.domain.model.FibiMessage
+import icu.neurospicy.fibi.domain.model.FibiMessageId
+import icu.neurospicy.fibi.domain.model.Message
+import icu.neurospicy.fibi.domain.model.OutgoingTextMessage
+import icu.neurospicy.fibi.domain.model.SignalMessageId
+import icu.neurospicy.fibi.domain.model.UserMessage
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.data.mongodb.core.MongoTemplate
+import org.springframework.data.mongodb.core.query.Criteria.where
+import org.springframework.data.mongodb.core.query.Query.query
+import java.time.Duration.ofDays
+import java.time.Duration.ofMinutes
+import java.time.Instant
+
+class ChatRepositoryUsingMongodbAIT : BaseAIT() {
+
+    @Autowired
+    lateinit var mongoTemplate: MongoTemplate
+
+    private val morning = Instant.parse("2025-03-01T08:00:00Z")
+
+    @Test
+    fun `appends messages into day buckets holding at most the bucket size`() {
+        //given
+        val chatRepository = ChatRepositoryUsingMongodb(mongoTemplate, 2)
+        val messages = listOf(
+            userMessage(morning), fibiMessage(morning.plus(ofMinutes(1))), userMessage(morning.plus(ofMinutes(2))),
+            userMessage(morning.plus(ofDays(1)))
+        )
+        //when
+        messages.forEach { chatRepository.add(it) }
+        //then
+        val buckets = mongoTemplate.find(
+            query(where("friendshipId").`is`(friendshipId.toString())), ChatBucket::class.java
+        )
+        assertThat(buckets.map { it.day to it.count }).containsExactlyInAnyOrder(
+            "2025-03-01" to 2, "2025-03-01" to 1, "2025-03-02" to 1
+        )
+        assertThat(chatRepository.findHistory(friendshipId).timeline).containsExactlyElementsOf(messages)
+        assertThat(chatRepository.find(friendshipId, messages[1].messageId)).isEqualTo(messages[1])
+    }
+
+    @Test
+    fun `finds the latest messages oldest first`() {
+        //given
+        val chatRepository = ChatRepositoryUsingMongodb(mongoTemplate, 2)
+        val messages = (0L..4L).map { userMessage(morning.plus(ofMinutes(it))) }
+        messages.forEach { chatRepository.add(it) }
+        //when
+        val latest = chatRepository.findLatest(friendshipId, 3)
+        val since = chatRepository.findLatest(friendshipId, 3, since = morning.plus(ofMinutes(3)))
+        //then
+        assertThat(latest).containsExactlyElementsOf(messages.takeLast(3))
+        assertThat(since).containsExactly(messages.last())
+    }
+
+    private fun ChatRepositoryUsingMongodb.add(message: Message) = when (message) {
+        is UserMessage -> add(friendshipId, message)
+        is FibiMessage -> add(
+            friendshipId, OutgoingTextMessage(message.channel, message.text, messageId = message.messageId),
+            message.text, message.sentAt
+        )
+    }
+
+    private fun userMessage(at: Instant): Message =
+        UserMessage(SignalMessageId(at.toEpochMilli()), at, "Hello at $at", SIGNAL)
+
+    private fun fibiMessage(at: Instant): Message = FibiMessage(FibiMessageId(), at, "Hi at $at", SIGNAL, emptyList())
+}
@@ -0,0 +1,124 @@
+package icu.neurospicy.fibi.application
+
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Timer
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.selects.onTimeout
+import kotlinx.coroutines.selects.select
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Component
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Actor-style dispatcher processing work per friend in order.
+ *
+ * Every friend gets a bounded mailbox that is drained by exactly one coroutine, so two messages of the same friend
+ * never race, while different friends are processed concurrently on a shared, limited pool.
+ * Idle mailboxes are closed and removed after [idleTimeout].
+ */
+@Component
+class FriendMailboxDispatcher(
+    meterRegistry: MeterRegistry,
+    @Value("\${fibi.mailbox.capacity:32}") private val capacity: Int,
+    @Value("\${fibi.mailbox.parallelism:16}") parallelism: Int,
+    @Value("\${fibi.mailbox.idle-timeout:PT5M}") private val idleTimeout: Duration,
+) : DisposableBean {
+    @OptIn(ExperimentalCoroutinesApi::class)
+    private val scope = CoroutineScope(
+        SupervisorJob() + Dispatchers.IO.limitedParallelism(parallelism) + CoroutineName("friend-mailbox")
+    )
+    private val mailboxes = ConcurrentHashMap<FriendshipId, Channel<Envelope>>()
+    private val queued = AtomicInteger()
+
+    private val waitTimer = Timer.builder("fibi.mailbox.wait")
+        .description("Time a message waits in a friend's mailbox until processing starts").register(meterRegistry)
+    private val processingTimer = Timer.builder("fibi.mailbox.processing")
+        .description("Time spent processing a message from a friend's mailbox").register(meterRegistry)
+    private val rejectedCounter = Counter.builder("fibi.mailbox.rejected")
+        .description("Messages rejected because a friend's mailbox was full").register(meterRegistry)
+
+    init {
+        Gauge.builder("fibi.mailbox.queue.depth", queued) { it.get().toDouble() }
+            .description("Messages waiting in all friends' mailboxes").register(meterRegistry)
+        Gauge.builder("fibi.mailbox.active", mailboxes) { it.size.toDouble() }
+            .description("Friends with an open mailbox").register(meterRegistry)
+    }
+
+    /**
+     * Enqueues [work] into the mailbox of [friendshipId]. Returns false if the mailbox is full.
+     */
+    fun dispatch(friendshipId: FriendshipId, work: () -> Unit): Boolean {
+        val envelope = Envelope(work, System.nanoTime())
+        while (true) {
+            val mailbox = mailboxes.computeIfAbsent(friendshipId) { openMailbox(it) }
+            val result = mailbox.trySend(envelope)
+            when {
+                result.isSuccess -> {
+                    queued.incrementAndGet()
+                    return true
+                }
+
+                result.isClosed -> continue // mailbox retired concurrently, open a new one
+
+                else -> {
+                    rejectedCounter.increment()
+                    LOG.warn("Mailbox of {} is full ({} messages), rejecting message", friendshipId, capacity)
+                    return false
+                }
+            }
+        }
+    }
+
+    @OptIn(ExperimentalCoroutinesApi::class)
+    private fun openMailbox(friendshipId: FriendshipId): Channel<Envelope> {
+        val mailbox = Channel<Envelope>(capacity)
+        scope.launch(CoroutineName("mailbox-$friendshipId")) {
+            while (true) {
+                val envelope = select<Envelope?> {
+                    mailbox.onReceive { it }
+                    onTimeout(idleTimeout.toMillis()) { null }
+                }
+                if (envelope != null) {
+                    process(friendshipId, envelope)
+                    continue
+                }
+                mailboxes.remove(friendshipId, mailbox)
+                mailbox.close()
+                // process what arrived between the timeout and closing the mailbox
+                generateSequence { mailbox.tryReceive().getOrNull() }.forEach { process(friendshipId, it) }
+                break
+            }
+        }
+        return mailbox
+    }
+
+    private fun process(friendshipId: FriendshipId, envelope: Envelope) {
+        queued.decrementAndGet()
+        waitTimer.record(Duration.ofNanos(System.nanoTime() - envelope.enqueuedAt))
+        processingTimer.record(Runnable {
+            try {
+                envelope.work()
+            } catch (e: Exception) {
+                LOG.error("Failed to process message of {}", friendshipId, e)
+            }
+        })
+    }
+
+    override fun destroy() {
+        scope.cancel()
+    }
+
+    private data class Envelope(val work: () -> Unit, val enqueuedAt: Long)
+
+    companion object {
+        private val LOG = LoggerFactory.getLogger(FriendMailboxDispatcher::class.java)
+    }
+}
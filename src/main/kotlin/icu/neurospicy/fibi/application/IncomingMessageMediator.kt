@@ -1,25 +1,61 @@
 package icu.neurospicy.fibi.application
 
+import icu.neurospicy.fibi.domain.model.LedgerEntry
+import icu.neurospicy.fibi.domain.model.OutgoingAdaptedTextMessage
 import icu.neurospicy.fibi.domain.model.RelationStatus.*
 import icu.neurospicy.fibi.domain.model.events.*
 import icu.neurospicy.fibi.domain.repository.ChatRepository
+import icu.neurospicy.fibi.domain.repository.FriendshipLedger
+import icu.neurospicy.fibi.domain.service.friends.interaction.GoalContextRepository
 import org.slf4j.LoggerFactory
 import org.springframework.context.ApplicationEventPublisher
 import org.springframework.context.event.EventListener
-import org.springframework.scheduling.annotation.Async
 import org.springframework.stereotype.Service
 
 @Service
 class IncomingMessageMediator(
     private val chatRepository: ChatRepository,
-    private val applicationEventPublisher: ApplicationEventPublisher
+    private val applicationEventPublisher: ApplicationEventPublisher,
+    private val friendMailboxDispatcher: FriendMailboxDispatcher,
+    private val goalContextRepository: GoalContextRepository,
+    private val friendshipLedger: FriendshipLedger,
 ) {
-    @Async
+    /**
+     * Stores the message and hands it over to the friend's mailbox, so messages of one friend are processed in order.
+     * Processing one message is a single goal context turn, so intermediate context saves are written once.
+     * The message is routed by the friend's ledger entry as it is when its turn comes, as earlier messages may have
+     * started or finished an activity or changed the relation meanwhile.
+     * If the mailbox is full, the friend is told to send the message again later.
+     */
     @EventListener
     fun handleIncomingMessage(event: UnidentifiedIncomingMessageReceived) {
-        val entry = event.entry
+        val friendshipId = event.entry.friendshipId
+        val incomingMessage = event.incomingMessage
+        chatRepository.add(friendshipId, incomingMessage, event.rawEvent)
+        val accepted = friendMailboxDispatcher.dispatch(friendshipId) {
+            goalContextRepository.inTurn(friendshipId) {
+                forward(event, friendshipLedger.findBy(friendshipId) ?: event.entry)
+            }
+        }
+        if (!accepted) {
+            LOG.warn("Rejected message {} of {}, telling them Fibi is busy", incomingMessage.messageId, friendshipId)
+            applicationEventPublisher.publishEvent(
+                SendMessageCmd(
+                    this.javaClass, friendshipId, OutgoingAdaptedTextMessage(
+                        incomingMessage.channel,
+                        "Tell the user that their last message could not be taken yet and ask them to send it again.",
+                        BUSY_NOTICE,
+                        useTaskActions = false,
+                        useRetrievalTools = false,
+                        useFriendSettingActions = false
+                    ), incomingMessage.messageId
+                )
+            )
+        }
+    }
+
+    private fun forward(event: UnidentifiedIncomingMessageReceived, entry: LedgerEntry) {
         val incomingMessage = event.incomingMessage
-        chatRepository.add(entry.friendshipId, incomingMessage, event.rawEvent)
         LOG.debug(
             "Forwarding message for {} being {} with active activity {}.",
             entry.friendshipId,
@@ -30,7 +66,7 @@ class IncomingMessageMediator(
             entry.activeActivity != null -> applicationEventPublisher.publishEvent(
                 MessageForActivityReceived(
                     entry.activeActivity,
-                    event.entry.friendshipId,
+                    entry.friendshipId,
                     incomingMessage
                 )
             )
@@ -59,5 +95,7 @@ class IncomingMessageMediator(
 
     companion object {
         private val LOG = LoggerFactory.getLogger(IncomingMessageMediator::class.java)
+        private const val BUSY_NOTICE =
+            "I'm still working through your previous messages and couldn't take this one. Please send it again in a moment."
     }
 }
@@ -7,41 +7,70 @@ import icu.neurospicy.fibi.domain.model.events.SendMessageCmd
 import icu.neurospicy.fibi.domain.repository.ConversationRepository
 import icu.neurospicy.fibi.outgoing.SchedulerService
 import icu.neurospicy.fibi.outgoing.mongodb.ChatRepositoryUsingMongodb
+import icu.neurospicy.fibi.outgoing.ollama.LlmPriority
+import icu.neurospicy.fibi.outgoing.ollama.LlmRequestTag
 import icu.neurospicy.fibi.outgoing.ollama.ResponseGenerator
 import icu.neurospicy.fibi.outgoing.signal.SignalMessageSender
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Timer
 import kotlinx.coroutines.runBlocking
+import org.springframework.beans.factory.annotation.Value
 import org.springframework.context.event.EventListener
 import org.springframework.scheduling.annotation.Async
 import org.springframework.stereotype.Component
+import java.time.Duration
 import java.time.Instant.now
 
+/**
+ * Sends messages to friends, generating their text first if needed. With [streamParagraphs] generated messages are
+ * sent paragraph by paragraph as soon as each paragraph is generated.
+ */
 @Component
 class SendMessageListener(
     private val signalMessageSender: SignalMessageSender,
     private val responseGenerator: ResponseGenerator,
     private val chatRepository: ChatRepositoryUsingMongodb,
     private val conversationRepository: ConversationRepository,
-    private val schedulerService: SchedulerService
+    private val schedulerService: SchedulerService,
+    meterRegistry: MeterRegistry,
+    @Value("\${fibi.messages.stream-paragraphs:false}") private val streamParagraphs: Boolean,
 ) {
+    private val timeToFirstMessage = listOf(DELIVERY_WHOLE, DELIVERY_PARAGRAPHS).associateWith { delivery ->
+        Timer.builder("fibi.message.time-to-first-message")
+            .description("Time from requesting a message until the first part of it is sent to the friend")
+            .tag("delivery", delivery).register(meterRegistry)
+    }
+
     @EventListener
     @Async
-    fun onMessageSendRequested(event: SendMessageCmd) = runBlocking {
+    fun onMessageSendRequested(event: SendMessageCmd) = runBlocking(
+        LlmRequestTag(
+            if (event.answerToMessageId != null) LlmPriority.INTERACTIVE else LlmPriority.ROUTINE, event.friendshipId
+        )
+    ) {
         val message = event.outgoingMessage
-        val responseText: String = when (message) {
-            is OutgoingAdaptedTextMessage -> responseGenerator.generateResponseWith(
-                event.friendshipId, message, event.answerToMessageId
-            )
+        val responseText: String = when {
+            streamParagraphs && message is OutgoingMessageNeedsGenerator -> {
+                var first = true
+                responseGenerator.streamResponseWith(event.friendshipId, message, event.answerToMessageId) {
+                    send(event, it, DELIVERY_PARAGRAPHS.takeIf { first })
+                    first = false
+                }
+            }
 
-            is OutgoingGeneratedMessage -> responseGenerator.generateResponseWith(
-                event.friendshipId, message, event.answerToMessageId
-            )
+            else -> when (message) {
+                is OutgoingAdaptedTextMessage -> responseGenerator.generateResponseWith(
+                    event.friendshipId, message, event.answerToMessageId
+                )
 
-            is OutgoingTextMessage -> message.text
-        }
+                is OutgoingGeneratedMessage -> responseGenerator.generateResponseWith(
+                    event.friendshipId, message, event.answerToMessageId
+                )
 
-        when (message.channel) {
-            Channel.SIGNAL -> signalMessageSender.sendMessageToUser(event.friendshipId, responseText)
+                is OutgoingTextMessage -> message.text
+            }.also { send(event, it, DELIVERY_WHOLE) }
         }
+
         val sentAt = now()
         chatRepository.add(event.friendshipId, message, responseText, sentAt)
         conversationRepository.addFibisResponse(
@@ -51,6 +80,18 @@ class SendMessageListener(
         )
     }
 
+    /**
+     * @param firstOf how the message is delivered if [text] is its first part
+     */
+    private fun send(event: SendMessageCmd, text: String, firstOf: String?) {
+        when (event.outgoingMessage.channel) {
+            Channel.SIGNAL -> signalMessageSender.sendMessageToUser(event.friendshipId, text)
+        }
+        firstOf?.let {
+            timeToFirstMessage.getValue(it).record(Duration.ofMillis(System.currentTimeMillis() - event.timestamp))
+        }
+    }
+
     @EventListener
     @Async
     fun onMessageGenerationStarted(event: MessageGenerationStarted) {
@@ -62,4 +103,9 @@ class SendMessageListener(
     fun onMessageGenerationStopped(event: MessageGenerationFinished) {
         schedulerService.removeGeneratingMessageScheduler(event.friendshipId, event.channel)
     }
+
+    companion object {
+        private const val DELIVERY_WHOLE = "whole"
+        private const val DELIVERY_PARAGRAPHS = "paragraphs"
+    }
 }
@@ -0,0 +1,114 @@
+package icu.neurospicy.fibi.application.reminder
+
+import icu.neurospicy.fibi.domain.model.AppointmentReminder
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.model.events.AppointmentReminderSet
+import icu.neurospicy.fibi.domain.model.events.AppointmentReminderUnset
+import icu.neurospicy.fibi.domain.model.events.AppointmentReminderUpdated
+import icu.neurospicy.fibi.domain.repository.ReminderRepository
+import icu.neurospicy.fibi.outgoing.mongodb.LruCache
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.context.event.EventListener
+import org.springframework.stereotype.Component
+
+/**
+ * Per-friend inverted index from title tokens to the appointment reminders whose keywords contain them, so that
+ * matching an appointment costs a few lookups instead of checking every reminder.
+ *
+ * Reminders match keywords anywhere in the title (see [AppointmentReminder.matches]), so the tokens are the
+ * lowercase trigrams of the title: every keyword is indexed by its first trigram, keywords shorter than a trigram
+ * are checked for every title, including empty ones matching any title. Candidates are verified with
+ * [AppointmentReminder.matches].
+ *
+ * A friend's index is loaded on first use and kept in sync with the reminder events. Events only reach the
+ * instance publishing them, so callers holding the friend's reminders as stored [refresh] the index with them.
+ */
+@Component
+class AppointmentReminderIndex(
+    private val reminderRepository: ReminderRepository,
+    @Value("\${fibi.reminder.appointment.index-size:10000}") indexSize: Int,
+) {
+    private val indexes = LruCache<FriendshipId, FriendIndex>(indexSize)
+
+    /**
+     * Ids of the friend's appointment reminders matching [title].
+     */
+    fun matchingReminderIds(friendshipId: FriendshipId, title: String): Set<String> =
+        indexOf(friendshipId).matching(title)
+
+    /**
+     * Rebuilds the friend's index from [reminders] unless it indexes exactly their keywords already.
+     */
+    fun refresh(friendshipId: FriendshipId, reminders: Collection<AppointmentReminder>) {
+        if (indexes[friendshipId]?.indexes(reminders) == true) return
+        indexes[friendshipId] = FriendIndex().apply { reminders.forEach { put(it) } }
+    }
+
+    @EventListener
+    fun onSet(event: AppointmentReminderSet) {
+        indexes[event.friendshipId]?.put(event.reminder)
+    }
+
+    @EventListener
+    fun onUpdated(event: AppointmentReminderUpdated) {
+        indexes[event.friendshipId]?.put(event.reminder)
+    }
+
+    @EventListener
+    fun onUnset(event: AppointmentReminderUnset) {
+        indexes[event.friendshipId]?.remove(event.reminderId)
+    }
+
+    private fun indexOf(friendshipId: FriendshipId): FriendIndex = indexes.getOrPut(friendshipId) {
+        FriendIndex().apply { reminderRepository.findAppointmentRemindersBy(friendshipId).forEach { put(it) } }
+    }!!
+
+    internal class FriendIndex {
+        private val reminders = HashMap<String, AppointmentReminder>()
+        private val byToken = HashMap<String, MutableSet<String>>()
+        private val shortKeywordReminders = HashSet<String>()
+
+        @Synchronized
+        fun put(reminder: AppointmentReminder) {
+            val id = reminder._id ?: return
+            remove(id)
+            reminders[id] = reminder
+            reminder.matchingTitleKeywords.map { it.lowercase() }.forEach { keyword ->
+                if (keyword.length < TOKEN_LENGTH) shortKeywordReminders += id
+                else byToken.getOrPut(keyword.substring(0, TOKEN_LENGTH)) { HashSet() } += id
+            }
+        }
+
+        @Synchronized
+        fun remove(reminderId: String) {
+            val reminder = reminders.remove(reminderId) ?: return
+            shortKeywordReminders -= reminderId
+            reminder.matchingTitleKeywords.map { it.lowercase() }.filter { it.length >= TOKEN_LENGTH }.forEach {
+                val token = it.substring(0, TOKEN_LENGTH)
+                byToken[token]?.apply { remove(reminderId) }?.takeIf { ids -> ids.isEmpty() }
+                    ?.let { byToken.remove(token) }
+            }
+        }
+
+        @Synchronized
+        fun indexes(reminders: Collection<AppointmentReminder>): Boolean =
+            reminders.size == this.reminders.size && reminders.all { reminder ->
+                reminder._id?.let { this.reminders[it] }?.matchingTitleKeywords == reminder.matchingTitleKeywords
+            }
+
+        @Synchronized
+        fun matching(title: String): Set<String> {
+            if (reminders.isEmpty()) return emptySet()
+            val lowercaseTitle = title.lowercase()
+            val candidates = HashSet(shortKeywordReminders)
+            for (start in 0..lowercaseTitle.length - TOKEN_LENGTH) {
+                byToken[lowercaseTitle.substring(start, start + TOKEN_LENGTH)]?.let { candidates += it }
+            }
+            return candidates.filterTo(HashSet()) { reminders[it]!!.matches(title) }
+        }
+    }
+
+    companion object {
+        private const val TOKEN_LENGTH = 3
+    }
+}
@@ -13,23 +13,36 @@ import icu.neurospicy.fibi.domain.repository.ReminderRepository
 import icu.neurospicy.fibi.domain.repository.TimeRange
 import icu.neurospicy.fibi.outgoing.SchedulerService
 import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
 import org.springframework.boot.context.event.ApplicationStartedEvent
 import org.springframework.context.event.EventListener
+import org.springframework.scheduling.annotation.Scheduled
 import org.springframework.stereotype.Service
 import java.time.Duration
+import java.time.Instant
 import java.time.Instant.now
 
 /**
  * Listens for events indicating appointment or reminder modifications and app start
  * to set up the schedulers and update the related appointment id in the reminder.
+ *
+ * Only reminders firing before [horizonEnd] are scheduled, so the scheduler holds the next [horizon] of firings
+ * instead of every matching occurrence. [sweep] moves the horizon forward, appointment changes beyond it are
+ * picked up by a later sweep.
  */
 @Service
 class AppointmentReminderToScheduler(
     private val friendshipLedger: FriendshipLedger,
     private val reminderRepository: ReminderRepository,
     private val calendarRepository: CalendarRepository,
-    private val schedulerService: SchedulerService
+    private val schedulerService: SchedulerService,
+    private val appointmentReminderIndex: AppointmentReminderIndex,
+    @Value("\${fibi.reminder.appointment.horizon:PT48H}") private val horizon: Duration,
+    @Value("\${fibi.reminder.appointment.sweep-batch-size:100}") private val sweepBatchSize: Int,
 ) {
+    @Volatile
+    private var horizonEnd: Instant = now().plus(horizon)
+
     @EventListener
     fun onSet(event: AppointmentReminderSet) {
         LOG.debug(
@@ -70,38 +83,104 @@ class AppointmentReminderToScheduler(
             event.changedAppointmentIds.size,
             event.deletedAppointmentIds
         )
-        val newAndChangedAppointments =
-            calendarRepository.loadAppointmentsByAppointmentId(
-                event.owner,
-                event.newAppointmentIds.plus(event.changedAppointmentIds)
-            )
-        reminderRepository.findAppointmentRemindersBy(event.owner).forEach { reminder ->
+        val reminders = reminderRepository.findAppointmentRemindersBy(event.owner)
+        if (reminders.isEmpty()) return
+        val newAndChangedAppointmentIds = event.newAppointmentIds.plus(event.changedAppointmentIds)
+        // appointments firing beyond the horizon are scheduled by a later sweep
+        val newAndChangedAppointments = calendarRepository.loadAppointmentsForTimeRange(
+            TimeRange(now(), Duration.between(now(), horizonEnd)), event.owner
+        ).filter { newAndChangedAppointmentIds.contains(it.appointmentId) }
+        val matchingAppointments = matchingAppointmentsByReminderId(event.owner, reminders, newAndChangedAppointments)
+        reminders.forEach { reminder ->
             //remove reminders for all deleted and changed appointments
             //(changed appointments might not match anymore)
-            val relatedAppointmentIds =
-                reminder.relatedAppointmentIds.minus(
-                    event.deletedAppointmentIds.plus(event.changedAppointmentIds)
-                        .filter { reminder.relatedAppointmentIds.contains(it) }.onEach { deletedAppointmentId ->
-                            schedulerService.removeAppointmentReminderSchedulerFor(
-                                event.owner, reminder._id!!, deletedAppointmentId
-                            )
-                        }.toSet()
-                ).plus(
-                    setupSchedulersForMatchingAppointmentsAndReturnIds(
-                        newAndChangedAppointments, reminder
+            val removedAppointmentIds = event.deletedAppointmentIds.plus(event.changedAppointmentIds)
+                .filter { reminder.relatedAppointmentIds.contains(it) }.onEach { deletedAppointmentId ->
+                    schedulerService.removeAppointmentReminderSchedulerFor(
+                        event.owner, reminder._id!!, deletedAppointmentId
                     )
-                )
-            reminderRepository.updateRelatedAppointmentIds(reminder._id, relatedAppointmentIds)
+                }.toSet()
+            val scheduledAppointmentIds = setupSchedulersForMatchingAppointmentsAndReturnIds(
+                matchingAppointments[reminder._id].orEmpty(), reminder
+            )
+            if (removedAppointmentIds.isEmpty() && scheduledAppointmentIds.isEmpty()) return@forEach
+            reminderRepository.updateRelatedAppointmentIds(
+                reminder._id, reminder.relatedAppointmentIds.minus(removedAppointmentIds).plus(scheduledAppointmentIds)
+            )
         }
     }
 
+    /**
+     * Reconciles the scheduled appointment reminders with the reminders firing within the horizon.
+     */
     @EventListener
     fun onApplicationStarted(event: ApplicationStartedEvent) {
         LOG.debug("Setting up appointment reminders")
-        friendshipLedger.findAllIds().forEach { friendshipId ->
-            reminderRepository.findAppointmentRemindersBy(friendshipId).forEach { reminder ->
-                setupSchedulersForMatchingAppointmentsAndSaveRelatedAppointments(reminder, friendshipId)
+        horizonEnd = now().plus(horizon)
+        val dueReminders = friendshipLedger.findAllIds().flatMap { friendshipId ->
+            dueAppointmentsByReminder(friendshipId).flatMap { (reminder, appointments) ->
+                updateRelatedAppointmentIds(reminder, appointments)
+                appointments.map { reminder to it }
+            }
+        }
+        schedulerService.reconcileAppointmentReminders(dueReminders)
+    }
+
+    /**
+     * Moves the horizon forward and schedules the reminders firing until the new horizon end, friend by friend in
+     * batches of [sweepBatchSize]. The related appointment ids of a reminder are reduced to the appointments it is
+     * still scheduled for.
+     */
+    @Scheduled(
+        initialDelayString = "\${fibi.reminder.appointment.sweep-interval:PT6H}",
+        fixedDelayString = "\${fibi.reminder.appointment.sweep-interval:PT6H}"
+    )
+    fun sweep() {
+        val start = now()
+        horizonEnd = start.plus(horizon)
+        var scheduled = 0
+        friendshipLedger.findAllIds().chunked(sweepBatchSize).forEachIndexed { batch, friendshipIds ->
+            friendshipIds.forEach { friendshipId ->
+                try {
+                    scheduled += sweep(friendshipId)
+                } catch (e: Exception) {
+                    LOG.error("Failed to extend appointment reminders of {}", friendshipId, e)
+                }
             }
+            LOG.debug("Extended appointment reminders of batch {} ({} friends)", batch, friendshipIds.size)
+        }
+        LOG.info(
+            "Scheduled {} appointment reminders until {} in {}", scheduled, horizonEnd, Duration.between(start, now())
+        )
+    }
+
+    private fun sweep(friendshipId: FriendshipId): Int =
+        dueAppointmentsByReminder(friendshipId).entries.sumOf { (reminder, matching) ->
+            val unscheduled = matching.filterNot { reminder.relatedAppointmentIds.contains(it.appointmentId) }
+            unscheduled.forEach { schedulerService.scheduleReminder(reminder, it) }
+            updateRelatedAppointmentIds(reminder, matching)
+            unscheduled.size
+        }
+
+    /**
+     * The friend's appointment reminders with the matching appointments they fire for until the horizon end.
+     */
+    private fun dueAppointmentsByReminder(friendshipId: FriendshipId): Map<AppointmentReminder, List<Appointment>> {
+        val reminders = reminderRepository.findAppointmentRemindersBy(friendshipId)
+        if (reminders.isEmpty()) return emptyMap()
+        val appointments = calendarRepository.loadAppointmentsForTimeRange(
+            TimeRange(now(), Duration.between(now(), horizonEnd)), friendshipId
+        )
+        val matchingAppointments = matchingAppointmentsByReminderId(friendshipId, reminders, appointments)
+        return reminders.associateWith { reminder ->
+            matchingAppointments[reminder._id].orEmpty().filter { isDue(reminder, it) }
+        }
+    }
+
+    private fun updateRelatedAppointmentIds(reminder: AppointmentReminder, appointments: List<Appointment>) {
+        val relatedAppointmentIds = appointments.map { it.appointmentId }.toSet()
+        if (relatedAppointmentIds != reminder.relatedAppointmentIds) {
+            reminderRepository.updateRelatedAppointmentIds(reminder._id, relatedAppointmentIds)
         }
     }
 
@@ -111,7 +190,7 @@ class AppointmentReminderToScheduler(
         reminderRepository.updateRelatedAppointmentIds(
             reminder._id, setupSchedulersForMatchingAppointmentsAndReturnIds(
                 calendarRepository.loadAppointmentsForTimeRange(
-                    TimeRange(now(), Duration.ofDays(30)), friendshipId
+                    TimeRange(now(), Duration.between(now(), horizonEnd)), friendshipId
                 ), reminder
             )
         )
@@ -120,10 +199,30 @@ class AppointmentReminderToScheduler(
     private fun setupSchedulersForMatchingAppointmentsAndReturnIds(
         appointments: List<Appointment>, reminder: AppointmentReminder
     ) = appointments.asSequence()
-        .filter { (if (reminder.remindBeforeAppointment) it.startAt else it.endAt).instant.isAfter(now()) }
+        .filter { isDue(reminder, it) }
         .filter { reminder.matches(it.summary) }
         .onEach { schedulerService.scheduleReminder(reminder, it) }.map { it.appointmentId }.toSet()
 
+    /**
+     * Matches through the index after checking it against the [reminders] just loaded, as they may have been changed
+     * by another instance.
+     */
+    private fun matchingAppointmentsByReminderId(
+        friendshipId: FriendshipId, reminders: List<AppointmentReminder>, appointments: List<Appointment>
+    ): Map<String, List<Appointment>> {
+        appointmentReminderIndex.refresh(friendshipId, reminders)
+        return appointments.flatMap { appointment ->
+            appointmentReminderIndex.matchingReminderIds(friendshipId, appointment.summary).map { it to appointment }
+        }.groupBy({ it.first }, { it.second })
+    }
+
+    /**
+     * Whether the reminder fires for the appointment between now and the horizon end.
+     */
+    private fun isDue(reminder: AppointmentReminder, appointment: Appointment): Boolean =
+        (if (reminder.remindBeforeAppointment) appointment.startAt else appointment.endAt).instant
+            .let { it.isAfter(now()) && it.isBefore(horizonEnd) }
+
     companion object {
         private val LOG = LoggerFactory.getLogger(this::class.java)
     }
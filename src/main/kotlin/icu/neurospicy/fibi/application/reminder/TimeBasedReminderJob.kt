@@ -19,9 +19,14 @@ data class TimeBasedReminderJob(
 ) : Job {
     override fun execute(context: JobExecutionContext) {
         val jobData = context.jobDetail.jobDataMap
-        val owner = FriendshipId(jobData.getString("owner"))
-        val reminder =
-            jobData.getString("reminderId").let { reminderRepository.findTimeBasedReminderBy(owner, it) ?: return }
+        fire(FriendshipId(jobData.getString("owner")), jobData.getString("reminderId"))
+    }
+
+    /**
+     * Sends the reminder, whether it was scheduled with Quartz or the timing wheel.
+     */
+    fun fire(owner: FriendshipId, reminderId: String) {
+        val reminder = reminderRepository.findTimeBasedReminderBy(owner, reminderId) ?: return
         reminderRepository.reminderExpired(owner, reminder._id!!)
         eventPublisher.publishEvent(
             SendMessageCmd(
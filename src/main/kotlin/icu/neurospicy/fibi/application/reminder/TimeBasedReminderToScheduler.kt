@@ -35,12 +35,7 @@ class TimeBasedReminderToScheduler(
 
     @EventListener
     fun onApplicationStarted(event: ApplicationStartedEvent) {
-        friendshipLedger.findAllIds().map {
-            it to reminderRepository.findTimeBasedRemindersBy(it)
-        }.forEach {
-            it.second.forEach { reminder ->
-                schedulerService.scheduleReminder(reminder)
-            }
-        }
+        schedulerService.reconcileReminders(
+            friendshipLedger.findAllIds().flatMap { reminderRepository.findTimeBasedRemindersBy(it) })
     }
 }
\ No newline at end of file
@@ -1,11 +1,18 @@
 package icu.neurospicy.fibi.application.routine
 
 import icu.neurospicy.fibi.domain.model.Channel
+import icu.neurospicy.fibi.domain.model.FriendshipId
 import icu.neurospicy.fibi.domain.model.OutgoingAdaptedTextMessage
+import icu.neurospicy.fibi.domain.model.OutgoingTextMessage
+import icu.neurospicy.fibi.domain.model.RoutineConfigurationId
 import icu.neurospicy.fibi.domain.model.events.SendMessageCmd
 import icu.neurospicy.fibi.domain.repository.RoutineConfigurationRepository
 import icu.neurospicy.fibi.domain.service.ConversationContextService
 import icu.neurospicy.fibi.domain.service.friends.interaction.Intent
+import icu.neurospicy.fibi.outgoing.ollama.ResponseGenerator
+import icu.neurospicy.fibi.outgoing.ollama.LlmPriority
+import icu.neurospicy.fibi.outgoing.ollama.LlmRequestTag
+import kotlinx.coroutines.runBlocking
 import org.slf4j.LoggerFactory
 import org.springframework.context.ApplicationEventPublisher
 import org.springframework.context.event.EventListener
@@ -13,15 +20,19 @@ import org.springframework.stereotype.Component
 
 /**
  * Listens for RoutineExecutionEvents and processes those of type MORNING_ROUTINE.
+ *
+ * The greeting does not depend on the minute it is sent, so it is generated ahead of time when possible.
  */
 @Component
 class MorningRoutineExecutionListener(
     private val applicationEventPublisher: ApplicationEventPublisher,
     private val routineConfigurationRepository: RoutineConfigurationRepository,
-    private val conversationContextService: ConversationContextService
-) {
+    private val conversationContextService: ConversationContextService,
+    private val responseGenerator: ResponseGenerator,
+) : RoutineMessagePregenerator {
     companion object {
         private val LOG = LoggerFactory.getLogger(MorningRoutineExecutionListener::class.java)
+        private const val MORNING_ROUTINE = "Morning routine"
     }
 
     @EventListener(condition = "event.routineType == \"Morning routine\"")
@@ -37,18 +48,31 @@ class MorningRoutineExecutionListener(
 //                "\uD83E\uDDD8\uD83C\uDFFB\u200D♀\uFE0F"
 //            )
         )
+        val channel = routineConfiguration?.preferredChannel ?: Channel.SIGNAL
         applicationEventPublisher.publishEvent(
             SendMessageCmd(
-                this.javaClass, event.friendshipId, OutgoingAdaptedTextMessage(
-                    routineConfiguration?.preferredChannel ?: Channel.SIGNAL,
-                    """
-                        It's the wake-up time of the user, the morning routine is starting and you shall greet them gently with a warm welcome to the new day.
-                        Important: Never invent any tasks, activities, appointments. Don't push the user.
-                    """.trimIndent(),
-                    "Good morning! Let's have a nice start into the day. How do you feel?",
-                    useHistory = false
-                )
+                this.javaClass, event.friendshipId,
+                event.pregeneratedMessage?.let { OutgoingTextMessage(channel, it) } ?: greeting(channel)
             )
         )
     }
-}
\ No newline at end of file
+
+    override fun supports(routineType: String): Boolean = routineType == MORNING_ROUTINE
+
+    override fun pregenerate(friendshipId: FriendshipId, routineId: RoutineConfigurationId): String? {
+        val channel = routineConfigurationRepository.findBy(routineId)?.preferredChannel ?: Channel.SIGNAL
+        return runBlocking(LlmRequestTag(LlmPriority.BACKGROUND, friendshipId)) {
+            responseGenerator.pregenerateResponseWith(friendshipId, greeting(channel))
+        }
+    }
+
+    private fun greeting(channel: Channel) = OutgoingAdaptedTextMessage(
+        channel,
+        """
+            It's the wake-up time of the user, the morning routine is starting and you shall greet them gently with a warm welcome to the new day.
+            Important: Never invent any tasks, activities, appointments. Don't push the user.
+        """.trimIndent(),
+        "Good morning! Let's have a nice start into the day. How do you feel?",
+        useHistory = false
+    )
+}
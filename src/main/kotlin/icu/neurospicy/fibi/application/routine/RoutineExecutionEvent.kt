@@ -7,10 +7,14 @@ import org.springframework.context.ApplicationEvent
 /**
  * An event published by a generic scheduled job.
  * Listeners will determine how to process the event based on the routineType.
+ *
+ * @param pregeneratedMessage the message to start the routine with if it was generated ahead of time, see
+ * [RoutineMessagePregenerator]
  */
 data class RoutineExecutionEvent(
     val _source: Class<Any>,
     val friendshipId: FriendshipId,
     val routineId: RoutineConfigurationId,
-    val routineType: String
+    val routineType: String,
+    val pregeneratedMessage: String? = null,
 ) : ApplicationEvent(_source)
\ No newline at end of file
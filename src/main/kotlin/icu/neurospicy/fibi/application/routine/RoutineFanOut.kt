@@ -0,0 +1,258 @@
+package icu.neurospicy.fibi.application.routine
+
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.model.RoutineConfigurationId
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutEntry
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutRepository
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutType
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutType.ROUTINE_EXECUTION
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutType.ROUTINE_TRIGGER
+import icu.neurospicy.fibi.domain.service.friends.routines.RoutineInstanceId
+import icu.neurospicy.fibi.domain.service.friends.routines.TriggerId
+import icu.neurospicy.fibi.domain.service.friends.routines.events.RoutineTriggerFired
+import icu.neurospicy.fibi.outgoing.SchedulerReconciliation
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.DistributionSummary
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Timer
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.context.ApplicationEventPublisher
+import org.springframework.stereotype.Component
+import java.time.Duration
+import java.time.Instant
+import java.time.temporal.ChronoUnit.MINUTES
+import java.util.*
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Fires routine executions and routine triggers in per-minute buckets instead of one Quartz job each, so that
+ * thousands of routines starting at 07:00 cost one job run, see [RoutineFanOutJob].
+ *
+ * Entries fire at their time within the minute. Routine executions that still need their message generated are
+ * spread over the [smoothingWindow] though, so the LLM is not asked for all greetings at once. Messages of
+ * routines supported by a [RoutineMessagePregenerator] are generated up to [pregenerationLead] ahead, spread the
+ * same way. The lead should exceed the window.
+ *
+ * Entries are claimed when their minute is fanned out and removed once dispatched, entries with a recurrence are
+ * replaced with their next occurrence instead. Entries still claimed after [claimTimeout], as the instance
+ * claiming them stopped before dispatching, are claimed again by the next fan-out. So the timeout should exceed
+ * the window plus a minute.
+ *
+ * Pre-generations run on their own threads, so they never delay dispatches due at their exact time.
+ */
+@Component
+class RoutineFanOut(
+    private val repository: RoutineFanOutRepository,
+    private val eventPublisher: ApplicationEventPublisher,
+    private val pregenerators: List<RoutineMessagePregenerator>,
+    meterRegistry: MeterRegistry,
+    @Value("\${fibi.routine.fan-out.smoothing-window:PT2M}") private val smoothingWindow: Duration,
+    @Value("\${fibi.routine.fan-out.pregeneration-lead:PT5M}") private val pregenerationLead: Duration,
+    @Value("\${fibi.routine.fan-out.threads:4}") threads: Int,
+    @Value("\${fibi.routine.fan-out.claim-timeout:PT5M}") private val claimTimeout: Duration,
+    @Value("\${fibi.routine.fan-out.pregeneration-threads:2}") pregenerationThreads: Int,
+) : DisposableBean {
+    private val owner = UUID.randomUUID().toString()
+    private val executor = ScheduledThreadPoolExecutor(threads) { runnable ->
+        Thread(runnable, "routine-fan-out-${threadCount.incrementAndGet()}")
+    }
+    private val pregenerationExecutor = ScheduledThreadPoolExecutor(pregenerationThreads) { runnable ->
+        Thread(runnable, "routine-pregeneration-${threadCount.incrementAndGet()}")
+    }
+    private val running = AtomicInteger()
+    private val peakRunning = AtomicInteger()
+    private val previousPeakRunning = AtomicInteger()
+
+    private val bucketSize = DistributionSummary.builder("fibi.routine.fan-out.bucket.size")
+        .description("Routine executions and triggers fired by one minute's fan-out").register(meterRegistry)
+    private val dispatchDelay = Timer.builder("fibi.routine.fan-out.dispatch.delay")
+        .description("Time from when a routine execution or trigger was due until it was dispatched")
+        .register(meterRegistry)
+    private val pregeneratedCounter = Counter.builder("fibi.routine.fan-out.executions").tag("message", "pregenerated")
+        .description("Routine executions dispatched").register(meterRegistry)
+    private val liveCounter = Counter.builder("fibi.routine.fan-out.executions").tag("message", "live")
+        .description("Routine executions dispatched").register(meterRegistry)
+
+    init {
+        Gauge.builder("fibi.routine.fan-out.running", running) { it.get().toDouble() }
+            .description("Routine dispatches and message pre-generations running right now").register(meterRegistry)
+        Gauge.builder("fibi.routine.fan-out.peak-concurrency", previousPeakRunning) { it.get().toDouble() }
+            .description("Most routine dispatches and message pre-generations running at once during the last minute")
+            .register(meterRegistry)
+    }
+
+    /**
+     * Schedules [entry], replacing the entry with the same key.
+     */
+    fun schedule(entry: RoutineFanOutEntry) {
+        repository.save(entry)
+        LOG.debug("Scheduled {} to fire at {}", entry.key, entry.fireAt)
+    }
+
+    /**
+     * Cancels the entry with [key], e.g. of a routine disabled meanwhile.
+     */
+    fun cancel(key: String) {
+        repository.remove(key)
+    }
+
+    fun nextFireTime(friendshipId: FriendshipId): Instant? =
+        repository.findByFriendshipId(friendshipId).minOfOrNull { it.fireAt }
+
+    /**
+     * Makes the scheduled entries of [type] match [entries]. Entries scheduled unchanged keep a pre-generated message.
+     */
+    fun reconcile(type: RoutineFanOutType, entries: Collection<RoutineFanOutEntry>): SchedulerReconciliation {
+        val start = System.nanoTime()
+        val stored = repository.findByType(type).associateBy { it.key }
+        val wanted = entries.associateBy { it.key }
+        val obsolete = stored.keys - wanted.keys
+        repository.removeAll(obsolete)
+        val (existing, missing) = wanted.values.partition { it.key in stored }
+        val changed = existing.filter { entry ->
+            stored.getValue(entry.key)
+                .let { it.fireAt != entry.fireAt || it.payload != entry.payload || it.recurrence != entry.recurrence }
+        }
+        repository.saveAll(missing + changed)
+        return SchedulerReconciliation(
+            group = "routineFanOut.$type",
+            created = missing.size,
+            updated = changed.size,
+            removed = obsolete.size,
+            unchanged = existing.size - changed.size,
+            duration = Duration.ofNanos(System.nanoTime() - start),
+        ).also {
+            LOG.info(
+                "Reconciled {} in {}: {} created, {} updated, {} removed, {} unchanged",
+                it.group, it.duration, it.created, it.updated, it.removed, it.unchanged
+            )
+        }
+    }
+
+    /**
+     * Dispatches the entries of the minute of [now] and of earlier minutes missed, and starts pre-generating the
+     * messages of routines due within the lead. Recurring entries are replaced with their next occurrence as they
+     * are dispatched.
+     */
+    fun fanOut(now: Instant = Instant.now()) {
+        previousPeakRunning.set(peakRunning.getAndSet(running.get()))
+        val minute = now.truncatedTo(MINUTES)
+        val due = repository.claimDueUntil(minute, owner, now, now.minus(claimTimeout))
+        bucketSize.record(due.size.toDouble())
+        val (needingMessage, others) = due.partition { it.type == ROUTINE_EXECUTION && it.pregeneratedMessage == null }
+        val next = due.associate { it.key to nextOccurrence(it, now) }
+        others.forEach { entry -> submit(delayUntil(entry.fireAt, now)) { dispatch(entry, next[entry.key]) } }
+        needingMessage.forEachIndexed { index, entry ->
+            submit(maxOf(offsetInWindow(index, needingMessage.size), delayUntil(entry.fireAt, now))) {
+                dispatch(entry, next[entry.key])
+            }
+        }
+        if (due.isNotEmpty()) {
+            LOG.info("Fanning out {} routine executions and triggers of {}", due.size, minute)
+        }
+        pregenerate(minute.plus(pregenerationLead))
+    }
+
+    private fun pregenerate(untilMinute: Instant) {
+        if (pregenerators.isEmpty()) return
+        val candidates = repository.findPregenerationCandidates(untilMinute)
+        if (candidates.isEmpty()) return
+        repository.markPregenerationStarted(candidates.map { it.key })
+        val supported = candidates.mapNotNull { entry ->
+            pregenerators.firstOrNull { it.supports(entry.payload.getValue("routineType")) }?.let { entry to it }
+        }
+        supported.forEachIndexed { index, (entry, pregenerator) ->
+            submit(offsetInWindow(index, supported.size), pregenerationExecutor) {
+                pregenerator.pregenerate(entry.friendshipId, RoutineConfigurationId(entry.payload.getValue("routineId")))
+                    ?.let { repository.savePregeneratedMessage(entry.key, entry.fireAt, it) }
+            }
+        }
+    }
+
+    /**
+     * The occurrence of [entry] following its dispatch at [now], at the local time of its recurrence.
+     */
+    private fun nextOccurrence(entry: RoutineFanOutEntry, now: Instant): RoutineFanOutEntry? =
+        entry.recurrence?.let { recurrence ->
+            val fireAt = generateSequence(entry.fireAt.atZone(recurrence.timezone).with(recurrence.localTime)) {
+                it.toLocalDate().plusDays(1).atTime(recurrence.localTime).atZone(recurrence.timezone)
+            }.first { it.toInstant() > maxOf(now, entry.fireAt) }.toInstant()
+            RoutineFanOutEntry(entry.key, entry.type, entry.friendshipId, fireAt, entry.payload, recurrence = recurrence)
+        }
+
+    /**
+     * Offset of the item at [index] of [count] items spread evenly across the smoothing window.
+     */
+    private fun offsetInWindow(index: Int, count: Int): Duration =
+        smoothingWindow.multipliedBy(index.toLong()).dividedBy(count.toLong())
+
+    private fun delayUntil(fireAt: Instant, now: Instant): Duration =
+        maxOf(Duration.between(now, fireAt), Duration.ZERO)
+
+    private fun submit(delay: Duration, on: ScheduledThreadPoolExecutor = executor, task: () -> Unit) {
+        on.schedule({
+            peakRunning.accumulateAndGet(running.incrementAndGet()) { peak, current -> maxOf(peak, current) }
+            try {
+                task()
+            } catch (e: Exception) {
+                LOG.error("Failed to fan out routine work", e)
+            } finally {
+                running.decrementAndGet()
+            }
+        }, delay.toMillis(), MILLISECONDS)
+    }
+
+    /**
+     * Publishes the event of [entry] and completes its dispatch even if a listener failed, so it is not dispatched
+     * again.
+     */
+    private fun dispatch(entry: RoutineFanOutEntry, next: RoutineFanOutEntry?) {
+        try {
+            publish(entry)
+        } finally {
+            repository.completeDispatch(entry, next)
+        }
+    }
+
+    private fun publish(entry: RoutineFanOutEntry) {
+        dispatchDelay.record(maxOf(Duration.between(entry.fireAt, Instant.now()), Duration.ZERO))
+        when (entry.type) {
+            ROUTINE_EXECUTION -> {
+                (if (entry.pregeneratedMessage != null) pregeneratedCounter else liveCounter).increment()
+                eventPublisher.publishEvent(
+                    RoutineExecutionEvent(
+                        this.javaClass,
+                        entry.friendshipId,
+                        RoutineConfigurationId(entry.payload.getValue("routineId")),
+                        entry.payload.getValue("routineType"),
+                        entry.pregeneratedMessage
+                    )
+                )
+            }
+
+            ROUTINE_TRIGGER -> eventPublisher.publishEvent(
+                RoutineTriggerFired(
+                    this.javaClass,
+                    entry.friendshipId,
+                    RoutineInstanceId(entry.payload.getValue("routineInstanceId")),
+                    TriggerId(entry.payload.getValue("triggerId"))
+                )
+            )
+        }
+    }
+
+    override fun destroy() {
+        executor.shutdownNow()
+        pregenerationExecutor.shutdownNow()
+    }
+
+    companion object {
+        private val LOG = LoggerFactory.getLogger(RoutineFanOut::class.java)
+        private val threadCount = AtomicInteger()
+    }
+}
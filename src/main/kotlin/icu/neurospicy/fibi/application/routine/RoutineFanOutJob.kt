@@ -0,0 +1,19 @@
+package icu.neurospicy.fibi.application.routine
+
+import org.quartz.DisallowConcurrentExecution
+import org.quartz.Job
+import org.quartz.JobExecutionContext
+import org.springframework.stereotype.Component
+
+/**
+ * Fans out the routine executions and triggers of the minute, runs once a minute on one instance of the cluster.
+ */
+@Component
+@DisallowConcurrentExecution
+class RoutineFanOutJob(
+    private val routineFanOut: RoutineFanOut,
+) : Job {
+    override fun execute(context: JobExecutionContext) {
+        routineFanOut.fanOut()
+    }
+}
@@ -0,0 +1,17 @@
+package icu.neurospicy.fibi.application.routine
+
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.model.RoutineConfigurationId
+
+/**
+ * Generates the message a routine starts with ahead of time, for routines whose first message does not depend on
+ * the minute it is sent. The message is handed to the listener with [RoutineExecutionEvent.pregeneratedMessage].
+ */
+interface RoutineMessagePregenerator {
+    fun supports(routineType: String): Boolean
+
+    /**
+     * @return null if the message could not be generated, it is generated when the routine starts then
+     */
+    fun pregenerate(friendshipId: FriendshipId, routineId: RoutineConfigurationId): String?
+}
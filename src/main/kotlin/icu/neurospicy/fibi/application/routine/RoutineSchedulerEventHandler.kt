@@ -1,5 +1,6 @@
 package icu.neurospicy.fibi.application.routine
 
+import icu.neurospicy.fibi.domain.model.events.SetUpMorningRoutineActivityCancelled
 import icu.neurospicy.fibi.domain.model.events.SetUpMorningRoutineActivityFinished
 import icu.neurospicy.fibi.domain.model.events.TimezoneChanged
 import icu.neurospicy.fibi.domain.repository.RoutineConfigurationRepository
@@ -23,6 +24,14 @@ class RoutineSchedulerEventHandler(
         routineConfigurationRepository.findBy(event.routineId)?.let { schedulerService.scheduleRoutine(it) }
     }
 
+    /**
+     * Routines disabled when the set-up was cancelled are no longer started.
+     */
+    @EventListener
+    fun onRoutineSetupCancelled(event: SetUpMorningRoutineActivityCancelled) {
+        schedulerService.reinitializeRoutines(routineConfigurationRepository.findByFriendshipId(event.friendshipId))
+    }
+
     @EventListener
     fun onTimezoneChanges(event: TimezoneChanged) {
         LOG.info("Timezone of user changed, rescheduling routines for friendship ${event.friendshipId}")
@@ -35,7 +44,7 @@ class RoutineSchedulerEventHandler(
     @EventListener
     fun onApplicationStarted(event: ApplicationStartedEvent) {
         LOG.info("Setting up schedulers for morning routines.")
-        schedulerService.reinitializeRoutines(routineConfigurationRepository.findAll(routineType = "Morning routine"))
+        schedulerService.reconcileRoutines(routineConfigurationRepository.findAll(routineType = "Morning routine"))
     }
 
     companion object {
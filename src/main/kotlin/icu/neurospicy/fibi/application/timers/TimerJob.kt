@@ -19,10 +19,14 @@ data class TimerJob(
 ) : Job {
     override fun execute(context: JobExecutionContext) {
         val jobData = context.jobDetail.jobDataMap
-        val owner = FriendshipId(jobData.getString("owner"))
-        val timer = jobData.getString("timerId").let { timerId ->
-            timerRepository.findByFriendshipId(owner).firstOrNull { it._id == timerId } ?: return
-        }
+        fire(FriendshipId(jobData.getString("owner")), jobData.getString("timerId"))
+    }
+
+    /**
+     * Tells the friend that their timer expired, whether it was scheduled with Quartz or the timing wheel.
+     */
+    fun fire(owner: FriendshipId, timerId: String) {
+        val timer = timerRepository.findByFriendshipId(owner).firstOrNull { it._id == timerId } ?: return
         val messageDescription =
             "Tell the friend their ${timer.duration} timer has expired. Translate the ISO format duration into natural language.${if (timer.label.isNotBlank()) "Focus on the timer's name \"${timer.label}\" in your answer and include it nicely." else ""}"
         eventPublisher.publishEvent(
@@ -34,12 +34,7 @@ class TimerToScheduler(
 
     @EventListener
     fun onApplicationStarted(event: ApplicationStartedEvent) {
-        friendshipLedger.findAllIds().map {
-            it to timerRepository.findByFriendshipId(it)
-        }.forEach {
-            it.second.forEach { timer ->
-                schedulerService.scheduleTimer(timer)
-            }
-        }
+        schedulerService.reconcileTimers(
+            friendshipLedger.findAllIds().flatMap { timerRepository.findByFriendshipId(it) })
     }
 }
\ No newline at end of file
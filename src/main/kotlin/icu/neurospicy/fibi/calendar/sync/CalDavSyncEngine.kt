@@ -0,0 +1,107 @@
+package icu.neurospicy.fibi.calendar.sync
+
+import icu.neurospicy.fibi.domain.model.CalendarConfiguration
+import icu.neurospicy.fibi.domain.model.CalendarId
+import icu.neurospicy.fibi.domain.model.sha256Hex
+import icu.neurospicy.fibi.domain.repository.CalendarFileManifestRepository
+import icu.neurospicy.fibi.domain.repository.CalendarFileState
+import icu.neurospicy.fibi.outgoing.http.CalDavClient
+import icu.neurospicy.fibi.outgoing.http.CalDavCollection
+import org.slf4j.LoggerFactory
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty
+import org.springframework.stereotype.Component
+import java.net.URI
+import java.time.Instant
+import java.time.ZoneId
+
+/**
+ * Synchronizes calendars in process via CalDAV. Collections with an unchanged ctag are skipped, otherwise only the
+ * events reported as changed by sync-collection (or with a changed etag) are fetched and parsed.
+ */
+@Component
+@ConditionalOnProperty(name = ["fibi.calendar.sync-engine"], havingValue = "caldav")
+class CalDavSyncEngine(
+    private val calDavClient: CalDavClient,
+    private val calendarFileManifestRepository: CalendarFileManifestRepository,
+    private val calendarUpdater: CalendarUpdater,
+    private val calendarSyncCompletion: CalendarSyncCompletion,
+) : CalendarSyncEngine {
+
+    override fun discoverAndSync(calendarConfiguration: CalendarConfiguration) = sync(calendarConfiguration)
+
+    override fun sync(calendarConfiguration: CalendarConfiguration) {
+        val owner = calendarConfiguration.friendshipId
+        val calendarConfigId = calendarConfiguration.calendarConfigId
+        val collections = try {
+            calDavClient.discoverCalendars(URI.create(calendarConfiguration.url), calendarConfiguration.credential)
+        } catch (e: Exception) {
+            LOG.error("Failed to discover calendars of config {}", calendarConfigId, e)
+            return
+        }
+        val zoneIds = mutableListOf<ZoneId?>()
+        val calendarNames = collections.mapNotNull { collection ->
+            val calendarId = CalendarId(collection.name)
+            val calendarName = collection.displayName ?: collection.name
+            try {
+                zoneIds += calendarUpdater.update(changesOf(calendarConfiguration, collection, calendarId, calendarName))
+                calendarUpdater.rollMaterializedOccurrences(owner, calendarConfigId, calendarId)
+                calendarName
+            } catch (e: Exception) {
+                LOG.error("Failed to synchronize calendar {} of config {}", calendarId, calendarConfigId, e)
+                null
+            }
+        }
+        calendarSyncCompletion.complete(owner, calendarConfigId, calendarNames, zoneIds)
+    }
+
+    private fun changesOf(
+        calendarConfiguration: CalendarConfiguration,
+        collection: CalDavCollection,
+        calendarId: CalendarId,
+        calendarName: String
+    ): CalendarChanges {
+        val owner = calendarConfiguration.friendshipId
+        val calendarConfigId = calendarConfiguration.calendarConfigId
+        val credential = calendarConfiguration.credential
+        val manifest = calendarFileManifestRepository.load(owner, calendarConfigId, calendarId)
+            ?.takeIf { it.calendarName == calendarName }
+        val previousFiles = manifest?.files?.associateBy { it.fileName } ?: emptyMap()
+        fun unchanged() = CalendarChanges(
+            owner, calendarConfigId, calendarId, calendarName, manifest, manifest?.files ?: emptyList(),
+            emptyList(), emptySet(), collection.ctag, collection.syncToken
+        )
+        if (manifest != null && collection.ctag != null && manifest.collectionTag == collection.ctag) {
+            return unchanged()
+        }
+
+        val reported = manifest?.syncToken?.let { calDavClient.syncCollection(collection.url, it, credential) }
+        val etags: Map<String, String>
+        val removed: Set<String>
+        if (reported != null) {
+            etags = reported.changed
+            removed = reported.removed.intersect(previousFiles.keys)
+        } else {
+            etags = calDavClient.listEvents(collection.url, credential)
+            removed = previousFiles.keys - etags.keys
+        }
+        val changedHrefs = etags.filter { (href, etag) -> previousFiles[href]?.hash != etag }.keys
+        if (manifest != null && changedHrefs.isEmpty() && removed.isEmpty()) return unchanged()
+
+        val events = calDavClient.fetchEvents(collection.url, changedHrefs, credential)
+        val changedFiles = events.map { event ->
+            val content = event.calendarData.toByteArray()
+            IcsFile(event.href, event.etag.ifBlank { sha256Hex(content) }, content)
+        }
+        val fetched = changedFiles.associateBy { it.fileName }
+        val files = previousFiles.values.filter { it.fileName !in removed && it.fileName !in fetched } +
+                changedFiles.map { CalendarFileState(it.fileName, it.content.size.toLong(), Instant.EPOCH, it.hash, emptySet()) }
+        return CalendarChanges(
+            owner, calendarConfigId, calendarId, calendarName, manifest, files, changedFiles, removed,
+            collection.ctag, reported?.syncToken ?: collection.syncToken
+        )
+    }
+
+    companion object {
+        private val LOG = LoggerFactory.getLogger(CalDavSyncEngine::class.java)
+    }
+}
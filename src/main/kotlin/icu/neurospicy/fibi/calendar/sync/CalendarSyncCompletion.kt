@@ -0,0 +1,65 @@
+package icu.neurospicy.fibi.calendar.sync
+
+import icu.neurospicy.fibi.domain.model.CalendarConfigId
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.repository.CalendarConfigurationRepository
+import icu.neurospicy.fibi.domain.repository.FriendshipLedger
+import icu.neurospicy.fibi.outgoing.quartz.QuartzSchedulerService
+import org.slf4j.LoggerFactory
+import org.springframework.context.ApplicationEventPublisher
+import org.springframework.stereotype.Component
+import java.time.Instant.now
+import java.time.ZoneId
+
+/**
+ * Finishes the synchronization of a calendar configuration, whichever [CalendarSyncEngine] performed it.
+ */
+@Component
+class CalendarSyncCompletion(
+    private val calendarConfigurationRepository: CalendarConfigurationRepository,
+    private val eventPublisher: ApplicationEventPublisher,
+    private val friendshipLedger: FriendshipLedger,
+    private val quartzSchedulerService: QuartzSchedulerService,
+    private val calendarSyncIntervals: CalendarSyncIntervals,
+) {
+    /**
+     * Stores the sync time, publishes [CalendarSynchronized] and schedules the next sync in the interval decided by
+     * [CalendarSyncIntervals]. The most frequent zone id of the synchronized appointments becomes the friend's time
+     * zone if they have none yet.
+     */
+    fun complete(
+        owner: FriendshipId,
+        calendarConfigId: CalendarConfigId,
+        calendarNames: List<String>,
+        zoneIds: List<ZoneId?>
+    ) {
+        updateZoneIdOfUser(owner, zoneIds)
+        calendarConfigurationRepository.synchronized(owner, calendarConfigId, now())
+        eventPublisher.publishEvent(CalendarSynchronized(owner, calendarConfigId, calendarNames))
+        quartzSchedulerService.scheduleCalendarSync(
+            owner, calendarConfigId, calendarSyncIntervals.next(owner, calendarConfigId)
+        )
+    }
+
+    private fun updateZoneIdOfUser(
+        friendshipId: FriendshipId,
+        zoneIds: List<ZoneId?>
+    ) {
+        val friend = friendshipLedger.findBy(friendshipId) ?: return
+        if (friend.timeZone != null) return
+        val mostFrequentZoneId = zoneIds
+            .filterNotNull()
+            .groupingBy { it }
+            .eachCount()
+            .maxByOrNull { it.value }
+            ?.key
+        if (mostFrequentZoneId != null) {
+            LOG.info("Setting timezone of friend to $mostFrequentZoneId because it is most frequent in their calendar.")
+            friendshipLedger.updateZoneId(friendshipId, mostFrequentZoneId)
+        }
+    }
+
+    companion object {
+        private val LOG = LoggerFactory.getLogger(CalendarSyncCompletion::class.java)
+    }
+}
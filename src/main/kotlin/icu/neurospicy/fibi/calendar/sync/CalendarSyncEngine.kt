@@ -0,0 +1,15 @@
+package icu.neurospicy.fibi.calendar.sync
+
+import icu.neurospicy.fibi.domain.model.CalendarConfiguration
+
+/**
+ * Synchronizes the calendars of a calendar configuration into the calendar repository and completes the sync with
+ * [CalendarSyncCompletion]. The engine is selected by `fibi.calendar.sync-engine` (`vdirsyncer` or `caldav`).
+ */
+interface CalendarSyncEngine {
+    /**
+     * First synchronization after the configuration was registered.
+     */
+    fun discoverAndSync(calendarConfiguration: CalendarConfiguration)
+    fun sync(calendarConfiguration: CalendarConfiguration)
+}
@@ -0,0 +1,113 @@
+package icu.neurospicy.fibi.calendar.sync
+
+import icu.neurospicy.fibi.domain.model.CalendarConfigId
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.repository.CalendarSyncDecision
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty
+import org.springframework.stereotype.Component
+import java.time.Duration
+import java.time.Instant
+
+/**
+ * Decides how long to wait until the next sync of a calendar configuration. The policy is selected by
+ * `fibi.calendar.sync.interval-policy` (`adaptive` or `fixed`).
+ */
+interface CalendarSyncIntervalPolicy {
+    val name: String
+    fun decide(observation: CalendarSyncObservation): CalendarSyncInterval
+}
+
+/**
+ * What is known after a sync of a calendar configuration.
+ *
+ * @param changes appointments changed by this sync
+ * @param history previous decisions, newest first
+ */
+data class CalendarSyncObservation(
+    val owner: FriendshipId,
+    val calendarConfigId: CalendarConfigId,
+    val changes: AppointmentChanges,
+    val history: List<CalendarSyncDecision>,
+    val chatting: Boolean,
+    val nextRoutineAt: Instant?,
+    val now: Instant,
+)
+
+data class AppointmentChanges(val new: Int = 0, val changed: Int = 0, val deleted: Int = 0) {
+    val total: Int get() = new + changed + deleted
+    operator fun plus(other: AppointmentChanges) =
+        AppointmentChanges(new + other.new, changed + other.changed, deleted + other.deleted)
+}
+
+/**
+ * @param backoffInterval interval derived from the change history alone, passed to the next decision
+ */
+data class CalendarSyncInterval(val interval: Duration, val backoffInterval: Duration, val reason: String)
+
+/**
+ * Backs off from calendars that do not change up to [maxInterval] and halves the interval whenever a sync found
+ * changes. While the friend is chatting or a routine of theirs is coming up, calendars are synced every
+ * [minInterval] without losing the backoff. The interval never reaches into the [routineLeadTime] before the next
+ * routine.
+ */
+@Component
+@ConditionalOnProperty(name = ["fibi.calendar.sync.interval-policy"], havingValue = "adaptive", matchIfMissing = true)
+class AdaptiveCalendarSyncIntervalPolicy(
+    @Value("\${fibi.calendar.sync.min-interval:PT5M}") private val minInterval: Duration,
+    @Value("\${fibi.calendar.sync.default-interval:PT20M}") private val defaultInterval: Duration,
+    @Value("\${fibi.calendar.sync.max-interval:PT4H}") private val maxInterval: Duration,
+    @Value("\${fibi.calendar.sync.routine-lead-time:PT1H}") private val routineLeadTime: Duration,
+) : CalendarSyncIntervalPolicy {
+    override val name = "adaptive"
+
+    override fun decide(observation: CalendarSyncObservation): CalendarSyncInterval {
+        val previous = observation.history.firstOrNull()?.backoffInterval ?: defaultInterval
+        val backoff = if (observation.changes.total > 0) {
+            maxOf(minInterval, previous.dividedBy(2))
+        } else {
+            minOf(maxInterval, previous.plus(previous.dividedBy(2)))
+        }
+        val routineComingUp = observation.nextRoutineAt?.isBefore(observation.now.plus(routineLeadTime)) == true
+        return when {
+            observation.chatting -> CalendarSyncInterval(minOf(minInterval, backoff), backoff, "friend is chatting")
+            routineComingUp -> CalendarSyncInterval(
+                minOf(minInterval, backoff), backoff, "routine at ${observation.nextRoutineAt}"
+            )
+
+            observation.changes.total > 0 ->
+                untilRoutineLead(observation, backoff, "${observation.changes.total} appointment changes")
+
+            else -> untilRoutineLead(observation, backoff, "no changes")
+        }
+    }
+
+    /**
+     * Caps [backoff] so that the next sync happens before the lead time of the friend's next routine starts.
+     */
+    private fun untilRoutineLead(
+        observation: CalendarSyncObservation, backoff: Duration, reason: String
+    ): CalendarSyncInterval {
+        val untilLead = observation.nextRoutineAt?.let { Duration.between(observation.now, it).minus(routineLeadTime) }
+        return if (untilLead != null && untilLead < backoff) {
+            CalendarSyncInterval(
+                maxOf(minInterval, untilLead), backoff, "$reason, routine at ${observation.nextRoutineAt}"
+            )
+        } else {
+            CalendarSyncInterval(backoff, backoff, reason)
+        }
+    }
+}
+
+/**
+ * Syncs every calendar every [interval], no matter how often it changes.
+ */
+@Component
+@ConditionalOnProperty(name = ["fibi.calendar.sync.interval-policy"], havingValue = "fixed")
+class FixedCalendarSyncIntervalPolicy(
+    @Value("\${fibi.calendar.sync.default-interval:PT20M}") private val interval: Duration,
+) : CalendarSyncIntervalPolicy {
+    override val name = "fixed"
+
+    override fun decide(observation: CalendarSyncObservation) = CalendarSyncInterval(interval, interval, "fixed")
+}
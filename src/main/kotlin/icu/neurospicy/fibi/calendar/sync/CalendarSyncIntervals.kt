@@ -0,0 +1,77 @@
+package icu.neurospicy.fibi.calendar.sync
+
+import icu.neurospicy.fibi.domain.model.CalendarConfigId
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.model.events.AppointmentsUpdated
+import icu.neurospicy.fibi.domain.repository.CalendarSyncDecision
+import icu.neurospicy.fibi.domain.repository.CalendarSyncDecisionRepository
+import icu.neurospicy.fibi.outgoing.quartz.QuartzSchedulerService
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.context.event.EventListener
+import org.springframework.stereotype.Component
+import java.time.Duration
+import java.time.Instant.now
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Collects the appointment changes of a running sync from [AppointmentsUpdated] and asks the
+ * [CalendarSyncIntervalPolicy] for the interval until the next sync once it completed. Every decision is recorded.
+ */
+@Component
+class CalendarSyncIntervals(
+    private val calendarSyncIntervalPolicy: CalendarSyncIntervalPolicy,
+    private val calendarSyncDecisionRepository: CalendarSyncDecisionRepository,
+    private val recentChatActivity: RecentChatActivity,
+    private val quartzSchedulerService: QuartzSchedulerService,
+    @Value("\${fibi.calendar.sync.history-size:10}") private val historySize: Int,
+) {
+    private val pendingChanges = ConcurrentHashMap<CalendarConfigId, AppointmentChanges>()
+
+    @EventListener
+    fun onAppointmentsUpdated(event: AppointmentsUpdated) {
+        val changes = AppointmentChanges(
+            new = event.newAppointmentIds.size,
+            changed = (event.changedAppointmentIds - event.deletedAppointmentIds).size,
+            deleted = event.deletedAppointmentIds.size
+        )
+        pendingChanges.merge(event.calendarConfigId, changes, AppointmentChanges::plus)
+    }
+
+    /**
+     * Decides the interval until the next sync of a calendar configuration that just completed a sync.
+     */
+    fun next(owner: FriendshipId, calendarConfigId: CalendarConfigId): Duration {
+        val changes = pendingChanges.remove(calendarConfigId) ?: AppointmentChanges()
+        val history = try {
+            calendarSyncDecisionRepository.findLatest(owner, calendarConfigId, historySize)
+        } catch (e: Exception) {
+            LOG.warn("Failed to load sync decisions of calendar config {}", calendarConfigId, e)
+            emptyList()
+        }
+        val observation = CalendarSyncObservation(
+            owner, calendarConfigId, changes, history,
+            chatting = recentChatActivity.isChatting(owner),
+            nextRoutineAt = quartzSchedulerService.nextRoutineFireTime(owner),
+            now = now()
+        )
+        val decided = calendarSyncIntervalPolicy.decide(observation)
+        LOG.debug("Next sync of calendar config {} in {}: {}", calendarConfigId, decided.interval, decided.reason)
+        try {
+            calendarSyncDecisionRepository.save(
+                CalendarSyncDecision(
+                    owner, calendarConfigId, observation.now, calendarSyncIntervalPolicy.name,
+                    changes.new, changes.changed, changes.deleted, observation.chatting, observation.nextRoutineAt,
+                    decided.backoffInterval, decided.interval, decided.reason
+                )
+            )
+        } catch (e: Exception) {
+            LOG.warn("Failed to record sync decision of calendar config {}", calendarConfigId, e)
+        }
+        return decided.interval
+    }
+
+    companion object {
+        private val LOG = LoggerFactory.getLogger(CalendarSyncIntervals::class.java)
+    }
+}
@@ -0,0 +1,156 @@
+package icu.neurospicy.fibi.calendar.sync
+
+import icu.neurospicy.fibi.domain.model.CalendarConfigId
+import icu.neurospicy.fibi.domain.model.CalendarConfiguration
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.model.events.IncomingFriendMessageReceived
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Timer
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.context.event.EventListener
+import org.springframework.stereotype.Component
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.PriorityBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Runs calendar syncs with at most [maxConcurrentSyncs] at a time, so that syncs scheduled close to each other do
+ * not start many vdirsyncer processes and ics parses at once.
+ *
+ * A calendar configuration is queued at most once and never synced concurrently. A sync requested while one is
+ * running is held back as its single follow-up until the running one finished. Syncs of friends who are chatting
+ * right now are taken first, the others in the order they were queued.
+ */
+@Component
+class CalendarSyncQueue(
+    private val calendarSyncEngine: CalendarSyncEngine,
+    private val recentChatActivity: RecentChatActivity,
+    meterRegistry: MeterRegistry,
+    @Value("\${fibi.calendar.sync.max-concurrent:2}") maxConcurrentSyncs: Int,
+) : DisposableBean {
+    private val queue = PriorityBlockingQueue<Runnable>()
+    private val executor = ThreadPoolExecutor(
+        maxConcurrentSyncs, maxConcurrentSyncs, 0, TimeUnit.MILLISECONDS, queue
+    ) { runnable -> Thread(runnable, "calendar-sync-${threadCount.incrementAndGet()}") }
+    private val queued = ConcurrentHashMap<Key, QueuedSync>()
+    private val running = HashSet<Key>()
+    private val sequence = AtomicLong()
+
+    private val waitTimer = Timer.builder("fibi.calendar.sync.wait")
+        .description("Time a calendar sync waits in the queue until it starts").register(meterRegistry)
+    private val syncTimer = Timer.builder("fibi.calendar.sync.duration")
+        .description("Time spent synchronizing a calendar configuration").register(meterRegistry)
+    private val deduplicatedCounter = Counter.builder("fibi.calendar.sync.deduplicated")
+        .description("Sync requests dropped because the calendar configuration was already queued")
+        .register(meterRegistry)
+
+    init {
+        Gauge.builder("fibi.calendar.sync.queue.length", queued) { it.size.toDouble() }
+            .description("Calendar syncs waiting for a free slot").register(meterRegistry)
+    }
+
+    /**
+     * Queues a sync of [calendarConfiguration] unless it is already queued. A queued sync is upgraded to discover
+     * the calendars if [discover] is requested. If the calendar configuration is syncing right now, the sync starts
+     * once the running one finished.
+     *
+     * @return false if the calendar configuration was already queued
+     */
+    fun enqueue(calendarConfiguration: CalendarConfiguration, discover: Boolean = false): Boolean {
+        val key = Key(calendarConfiguration.friendshipId, calendarConfiguration.calendarConfigId)
+        val queuedSync = synchronized(running) {
+            val existing = queued[key]
+            if (existing != null) {
+                existing.discover = existing.discover || discover
+                deduplicatedCounter.increment()
+                LOG.debug("Sync of calendar config {} is already queued", key.calendarConfigId)
+                return false
+            }
+            val sync = QueuedSync(
+                key, calendarConfiguration, discover,
+                recentChatActivity.isChatting(calendarConfiguration.friendshipId), sequence.incrementAndGet()
+            )
+            queued[key] = sync
+            if (key in running) {
+                LOG.debug("Calendar config {} is syncing, syncing it again afterwards", key.calendarConfigId)
+                return true
+            }
+            sync
+        }
+        executor.execute(queuedSync)
+        return true
+    }
+
+    /**
+     * Moves queued syncs of a friend who just wrote to Fibi to the front.
+     */
+    @EventListener
+    fun onMessage(event: IncomingFriendMessageReceived) {
+        queued.values.filter { it.key.friendshipId == event.friendshipId && !it.chatting }.forEach { queuedSync ->
+            if (queue.remove(queuedSync)) {
+                queue.add(queuedSync.copyChatting())
+            }
+        }
+    }
+
+    private fun runSync(queuedSync: QueuedSync) {
+        synchronized(running) {
+            if (!queued.remove(queuedSync.key, queuedSync.origin)) return
+            running += queuedSync.key
+        }
+        waitTimer.record(Duration.ofNanos(System.nanoTime() - queuedSync.enqueuedAt))
+        syncTimer.record(Runnable {
+            try {
+                if (queuedSync.origin.discover) calendarSyncEngine.discoverAndSync(queuedSync.calendarConfiguration)
+                else calendarSyncEngine.sync(queuedSync.calendarConfiguration)
+            } catch (e: Exception) {
+                LOG.error("Failed to sync calendar config {}", queuedSync.key.calendarConfigId, e)
+            }
+        })
+        synchronized(running) {
+            running -= queuedSync.key
+            queued[queuedSync.key]
+        }?.let { executor.execute(it) }
+    }
+
+    override fun destroy() {
+        executor.shutdownNow()
+    }
+
+    private data class Key(val friendshipId: FriendshipId, val calendarConfigId: CalendarConfigId)
+
+    /**
+     * A queued sync. Re-prioritizing creates a copy pointing to the queued [origin], so only one of them runs.
+     */
+    private inner class QueuedSync(
+        val key: Key,
+        val calendarConfiguration: CalendarConfiguration,
+        @Volatile var discover: Boolean,
+        val chatting: Boolean,
+        val sequence: Long,
+        val enqueuedAt: Long = System.nanoTime(),
+        origin: QueuedSync? = null,
+    ) : Runnable, Comparable<QueuedSync> {
+        val origin: QueuedSync = origin ?: this
+
+        fun copyChatting() = QueuedSync(key, calendarConfiguration, discover, true, sequence, enqueuedAt, origin)
+
+        override fun run() = runSync(this)
+
+        override fun compareTo(other: QueuedSync): Int =
+            compareValuesBy(this, other, { !it.chatting }, { it.sequence })
+    }
+
+    companion object {
+        private val LOG = LoggerFactory.getLogger(CalendarSyncQueue::class.java)
+        private val threadCount = AtomicInteger()
+    }
+}
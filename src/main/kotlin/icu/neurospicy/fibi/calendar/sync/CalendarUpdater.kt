@@ -0,0 +1,172 @@
+package icu.neurospicy.fibi.calendar.sync
+
+import icu.neurospicy.fibi.domain.model.*
+import icu.neurospicy.fibi.domain.repository.CalendarFileManifest
+import icu.neurospicy.fibi.domain.repository.CalendarFileManifestRepository
+import icu.neurospicy.fibi.domain.repository.CalendarFileState
+import icu.neurospicy.fibi.domain.repository.CalendarRepository
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Component
+import java.time.Duration
+import java.time.Instant
+import java.time.Instant.now
+import java.time.ZoneId
+import java.time.temporal.ChronoUnit.DAYS
+
+/**
+ * Applies the added, changed and deleted ics resources of a calendar to the [CalendarRepository] and saves the
+ * calendar's [CalendarFileManifest]. Used by every [CalendarSyncEngine].
+ */
+@Component
+class CalendarUpdater(
+    private val calendarRepository: CalendarRepository,
+    private val calendarFileManifestRepository: CalendarFileManifestRepository,
+    private val icsFileParser: IcsFileParser,
+    @Value("\${fibi.calendar.materialized-horizon:P35D}") private val materializedHorizon: Duration,
+) {
+
+    /**
+     * Parses the changed files and replaces the appointments of the VEVENTs found in changed or deleted files.
+     * Without a previous manifest, all appointments of the calendar are replaced.
+     *
+     * @return the zone ids of the parsed appointments
+     */
+    fun update(changes: CalendarChanges): List<ZoneId?> {
+        val (owner, calendarConfigId, calendarId, calendarName, manifest) = changes
+        val previousFiles = manifest?.files?.associateBy { it.fileName } ?: emptyMap()
+        val files = changes.files.toMutableList()
+        if (manifest != null && changes.changedFiles.isEmpty() && changes.deletedFiles.isEmpty()) {
+            LOG.info("No changes in calendar {} belonging to config {}", calendarId, calendarConfigId)
+            val unchanged = manifest.copy(
+                files = files,
+                collectionTag = changes.collectionTag,
+                syncToken = changes.syncToken
+            )
+            if (unchanged != manifest) calendarFileManifestRepository.save(unchanged)
+            return emptyList()
+        }
+        LOG.info(
+            "Processing {} changed and {} deleted files of calendar {} belonging to config {}",
+            changes.changedFiles.size, changes.deletedFiles.size, calendarId, calendarConfigId
+        )
+
+        val parsedFiles = icsFileParser.parse(
+            changes.changedFiles, owner, calendarConfigId, calendarId, now().plus(366, DAYS), materializedWindow()
+        ).associateBy { it.file.fileName }
+        val newAppointments = parsedFiles.values.flatMap { it.appointments }
+        val recurringEvents = parsedFiles.values.mapNotNull { it.recurringEvent }
+        val failedFiles = parsedFiles.values.filter { it.failed }.map { it.file.fileName }.toSet()
+        files.replaceAll { state ->
+            val parsed = parsedFiles[state.fileName] ?: return@replaceAll state
+            state.copy(uids = setOfNotNull(parsed.uid))
+        }
+        if (failedFiles.isNotEmpty()) {
+            LOG.warn("Failed to parse appointments: {}", failedFiles)
+            // keep the previous state of failed files and leave new ones out, so the next sync parses them again
+            files.removeIf { it.fileName in failedFiles }
+            files += failedFiles.mapNotNull { previousFiles[it] }
+        }
+
+        if (manifest == null) {
+            LOG.info(
+                "Saving calendar {} of calendar config {} for friendship {} with {} appointments",
+                calendarName, calendarConfigId, owner, newAppointments.size,
+            )
+            calendarRepository.save(
+                PrivateCalendar(
+                    calendarConfigId = calendarConfigId,
+                    calendarId = calendarId,
+                    name = calendarName,
+                    appointments = newAppointments.map { it.appointmentId },
+                    lastUpdatedAt = now(),
+                    owner = owner
+                )
+            )
+            calendarRepository.replaceCalendarAppointments(newAppointments, owner, calendarConfigId, calendarId)
+            calendarRepository.replaceRecurringEvents(recurringEvents, owner, calendarConfigId, calendarId)
+        } else {
+            // appointments of files failing to parse stay as they are
+            val affectedUids = (changes.changedFiles.filter { it.fileName !in failedFiles }
+                .flatMap { previousFiles[it.fileName]?.uids ?: emptySet() } +
+                    changes.deletedFiles.flatMap { previousFiles[it]?.uids ?: emptySet() } +
+                    parsedFiles.values.mapNotNull { it.uid }).toSet()
+            calendarRepository.replaceAppointmentsOfVEvents(
+                newAppointments, owner, calendarConfigId, calendarId, affectedUids
+            )
+            calendarRepository.replaceRecurringEvents(
+                recurringEvents, owner, calendarConfigId, calendarId, affectedUids
+            )
+        }
+        // without advancing the collection tag and sync token, the CalDAV server reports failed files again
+        val advance = failedFiles.isEmpty()
+        calendarFileManifestRepository.save(
+            CalendarFileManifest(
+                owner, calendarConfigId, calendarId, calendarName, files,
+                if (advance) changes.collectionTag else manifest?.collectionTag,
+                if (advance) changes.syncToken else manifest?.syncToken,
+            )
+        )
+        return newAppointments.map { it.startAt.zoneId }
+    }
+
+    /**
+     * Moves the materialized window of recurring events forward about once a day, as unchanged ics files are not
+     * parsed again.
+     */
+    fun rollMaterializedOccurrences(
+        owner: FriendshipId,
+        calendarConfigId: CalendarConfigId,
+        calendarId: CalendarId
+    ) {
+        val window = materializedWindow()
+        val dueEvents = calendarRepository.loadRecurringEvents(owner, calendarConfigId, calendarId)
+            .filter { it.materializedUntil.isBefore(window.endInclusive.minus(1, DAYS)) }
+        if (dueEvents.isEmpty()) return
+        LOG.info("Rolling materialized occurrences of {} recurring events of calendar {}", dueEvents.size, calendarId)
+        val occurrences = dueEvents.flatMap { recurringEvent ->
+            try {
+                recurringEvent.expand(window)
+            } catch (e: Exception) {
+                LOG.warn("Failed to expand recurring event {}", recurringEvent.relatedVEvent, e)
+                emptyList()
+            }
+        }
+        calendarRepository.replaceAppointmentsOfVEvents(
+            occurrences, owner, calendarConfigId, calendarId, dueEvents.map { it.relatedVEvent }.toSet()
+        )
+        dueEvents.forEach {
+            calendarRepository.saveRecurringEvent(
+                it.copy(materializedFrom = window.start, materializedUntil = window.endInclusive)
+            )
+        }
+    }
+
+    /**
+     * Occurrences of recurring events are stored only within this window, e.g. to schedule reminders, and expanded
+     * on demand otherwise.
+     */
+    private fun materializedWindow(): ClosedRange<Instant> = now().minus(1, DAYS)..now().plus(materializedHorizon)
+
+    companion object {
+        private val LOG = LoggerFactory.getLogger(CalendarUpdater::class.java)
+    }
+}
+
+/**
+ * Changes of a calendar since [manifest] was saved.
+ *
+ * @param files the state of all current files, including [changedFiles]
+ */
+data class CalendarChanges(
+    val owner: FriendshipId,
+    val calendarConfigId: CalendarConfigId,
+    val calendarId: CalendarId,
+    val calendarName: String,
+    val manifest: CalendarFileManifest?,
+    val files: List<CalendarFileState>,
+    val changedFiles: List<IcsFile>,
+    val deletedFiles: Set<String>,
+    val collectionTag: String? = null,
+    val syncToken: String? = null,
+)
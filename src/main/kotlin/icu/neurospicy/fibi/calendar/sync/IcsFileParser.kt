@@ -0,0 +1,84 @@
+package icu.neurospicy.fibi.calendar.sync
+
+import icu.neurospicy.fibi.domain.model.*
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Component
+import java.io.ByteArrayInputStream
+import java.time.Instant
+
+/**
+ * Parses ics files of a calendar in parallel, using at most [parallelism] threads.
+ *
+ * Occurrences of recurring events are only created within the recurrence window, the event itself is returned as
+ * [RecurringEvent] to expand other occurrences on demand.
+ */
+@Component
+class IcsFileParser(
+    @Value("\${fibi.calendar.parse-parallelism:4}") parallelism: Int,
+) {
+    private val dispatcher = Dispatchers.Default.limitedParallelism(parallelism)
+
+    fun parse(
+        files: List<IcsFile>,
+        owner: FriendshipId,
+        calendarConfigId: CalendarConfigId,
+        calendarId: CalendarId,
+        repetitionEnd: Instant,
+        recurrenceWindow: ClosedRange<Instant>? = null,
+    ): List<ParsedIcsFile> = runBlocking(dispatcher) {
+        files.map { file ->
+            async { parse(file, owner, calendarConfigId, calendarId, repetitionEnd, recurrenceWindow) }
+        }.awaitAll()
+    }
+
+    private fun parse(
+        file: IcsFile,
+        owner: FriendshipId,
+        calendarConfigId: CalendarConfigId,
+        calendarId: CalendarId,
+        repetitionEnd: Instant,
+        recurrenceWindow: ClosedRange<Instant>?,
+    ): ParsedIcsFile = try {
+        val parsed = unfolded(file).use { content ->
+            appointmentsFromIcs(
+                file.fileName, content, file.hash, owner, calendarConfigId, calendarId, repetitionEnd, recurrenceWindow
+            )
+        }
+        val recurringEvent = if (parsed.recurring && recurrenceWindow != null) RecurringEvent(
+            owner = owner,
+            calendarConfigId = calendarConfigId,
+            calendarId = calendarId,
+            relatedVEvent = parsed.uid,
+            icsFileName = file.fileName,
+            hash = file.hash,
+            ics = unfolded(file).use { it.readText() },
+            materializedFrom = recurrenceWindow.start,
+            materializedUntil = recurrenceWindow.endInclusive,
+        ) else null
+        ParsedIcsFile(file, parsed.uid, parsed.appointments, recurringEvent, failed = false)
+    } catch (e: Exception) {
+        LOG.debug("Failed to parse {}", file.fileName, e)
+        ParsedIcsFile(file, null, emptyList(), null, failed = true)
+    }
+
+    private fun unfolded(file: IcsFile) = UnfoldingIcsReader(ByteArrayInputStream(file.content).reader())
+
+    companion object {
+        private val LOG = LoggerFactory.getLogger(IcsFileParser::class.java)
+    }
+}
+
+class IcsFile(val fileName: String, val hash: String, val content: ByteArray)
+
+class ParsedIcsFile(
+    val file: IcsFile,
+    val uid: String?,
+    val appointments: List<Appointment>,
+    val recurringEvent: RecurringEvent?,
+    val failed: Boolean,
+)
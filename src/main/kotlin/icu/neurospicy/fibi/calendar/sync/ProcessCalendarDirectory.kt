@@ -1,35 +1,26 @@
 package icu.neurospicy.fibi.calendar.sync
 
-import icu.neurospicy.fibi.domain.model.CalendarConfigId
-import icu.neurospicy.fibi.domain.model.CalendarId
-import icu.neurospicy.fibi.domain.model.FriendshipId
-import icu.neurospicy.fibi.domain.model.calendarAndAppointmentsFrom
-import icu.neurospicy.fibi.domain.repository.CalendarConfigurationRepository
-import icu.neurospicy.fibi.domain.repository.CalendarRepository
-import icu.neurospicy.fibi.domain.repository.FriendshipLedger
-import icu.neurospicy.fibi.outgoing.quartz.QuartzSchedulerService
+import icu.neurospicy.fibi.domain.model.*
+import icu.neurospicy.fibi.domain.repository.CalendarFileManifestRepository
+import icu.neurospicy.fibi.domain.repository.CalendarFileState
 import org.apache.camel.builder.RouteBuilder
-import org.springframework.context.ApplicationEventPublisher
 import org.springframework.stereotype.Component
 import java.io.File
-import java.time.Instant.now
+import java.time.Instant
 import java.time.ZoneId
-import java.time.temporal.ChronoUnit.DAYS
 
 
 /**
  * This route is triggered after a vdirsyncer sync has completed.
  * Instead of processing every file change with a file watcher, it scans the entire directory,
- * aggregates all ICS files per calendar, processes them in parallel to determine what has changed,
+ * compares the ICS files of each calendar with the calendar's file manifest, parses only what has changed,
  * and then publishes a single CalendarSynchronized event.
  */
 @Component
 class ProcessCalendarDirectory(
-    private val calendarRepository: CalendarRepository,
-    private val calendarConfigurationRepository: CalendarConfigurationRepository,
-    private val eventPublisher: ApplicationEventPublisher,
-    private val friendshipLedger: FriendshipLedger,
-    private val quartzSchedulerService: QuartzSchedulerService
+    private val calendarFileManifestRepository: CalendarFileManifestRepository,
+    private val calendarUpdater: CalendarUpdater,
+    private val calendarSyncCompletion: CalendarSyncCompletion,
 ) : RouteBuilder() {
     override fun configure() {
         from("direct:processCalendarDirectory")
@@ -56,56 +47,58 @@ class ProcessCalendarDirectory(
                         subCalendarDir.name
                     }
                     val calendarId = CalendarId(subCalendarDir.name)
-                    log.info(
-                        "Processing appointments of calendar {} belonging to config {}",
-                        calendarId,
-                        calendarConfigId
-                    )
-                    val icalCalendarContents = subCalendarDir.listFiles { a -> a.name.endsWith(".ics") }?.mapNotNull {
-                        it.name to unfoldIcsContent(
-                            it.inputStream().readAllBytes().decodeToString()
-                        ).reader()
-                    }?.toMap() ?: emptyMap()
-                    val (privateCalendar, newAppointments, failedIcalIds) = calendarAndAppointmentsFrom(
-                        calendarConfigId, calendarId, calendarName, owner, icalCalendarContents, now().plus(366, DAYS)
-                    )
-                    log.info(
-                        "Saving calendar {} of calendar config {} for friendship {} with {} appointments",
-                        calendarName, calendarConfigId, owner, newAppointments.size,
-                    )
-                    if (failedIcalIds.isNotEmpty()) {
-                        log.warn("Failed to parse appointments: {}", failedIcalIds)
-                    }
-                    calendarRepository.save(privateCalendar)
-                    calendarRepository.replaceCalendarAppointments(newAppointments, owner, calendarConfigId, calendarId)
                     // save zone ids of appointments (might be applied to friend's time zone)
-                    zoneIds.addAll(newAppointments.map { it.startAt.zoneId })
+                    zoneIds.addAll(
+                        calendarUpdater.update(changesOf(owner, calendarConfigId, calendarId, subCalendarDir, calendarName))
+                    )
+                    calendarUpdater.rollMaterializedOccurrences(owner, calendarConfigId, calendarId)
                     calendarName
                 } ?: emptyList()
 
-                updateZoneIdOfUser(owner, zoneIds)
-                calendarConfigurationRepository.synchronized(owner, calendarConfigId, now())
-                eventPublisher.publishEvent(CalendarSynchronized(owner, calendarConfigId, calendarNames))
-                quartzSchedulerService.scheduleCalendarSync(owner, calendarConfigId)
+                calendarSyncCompletion.complete(owner, calendarConfigId, calendarNames, zoneIds)
             }
     }
 
-    private fun updateZoneIdOfUser(
-        friendshipId: FriendshipId,
-        zoneIds: List<ZoneId?>
-    ) {
-        val friend = friendshipLedger.findBy(friendshipId) ?: return
-        if (friend.timeZone != null) return
-        val mostFrequentZoneId = zoneIds
-            .filterNotNull()
-            .groupingBy { it }
-            .eachCount()
-            .maxByOrNull { it.value }
-            ?.key
-        if (mostFrequentZoneId != null) {
-            log.info("Setting timezone of friend to $mostFrequentZoneId because it is most frequent in their calendar.")
-            friendshipLedger.updateZoneId(friendshipId, mostFrequentZoneId)
+    /**
+     * Compares the ics files of the calendar directory with the calendar's file manifest. Files with unchanged size
+     * and modification time are not read, files with an unchanged content hash are not parsed. After the calendar was
+     * renamed all files count as changed.
+     */
+    private fun changesOf(
+        owner: FriendshipId,
+        calendarConfigId: CalendarConfigId,
+        calendarId: CalendarId,
+        subCalendarDir: File,
+        calendarName: String
+    ): CalendarChanges {
+        val manifest = calendarFileManifestRepository.load(owner, calendarConfigId, calendarId)
+            ?.takeIf { it.calendarName == calendarName }
+        val previousFiles = manifest?.files?.associateBy { it.fileName } ?: emptyMap()
+        val icsFiles = subCalendarDir.listFiles { a -> a.name.endsWith(".ics") }?.toList() ?: emptyList()
+
+        val files = mutableListOf<CalendarFileState>()
+        val changedFiles = mutableListOf<IcsFile>()
+        icsFiles.forEach { file ->
+            val previous = previousFiles[file.name]
+            val size = file.length()
+            val lastModified = Instant.ofEpochMilli(file.lastModified())
+            if (previous != null && previous.size == size && previous.lastModified == lastModified) {
+                files += previous
+                return@forEach
+            }
+            val content = file.readBytes()
+            val hash = sha256Hex(content)
+            if (previous != null && previous.hash == hash) {
+                files += previous.copy(size = size, lastModified = lastModified)
+            } else {
+                changedFiles += IcsFile(file.name, hash, content)
+                files += CalendarFileState(file.name, size, lastModified, hash, emptySet())
+            }
         }
+        val deletedFiles = previousFiles.keys - icsFiles.map { it.name }.toSet()
+        return CalendarChanges(
+            owner, calendarConfigId, calendarId, calendarName, manifest, files, changedFiles, deletedFiles
+        )
     }
 }
 
@@ -117,24 +110,10 @@ class ProcessCalendarDirectory(
  * a certain count of characters in a line and adds a spacing at the start of the new line.
  * @param corruptContent the content of the ics-file with single lines broken into multiple
  * @return the file content with fixed line breaks
+ * @see UnfoldingIcsReader to unfold while reading
  */
-fun unfoldIcsContent(corruptContent: String): String {
-    val sb = StringBuilder()
-    // Split on line breaks (supporting CRLF and LF)
-    corruptContent.lines().forEach { line ->
-        if (line.startsWith(" ") || line.startsWith("\t")) {
-            // Continuation of previous line: append the line after trimming leading whitespace
-            sb.append(line.trimStart())
-        } else {
-            // If not the first line, add a newline before appending
-            if (sb.isNotEmpty()) {
-                sb.append("\r\n")
-            }
-            sb.append(line)
-        }
-    }
-    return sb.toString()
-}
+fun unfoldIcsContent(corruptContent: String): String =
+    UnfoldingIcsReader(corruptContent.reader()).use { it.readText() }
 
 data class CalendarsConvertIcsRequest(
     val friendshipId: FriendshipId,
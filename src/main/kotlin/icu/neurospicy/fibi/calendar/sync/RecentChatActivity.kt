@@ -0,0 +1,39 @@
+package icu.neurospicy.fibi.calendar.sync
+
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.model.events.IncomingFriendMessageReceived
+import icu.neurospicy.fibi.outgoing.mongodb.LruCache
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.context.ApplicationEventPublisher
+import org.springframework.context.event.EventListener
+import org.springframework.stereotype.Component
+import java.time.Duration
+import java.time.Instant
+import java.time.Instant.now
+
+/**
+ * Remembers when friends last wrote to Fibi, so that calendar syncs of friends who are chatting right now can be
+ * preferred. Publishes [ChatActivityStarted] when a friend starts chatting.
+ */
+@Component
+class RecentChatActivity(
+    private val eventPublisher: ApplicationEventPublisher,
+    @Value("\${fibi.calendar.sync.active-chat-window:PT15M}") private val activeChatWindow: Duration,
+    @Value("\${fibi.calendar.sync.active-chat-cache-size:10000}") cacheSize: Int,
+) {
+    private val lastMessageAt = LruCache<FriendshipId, Instant>(cacheSize)
+
+    @EventListener
+    fun onMessage(event: IncomingFriendMessageReceived) {
+        val started = !isChatting(event.friendshipId)
+        lastMessageAt[event.friendshipId] = event.message.receivedAt
+        if (started) eventPublisher.publishEvent(ChatActivityStarted(event.friendshipId))
+    }
+
+    fun lastMessageAt(friendshipId: FriendshipId): Instant? = lastMessageAt[friendshipId]
+
+    fun isChatting(friendshipId: FriendshipId): Boolean =
+        lastMessageAt[friendshipId]?.isAfter(now().minus(activeChatWindow)) == true
+}
+
+data class ChatActivityStarted(val friendshipId: FriendshipId)
@@ -0,0 +1,46 @@
+package icu.neurospicy.fibi.calendar.sync
+
+import java.io.BufferedReader
+import java.io.Reader
+
+/**
+ * Streams ics content while joining lines broken by vdirsyncer, see [unfoldIcsContent]. Lines starting with a space
+ * or tab continue the previous line and are appended without their leading whitespace. Lines are separated by CRLF.
+ */
+class UnfoldingIcsReader(source: Reader) : Reader() {
+    private val lines = source as? BufferedReader ?: BufferedReader(source)
+    private var nextLine: String? = lines.readLine()
+    private val current = StringBuilder()
+    private var position = 0
+    private var firstLine = true
+
+    override fun read(cbuf: CharArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+        if (!fill()) return -1
+        val count = minOf(len, current.length - position)
+        current.getChars(position, position + count, cbuf, off)
+        position += count
+        return count
+    }
+
+    /**
+     * Loads the next unfolded line into [current] once the previous one has been read completely.
+     */
+    private fun fill(): Boolean {
+        if (position < current.length) return true
+        val line = nextLine ?: return false
+        current.setLength(0)
+        position = 0
+        if (!firstLine) current.append("\r\n")
+        firstLine = false
+        current.append(line)
+        nextLine = lines.readLine()
+        while (nextLine?.let { it.startsWith(" ") || it.startsWith("\t") } == true) {
+            current.append(nextLine!!.trimStart())
+            nextLine = lines.readLine()
+        }
+        return true
+    }
+
+    override fun close() = lines.close()
+}
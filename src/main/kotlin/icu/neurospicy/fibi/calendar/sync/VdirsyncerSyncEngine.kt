@@ -0,0 +1,164 @@
+package icu.neurospicy.fibi.calendar.sync
+
+import icu.neurospicy.fibi.domain.model.ApiKeyCredential
+import icu.neurospicy.fibi.domain.model.CalendarConfiguration
+import icu.neurospicy.fibi.domain.model.UsernamePasswordCredential
+import org.apache.camel.ProducerTemplate
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty
+import org.springframework.stereotype.Component
+import java.io.File
+
+/**
+ * Synchronizes calendars with vdirsyncer into a directory below app.calendar.root, which is then processed by
+ * [ProcessCalendarDirectory].
+ *
+ * For each CalendarConfiguration it creates a subdirectory (named after calendarConfigId) with a vdirsyncer
+ * configuration file and triggers vdirsyncer via an Apache Camel route using the exec component.
+ */
+@Component
+@ConditionalOnProperty(name = ["fibi.calendar.sync-engine"], havingValue = "vdirsyncer", matchIfMissing = true)
+class VdirsyncerSyncEngine(
+    @Value("\${app.calendar.root}") private val appCalendarRoot: String,
+    private val producerTemplate: ProducerTemplate,
+) : CalendarSyncEngine {
+    private val logger = LoggerFactory.getLogger(VdirsyncerSyncEngine::class.java)
+
+    override fun discoverAndSync(calendarConfiguration: CalendarConfiguration) {
+        val command = syncRequestOf(calendarConfiguration)
+        logger.info("Triggering vdirsyncer discover and sync for calendar ${calendarConfiguration.calendarConfigId} with command: $command")
+
+        // Send the command to Camel to start the discover and sync process.
+        producerTemplate.sendBody("direct:vdirsyncerDiscoverAndSync", command)
+    }
+
+    override fun sync(calendarConfiguration: CalendarConfiguration) {
+        val command = syncRequestOf(calendarConfiguration)
+        logger.info("Triggering vdirsyncer sync for calendar ${calendarConfiguration.calendarConfigId} with command: $command")
+
+        // Send the command to Camel to start the sync process.
+        producerTemplate.sendBody("direct:vdirsyncerSync", command)
+    }
+
+    private fun syncRequestOf(calendarConfiguration: CalendarConfiguration): CalendarSyncRequest {
+        // Ensure base directory exists.
+        val baseDir = File(appCalendarRoot)
+        if (!baseDir.exists()) {
+            baseDir.mkdirs()
+            logger.info("Created base calendar directory: {}", baseDir.absolutePath)
+        }
+
+        // Create a subdirectory for the friendship.
+        val friendshipDir = File(baseDir, calendarConfiguration.friendshipId.toString())
+        if (!friendshipDir.exists()) {
+            friendshipDir.mkdirs()
+            logger.info("Created friendship directory: {}", friendshipDir.absolutePath)
+        }
+
+        val (calendarsDir, configFile, discoveryShFile) =
+            createCalendarDirectoryAndConfig(friendshipDir, calendarConfiguration)
+        return CalendarSyncRequest(
+            calendarConfiguration.friendshipId,
+            calendarConfiguration.calendarConfigId,
+            configFile,
+            discoveryShFile,
+            calendarsDir,
+        )
+    }
+
+    /**
+     * Creates the directory structure for a calendar and writes the vdirsyncer config file.
+     */
+    private fun createCalendarDirectoryAndConfig(friendshipDir: File, calendarConfig: CalendarConfiguration): SyncDirs {
+        // Create a subdirectory for the specific calendar using calendarId.
+        val calendarsDir = File(friendshipDir, calendarConfig.calendarConfigId.toString())
+        if (!calendarsDir.exists()) {
+            calendarsDir.mkdirs()
+            logger.info(
+                "Created calendar directory for calendar {}: {}",
+                calendarConfig.calendarConfigId,
+                calendarsDir.absolutePath
+            )
+        }
+
+        // Create a temporary vdirsyncer configuration file in the calendar directory.
+        val configFile = createConfigFile(calendarsDir, friendshipDir, calendarConfig)
+        val discoveryShFile = createDiscoverySh(calendarsDir, configFile.absolutePath)
+        logger.info("Created vdirsyncer configuration and discovery file for calendar ${calendarConfig.calendarConfigId} at ${configFile.absolutePath}")
+        return SyncDirs(calendarsDir.absolutePath, configFile.absolutePath, discoveryShFile.absolutePath)
+    }
+
+    private fun createConfigFile(
+        calendarDir: File,
+        friendshipDir: File,
+        calendarConfig: CalendarConfiguration
+    ): File {
+        val configFile = File(calendarDir, "vdirsyncer.ini")
+        val configContent = """
+                |[general]
+                |status_path = "${friendshipDir.absolutePath}/vdirsyncer_status/"
+                |
+                |[pair calendar_${calendarConfig.calendarConfigId}]
+                |a = "remote_calendar"
+                |b = "local_calendar"
+                |collections = ["from a"]
+                |metadata = ["displayname"]
+                |
+                |[storage remote_calendar]
+                |type = "caldav"
+                |url = "${calendarConfig.url}"
+                |${
+            when (val cred = calendarConfig.credential) {
+                is UsernamePasswordCredential -> "username = \"${cred.username}\"\npassword = \"${cred.password}\""
+                is ApiKeyCredential -> "apikey = \"${cred.key}\""
+                else -> ""
+            }
+        }
+                |
+                |[storage local_calendar]
+                |type = "filesystem"
+                |path = "${calendarDir.absolutePath}"
+                |encoding = "utf-8"
+                |fileext = ".ics"
+            """.trimMargin().trimIndent()
+
+        configFile.writeText(configContent)
+        return configFile
+    }
+
+    @SuppressWarnings("kotlin:S899")
+    private fun createDiscoverySh(
+        calendarDir: File,
+        confFilePath: String,
+    ): File {
+        val file = File(calendarDir, "discover.sh")
+        val content = """
+                |#!/bin/bash
+                |vdirsyncer -c $confFilePath discover << EOF
+                |y
+                |y
+                |y
+                |y
+                |y
+                |y
+                |y
+                |y
+                |y
+                |y
+                |y
+                |EOF
+            """.trimMargin().trimIndent()
+
+        file.writeText(content)
+        file.setExecutable(true)
+        return file
+    }
+
+}
+
+data class SyncDirs(
+    val calendarsDir: String,
+    val configFile: String,
+    val discoveryShFile: String
+)
@@ -10,6 +10,7 @@ import net.fortuna.ical4j.model.component.VTimeZone
 import net.fortuna.ical4j.model.property.TzId
 import org.springframework.data.annotation.Id
 import org.springframework.data.mongodb.core.mapping.Document
+import java.io.Reader
 import java.io.StringReader
 import java.nio.charset.StandardCharsets
 import java.security.MessageDigest
@@ -65,7 +66,8 @@ data class Appointment(
             repetitionEnd: Instant,
             calendarZoneId: ZoneId? = null,
             icsFileName: String,
-            hash: String
+            hash: String,
+            repetitionStart: Instant? = null,
         ): List<Appointment> {
             val summary = vEvent.summary.value
             val uid = vEvent.uid.map { it.value }.orElse(icsFileName) ?: icsFileName
@@ -84,7 +86,8 @@ data class Appointment(
             return try {
                 vEvent.calculateRecurrenceSet<Temporal>(
                     Period(
-                        dateTimeStart.date.minus(1, DAYS),
+                        repetitionStart?.let { adaptToTemporal(it, startZoneId ?: UTC, dateTimeStart.date) }
+                            ?: dateTimeStart.date.minus(1, DAYS),
                         adaptToTemporal(repetitionEnd, startZoneId ?: UTC, dateTimeStart.date)
                     )
                 ).map {
@@ -119,6 +122,36 @@ data class Appointment(
     }
 }
 
+/**
+ * The fields of an [Appointment] needed to mention it to the friend, read without the rest of the document.
+ */
+data class AppointmentOverview(
+    val _id: String? = null,
+    val calendarId: CalendarId,
+    val summary: String,
+    val startAt: DateTimeInformation,
+    val endAt: DateTimeInformation,
+)
+
+/**
+ * A VEVENT with recurrence rules, stored once with its ics content. Its occurrences are stored as [Appointment]s only
+ * between [materializedFrom] and [materializedUntil] and expanded on demand outside.
+ */
+@Document(collection = "recurring-events")
+data class RecurringEvent(
+    @Id
+    val _id: String? = null,
+    val owner: FriendshipId,
+    val calendarConfigId: CalendarConfigId,
+    val calendarId: CalendarId,
+    val relatedVEvent: String,
+    val icsFileName: String,
+    val hash: String,
+    val ics: String,
+    val materializedFrom: Instant,
+    val materializedUntil: Instant,
+)
+
 data class DateTimeInformation(
     val instant: Instant,
     val zoneId: ZoneId?,
@@ -181,7 +214,6 @@ value class AppointmentId(
     override fun toString(): String = value
 }
 
-@OptIn(ExperimentalStdlibApi::class)
 fun calendarAndAppointmentsFrom(
     calendarConfigId: CalendarConfigId,
     calendarId: CalendarId,
@@ -193,31 +225,16 @@ fun calendarAndAppointmentsFrom(
     val failedIcalIds = mutableListOf<String>()
     val appointments = icalCalendarContents.mapNotNull { idToIcalCalendarContent ->
         try {
-            val builder = CalendarBuilder()
-            val icalCalendar = builder.build(idToIcalCalendarContent.value)
-            val calendarZoneId =
-                icalCalendar.getComponent<VTimeZone>(net.fortuna.ical4j.model.Component.VTIMEZONE)
-                    .map { vTimeZone ->
-                        vTimeZone.getProperty<TzId>(Property.TZID).map {
-                            if (ZoneId.getAvailableZoneIds().contains(it.value)) ZoneId.of(it.value) else null
-                        }.orElse(null)
-                    }.orElse(null)
-
-            icalCalendar.getComponents<VEvent>(net.fortuna.ical4j.model.Component.VEVENT)
-                .firstNotNullOf {
-                    Appointment.fromVEvent(
-                        it,
-                        owner,
-                        calendarConfigId,
-                        calendarId,
-                        repetitionEnd,
-                        calendarZoneId,
-                        idToIcalCalendarContent.key,
-                        MessageDigest.getInstance("SHA-256")
-                            .digest(idToIcalCalendarContent.value.toString().toByteArray(StandardCharsets.UTF_8))
-                            .toHexString(format = HexFormat.Default),
-                    )
-                }
+            val content = idToIcalCalendarContent.value.readText()
+            appointmentsFromIcs(
+                idToIcalCalendarContent.key,
+                StringReader(content),
+                sha256Hex(content.toByteArray(StandardCharsets.UTF_8)),
+                owner,
+                calendarConfigId,
+                calendarId,
+                repetitionEnd
+            ).appointments
         } catch (e: Exception) {
             failedIcalIds.add(idToIcalCalendarContent.key)
             emptyList()
@@ -237,6 +254,111 @@ fun calendarAndAppointmentsFrom(
     )
 }
 
+/**
+ * Creates the appointments of the first VEVENT in the ics content. Each thread reuses its own [CalendarBuilder] and
+ * with it the builder's timezone registry.
+ *
+ * Occurrences of a recurring VEVENT are only created within [recurrenceWindow] if given, otherwise up to
+ * [repetitionEnd] like all other VEVENTs.
+ *
+ * @throws Exception if the content cannot be parsed
+ */
+@SuppressWarnings("kotlin:S107")
+fun appointmentsFromIcs(
+    icsFileName: String,
+    content: Reader,
+    hash: String,
+    owner: FriendshipId,
+    calendarConfigId: CalendarConfigId,
+    calendarId: CalendarId,
+    repetitionEnd: Instant,
+    recurrenceWindow: ClosedRange<Instant>? = null,
+): IcsAppointments = parseIcs(content).appointments(
+    icsFileName, hash, owner, calendarConfigId, calendarId, repetitionEnd, recurrenceWindow
+)
+
+/**
+ * Parses the first VEVENT of the ics content, see [appointmentsFromIcs].
+ *
+ * @throws Exception if the content cannot be parsed
+ */
+fun parseIcs(content: Reader): ParsedIcs {
+    val icalCalendar = calendarBuilder.get().build(content)
+    val calendarZoneId =
+        icalCalendar.getComponent<VTimeZone>(net.fortuna.ical4j.model.Component.VTIMEZONE)
+            .map { vTimeZone ->
+                vTimeZone.getProperty<TzId>(Property.TZID).map {
+                    if (ZoneId.getAvailableZoneIds().contains(it.value)) ZoneId.of(it.value) else null
+                }.orElse(null)
+            }.orElse(null)
+    val vEvent = icalCalendar.getComponents<VEvent>(net.fortuna.ical4j.model.Component.VEVENT).first()
+    return ParsedIcs(vEvent, calendarZoneId)
+}
+
+/**
+ * The first VEVENT of an ics file with the timezone of its calendar, parsed once to expand it repeatedly.
+ */
+class ParsedIcs(val vEvent: VEvent, val calendarZoneId: ZoneId?) {
+    @SuppressWarnings("kotlin:S107")
+    fun appointments(
+        icsFileName: String,
+        hash: String,
+        owner: FriendshipId,
+        calendarConfigId: CalendarConfigId,
+        calendarId: CalendarId,
+        repetitionEnd: Instant,
+        recurrenceWindow: ClosedRange<Instant>? = null,
+    ): IcsAppointments {
+        val recurring = vEvent.isRecurring()
+        val window = recurrenceWindow?.takeIf { recurring }
+        return IcsAppointments(
+            Appointment.fromVEvent(
+                vEvent, owner, calendarConfigId, calendarId, window?.endInclusive ?: repetitionEnd, calendarZoneId,
+                icsFileName, hash, window?.start
+            ).let { appointments ->
+                if (window == null) appointments else appointments.filter { it.overlaps(window) }
+            },
+            recurring,
+            vEvent.uid.map { it.value }.orElse(icsFileName) ?: icsFileName
+        )
+    }
+}
+
+class IcsAppointments(val appointments: List<Appointment>, val recurring: Boolean, val uid: String)
+
+/**
+ * Expands the occurrences of a recurring event overlapping the given window.
+ */
+fun RecurringEvent.expand(
+    window: ClosedRange<Instant>, parsed: ParsedIcs = parseIcs(StringReader(ics)),
+): List<Appointment> = parsed.appointments(
+    icsFileName, hash, owner, calendarConfigId, calendarId, window.endInclusive, window
+).appointments
+
+/**
+ * Expands the occurrence of a recurring event with [appointmentId] starting at [startAt], if it has one. Matches
+ * the id instead of overlapping a window, so occurrences without a duration are found, too.
+ */
+fun RecurringEvent.occurrence(
+    appointmentId: AppointmentId, startAt: Instant, parsed: ParsedIcs = parseIcs(StringReader(ics)),
+): Appointment? = Appointment.fromVEvent(
+    parsed.vEvent, owner, calendarConfigId, calendarId, startAt.plus(1, DAYS), parsed.calendarZoneId,
+    icsFileName, hash, startAt.minus(1, DAYS)
+).firstOrNull { it.appointmentId == appointmentId }
+
+fun VEvent.isRecurring(): Boolean =
+    getProperty<Property>(Property.RRULE).isPresent || getProperty<Property>(Property.RDATE).isPresent
+
+fun Appointment.overlaps(window: ClosedRange<Instant>): Boolean =
+    startAt.instant.isBefore(window.endInclusive) && endAt.instant.isAfter(window.start)
+
+@OptIn(ExperimentalStdlibApi::class)
+fun sha256Hex(content: ByteArray): String =
+    sha256.get().digest(content).toHexString(format = HexFormat.Default)
+
+private val calendarBuilder = ThreadLocal.withInitial { CalendarBuilder() }
+private val sha256 = ThreadLocal.withInitial { MessageDigest.getInstance("SHA-256") }
+
 data class Result(
     val privateCalendar: PrivateCalendar,
     val appointments: List<Appointment>,
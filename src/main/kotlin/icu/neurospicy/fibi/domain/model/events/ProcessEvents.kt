@@ -27,4 +27,8 @@ data class SetUpMorningRoutineActivityFinished(
     val _source: Class<Any>,
     val friendshipId: FriendshipId,
     val routineId: RoutineConfigurationId
-) : ApplicationEvent(_source)
\ No newline at end of file
+) : ApplicationEvent(_source)
+data class SetUpMorningRoutineActivityCancelled(
+    val _source: Class<Any>,
+    val friendshipId: FriendshipId,
+) : ApplicationEvent(_source)
@@ -0,0 +1,39 @@
+package icu.neurospicy.fibi.domain.repository
+
+import icu.neurospicy.fibi.domain.model.CalendarConfigId
+import icu.neurospicy.fibi.domain.model.CalendarId
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import java.time.Instant
+
+/**
+ * Remembers the ics files of a synchronized calendar, so that only added, changed and deleted files need to be parsed.
+ */
+interface CalendarFileManifestRepository {
+    fun load(owner: FriendshipId, calendarConfigId: CalendarConfigId, calendarId: CalendarId): CalendarFileManifest?
+    fun save(manifest: CalendarFileManifest)
+}
+
+/**
+ * @param collectionTag the ctag of a synchronized CalDAV collection
+ * @param syncToken the sync-token of a synchronized CalDAV collection
+ */
+data class CalendarFileManifest(
+    val owner: FriendshipId,
+    val calendarConfigId: CalendarConfigId,
+    val calendarId: CalendarId,
+    val calendarName: String,
+    val files: List<CalendarFileState>,
+    val collectionTag: String? = null,
+    val syncToken: String? = null,
+)
+
+/**
+ * State of an ics file when it was last processed, including the uids of the VEVENTs it contained.
+ */
+data class CalendarFileState(
+    val fileName: String,
+    val size: Long,
+    val lastModified: Instant,
+    val hash: String,
+    val uids: Set<String>,
+)
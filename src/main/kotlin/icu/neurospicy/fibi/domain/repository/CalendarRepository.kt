@@ -13,7 +13,45 @@ interface CalendarRepository {
         calendarId: CalendarId
     )
 
+    /**
+     * Like [replaceCalendarAppointments], but only replaces the appointments belonging to the given VEVENT uids.
+     */
+    fun replaceAppointmentsOfVEvents(
+        appointments: List<Appointment>,
+        owner: FriendshipId,
+        calendarConfigId: CalendarConfigId,
+        calendarId: CalendarId,
+        relatedVEvents: Set<String>
+    )
+
+    /**
+     * Replaces the recurring events of the calendar belonging to the given VEVENT uids, or all of them if null.
+     */
+    fun replaceRecurringEvents(
+        recurringEvents: List<RecurringEvent>,
+        owner: FriendshipId,
+        calendarConfigId: CalendarConfigId,
+        calendarId: CalendarId,
+        relatedVEvents: Set<String>? = null
+    )
+
+    fun saveRecurringEvent(recurringEvent: RecurringEvent)
+    fun loadRecurringEvents(
+        owner: FriendshipId,
+        calendarConfigId: CalendarConfigId,
+        calendarId: CalendarId
+    ): List<RecurringEvent>
+
+    /**
+     * Loads the stored appointments overlapping the time range. Occurrences of recurring events outside of their
+     * materialized window are expanded on demand and use their appointment id as `_id`.
+     */
     fun loadAppointmentsForTimeRange(timeRange: TimeRange, friendshipId: FriendshipId): List<Appointment>
+
+    /**
+     * Like [loadAppointmentsForTimeRange], but reads only the fields needed to mention the appointments.
+     */
+    fun loadAppointmentOverviewsForTimeRange(timeRange: TimeRange, friendshipId: FriendshipId): List<AppointmentOverview>
     fun loadAppointments(
         owner: FriendshipId,
         calendarConfigId: CalendarConfigId,
@@ -21,6 +59,10 @@ interface CalendarRepository {
     ): List<Appointment>
 
     fun loadAppointmentsByAppointmentId(owner: FriendshipId, appointmentIds: Set<AppointmentId>): List<Appointment>
+
+    /**
+     * Loads appointments by `_id`, including expanded occurrences of recurring events (see [loadAppointmentsForTimeRange]).
+     */
     fun loadAppointmentsById(owner: FriendshipId, ids: Set<String>): List<Appointment>
 }
 
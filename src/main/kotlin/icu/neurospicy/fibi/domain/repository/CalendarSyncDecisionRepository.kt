@@ -0,0 +1,38 @@
+package icu.neurospicy.fibi.domain.repository
+
+import icu.neurospicy.fibi.domain.model.CalendarConfigId
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import java.time.Duration
+import java.time.Instant
+
+/**
+ * Records how the interval until the next sync of a calendar configuration was decided.
+ */
+interface CalendarSyncDecisionRepository {
+    fun save(decision: CalendarSyncDecision)
+
+    /**
+     * @return the latest decisions, newest first
+     */
+    fun findLatest(owner: FriendshipId, calendarConfigId: CalendarConfigId, limit: Int): List<CalendarSyncDecision>
+}
+
+/**
+ * @param newAppointments number of appointments added by the sync
+ * @param backoffInterval interval derived from the change history alone, the base for the next decision
+ * @param interval interval until the next sync
+ */
+data class CalendarSyncDecision(
+    val owner: FriendshipId,
+    val calendarConfigId: CalendarConfigId,
+    val decidedAt: Instant,
+    val policy: String,
+    val newAppointments: Int,
+    val changedAppointments: Int,
+    val deletedAppointments: Int,
+    val chatting: Boolean,
+    val nextRoutineAt: Instant?,
+    val backoffInterval: Duration,
+    val interval: Duration,
+    val reason: String,
+)
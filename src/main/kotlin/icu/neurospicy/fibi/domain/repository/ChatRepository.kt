@@ -5,6 +5,11 @@ import java.time.Instant
 
 interface ChatRepository {
     fun findHistory(friendshipId: FriendshipId): ChatHistory
+
+    /**
+     * Returns the last [limit] messages sent after [since] (if given), oldest first.
+     */
+    fun findLatest(friendshipId: FriendshipId, limit: Int, since: Instant? = null): List<Message>
     fun add(friendshipId: FriendshipId, incomingMessage: UserMessage, rawMessage: String? = null)
     fun add(friendshipId: FriendshipId, outgoingMessage: OutgoingMessage, text: String, sentAt: Instant)
     fun applyDeletionRequest(friendshipId: FriendshipId)
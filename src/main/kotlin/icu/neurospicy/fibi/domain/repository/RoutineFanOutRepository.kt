@@ -0,0 +1,72 @@
+package icu.neurospicy.fibi.domain.repository
+
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.model.LocalTimeBasedTrigger
+import org.springframework.data.annotation.Id
+import java.time.Instant
+import java.time.temporal.ChronoUnit.MINUTES
+
+/**
+ * Routine executions and routine triggers waiting for their minute, see
+ * [icu.neurospicy.fibi.application.routine.RoutineFanOut].
+ */
+interface RoutineFanOutRepository {
+    /**
+     * Saves [entry], replacing the entry with the same key.
+     */
+    fun save(entry: RoutineFanOutEntry)
+    fun saveAll(entries: Collection<RoutineFanOutEntry>)
+    fun findByType(type: RoutineFanOutType): List<RoutineFanOutEntry>
+    fun findByFriendshipId(friendshipId: FriendshipId): List<RoutineFanOutEntry>
+    fun remove(key: String)
+    fun removeAll(keys: Collection<String>)
+
+    /**
+     * Claims the entries of all minutes up to and including [minute] for [owner] at [claimedAt] and returns them.
+     * Entries claimed before [staleBefore] are claimed again, as whoever claimed them did not dispatch them.
+     * Claimed entries are dispatched with a live message, so their pre-generation is considered started.
+     */
+    fun claimDueUntil(minute: Instant, owner: String, claimedAt: Instant, staleBefore: Instant): List<RoutineFanOutEntry>
+
+    /**
+     * Removes the dispatched [entry] or replaces it with its [next] occurrence, unless it was rescheduled or claimed
+     * again meanwhile.
+     */
+    fun completeDispatch(entry: RoutineFanOutEntry, next: RoutineFanOutEntry?)
+
+    /**
+     * Routine executions of the minutes up to and including [minute] that were neither pre-generated yet nor claimed.
+     */
+    fun findPregenerationCandidates(minute: Instant): List<RoutineFanOutEntry>
+
+    fun markPregenerationStarted(keys: Collection<String>)
+
+    /**
+     * Stores the pre-generated message of the entry unless it fired or was rescheduled to another time meanwhile.
+     */
+    fun savePregeneratedMessage(key: String, fireAt: Instant, message: String)
+}
+
+enum class RoutineFanOutType { ROUTINE_EXECUTION, ROUTINE_TRIGGER }
+
+/**
+ * @param key identifies what fires, scheduling the same key again replaces the entry
+ * @param payload what the fired event needs, depending on the [type]
+ * @param recurrence when the entry fires again after it was dispatched, if at all
+ * @param pregenerationStarted whether the message was or is being generated ahead of time
+ * @param claimedBy the fan-out dispatching the entry, if claimed
+ * @param claimedAt when the entry was claimed for dispatching
+ */
+data class RoutineFanOutEntry(
+    @Id val key: String,
+    val type: RoutineFanOutType,
+    val friendshipId: FriendshipId,
+    val fireAt: Instant,
+    val payload: Map<String, String> = emptyMap(),
+    val minute: Instant = fireAt.truncatedTo(MINUTES),
+    val pregenerationStarted: Boolean = false,
+    val pregeneratedMessage: String? = null,
+    val recurrence: LocalTimeBasedTrigger? = null,
+    val claimedBy: String? = null,
+    val claimedAt: Instant? = null,
+)
@@ -0,0 +1,152 @@
+package icu.neurospicy.fibi.domain.service.friends.interaction
+
+import icu.neurospicy.fibi.domain.model.Message
+import icu.neurospicy.fibi.domain.model.MessageId
+import icu.neurospicy.fibi.domain.service.friends.interaction.tasks.TaskIntents
+import icu.neurospicy.fibi.domain.service.friends.interaction.timers.TimerIntents
+import icu.neurospicy.fibi.outgoing.mongodb.LruCache
+import icu.neurospicy.fibi.outgoing.ollama.LlmClient
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.MeterRegistry
+import org.slf4j.LoggerFactory
+import org.springframework.ai.chat.messages.UserMessage
+import org.springframework.ai.ollama.api.OllamaOptions
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Service
+import java.time.Instant
+import java.time.ZoneOffset
+
+/**
+ * Intents of a message, the segments of the message relevant to each intent and the parameters of the entity a
+ * segment is about, as answered by [CombinedMessageAnalyzer].
+ */
+data class MessageAnalysis(
+    val intents: List<AnalyzedIntent> = emptyList(),
+    val segments: List<AnalyzedSegment> = emptyList(),
+) {
+    data class AnalyzedIntent(val intent: String, val confidence: Float)
+
+    data class AnalyzedSegment(
+        val intent: String,
+        val relevantText: String,
+        val description: String,
+        val parameters: List<Parameter> = emptyList(),
+    )
+
+    data class Parameter(val name: String, val value: String)
+}
+
+/**
+ * Analyzes a message in a single schema-constrained call instead of one call per step: intent classification, the
+ * relevant text segments extracted by the task and timer classifiers, and the entity parameters of new tasks and
+ * timers. The analysis is kept per message, so [IntentClassifier] triggers it and the later steps look it up.
+ *
+ * Disabled by default with `fibi.interaction.combined-extraction.enabled`. Whenever the analysis is disabled, failed
+ * or lacks what a step needs, that step prompts on its own as before.
+ */
+@Service
+class CombinedMessageAnalyzer(
+    private val llmClient: LlmClient,
+    private val intentRegistry: IntentRegistry,
+    private val complexTaskModel: String,
+    meterRegistry: MeterRegistry,
+    @Value("\${fibi.interaction.combined-extraction.enabled:false}") private val enabled: Boolean,
+    @Value("\${fibi.interaction.combined-extraction.cache-size:1000}") cacheSize: Int,
+) {
+    private val analyses = LruCache<MessageId, Analyzed>(cacheSize)
+
+    private val succeeded = Counter.builder("fibi.interaction.combined-extraction").tag("result", "success")
+        .description("Messages analyzed in a single LLM call by whether the analysis was usable")
+        .register(meterRegistry)
+    private val failed = Counter.builder("fibi.interaction.combined-extraction").tag("result", "failure")
+        .description("Messages analyzed in a single LLM call by whether the analysis was usable")
+        .register(meterRegistry)
+
+    /**
+     * Analyzes [message], the last one of [conversation] if given, once; later calls return the same analysis.
+     *
+     * @return null if disabled or the analysis failed, so the caller falls back to the per-step path
+     */
+    suspend fun analyze(message: Message, conversation: List<Message> = emptyList()): MessageAnalysis? {
+        if (!enabled) return null
+        analyses[message.messageId]?.let { return it.analysis }
+        val analysis = try {
+            llmClient.promptReceivingJson(
+                listOf(UserMessage(promptFor(message, conversation))),
+                OllamaOptions.builder().model(complexTaskModel).temperature(0.0).topP(0.3).build(),
+                ZoneOffset.UTC,
+                Instant.now(),
+                responseType = MessageAnalysis::class.java,
+                callSite = "CombinedMessageAnalyzer"
+            )?.takeIf { it.intents.isNotEmpty() }
+        } catch (e: Exception) {
+            LOG.warn("Failed to analyze message ${message.messageId} in a single call", e)
+            null
+        }
+        if (analysis == null) failed.increment() else succeeded.increment()
+        analyses[message.messageId] = Analyzed(analysis)
+        return analysis
+    }
+
+    /**
+     * @return the segments of the analyzed message relevant to [intent], or null if the message was not analyzed or
+     * the analysis has none
+     */
+    fun relevantTextsFor(messageId: MessageId, intent: Intent): List<RelevantText>? =
+        segmentsFor(messageId, intent)?.map { RelevantText(it.relevantText, it.description) }
+
+    /**
+     * @return the non-blank parameters found for the segment [rawText] of [intent], or null if there are none
+     */
+    fun parametersFor(messageId: MessageId?, intent: Intent, rawText: String): Map<String, String>? =
+        messageId?.let { segmentsFor(it, intent) }
+            ?.firstOrNull { it.relevantText.trim() == rawText.trim() }
+            ?.parameters?.filter { it.value.isNotBlank() }?.associate { it.name to it.value.trim() }
+            ?.ifEmpty { null }
+
+    private fun segmentsFor(messageId: MessageId, intent: Intent): List<MessageAnalysis.AnalyzedSegment>? =
+        analyses[messageId]?.analysis?.segments
+            ?.filter { it.intent == intent.name && it.relevantText.isNotBlank() && it.description.isNotBlank() }
+            ?.ifEmpty { null }
+
+    private fun promptFor(message: Message, conversation: List<Message>): String {
+        val descriptions = intentRegistry.getDescriptions()
+        val extractable = descriptions.keys.filterNot { it in CORE_INTENTS }
+        return """
+Analyze the final user message and answer with a single JSON object containing "intents" and "segments".
+
+1. intents: Classify the user's actual *intention or goal* (not just keywords or content) into the following intents, each with a confidence between 0 and 1:
+${descriptions.entries.joinToString("\n") { "- \"${it.key.name}\": ${it.value}" }}
+
+Only classify as "${TaskIntents.Add.name}" with high confidence if the user clearly and explicitly wants to add a new task — not for vague, indirect or reminder-like expressions, nor for work on existing tasks.
+
+2. segments: For the intents ${extractable.joinToString { "\"${it.name}\"" }}, extract every portion of the message referring to one entity the user wants to act on. Return one segment per entity with:
+- intent: the intent of the segment
+- relevantText: the complete portion of the message about this entity; you may recombine parts split across sentences without changing their meaning
+- description: a short summary of what the user wants from their point of view
+- parameters: a list of { "name", "value" } for the following intents, only with values the user clearly states:
+${ENTITY_PARAMETERS.entries.joinToString("\n") { "  - \"${it.key.name}\": ${it.value}" }}
+
+❌ Do NOT guess or invent. Leave out everything the user did not state.
+${
+            if (conversation.size > 1) "\nConversation:\n${
+                conversation.joinToString("\n") { "${if (it.byUser()) "User: " else "System: "}\"${it.text}\"\n---" }
+            }\n" else ""
+        }
+Final user message:
+"${message.text}"
+        """.trimIndent()
+    }
+
+    /** Wraps the analysis to remember failed ones as well, so they are not repeated for the same message. */
+    private data class Analyzed(val analysis: MessageAnalysis?)
+
+    companion object {
+        private val LOG = LoggerFactory.getLogger(CombinedMessageAnalyzer::class.java)
+        private val CORE_INTENTS = setOf(CoreIntents.Smalltalk, CoreIntents.CancelGoal, CoreIntents.Unknown, CoreIntents.FollowUp)
+        private val ENTITY_PARAMETERS = mapOf(
+            TaskIntents.Add to "title (short name of the task), description (additional details), completed (\"true\" if already done)",
+            TimerIntents.Set to "duration (ISO-8601 duration like \"PT15M\"), label (what the timer is for)",
+        )
+    }
+}
@@ -5,6 +5,8 @@ import icu.neurospicy.fibi.domain.model.events.IncomingFriendMessageReceived
 import icu.neurospicy.fibi.domain.model.events.SendMessageCmd
 import icu.neurospicy.fibi.domain.repository.ConversationRepository
 import icu.neurospicy.fibi.domain.service.ConversationContextService
+import icu.neurospicy.fibi.outgoing.ollama.LlmPriority
+import icu.neurospicy.fibi.outgoing.ollama.LlmRequestTag
 import kotlinx.coroutines.runBlocking
 import org.slf4j.LoggerFactory
 import org.springframework.context.ApplicationEventPublisher
@@ -27,7 +29,9 @@ class ConversationOrchestrator(
 ) {
 
     @EventListener(IncomingFriendMessageReceived::class)
-    fun onMessage(event: IncomingFriendMessageReceived) = runBlocking {
+    fun onMessage(event: IncomingFriendMessageReceived) = runBlocking(
+        LlmRequestTag(LlmPriority.INTERACTIVE, event.friendshipId)
+    ) {
         val message = event.message
         conversationRepository.addUserResponse(event.friendshipId, message)
         var goalContext = contextRepository.loadContext(event.friendshipId)
@@ -2,6 +2,7 @@ package icu.neurospicy.fibi.domain.service.friends.interaction
 
 import com.fasterxml.jackson.databind.ObjectMapper
 import icu.neurospicy.fibi.outgoing.ollama.LlmClient
+import icu.neurospicy.fibi.outgoing.ollama.withCachedLlmResults
 import org.springframework.ai.ollama.api.OllamaOptions
 import org.springframework.stereotype.Service
 import java.time.Instant
@@ -19,12 +20,7 @@ class ExtractParamFromConversationService(
         val prompt = buildPromptToExtractTypedValue(
             typeName = "LocalTime", expectedFormat = "HH:mm", example = "07:00", question = question, answer = answer
         )
-        return llmClient.promptReceivingJson(
-            listOf(org.springframework.ai.chat.messages.UserMessage(prompt)),
-            OllamaOptions.builder().model(complexTaskModel).temperature(0.0).topP(0.7).build(),
-            ZoneOffset.UTC,
-            Instant.now()
-        )?.let { json ->
+        return promptForParam(prompt)?.let { json ->
             val result = objectMapper.readTree(json)
             if (result["clarified"].asBoolean() && result["answer"] != null) {
                 ExtractParamResult(value = LocalTime.parse(result["answer"].asText()))
@@ -36,12 +32,7 @@ class ExtractParamFromConversationService(
 
     suspend fun extractInstant(question: String, answer: String): ExtractParamResult<LocalDateTime> {
         val prompt = buildPromptToExtractDateTime(question, answer)
-        return llmClient.promptReceivingJson(
-            listOf(org.springframework.ai.chat.messages.UserMessage(prompt)),
-            OllamaOptions.builder().model(complexTaskModel).temperature(0.0).topP(0.7).build(),
-            ZoneOffset.UTC,
-            Instant.now()
-        )?.let { json ->
+        return promptForParam(prompt)?.let { json ->
             val result = objectMapper.readTree(json)
             if (result["clarified"].asBoolean() && result["answer"] != null) {
                 ExtractParamResult(value = LocalDateTime.parse(result["answer"].asText()))
@@ -55,12 +46,7 @@ class ExtractParamFromConversationService(
         val prompt = buildPromptToExtractTypedValue(
             typeName = "text", expectedFormat = null, example = null, question = question, answer = answer
         )
-        return llmClient.promptReceivingJson(
-            listOf(org.springframework.ai.chat.messages.UserMessage(prompt)),
-            OllamaOptions.builder().model(complexTaskModel).temperature(0.0).topP(0.7).build(),
-            ZoneOffset.UTC,
-            Instant.now()
-        )?.let { json ->
+        return promptForParam(prompt)?.let { json ->
             val result = objectMapper.readTree(json)
             if (result["clarified"].asBoolean() && result["answer"] != null) {
                 ExtractParamResult(value = result["answer"].asText())
@@ -81,12 +67,7 @@ class ExtractParamFromConversationService(
             else -> throw IllegalArgumentException("Just supports Float and Int")
         }
         val prompt = buildPromptToExtractNumber(typeAsString, question, answer)
-        return llmClient.promptReceivingJson(
-            listOf(org.springframework.ai.chat.messages.UserMessage(prompt)),
-            OllamaOptions.builder().model(complexTaskModel).temperature(0.0).topP(0.7).build(),
-            ZoneOffset.UTC,
-            Instant.now()
-        )?.let { json ->
+        return promptForParam(prompt)?.let { json ->
             val result = objectMapper.readTree(json)
 
             @Suppress("UNCHECKED_CAST") val value = when (returnType) {
@@ -106,12 +87,7 @@ class ExtractParamFromConversationService(
         val prompt = buildPromptToExtractTypedValue(
             typeName = "Boolean", expectedFormat = null, example = "true", question = question, answer = answer
         )
-        return llmClient.promptReceivingJson(
-            listOf(org.springframework.ai.chat.messages.UserMessage(prompt)),
-            OllamaOptions.builder().model(complexTaskModel).temperature(0.0).topP(0.7).build(),
-            ZoneOffset.UTC,
-            Instant.now()
-        )?.let { json ->
+        return promptForParam(prompt)?.let { json ->
             val result = objectMapper.readTree(json)
             if (result["clarified"].asBoolean() && result["answer"] != null) {
                 ExtractParamResult(value = result["answer"].asBoolean())
@@ -121,6 +97,15 @@ class ExtractParamFromConversationService(
         } ?: ExtractParamResult(failed = true)
     }
 
+    private suspend fun promptForParam(prompt: String): String? = withCachedLlmResults {
+        llmClient.promptReceivingJson(
+            listOf(org.springframework.ai.chat.messages.UserMessage(prompt)),
+            OllamaOptions.builder().model(complexTaskModel).temperature(0.0).topP(0.7).build(),
+            ZoneOffset.UTC,
+            Instant.now()
+        )
+    }
+
     private fun buildPromptToExtractDateTime(question: String, answer: String): String = """
 You are a helpful assistant that extracts a date and time representing the answer to a question from user input.
 
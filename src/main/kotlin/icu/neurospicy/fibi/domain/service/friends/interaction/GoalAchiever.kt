@@ -4,6 +4,9 @@ import icu.neurospicy.fibi.domain.model.FriendshipId
 import icu.neurospicy.fibi.domain.model.UserMessage
 import icu.neurospicy.fibi.domain.repository.FriendshipLedger
 import icu.neurospicy.fibi.outgoing.ollama.LlmClient
+import icu.neurospicy.fibi.outgoing.ollama.LlmPriority
+import icu.neurospicy.fibi.outgoing.ollama.withCachedLlmResults
+import icu.neurospicy.fibi.outgoing.ollama.withLlmPriority
 import kotlinx.coroutines.async
 import kotlinx.coroutines.coroutineScope
 import org.slf4j.LoggerFactory
@@ -81,30 +84,30 @@ class GoalAchiever(
      */
     suspend fun handleClarification(
         friendshipId: FriendshipId, context: GoalContext, message: UserMessage,
-    ): SubtaskClarificationResponse = coroutineScope {
+    ): SubtaskClarificationResponse = withLlmPriority(LlmPriority.CLARIFICATION) {
         val userWantsToAbortCall = async { verifyIfUserWantsToAbort(friendshipId, message) }
         // Find a subtask that needs clarification
         val subtaskClarificationQuestion = context.subtaskClarificationQuestions.firstOrNull()
-            ?: return@coroutineScope SubtaskClarificationResponse.failed(
+            ?: return@withLlmPriority SubtaskClarificationResponse.failed(
                 context, "No subtask needs clarification"
             )
         val relatedSubtask = context.subtasks.firstOrNull { it.id == subtaskClarificationQuestion.relatedSubtask }
-            ?: return@coroutineScope SubtaskClarificationResponse.failed(
+            ?: return@withLlmPriority SubtaskClarificationResponse.failed(
                 context, "No subtask for subtask clarification found"
             )
 
         val handler = subtaskHandlers.firstOrNull { it.canHandle(relatedSubtask) }
-            ?: return@coroutineScope SubtaskClarificationResponse.failed(
+            ?: return@withLlmPriority SubtaskClarificationResponse.failed(
                 context, "Internal error while handling subtask clarification."
             )
         if (userWantsToAbortCall.await()) {
-            return@coroutineScope SubtaskClarificationResponse.aborted(
+            return@withLlmPriority SubtaskClarificationResponse.aborted(
                 context,
                 relatedSubtask,
                 successMessageGenerationPrompt = "Tell the user that Subtask \"${relatedSubtask.description}\" was aborted according to their request!"
             )
         }
-        return@coroutineScope handler.tryResolveClarification(
+        return@withLlmPriority handler.tryResolveClarification(
             relatedSubtask, subtaskClarificationQuestion, message, context, friendshipId
         ).let {
             if (it.hasProcessingError) {
@@ -137,22 +140,24 @@ class GoalAchiever(
 
     suspend fun verifyIfUserWantsToAbort(friendshipId: FriendshipId, message: UserMessage): Boolean {
         val timezone = friendshipLedger.findBy(friendshipId)?.timeZone ?: ZoneOffset.UTC
-        return llmClient.promptReceivingText(
-            listOf(
-                SystemMessage("You are a intent detector."), org.springframework.ai.chat.messages.UserMessage(
-                    """
-                    Given the message:
-                    "${message.text}"
-                    ---
-                    Does the user explicitly intend to abort the current task?
-                    Return yes or no. No explanation, no chat."
-                """.trimIndent()
-                )
-            ),
-            OllamaOptions.builder().model(complexTaskModel).temperature(0.0).topP(0.8).build(),
-            timezone,
-            message.receivedAt
-        )?.trim()?.lowercase()?.startsWith("yes") ?: false
+        return withCachedLlmResults {
+            llmClient.promptReceivingText(
+                listOf(
+                    SystemMessage("You are a intent detector."), org.springframework.ai.chat.messages.UserMessage(
+                        """
+                        Given the message:
+                        "${message.text}"
+                        ---
+                        Does the user explicitly intend to abort the current task?
+                        Return yes or no. No explanation, no chat."
+                    """.trimIndent()
+                    )
+                ),
+                OllamaOptions.builder().model(complexTaskModel).temperature(0.0).topP(0.8).build(),
+                timezone,
+                message.receivedAt
+            )
+        }?.trim()?.lowercase()?.startsWith("yes") ?: false
     }
 
     companion object {
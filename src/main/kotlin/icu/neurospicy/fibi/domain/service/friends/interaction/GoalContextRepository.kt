@@ -16,4 +16,9 @@ interface GoalContextRepository {
      * Saves a context for a specific friendship.
      */
     fun saveContext(friendshipId: FriendshipId, context: GoalContext)
+
+    /**
+     * Runs [block] as one turn of the friend. Saves within the turn may be coalesced into one write at its end.
+     */
+    fun <T> inTurn(friendshipId: FriendshipId, block: () -> T): T = block()
 }
@@ -1,31 +1,153 @@
 package icu.neurospicy.fibi.domain.service.friends.interaction
 
 import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.outgoing.mongodb.LruCache
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.boot.context.event.ApplicationStartedEvent
+import org.springframework.context.event.EventListener
+import org.springframework.dao.DuplicateKeyException
+import org.springframework.dao.OptimisticLockingFailureException
 import org.springframework.data.annotation.Id
+import org.springframework.data.domain.Sort.Direction.ASC
 import org.springframework.data.mongodb.core.MongoTemplate
+import org.springframework.data.mongodb.core.index.Index
 import org.springframework.data.mongodb.core.index.Indexed
 import org.springframework.data.mongodb.core.mapping.Document
 import org.springframework.data.mongodb.core.query.Criteria.where
 import org.springframework.data.mongodb.core.query.Query.query
+import org.springframework.data.mongodb.core.query.Update
 import org.springframework.stereotype.Repository
 
+/**
+ * Goal contexts are cached per friend and written with a versioned upsert.
+ *
+ * Within a turn (see [inTurn]) saves are kept by the turn and flushed once when the turn completes normally, based on
+ * the version the turn started from. A context changed meanwhile, by another instance or another thread saving
+ * outside the turn, is reloaded and the fields changed by the write are re-applied to it. Only if the context keeps
+ * changing for [MAX_WRITE_ATTEMPTS] attempts, the write fails with an [OptimisticLockingFailureException].
+ */
 @Repository
 class GoalContextRepositoryBasedOnMongoDb(
     private val mongoTemplate: MongoTemplate,
+    @Value("\${fibi.goal-context.cache-size:1000}") cacheSize: Int,
 ) : GoalContextRepository {
+    private val cache = LruCache<FriendshipId, CachedGoalContext>(cacheSize)
+    private val currentTurn = ThreadLocal<Turn?>()
+
+    @EventListener(ApplicationStartedEvent::class)
+    fun ensureIndexes() {
+        mongoTemplate.indexOps(GoalContextOfFriend::class.java).ensureIndex(Index().on("friendshipId", ASC).unique())
+    }
+
     override fun saveContext(
         friendshipId: FriendshipId, context: GoalContext
     ) {
-        mongoTemplate.remove(
-            query(where("friendshipId").`is`(friendshipId.toString())), GoalContextOfFriend::class.java
-        )
-        mongoTemplate.save(GoalContextOfFriend(friendshipId = friendshipId, goalContext = context))
+        val turn = currentTurn.get()
+        if (turn != null && turn.friendshipId == friendshipId) {
+            turn.pending = context
+            return
+        }
+        write(friendshipId, context, cachedOrLoaded(friendshipId))
     }
 
     override fun loadContext(friendshipId: FriendshipId): GoalContext? {
-        return mongoTemplate.findOne(
-            query(where("friendshipId").`is`(friendshipId.toString())), GoalContextOfFriend::class.java
-        )?.goalContext
+        val turn = currentTurn.get()
+        if (turn != null && turn.friendshipId == friendshipId) turn.pending?.let { return it }
+        return cachedOrLoaded(friendshipId).context
+    }
+
+    override fun <T> inTurn(friendshipId: FriendshipId, block: () -> T): T {
+        val outerTurn = currentTurn.get()
+        if (outerTurn?.friendshipId == friendshipId) return block()
+        val turn = Turn(friendshipId, cachedOrLoaded(friendshipId))
+        currentTurn.set(turn)
+        val result = try {
+            block()
+        } finally {
+            currentTurn.set(outerTurn)
+        }
+        turn.pending?.let { write(friendshipId, it, turn.base) }
+        return result
+    }
+
+    private fun cachedOrLoaded(friendshipId: FriendshipId): CachedGoalContext =
+        cache.getOrPut(friendshipId) { loaded(friendshipId) }!!
+
+    private fun loaded(friendshipId: FriendshipId): CachedGoalContext = mongoTemplate.findOne(
+        query(where("friendshipId").`is`(friendshipId.toString())), GoalContextOfFriend::class.java
+    ).let { CachedGoalContext(it?.goalContext, it?.version ?: 0) }
+
+    /**
+     * Upserts the context if the stored version is still the one of [base]. Otherwise the changes of [context] to
+     * [base] are re-applied to the stored context and the write is retried, so neither side's changes get lost.
+     */
+    private fun write(friendshipId: FriendshipId, context: GoalContext, base: CachedGoalContext) {
+        var attemptedBase = base
+        var attemptedContext = context
+        repeat(MAX_WRITE_ATTEMPTS) {
+            try {
+                upsert(friendshipId, attemptedContext, attemptedBase.version)
+                cache[friendshipId] = CachedGoalContext(attemptedContext, attemptedBase.version + 1)
+                return
+            } catch (e: DuplicateKeyException) {
+                val stored = loaded(friendshipId)
+                cache[friendshipId] = stored
+                LOG.debug(
+                    "Goal context of {} was changed concurrently (expected version {}, found {}), re-applying changes",
+                    friendshipId, attemptedBase.version, stored.version
+                )
+                attemptedContext = attemptedContext.rebased(attemptedBase.context, stored.context)
+                attemptedBase = stored
+            }
+        }
+        LOG.warn("Goal context of {} kept changing concurrently, not saving it", friendshipId)
+        throw OptimisticLockingFailureException(
+            "Goal context of $friendshipId kept changing concurrently (last expected version ${attemptedBase.version})"
+        )
+    }
+
+    /**
+     * Takes the fields this context changed compared to [base] and the remaining ones from [stored].
+     */
+    private fun GoalContext.rebased(base: GoalContext?, stored: GoalContext?): GoalContext {
+        if (stored == null) return this
+        val unchanged = base ?: GoalContext.none()
+        fun <T> changedOrStored(field: (GoalContext) -> T): T =
+            if (field(this) != field(unchanged)) field(this) else field(stored)
+        return GoalContext(
+            goal = changedOrStored { it.goal },
+            originalMessage = changedOrStored { it.originalMessage },
+            goalClarificationQuestion = changedOrStored { it.goalClarificationQuestion },
+            subtasks = changedOrStored { it.subtasks },
+            parameters = changedOrStored { it.parameters },
+            lastUpdated = maxOf(lastUpdated, stored.lastUpdated),
+            subtaskClarificationQuestions = changedOrStored { it.subtaskClarificationQuestions },
+        )
+    }
+
+    private fun upsert(friendshipId: FriendshipId, context: GoalContext, expectedVersion: Long) {
+        val versionCriteria =
+            if (expectedVersion == 0L) where("version").`in`(null, 0L) else where("version").`is`(expectedVersion)
+        mongoTemplate.upsert(
+            query(where("friendshipId").`is`(friendshipId.toString()).andOperator(versionCriteria)),
+            Update().set("goalContext", context).set("version", expectedVersion + 1),
+            GoalContextOfFriend::class.java
+        )
+    }
+
+    /**
+     * @param base the context and its version when the turn started
+     */
+    private class Turn(val friendshipId: FriendshipId, val base: CachedGoalContext) {
+        var pending: GoalContext? = null
+    }
+
+    private data class CachedGoalContext(val context: GoalContext?, val version: Long)
+
+    companion object {
+        private val LOG = LoggerFactory.getLogger(GoalContextRepositoryBasedOnMongoDb::class.java)
+        private const val MAX_WRITE_ATTEMPTS = 3
     }
 }
 
@@ -34,4 +156,5 @@ data class GoalContextOfFriend(
     @Id val _id: String? = null,
     @Indexed(unique = true) val friendshipId: FriendshipId,
     val goalContext: GoalContext,
-)
\ No newline at end of file
+    val version: Long = 0,
+)
@@ -5,10 +5,11 @@ import icu.neurospicy.fibi.domain.model.FriendshipId
 import icu.neurospicy.fibi.domain.model.UserMessage
 import icu.neurospicy.fibi.domain.repository.FriendshipLedger
 import icu.neurospicy.fibi.outgoing.ollama.LlmClient
+import icu.neurospicy.fibi.outgoing.ollama.LlmPriority
+import icu.neurospicy.fibi.outgoing.ollama.withLlmPriority
 import kotlinx.coroutines.flow.asFlow
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.toSet
-import kotlinx.coroutines.runBlocking
 import org.slf4j.LoggerFactory
 import org.springframework.ai.ollama.api.OllamaOptions
 import org.springframework.stereotype.Service
@@ -98,15 +99,14 @@ class GoalRefiner(
         }
     }
 
-    private fun determineGoalsFor(
+    private suspend fun determineGoalsFor(
         primaryIntents: Set<Intent>, message: UserMessage, friendshipId: FriendshipId,
-    ): Set<Goal> = runBlocking {
+    ): Set<Goal> =
         primaryIntents.asFlow().map { intent ->
             (goalDeteminators.firstOrNull { it -> it.canHandle(intent) } ?: SimpleGoalDeterminator()).determineGoal(
                 intent, message, friendshipId
             )
         }.toSet().flatten().toSet()
-    }
 
     private fun getPrimaryIntents(intents: List<IntentClassifier.IntentClassification>): Set<Intent> {
         return intents.filter { it.confidence >= INTENT_CONFIDENCE_THRESHOLD }
@@ -148,12 +148,14 @@ class GoalRefiner(
             "clarificationQuestion": If not, what additional question needs to be asked?
         """.trimIndent()
 
-        val response = llmClient.promptReceivingText(
-            listOf(org.springframework.ai.chat.messages.UserMessage(prompt)),
-            OllamaOptions.builder().model(defaultModel).temperature(0.0).build(),
-            timezone,
-            receivedAt
-        )
+        val response = withLlmPriority(LlmPriority.CLARIFICATION) {
+            llmClient.promptReceivingText(
+                listOf(org.springframework.ai.chat.messages.UserMessage(prompt)),
+                OllamaOptions.builder().model(defaultModel).temperature(0.0).build(),
+                timezone,
+                receivedAt
+            )
+        }
 
         // Handle possible errors in response parsing
         return try {
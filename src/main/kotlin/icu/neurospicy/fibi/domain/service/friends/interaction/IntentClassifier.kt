@@ -6,6 +6,7 @@ import icu.neurospicy.fibi.domain.model.Message
 import icu.neurospicy.fibi.domain.model.events.IncomingFriendMessageReceived
 import icu.neurospicy.fibi.domain.service.friends.interaction.tasks.TaskIntents
 import icu.neurospicy.fibi.outgoing.ollama.LlmClient
+import icu.neurospicy.fibi.outgoing.ollama.withCachedLlmResults
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.async
@@ -21,6 +22,7 @@ class IntentClassifier(
     private val llmClient: LlmClient,
     private val intentRegistry: IntentRegistry,
     private val objectMapper: ObjectMapper,
+    private val combinedMessageAnalyzer: CombinedMessageAnalyzer,
     private val defaultModel: String,
     private val complexTaskModel: String,
 ) {
@@ -29,7 +31,7 @@ class IntentClassifier(
     suspend fun classifyIntent(conversation: Conversation): List<IntentClassification> {
         val allIntents = intentRegistry.getDescriptions()
         return classifyIntent(
-            message = conversation.messages.last(), prompt = """
+            message = conversation.messages.last(), conversation = conversation.messages, prompt = """
 Based on the final user message, identify the user's actual *intention or goal* (not just keywords or content). Classify into one of the following intents:
 ${allIntents.entries.joinToString("\n") { "- \"${it.key.name}\": ${it.value}" }}
 
@@ -74,7 +76,14 @@ Example:
         )
     }
 
-    private suspend fun classifyIntent(message: Message, prompt: String): List<IntentClassification> {
+    private suspend fun classifyIntent(
+        message: Message, prompt: String, conversation: List<Message> = emptyList(),
+    ): List<IntentClassification> {
+        combinedMessageAnalyzer.analyze(message, conversation)?.let { analysis ->
+            val intentMap = intentRegistry.getAll().associateBy { it.name }
+            return analysis.intents.map { IntentClassification(intentMap[it.intent] ?: CoreIntents.Unknown, it.confidence) }
+                .sortedByDescending { it.confidence }
+        }
         return coroutineScope {
             val llmResultAsync = deferredClassifyIntents(prompt)
             val addTaskIsHighlyIntended = verifyIfAddingTaskIsHighlyIntended(message)
@@ -105,10 +114,11 @@ Example:
         }
     }
 
-    private suspend fun verifyIfAddingTaskIsHighlyIntended(message: Message): Boolean = llmClient.promptReceivingText(
-        listOf(
-            UserMessage(
-                """Does the user **clearly and explicitly** want to add a new task to their task list?
+    private suspend fun verifyIfAddingTaskIsHighlyIntended(message: Message): Boolean = withCachedLlmResults {
+        llmClient.promptReceivingText(
+            listOf(
+                UserMessage(
+                    """Does the user **clearly and explicitly** want to add a new task to their task list?
     
     Return only:
     - yes → if the user gives a clear instruction to create a new task (e.g. "Add a task to call the clinic")
@@ -119,12 +129,13 @@ Example:
     "${message.text}"
     
     Answer only: yes or no"""
-            )
-        ),
-        OllamaOptions.builder().model(complexTaskModel).temperature(0.0).topP(0.7).build(),
-        ZoneOffset.UTC,
-        Instant.now()
-    )?.lowercase()?.startsWith("yes") == true
+                )
+            ),
+            OllamaOptions.builder().model(complexTaskModel).temperature(0.0).topP(0.7).build(),
+            ZoneOffset.UTC,
+            Instant.now()
+        )
+    }?.lowercase()?.startsWith("yes") == true
 
     private fun parseIntentClassification(
         response: String, availableIntents: List<Intent>,
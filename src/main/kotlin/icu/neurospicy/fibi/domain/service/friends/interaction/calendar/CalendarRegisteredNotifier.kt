@@ -2,7 +2,7 @@ package icu.neurospicy.fibi.domain.service.friends.interaction.calendar
 
 import icu.neurospicy.fibi.calendar.sync.CalendarSynchronized
 import icu.neurospicy.fibi.config.PromptsConfiguration
-import icu.neurospicy.fibi.domain.model.Appointment
+import icu.neurospicy.fibi.domain.model.AppointmentOverview
 import icu.neurospicy.fibi.domain.model.OutgoingTextMessage
 import icu.neurospicy.fibi.domain.model.events.SendMessageCmd
 import icu.neurospicy.fibi.domain.repository.*
@@ -33,7 +33,7 @@ class CalendarRegisteredNotifier(
 
         val friendsTimeZone = friendshipLedger.findBy(friendshipId)?.timeZone ?: UTC
         val startOfDay = LocalDate.now().atStartOfDay(friendsTimeZone)
-        val todaysAppointments = calendarRepository.loadAppointmentsForTimeRange(
+        val todaysAppointments = calendarRepository.loadAppointmentOverviewsForTimeRange(
             TimeRange(startOfDay.toInstant(), Duration.ofDays(1)), friendshipId
         )
         val singleOrMultipleCalendarMessage =
@@ -72,7 +72,7 @@ class CalendarRegisteredNotifier(
     }
 
 
-    private fun appointmentLines(friendsTimeZone: ZoneId?): (Appointment) -> String = {
+    private fun appointmentLines(friendsTimeZone: ZoneId?): (AppointmentOverview) -> String = {
         "- " + it.startAt.instant.atZone(friendsTimeZone).format(
             DateTimeFormatter.ofPattern("HH:mm")
         ) + " " + it.summary
@@ -14,14 +14,14 @@ class ShortCutCalendarIdsTools(
     private val now: ZonedDateTime = ZonedDateTime.now(timezoneOfUser),
 ) {
     @Tool(description = "Get ids of all today's appointments", returnDirect = true)
-    fun `Get ids of all today's appointments`(): String = calendarRepository.loadAppointmentsForTimeRange(
+    fun `Get ids of all today's appointments`(): String = calendarRepository.loadAppointmentOverviewsForTimeRange(
         TimeRange(
             now.toLocalDate().atStartOfDay(timezoneOfUser).toInstant(), Duration.ofDays(1)
         ), friendshipId
     ).mapNotNull { it._id }.joinToString()
 
     @Tool(description = "Get ids of today's upcoming appointments", returnDirect = true)
-    fun `Get ids of today's upcoming appointments`(): String = calendarRepository.loadAppointmentsForTimeRange(
+    fun `Get ids of today's upcoming appointments`(): String = calendarRepository.loadAppointmentOverviewsForTimeRange(
         TimeRange(
             now.toInstant(), Duration.between(
                 now,
@@ -31,7 +31,7 @@ class ShortCutCalendarIdsTools(
     ).mapNotNull { it._id }.joinToString()
 
     @Tool(description = "Get ids of all tomorrow's appointments", returnDirect = true)
-    fun `Get ids of all tomorrow's appointments`(): String = calendarRepository.loadAppointmentsForTimeRange(
+    fun `Get ids of all tomorrow's appointments`(): String = calendarRepository.loadAppointmentOverviewsForTimeRange(
         TimeRange(
             now.toLocalDate().plusDays(1).atStartOfDay(timezoneOfUser).toInstant(), Duration.ofDays(1)
         ), friendshipId
@@ -44,7 +44,7 @@ class ShortCutCalendarIdsTools(
     ): String {
         val startAt: Instant = parseIsoDateTime(startAtString)
         val endAt: Instant = parseIsoDateTime(endAtString)
-        return calendarRepository.loadAppointmentsForTimeRange(
+        return calendarRepository.loadAppointmentOverviewsForTimeRange(
             TimeRange(startAt, Duration.between(startAt, endAt)), friendshipId
         ).mapNotNull { it._id }.joinToString()
     }
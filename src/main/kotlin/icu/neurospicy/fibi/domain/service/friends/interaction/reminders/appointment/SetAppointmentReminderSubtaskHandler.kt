@@ -62,7 +62,7 @@ class SetAppointmentReminderSubtaskHandler(
             messageId: MessageId?,
             channel: Channel?,
         ): ExtractionResult<NewAppointmentReminderInformation> {
-            val appointments = calendarRepository.loadAppointmentsForTimeRange(
+            val appointments = calendarRepository.loadAppointmentOverviewsForTimeRange(
                 TimeRange(Instant.now().minus(7, ChronoUnit.DAYS), Duration.ofDays(14)), friendshipId
             )
             val upcomingSummaries = appointments.map { it.summary }.distinct().take(40)
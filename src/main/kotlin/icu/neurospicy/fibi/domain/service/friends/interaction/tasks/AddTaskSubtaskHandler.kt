@@ -22,6 +22,7 @@ class AddTaskSubtaskHandler(
     private val objectMapper: ObjectMapper,
     private val taskRepository: TaskRepository,
     val friendshipLedger: FriendshipLedger,
+    combinedMessageAnalyzer: CombinedMessageAnalyzer,
     private val complexTaskModel: String,
 ) : CrudSubtaskHandler<NewTaskInformation, Task>(
     intent = TaskIntents.Add, entityHandler = object : CrudEntityHandler<NewTaskInformation, Task> {
@@ -51,6 +52,16 @@ class AddTaskSubtaskHandler(
             messageId: MessageId?,
             channel: Channel?,
         ): ExtractionResult<NewTaskInformation> {
+            if (clarificationQuestion.isNullOrBlank()) {
+                combinedMessageAnalyzer.parametersFor(messageId, TaskIntents.Add, rawText)?.let { parameters ->
+                    val entity = NewTaskInformation(
+                        parameters["title"] ?: previousData?.title,
+                        parameters["description"] ?: previousData?.description,
+                        parameters["completed"]?.lowercase()?.toBooleanStrictOrNull() ?: previousData?.completed,
+                    )
+                    if (entity.complete) return ExtractionResult(data = entity, missingFields = entity.missingFields)
+                }
+            }
             val previousDataList = previousData?.let {
                 "The following fields were found previously: ${
                     listOfNotNull(
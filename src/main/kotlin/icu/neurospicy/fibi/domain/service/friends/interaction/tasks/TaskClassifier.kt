@@ -1,12 +1,13 @@
 package icu.neurospicy.fibi.domain.service.friends.interaction.tasks
 
-import com.fasterxml.jackson.databind.ObjectMapper
 import icu.neurospicy.fibi.domain.model.FriendshipId
 import icu.neurospicy.fibi.domain.model.UserMessage
 import icu.neurospicy.fibi.domain.repository.FriendshipLedger
 
+import icu.neurospicy.fibi.domain.service.friends.interaction.CombinedMessageAnalyzer
 import icu.neurospicy.fibi.domain.service.friends.interaction.RelevantText
 import icu.neurospicy.fibi.outgoing.ollama.LlmClient
+import icu.neurospicy.fibi.outgoing.ollama.withCachedLlmResults
 import org.springframework.ai.ollama.api.OllamaOptions
 import org.springframework.stereotype.Component
 import java.time.ZoneId
@@ -25,7 +26,7 @@ interface TaskClassifier {
 class LlmTaskClassifier(
     private val llmClient: LlmClient,
     private val friendshipLedger: FriendshipLedger,
-    private val objectMapper: ObjectMapper,
+    private val combinedMessageAnalyzer: CombinedMessageAnalyzer,
     private val complexTaskModel: String,
 ) : TaskClassifier {
 
@@ -56,6 +57,15 @@ class LlmTaskClassifier(
         friendshipId: FriendshipId,
         message: UserMessage,
     ): List<RelevantText> {
+        val intent = when (action) {
+            "add" -> TaskIntents.Add
+            "update" -> TaskIntents.Update
+            "remove" -> TaskIntents.Remove
+            "complete" -> TaskIntents.Complete
+            else -> TaskIntents.List
+        }
+        combinedMessageAnalyzer.relevantTextsFor(message.messageId, intent)?.let { return it }
+
         val promptText = when (action) {
             "add" -> """
 You are a helpful assistant. Extract all task-related segments from the message where the user clearly intends to add a task.
@@ -155,20 +165,12 @@ Message:
         val prompt = AiUserMessage(promptText)
 
         val zone = friendshipLedger.findBy(friendshipId)?.timeZone ?: ZoneId.of("UTC")
-        val result = llmClient.promptReceivingJson(listOf(prompt), options, zone, message.receivedAt)
-
-        return result?.let { json ->
-            try {
-                val parsed = objectMapper.readTree(json)
-                parsed.mapNotNull {
-                    val relevantText = it["relevantText"]?.asText("") ?: return@mapNotNull null
-                    val description = it["description"]?.asText("") ?: return@mapNotNull null
-                    if (relevantText.isBlank() || description.isBlank()) return@mapNotNull null
-                    RelevantText(relevantText = relevantText, description = description)
-                }
-            } catch (e: Exception) {
-                emptyList()
-            }
-        } ?: emptyList()
+        return withCachedLlmResults {
+            llmClient.promptReceivingJson(
+                listOf(prompt), options, zone, message.receivedAt,
+                responseType = Array<RelevantText>::class.java,
+                callSite = "TaskClassifier.$action"
+            )
+        }.orEmpty().filter { it.relevantText.isNotBlank() && it.description.isNotBlank() }
     }
 }
\ No newline at end of file
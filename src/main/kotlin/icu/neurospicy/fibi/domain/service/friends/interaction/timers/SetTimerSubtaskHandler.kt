@@ -23,6 +23,7 @@ class SetTimerSubtaskHandler(
     private val objectMapper: ObjectMapper,
     private val timerRepository: TimerRepository,
     friendshipLedger: FriendshipLedger,
+    combinedMessageAnalyzer: CombinedMessageAnalyzer,
     private val complexTaskModel: String,
 ) : CrudSubtaskHandler<NewTimerInformation, Timer>(
     intent = TimerIntents.Set,
@@ -53,6 +54,19 @@ class SetTimerSubtaskHandler(
             messageId: MessageId?,
             channel: Channel?,
         ): ExtractionResult<NewTimerInformation> {
+            if (clarificationQuestion.isNullOrBlank()) {
+                combinedMessageAnalyzer.parametersFor(messageId, TimerIntents.Set, rawText)?.let { parameters ->
+                    val duration = try {
+                        parameters["duration"]?.let { Duration.parse(it) }
+                    } catch (e: Exception) {
+                        null
+                    }
+                    if (duration != null) return ExtractionResult(
+                        data = NewTimerInformation(duration, parameters["label"] ?: previousData?.label),
+                        missingFields = emptyList(),
+                    )
+                }
+            }
             val prompt = """
                 You are helping the user set a timer.
 
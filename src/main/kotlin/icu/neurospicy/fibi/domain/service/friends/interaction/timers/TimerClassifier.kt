@@ -1,12 +1,13 @@
 package icu.neurospicy.fibi.domain.service.friends.interaction.timers
 
-import com.fasterxml.jackson.databind.ObjectMapper
 import icu.neurospicy.fibi.domain.model.FriendshipId
 import icu.neurospicy.fibi.domain.model.UserMessage
 import icu.neurospicy.fibi.domain.repository.FriendshipLedger
 
+import icu.neurospicy.fibi.domain.service.friends.interaction.CombinedMessageAnalyzer
 import icu.neurospicy.fibi.domain.service.friends.interaction.RelevantText
 import icu.neurospicy.fibi.outgoing.ollama.LlmClient
+import icu.neurospicy.fibi.outgoing.ollama.withCachedLlmResults
 import org.springframework.ai.ollama.api.OllamaOptions
 import org.springframework.stereotype.Component
 import java.time.ZoneId
@@ -23,7 +24,7 @@ interface TimerClassifier {
 class LlmTimerClassifier(
     private val llmClient: LlmClient,
     private val friendshipLedger: FriendshipLedger,
-    private val objectMapper: ObjectMapper,
+    private val combinedMessageAnalyzer: CombinedMessageAnalyzer,
     private val complexTaskModel: String,
 ) : TimerClassifier {
 
@@ -34,6 +35,7 @@ class LlmTimerClassifier(
     }
 
     override suspend fun extractUpdateTimers(friendshipId: FriendshipId, message: UserMessage): List<RelevantText> {
+        combinedMessageAnalyzer.relevantTextsFor(message.messageId, TimerIntents.Update)?.let { return it }
         val updatePrompt = AiUserMessage(
             """
                 You are a helpful assistant. Your task is to extract all timer-related segments from the following message related to updating a timer.
@@ -64,22 +66,13 @@ class LlmTimerClassifier(
         )
 
         val zone = friendshipLedger.findBy(friendshipId)?.timeZone ?: ZoneId.of("UTC")
-        val result = llmClient.promptReceivingJson(listOf(updatePrompt), options, zone, message.receivedAt)
-
-        return result?.let { json ->
-            try {
-                val parsed = objectMapper.readTree(json)
-                parsed.mapNotNull {
-                    val relevantText = it["relevantText"].asText("")
-                    val description = it["description"].asText("")
-                    if (relevantText.isBlank() || description.isBlank()) null else RelevantText(
-                        relevantText, description
-                    )
-                }
-            } catch (e: Exception) {
-                emptyList()
-            }
-        } ?: emptyList()
+        return withCachedLlmResults {
+            llmClient.promptReceivingJson(
+                listOf(updatePrompt), options, zone, message.receivedAt,
+                responseType = Array<RelevantText>::class.java,
+                callSite = "TimerClassifier.update"
+            )
+        }.orEmpty().filter { it.relevantText.isNotBlank() && it.description.isNotBlank() }
     }
 
     override suspend fun extractRemoveTimers(friendshipId: FriendshipId, message: UserMessage): List<RelevantText> {
@@ -93,6 +86,13 @@ class LlmTimerClassifier(
     private suspend fun extractTimers(
         action: String, friendshipId: FriendshipId, message: UserMessage,
     ): List<RelevantText> {
+        val intent = when (action) {
+            "set" -> TimerIntents.Set
+            "remove" -> TimerIntents.Remove
+            else -> TimerIntents.List
+        }
+        combinedMessageAnalyzer.relevantTextsFor(message.messageId, intent)?.let { return it }
+
         val promptText = when (action) {
             "set" -> """
 You are a helpful assistant. Your task is to extract all timer-related segments from the following message related to setting a timer.
@@ -189,21 +189,12 @@ Message:
         val prompt = AiUserMessage(promptText)
 
         val zone = friendshipLedger.findBy(friendshipId)?.timeZone ?: ZoneId.of("UTC")
-        val result = llmClient.promptReceivingJson(listOf(prompt), options, zone, message.receivedAt)
-
-        return result?.let { json ->
-            try {
-                val parsed = objectMapper.readTree(json)
-                parsed.mapNotNull {
-                    val relevantText = it["relevantText"].asText("")
-                    val description = it["description"].asText("")
-                    if (relevantText.isBlank() || description.isBlank()) null else RelevantText(
-                        relevantText, description
-                    )
-                }
-            } catch (e: Exception) {
-                emptyList()
-            }
-        } ?: emptyList()
+        return withCachedLlmResults {
+            llmClient.promptReceivingJson(
+                listOf(prompt), options, zone, message.receivedAt,
+                responseType = Array<RelevantText>::class.java,
+                callSite = "TimerClassifier.$action"
+            )
+        }.orEmpty().filter { it.relevantText.isNotBlank() && it.description.isNotBlank() }
     }
 }
\ No newline at end of file
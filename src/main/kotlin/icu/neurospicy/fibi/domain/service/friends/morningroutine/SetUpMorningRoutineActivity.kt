@@ -4,6 +4,7 @@ import icu.neurospicy.fibi.config.PromptsConfiguration
 import icu.neurospicy.fibi.domain.model.*
 import icu.neurospicy.fibi.domain.model.events.MessageForActivityReceived
 import icu.neurospicy.fibi.domain.model.events.SendMessageCmd
+import icu.neurospicy.fibi.domain.model.events.SetUpMorningRoutineActivityCancelled
 import icu.neurospicy.fibi.domain.model.events.SetUpMorningRoutineActivityFinished
 import icu.neurospicy.fibi.domain.model.events.SetUpMorningRoutineActivityStarted
 import icu.neurospicy.fibi.domain.repository.ChatRepository
@@ -11,6 +12,8 @@ import icu.neurospicy.fibi.domain.repository.FriendshipLedger
 import icu.neurospicy.fibi.domain.repository.RoutineConfigurationRepository
 import icu.neurospicy.fibi.domain.service.ConversationContextService
 import icu.neurospicy.fibi.outgoing.ollama.*
+import icu.neurospicy.fibi.outgoing.ollama.LlmPriority
+import icu.neurospicy.fibi.outgoing.ollama.LlmRequestTag
 import kotlinx.coroutines.runBlocking
 import org.slf4j.LoggerFactory
 import org.springframework.context.ApplicationEventPublisher
@@ -91,7 +94,9 @@ class SetUpMorningRoutineActivity(
     }
 
     @EventListener(condition = "event.activity.equals('$ACTIVITY_NAME')")
-    fun handleMessage(event: MessageForActivityReceived) = runBlocking {
+    fun handleMessage(event: MessageForActivityReceived) = runBlocking(
+        LlmRequestTag(LlmPriority.INTERACTIVE, event.friendshipId)
+    ) {
         // Check if the user wants to cancel the routine registration.
         if (try {
                 intentRecognizer.recognize(
@@ -170,6 +175,7 @@ class SetUpMorningRoutineActivity(
     private fun cancelActivityByUser(friendshipId: FriendshipId, message: UserMessage) {
         friendshipLedger.finishActivity(friendshipId, ACTIVITY_NAME)
         routineConfigurationRepository.cancelRegistration(friendshipId)
+        applicationEventPublisher.publishEvent(SetUpMorningRoutineActivityCancelled(this.javaClass, friendshipId))
         applicationEventPublisher.publishEvent(
             SendMessageCmd(
                 this.javaClass, friendshipId, OutgoingTextMessage(
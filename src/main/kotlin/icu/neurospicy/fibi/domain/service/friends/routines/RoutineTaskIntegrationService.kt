@@ -10,6 +10,8 @@ import icu.neurospicy.fibi.domain.service.friends.communication.Mood
 import icu.neurospicy.fibi.domain.service.friends.interaction.*
 import icu.neurospicy.fibi.domain.service.friends.routines.events.ConfirmedActionStep
 import icu.neurospicy.fibi.domain.service.friends.routines.events.StopRoutineForToday
+import icu.neurospicy.fibi.outgoing.ollama.LlmPriority
+import icu.neurospicy.fibi.outgoing.ollama.LlmRequestTag
 import kotlinx.coroutines.runBlocking
 import org.slf4j.LoggerFactory
 import org.springframework.context.ApplicationEventPublisher
@@ -111,7 +113,7 @@ class RoutineTaskIntegrationService(
             WAS_DELETION_OF_TASK_A_MISTAKE_QUESTION.replace("\$taskTitle", event.task.title),
             IS_STOPPING_ROUTINE_HELPFUL_DUE_TO_OVERWHELM_QUESTION
         )
-        val (answers, emotions) = runBlocking {
+        val (answers, emotions) = runBlocking(LlmRequestTag(LlmPriority.BACKGROUND, friendshipId)) {
             friendStateAnalyzer.analyze(
                 recentMessages,
                 questions = questions
@@ -339,15 +341,6 @@ class RoutineTaskIntegrationService(
         )
     }
 
-    private fun loadRecentMessages(friendshipId: FriendshipId): List<Message> {
-        return chatRepository.findHistory(friendshipId).timeline.filter {
-            Duration.between(
-                Instant.now(),
-                it.let {
-                    when (it) {
-                        is UserMessage -> it.receivedAt; is FibiMessage -> it.sentAt
-                    }
-                }).abs() < Duration.ofMinutes(15)
-        }.take(5)
-    }
-} 
\ No newline at end of file
+    private fun loadRecentMessages(friendshipId: FriendshipId): List<Message> =
+        chatRepository.findLatest(friendshipId, 5, since = Instant.now().minus(Duration.ofMinutes(15)))
+}
@@ -15,17 +15,12 @@ class ChatHistoryTools(
     private val chatRepository: ChatRepository,
     private val friendshipId: FriendshipId,
 ) {
-    @Tool(description = "Get access to the last messages between you and the user. Get the messages starting from the given date time in ISO 8601 format. If the message is short or context is missing, you must include further messages.")
+    @Tool(description = "Get access to the last messages between you and the user. Get the messages starting from the given date time in ISO 8601 format, at most the latest $MAX_MESSAGES of them. If the message is short or context is missing, you must include further messages.")
     fun getChatHistory(startFrom: String): List<LlmMessage> {
         LOG.info("Gathering chat history with friend $friendshipId starting at $startFrom")
         val zoneId = friendshipLedger.findTimezoneBy(friendshipId) ?: UTC
         val startAt = Instant.parse(startFrom)
-        return chatRepository.findHistory(friendshipId).timeline.filter {
-            when (it) {
-                is UserMessage -> it.receivedAt.isAfter(startAt)
-                is FibiMessage -> it.sentAt.isAfter(startAt)
-            }
-        }.map {
+        return chatRepository.findLatest(friendshipId, MAX_MESSAGES, since = startAt).map {
             when (it) {
                 is UserMessage -> LlmMessage(
                     it.receivedAt.atZone(zoneId).toLocalDateTime().toString(),
@@ -46,6 +41,7 @@ class ChatHistoryTools(
 
     companion object {
         private val LOG = LoggerFactory.getLogger(ChatHistoryTools::class.java)
+        private const val MAX_MESSAGES = 50
     }
 
     data class LlmMessage(
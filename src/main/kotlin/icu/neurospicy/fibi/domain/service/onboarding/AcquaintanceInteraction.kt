@@ -9,11 +9,12 @@ import icu.neurospicy.fibi.domain.repository.FriendshipLedger
 import icu.neurospicy.fibi.outgoing.ollama.IntentRecognitionFailed
 import icu.neurospicy.fibi.outgoing.ollama.IntentRecognizer
 import icu.neurospicy.fibi.outgoing.ollama.PossibleIntent
+import icu.neurospicy.fibi.outgoing.ollama.LlmPriority
+import icu.neurospicy.fibi.outgoing.ollama.LlmRequestTag
 import kotlinx.coroutines.runBlocking
 import org.slf4j.LoggerFactory
 import org.springframework.context.ApplicationEventPublisher
 import org.springframework.context.event.EventListener
-import org.springframework.scheduling.annotation.Async
 import org.springframework.stereotype.Service
 import java.time.Instant.now
 import java.time.ZoneOffset.UTC
@@ -31,10 +32,11 @@ class AcquaintanceInteraction(
     private val promptsConfiguration: PromptsConfiguration
 ) {
     @EventListener
-    @Async
-    fun onMessageSendRequested(event: IncomingAcquaintanceMessageReceived) = runBlocking {
+    fun onMessageSendRequested(event: IncomingAcquaintanceMessageReceived) = runBlocking(
+        LlmRequestTag(LlmPriority.INTERACTIVE, event.friendshipId)
+    ) {
         val history =
-            chatRepository.findHistory(event.friendshipId).timeline.filter { it.channel == event.message.channel }
+            chatRepository.findLatest(event.friendshipId, HISTORY_SIZE).filter { it.channel == event.message.channel }
         val otherIntent = PossibleIntent(
             "Other/Functionality",
             """None of the others, e.g., "It's cold outside", "I am angry, help me.", "Add a 12 minute timer for my pizza"."""
@@ -218,16 +220,19 @@ class AcquaintanceInteraction(
     }
 
     private fun isLastMessageOlderThanADay(friendshipId: FriendshipId): Boolean {
-        return chatRepository.findHistory(friendshipId).timeline.let {
-            //remove current message and last response, to access the last message send by the user
-            it.removeLastOrNull()
-            it.removeLastOrNull()
-            it.lastOrNull()
-        }?.takeIf { it is UserMessage }?.let { it as UserMessage }?.receivedAt?.plus(1, ChronoUnit.DAYS)
+        //skip current message and last response, to access the last message send by the user
+        return chatRepository.findLatest(friendshipId, 3)
+            .dropLast(2)
+            .lastOrNull()
+            ?.takeIf { it is UserMessage }
+            ?.let { it as UserMessage }
+            ?.receivedAt
+            ?.plus(1, ChronoUnit.DAYS)
             ?.isBefore(now()) ?: false
     }
 
     companion object {
         private val LOG = LoggerFactory.getLogger(this::class.java)
+        private const val HISTORY_SIZE = 50
     }
 }
\ No newline at end of file
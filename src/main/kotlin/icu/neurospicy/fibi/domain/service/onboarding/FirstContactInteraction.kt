@@ -8,7 +8,6 @@ import icu.neurospicy.fibi.incoming.signal.SignalMessageHandler
 import org.slf4j.LoggerFactory
 import org.springframework.context.ApplicationEventPublisher
 import org.springframework.context.event.EventListener
-import org.springframework.scheduling.annotation.Async
 import org.springframework.stereotype.Service
 
 @Service
@@ -17,7 +16,6 @@ class FirstContactInteraction(
     private val applicationEventPublisher: ApplicationEventPublisher
 ) {
     @EventListener
-    @Async
     fun introduceTo(event: IncomingCuriousMessageReceived) {
         LOG.info("New user ({}) started chat.", event.friendshipId)
         applicationEventPublisher.publishEvent(
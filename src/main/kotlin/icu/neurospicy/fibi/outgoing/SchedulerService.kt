@@ -1,6 +1,7 @@
 package icu.neurospicy.fibi.outgoing
 
 import icu.neurospicy.fibi.domain.model.*
+import java.time.Duration
 
 interface SchedulerService {
     /**
@@ -15,8 +16,28 @@ interface SchedulerService {
      */
     fun reinitializeRoutines(routines: List<RoutineConfiguration>)
 
+    /**
+     * Makes the scheduled routines match the enabled [routines], removing the routines not among them.
+     */
+    fun reconcileRoutines(routines: List<RoutineConfiguration>): SchedulerReconciliation
+
     fun scheduleCalendarSync(friendshipId: FriendshipId, calendarConfigId: CalendarConfigId)
 
+    /**
+     * Schedules the next sync of the calendar configuration in [interval], repeating at that interval.
+     */
+    fun scheduleCalendarSync(friendshipId: FriendshipId, calendarConfigId: CalendarConfigId, interval: Duration)
+
+    /**
+     * Makes the scheduled calendar syncs match [calendarConfigurations], removing the syncs not among them.
+     */
+    fun reconcileCalendarSyncs(calendarConfigurations: List<CalendarConfiguration>): SchedulerReconciliation
+
+    /**
+     * Makes the scheduled time-based reminders match [reminders], removing the reminders not among them.
+     */
+    fun reconcileReminders(reminders: List<Reminder>): SchedulerReconciliation
+
     fun scheduleReminder(reminder: Reminder)
     fun rescheduleReminder(reminder: Reminder)
     fun removeSchedulerForReminder(owner: FriendshipId, reminderId: String)
@@ -26,10 +47,32 @@ interface SchedulerService {
         owner: FriendshipId, reminderId: String, appointmentId: AppointmentId
     )
 
+    /**
+     * Makes the scheduled appointment reminders match [reminders], removing the reminders not among them.
+     */
+    fun reconcileAppointmentReminders(reminders: List<Pair<AppointmentReminder, Appointment>>): SchedulerReconciliation
+
     fun scheduleGeneratingMessage(friendshipId: FriendshipId, channel: Channel)
     fun removeGeneratingMessageScheduler(friendshipId: FriendshipId, channel: Channel)
 
     fun scheduleTimer(timer: Timer)
     fun rescheduleTimer(timer: Timer)
     fun removeSchedulerForTimer(friendshipId: FriendshipId, timerId: String)
-}
\ No newline at end of file
+
+    /**
+     * Makes the scheduled timers match [timers], removing the timers not among them.
+     */
+    fun reconcileTimers(timers: List<Timer>): SchedulerReconciliation
+}
+
+/**
+ * Outcome of reconciling the scheduled jobs of a [group] with the jobs that should exist.
+ */
+data class SchedulerReconciliation(
+    val group: String,
+    val created: Int,
+    val updated: Int,
+    val removed: Int,
+    val unchanged: Int,
+    val duration: Duration,
+)
\ No newline at end of file
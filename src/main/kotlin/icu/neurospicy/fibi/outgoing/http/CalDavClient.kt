@@ -0,0 +1,233 @@
+package icu.neurospicy.fibi.outgoing.http
+
+import icu.neurospicy.fibi.domain.model.ApiKeyCredential
+import icu.neurospicy.fibi.domain.model.Credential
+import icu.neurospicy.fibi.domain.model.UsernamePasswordCredential
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Component
+import org.w3c.dom.Element
+import java.io.InputStream
+import java.net.URI
+import java.net.http.HttpClient
+import java.net.http.HttpRequest
+import java.net.http.HttpRequest.BodyPublishers
+import java.net.http.HttpResponse.BodyHandlers
+import java.time.Duration
+import java.util.*
+import javax.xml.parsers.DocumentBuilderFactory
+
+/**
+ * Minimal CalDAV client (RFC 4791, RFC 6578) to discover calendar collections and fetch changed events.
+ *
+ * All requests share one [HttpClient], which keeps connections to the calendar servers open between syncs.
+ */
+@Component
+class CalDavClient(
+    @Value("\${fibi.calendar.caldav.timeout:PT30S}") private val timeout: Duration,
+) {
+    private val httpClient: HttpClient = HttpClient.newBuilder()
+        .connectTimeout(timeout)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build()
+
+    /**
+     * Returns the calendar collections at [url]. The url may point to a calendar, a calendar home or any resource
+     * knowing the current user principal.
+     */
+    fun discoverCalendars(url: URI, credential: Credential?): List<CalDavCollection> {
+        val responses = propfind(url, 1, COLLECTION_PROPERTIES, credential)
+        responses.calendars(url).takeIf { it.isNotEmpty() }?.let { return it }
+
+        val principal = responses.firstNotNullOfOrNull { it.href(DAV, "current-user-principal") }
+            ?: return emptyList()
+        val calendarHome = propfind(url.resolve(principal), 0, COLLECTION_PROPERTIES, credential)
+            .firstNotNullOfOrNull { it.href(CALDAV, "calendar-home-set") }
+            ?: return emptyList()
+        val calendarHomeUrl = url.resolve(calendarHome)
+        return propfind(calendarHomeUrl, 1, COLLECTION_PROPERTIES, credential).calendars(calendarHomeUrl)
+    }
+
+    /**
+     * Reports the events changed and removed since [syncToken] was issued.
+     *
+     * @return null if the server does not support sync-collection or does not accept the token anymore
+     */
+    fun syncCollection(collection: URI, syncToken: String, credential: Credential?): CalDavChanges? {
+        val body = """
+            |<?xml version="1.0" encoding="utf-8"?>
+            |<d:sync-collection xmlns:d="DAV:">
+            |  <d:sync-token>${syncToken.escapeXml()}</d:sync-token>
+            |  <d:sync-level>1</d:sync-level>
+            |  <d:prop><d:getetag/></d:prop>
+            |</d:sync-collection>
+        """.trimMargin()
+        val (status, multistatus) = send(collection, "REPORT", 1, body, credential)
+        if (status != 207) {
+            LOG.debug("Sync-collection on {} answered with {}, falling back to a full listing", collection, status)
+            return null
+        }
+        val responses = multistatus.responses()
+        return CalDavChanges(
+            changed = responses.filter { it.status != 404 && it.etag != null && !it.href.endsWith("/") }
+                .associate { it.href to it.etag!! },
+            removed = responses.filter { it.status == 404 }.map { it.href }.toSet(),
+            syncToken = multistatus.childElements(DAV, "sync-token").firstOrNull()?.textContent?.trim()
+        )
+    }
+
+    /**
+     * Lists hrefs and etags of all events in the collection.
+     */
+    fun listEvents(collection: URI, credential: Credential?): Map<String, String> {
+        val body = """
+            |<?xml version="1.0" encoding="utf-8"?>
+            |<c:calendar-query xmlns:d="DAV:" xmlns:c="urn:ietf:params:xml:ns:caldav">
+            |  <d:prop><d:getetag/></d:prop>
+            |  <c:filter><c:comp-filter name="VCALENDAR"><c:comp-filter name="VEVENT"/></c:comp-filter></c:filter>
+            |</c:calendar-query>
+        """.trimMargin()
+        return report(collection, body, credential)
+            .filter { it.etag != null && !it.href.endsWith("/") }
+            .associate { it.href to it.etag!! }
+    }
+
+    /**
+     * Fetches the calendar data of the given events, [MULTIGET_BATCH_SIZE] events per request.
+     */
+    fun fetchEvents(collection: URI, hrefs: Collection<String>, credential: Credential?): List<CalDavEvent> =
+        hrefs.chunked(MULTIGET_BATCH_SIZE).flatMap { batch ->
+            val body = """
+                |<?xml version="1.0" encoding="utf-8"?>
+                |<c:calendar-multiget xmlns:d="DAV:" xmlns:c="urn:ietf:params:xml:ns:caldav">
+                |  <d:prop><d:getetag/><c:calendar-data/></d:prop>
+                |${batch.joinToString("\n") { "  <d:href>${it.escapeXml()}</d:href>" }}
+                |</c:calendar-multiget>
+            """.trimMargin()
+            report(collection, body, credential).mapNotNull { response ->
+                val calendarData = response.properties[CALDAV to "calendar-data"]?.textContent ?: return@mapNotNull null
+                CalDavEvent(response.href, response.etag ?: "", calendarData)
+            }
+        }
+
+    private fun propfind(url: URI, depth: Int, properties: String, credential: Credential?): List<DavResponse> {
+        val (status, multistatus) = send(url, "PROPFIND", depth, properties, credential)
+        if (status != 207) throw CalDavException("PROPFIND on $url failed with status $status")
+        return multistatus.responses()
+    }
+
+    private fun report(collection: URI, body: String, credential: Credential?): List<DavResponse> {
+        val (status, multistatus) = send(collection, "REPORT", 1, body, credential)
+        if (status != 207) throw CalDavException("REPORT on $collection failed with status $status")
+        return multistatus.responses()
+    }
+
+    private fun send(
+        url: URI, method: String, depth: Int, body: String, credential: Credential?
+    ): Pair<Int, Element> {
+        val request = HttpRequest.newBuilder(url)
+            .timeout(timeout)
+            .method(method, BodyPublishers.ofString(body))
+            .header("Depth", depth.toString())
+            .header("Content-Type", "application/xml; charset=utf-8")
+            .apply { authorization(credential)?.let { header("Authorization", it) } }
+            .build()
+        val response = httpClient.send(request, BodyHandlers.ofInputStream())
+        return response.body().use { content ->
+            response.statusCode() to (if (response.statusCode() == 207) parse(content) else emptyMultistatus())
+        }
+    }
+
+    private fun authorization(credential: Credential?): String? = when (credential) {
+        is UsernamePasswordCredential -> "Basic " + Base64.getEncoder()
+            .encodeToString("${credential.username}:${credential.password}".toByteArray())
+
+        is ApiKeyCredential -> "Bearer ${credential.key}"
+        else -> null
+    }
+
+    private fun parse(content: InputStream): Element = documentBuilder().parse(content).documentElement
+
+    private fun emptyMultistatus(): Element = documentBuilder().newDocument()
+        .let { it.appendChild(it.createElementNS(DAV, "multistatus")) as Element }
+
+    private fun documentBuilder() = DocumentBuilderFactory.newInstance().apply {
+        isNamespaceAware = true
+        setFeature("http://apache.org/xml/features/disallow-doctype-decl", true)
+    }.newDocumentBuilder()
+
+    private fun Element.responses(): List<DavResponse> = childElements(DAV, "response").map { response ->
+        val properties = response.childElements(DAV, "propstat")
+            .filter { propstat -> propstat.childElements(DAV, "status").firstOrNull()?.statusCode() in listOf(null, 200) }
+            .flatMap { it.childElements(DAV, "prop") }
+            .flatMap { it.childElements() }
+            .associateBy { it.namespaceURI to it.localName }
+        DavResponse(
+            href = response.childElements(DAV, "href").first().textContent.trim(),
+            status = response.childElements(DAV, "status").firstOrNull()?.statusCode(),
+            properties = properties
+        )
+    }
+
+    private fun List<DavResponse>.calendars(baseUrl: URI): List<CalDavCollection> =
+        filter { it.properties[DAV to "resourcetype"]?.childElements(CALDAV, "calendar")?.isNotEmpty() == true }
+            .map {
+                CalDavCollection(
+                    url = baseUrl.resolve(it.href),
+                    displayName = it.properties[DAV to "displayname"]?.textContent?.trim()?.ifBlank { null },
+                    ctag = it.properties[CALENDARSERVER to "getctag"]?.textContent?.trim()?.ifBlank { null },
+                    syncToken = it.properties[DAV to "sync-token"]?.textContent?.trim()?.ifBlank { null },
+                )
+            }
+
+    private class DavResponse(val href: String, val status: Int?, val properties: Map<Pair<String, String>, Element>) {
+        val etag: String? get() = properties[DAV to "getetag"]?.textContent?.trim()
+        fun href(namespace: String, property: String): String? =
+            properties[namespace to property]?.childElements(DAV, "href")?.firstOrNull()?.textContent?.trim()
+    }
+
+    companion object {
+        private val LOG = LoggerFactory.getLogger(CalDavClient::class.java)
+        private const val DAV = "DAV:"
+        private const val CALDAV = "urn:ietf:params:xml:ns:caldav"
+        private const val CALENDARSERVER = "http://calendarserver.org/ns/"
+        private const val MULTIGET_BATCH_SIZE = 100
+        private val COLLECTION_PROPERTIES = """
+            |<?xml version="1.0" encoding="utf-8"?>
+            |<d:propfind xmlns:d="DAV:" xmlns:c="urn:ietf:params:xml:ns:caldav" xmlns:cs="http://calendarserver.org/ns/">
+            |  <d:prop>
+            |    <d:resourcetype/><d:displayname/><cs:getctag/><d:sync-token/>
+            |    <d:current-user-principal/><c:calendar-home-set/>
+            |  </d:prop>
+            |</d:propfind>
+        """.trimMargin()
+    }
+}
+
+/**
+ * A calendar collection. [ctag] and [syncToken] change whenever an event of the collection changes.
+ */
+data class CalDavCollection(val url: URI, val displayName: String?, val ctag: String?, val syncToken: String?) {
+    /** Last path segment of the collection, as vdirsyncer uses it for the calendar's directory. */
+    val name: String get() = url.path.trimEnd('/').substringAfterLast('/')
+}
+
+/**
+ * @param changed hrefs of added or changed events with their etag
+ */
+data class CalDavChanges(val changed: Map<String, String>, val removed: Set<String>, val syncToken: String?)
+
+class CalDavEvent(val href: String, val etag: String, val calendarData: String)
+
+class CalDavException(message: String) : RuntimeException(message)
+
+private fun Element.childElements(): List<Element> =
+    (0 until childNodes.length).map { childNodes.item(it) }.filterIsInstance<Element>()
+
+private fun Element.childElements(namespace: String, localName: String): List<Element> =
+    childElements().filter { it.namespaceURI == namespace && it.localName == localName }
+
+private fun Element.statusCode(): Int? = textContent.trim().split(" ").getOrNull(1)?.toIntOrNull()
+
+private fun String.escapeXml(): String =
+    replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;")
@@ -6,46 +6,83 @@ import icu.neurospicy.fibi.domain.model.CalendarConfigurations
 import icu.neurospicy.fibi.domain.model.FriendshipId
 import icu.neurospicy.fibi.domain.repository.CalendarConfigurationRepository
 import org.springframework.beans.factory.annotation.Value
+import org.springframework.boot.context.event.ApplicationStartedEvent
+import org.springframework.context.event.EventListener
+import org.springframework.data.domain.Sort.Direction.ASC
 import org.springframework.data.mongodb.core.MongoTemplate
+import org.springframework.data.mongodb.core.index.Index
 import org.springframework.data.mongodb.core.mapping.Document
 import org.springframework.data.mongodb.core.query.Criteria.where
 import org.springframework.data.mongodb.core.query.Query.query
-import org.springframework.security.crypto.encrypt.Encryptors
+import org.springframework.data.mongodb.core.query.Update
 import org.springframework.security.crypto.keygen.KeyGenerators
 import org.springframework.stereotype.Repository
 import java.time.Instant
 
+/**
+ * Stores the calendar configurations of a friend encrypted with a per-friend salt.
+ *
+ * The time of the last sync is kept as plain field next to the encrypted blob, so recording a sync needs no crypto.
+ */
 @Repository
 class CalendarConfigurationRepositoryUsingMongodb(
     private val mongoTemplate: MongoTemplate,
     private val objectMapper: ObjectMapper,
-    @Value("\${app.calendar.key}") private val calendarEncryptionKey: String,
+    @Value("\${app.calendar.key}") calendarEncryptionKey: String,
+    @Value("\${app.calendar.encryptor-cache-size:1000}") encryptorCacheSize: Int,
 ) : CalendarConfigurationRepository {
+    private val encryptors = DerivedEncryptors(calendarEncryptionKey, encryptorCacheSize)
+
+    @EventListener(ApplicationStartedEvent::class)
+    fun ensureIndexes() {
+        mongoTemplate.indexOps(SavedData::class.java).apply {
+            ensureIndex(Index().on("friendshipId", ASC))
+            ensureIndex(Index().on("syncs.lastSyncAt", ASC))
+        }
+    }
+
     override fun save(friendshipId: FriendshipId, calendarConfigurations: CalendarConfigurations) {
-        val salt = KeyGenerators.string().generateKey()
-        mongoTemplate.save(
-            SavedData(
-                friendshipId,
-                salt,
-                Encryptors.delux(calendarEncryptionKey, salt)
-                    .encrypt(objectMapper.writeValueAsString(calendarConfigurations))
-            )
+        // keep the salt of the friend, so its derived key stays cached; every encryption uses a random IV anyway
+        val salt = findSavedData(friendshipId)?.salt ?: KeyGenerators.string().generateKey()
+        val blob = objectMapper.writeValueAsString(
+            CalendarConfigurations(calendarConfigurations.configurations.map { it.copy(lastSyncAt = null) }.toSet())
+        )
+        mongoTemplate.upsert(
+            query(where("friendshipId").`is`(friendshipId.toString())),
+            Update().set("salt", salt)
+                .set("blob", encryptors.forSalt(salt).encrypt(blob))
+                .set("syncs", calendarConfigurations.configurations.mapNotNull { config ->
+                    config.lastSyncAt?.let { CalendarSync(config.calendarConfigId.toString(), it) }
+                }),
+            SavedData::class.java
         )
     }
 
     override fun load(friendshipId: FriendshipId): CalendarConfigurations {
-        return mongoTemplate.findOne(
-            query(where("friendshipId").`is`(friendshipId.toString())), SavedData::class.java
-        )?.let { Encryptors.delux(calendarEncryptionKey, it.salt).decrypt(it.blob) }
-            ?.let { objectMapper.readValue(it, CalendarConfigurations::class.java) }
-            ?: CalendarConfigurations(emptySet())
+        val savedData = findSavedData(friendshipId) ?: return CalendarConfigurations(emptySet())
+        val lastSyncs = savedData.syncs.associate { it.calendarConfigId to it.lastSyncAt }
+        return objectMapper.readValue(
+            encryptors.forSalt(savedData.salt).decrypt(savedData.blob), CalendarConfigurations::class.java
+        ).let { configurations ->
+            CalendarConfigurations(configurations.configurations.map {
+                it.copy(lastSyncAt = lastSyncs[it.calendarConfigId.toString()] ?: it.lastSyncAt)
+            }.toSet())
+        }
     }
 
     override fun synchronized(friendshipId: FriendshipId, calendarConfigId: CalendarConfigId, syncedAt: Instant) {
-        save(
-            friendshipId, CalendarConfigurations(load(friendshipId).configurations.map {
-                if (it.calendarConfigId != calendarConfigId) it else it.copy(lastSyncAt = syncedAt)
-            }.toSet())
+        val updated = mongoTemplate.updateFirst(
+            query(
+                where("friendshipId").`is`(friendshipId.toString())
+                    .and("syncs.calendarConfigId").`is`(calendarConfigId.toString())
+            ),
+            Update().set("syncs.$.lastSyncAt", syncedAt),
+            SavedData::class.java
+        )
+        if (updated.matchedCount == 0L) mongoTemplate.updateFirst(
+            query(where("friendshipId").`is`(friendshipId.toString())),
+            Update().push("syncs", CalendarSync(calendarConfigId.toString(), syncedAt)),
+            SavedData::class.java
         )
     }
 
@@ -56,9 +93,15 @@ class CalendarConfigurationRepositoryUsingMongodb(
             query(where("friendshipId").`is`(friendshipId.toString())), SavedData::class.java
         )
     }
+
+    private fun findSavedData(friendshipId: FriendshipId): SavedData? = mongoTemplate.findOne(
+        query(where("friendshipId").`is`(friendshipId.toString())), SavedData::class.java
+    )
 }
 
 @Document(collection = "calendarconfiguration")
 data class SavedData(
-    val friendshipId: FriendshipId, val salt: String, val blob: String
-)
\ No newline at end of file
+    val friendshipId: FriendshipId, val salt: String, val blob: String, val syncs: List<CalendarSync> = emptyList()
+)
+
+data class CalendarSync(val calendarConfigId: String, val lastSyncAt: Instant)
@@ -0,0 +1,56 @@
+package icu.neurospicy.fibi.outgoing.mongodb
+
+import icu.neurospicy.fibi.domain.model.CalendarConfigId
+import icu.neurospicy.fibi.domain.model.CalendarId
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.repository.CalendarFileManifest
+import icu.neurospicy.fibi.domain.repository.CalendarFileManifestRepository
+import org.springframework.boot.context.event.ApplicationStartedEvent
+import org.springframework.context.event.EventListener
+import org.springframework.data.domain.Sort.Direction.ASC
+import org.springframework.data.mongodb.core.MongoTemplate
+import org.springframework.data.mongodb.core.index.Index
+import org.springframework.data.mongodb.core.query.Criteria.where
+import org.springframework.data.mongodb.core.query.Query
+import org.springframework.data.mongodb.core.query.Query.query
+import org.springframework.data.mongodb.core.query.Update
+import org.springframework.stereotype.Repository
+
+@Repository
+class CalendarFileManifestRepositoryUsingMongodb(
+    private val mongoTemplate: MongoTemplate,
+) : CalendarFileManifestRepository {
+
+    @EventListener(ApplicationStartedEvent::class)
+    fun ensureIndexes() {
+        mongoTemplate.indexOps(COLLECTION).ensureIndex(
+            Index().on("owner", ASC).on("calendarConfigId", ASC).on("calendarId", ASC).unique()
+        )
+    }
+
+    override fun load(
+        owner: FriendshipId, calendarConfigId: CalendarConfigId, calendarId: CalendarId
+    ): CalendarFileManifest? = mongoTemplate.findOne(
+        queryFor(owner, calendarConfigId, calendarId), CalendarFileManifest::class.java, COLLECTION
+    )
+
+    override fun save(manifest: CalendarFileManifest) {
+        mongoTemplate.upsert(
+            queryFor(manifest.owner, manifest.calendarConfigId, manifest.calendarId),
+            Update().set("calendarName", manifest.calendarName).set("files", manifest.files)
+                .set("collectionTag", manifest.collectionTag).set("syncToken", manifest.syncToken),
+            COLLECTION
+        )
+    }
+
+    private fun queryFor(owner: FriendshipId, calendarConfigId: CalendarConfigId, calendarId: CalendarId): Query =
+        query(
+            where("owner").`is`(owner.toString())
+                .and("calendarConfigId").`is`(calendarConfigId.toString())
+                .and("calendarId").`is`(calendarId.toString())
+        )
+
+    companion object {
+        private const val COLLECTION = "calendar-file-manifests"
+    }
+}
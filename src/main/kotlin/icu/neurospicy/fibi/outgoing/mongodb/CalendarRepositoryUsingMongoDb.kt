@@ -4,18 +4,52 @@ import icu.neurospicy.fibi.domain.model.*
 import icu.neurospicy.fibi.domain.model.events.AppointmentsUpdated
 import icu.neurospicy.fibi.domain.repository.CalendarRepository
 import icu.neurospicy.fibi.domain.repository.TimeRange
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.boot.context.event.ApplicationStartedEvent
 import org.springframework.context.ApplicationEventPublisher
+import org.springframework.context.event.EventListener
+import org.springframework.data.domain.Sort
+import org.springframework.data.domain.Sort.Direction.ASC
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode.ORDERED
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode.UNORDERED
 import org.springframework.data.mongodb.core.MongoTemplate
+import org.springframework.data.mongodb.core.index.Index
 import org.springframework.data.mongodb.core.query.Criteria.where
+import org.springframework.data.mongodb.core.query.Query
 import org.springframework.data.mongodb.core.query.Query.query
+import org.springframework.data.mongodb.core.query.Update
 import org.springframework.stereotype.Repository
+import java.io.StringReader
+import java.time.Instant
 import java.time.Instant.now
+import java.time.ZonedDateTime
+import java.time.format.DateTimeParseException
 
+/**
+ * Stores appointments and recurring events. The parsed ics content of recurring events is cached by its hash, so
+ * expanding their occurrences on demand does not parse it again.
+ */
 @Repository
 class CalendarRepositoryUsingMongoDb(
     val mongoTemplate: MongoTemplate,
-    val eventPublisher: ApplicationEventPublisher
+    val eventPublisher: ApplicationEventPublisher,
+    @Value("\${fibi.calendar.parsed-recurring-event-cache-size:1000}") parsedCacheSize: Int,
 ) : CalendarRepository {
+    private val parsedRecurringEvents = LruCache<String, ParsedIcs>(parsedCacheSize)
+
+    @EventListener(ApplicationStartedEvent::class)
+    fun ensureIndexes() {
+        mongoTemplate.indexOps(Appointment::class.java).apply {
+            ensureIndex(Index().on("owner", ASC).on("startAt.instant", ASC))
+            ensureIndex(Index().on("owner", ASC).on("calendarConfigId", ASC).on("calendarId", ASC))
+        }
+        mongoTemplate.indexOps(RecurringEvent::class.java).apply {
+            ensureIndex(Index().on("owner", ASC).on("calendarConfigId", ASC).on("calendarId", ASC))
+            ensureIndex(Index().on("owner", ASC).on("relatedVEvent", ASC))
+        }
+    }
+
     override fun save(privateCalendar: PrivateCalendar) {
         mongoTemplate.save(
             mongoTemplate.findOne(
@@ -29,72 +63,228 @@ class CalendarRepositoryUsingMongoDb(
         )
     }
 
+    /**
+     * Writes the difference to the stored appointments of the calendar in one bulk operation: new appointments are
+     * inserted, changed ones (by hash) replaced and removed ones deleted. Unchanged appointments are not touched.
+     * Appointments sharing an id, like the same event in two ics files, are all kept.
+     */
     override fun replaceCalendarAppointments(
         appointments: List<Appointment>,
         owner: FriendshipId,
         calendarConfigId: CalendarConfigId,
         calendarId: CalendarId
     ) {
-        val existingAppointments = loadAppointments(owner, calendarConfigId, calendarId)
-        val (deletedAppointmentIds, changedAppointmentIds, newAppointmentIds) = detectChangingAppointments(
-            existingAppointments,
-            appointments
-        )
-        mongoTemplate.remove(
+        replace(appointments, loadAppointments(owner, calendarConfigId, calendarId), owner, calendarConfigId, calendarId)
+    }
+
+    override fun replaceAppointmentsOfVEvents(
+        appointments: List<Appointment>,
+        owner: FriendshipId,
+        calendarConfigId: CalendarConfigId,
+        calendarId: CalendarId,
+        relatedVEvents: Set<String>
+    ) {
+        if (relatedVEvents.isEmpty()) return
+        val existingAppointments = mongoTemplate.find(
             query(
                 where("owner").`is`(owner.toString())
-                    .andOperator(
-                        where("calendarConfigId").`is`(calendarConfigId.toString())
-                            .andOperator(where("calendarId").`is`(calendarId.toString()))
-                    )
-
+                    .and("calendarConfigId").`is`(calendarConfigId.toString())
+                    .and("calendarId").`is`(calendarId.toString())
+                    .and("relatedVEvent").`in`(relatedVEvents)
             ), Appointment::class.java
         )
-        appointments.forEach { mongoTemplate.save(it) }
-        eventPublisher.publishEvent(
-            AppointmentsUpdated(
-                this.javaClass,
-                owner,
-                calendarConfigId,
-                calendarId,
-                newAppointmentIds,
-                changedAppointmentIds,
-                deletedAppointmentIds
+        val updated = replace(
+            appointments.filter { it.relatedVEvent in relatedVEvents },
+            existingAppointments,
+            owner,
+            calendarConfigId,
+            calendarId
+        )
+        val calendarQuery = query(
+            where("calendarConfigId").`is`(calendarConfigId.toString()).and("calendarId").`is`(calendarId.toString())
+        )
+        if (updated.deletedAppointmentIds.isNotEmpty()) mongoTemplate.updateFirst(
+            calendarQuery,
+            Update().pullAll("appointments", updated.deletedAppointmentIds.map { it.toString() }.toTypedArray()),
+            PrivateCalendar::class.java
+        )
+        if (updated.newAppointmentIds.isNotEmpty()) mongoTemplate.updateFirst(
+            calendarQuery,
+            Update().addToSet("appointments").each(*updated.newAppointmentIds.map { it.toString() }.toTypedArray())
+                .set("lastUpdatedAt", now()),
+            PrivateCalendar::class.java
+        )
+    }
+
+    private fun replace(
+        appointments: List<Appointment>,
+        existingAppointments: List<Appointment>,
+        owner: FriendshipId,
+        calendarConfigId: CalendarConfigId,
+        calendarId: CalendarId
+    ): AppointmentsUpdated {
+        val existingById = existingAppointments.groupBy { it.appointmentId }
+        val newById = appointments.groupBy { it.appointmentId }
+        newById.filterValues { it.size > 1 }.forEach { (appointmentId, duplicates) ->
+            LOG.warn(
+                "Keeping {} appointments sharing id {} of calendar {}, from {}",
+                duplicates.size, appointmentId, calendarId, duplicates.map { it.hash }
             )
+        }
+        val (deletedAppointmentIds, changedAppointmentIds, newAppointmentIds) = detectChangingAppointments(
+            existingById,
+            newById
         )
+
+        val bulk = mongoTemplate.bulkOps(UNORDERED, Appointment::class.java)
+        var operations = 0
+        val obsoleteIds = mutableListOf<String>()
+        (existingById.keys + newById.keys).forEach { appointmentId ->
+            // unchanged appointments are kept, changed ones replace the remaining stored ones
+            val new = newById[appointmentId].orEmpty()
+            val existing = existingById[appointmentId].orEmpty().toMutableList()
+            val unmatched = new.filter { appointment ->
+                val unchanged = existing.indexOfFirst { it.hash == appointment.hash }
+                if (unchanged >= 0) existing.removeAt(unchanged)
+                unchanged < 0
+            }
+            unmatched.forEach { appointment ->
+                val replaced = existing.removeFirstOrNull()
+                if (replaced == null) bulk.insert(appointment)
+                else bulk.replaceOne(query(where("_id").`is`(replaced._id)), appointment.copy(_id = replaced._id))
+                operations++
+            }
+            // removed appointments and duplicates left over from earlier syncs
+            obsoleteIds += existing.mapNotNull { it._id }
+        }
+        if (obsoleteIds.isNotEmpty()) {
+            bulk.remove(query(where("_id").`in`(obsoleteIds)))
+            operations++
+        }
+        if (operations > 0) bulk.execute()
+
+        return AppointmentsUpdated(
+            this.javaClass,
+            owner,
+            calendarConfigId,
+            calendarId,
+            newAppointmentIds,
+            changedAppointmentIds,
+            deletedAppointmentIds
+        ).also { eventPublisher.publishEvent(it) }
     }
 
+    /**
+     * Changed appointments are all existing ones whose hashes differ from the new ones with their id, so deleted
+     * appointments are reported as changed, too.
+     */
     private fun detectChangingAppointments(
-        existingAppointments: List<Appointment>,
-        newAppointments: List<Appointment>
+        existingById: Map<AppointmentId, List<Appointment>>,
+        newById: Map<AppointmentId, List<Appointment>>
     ): Triple<Set<AppointmentId>, Set<AppointmentId>, Set<AppointmentId>> {
-        val deletedAppointmentIds =
-            existingAppointments.map { it.appointmentId }.subtract(newAppointments.map { it.appointmentId }.toSet())
-        val newAppointmentIds =
-            newAppointments.map { it.appointmentId }.subtract(existingAppointments.map { it.appointmentId }.toSet())
-        val changedAppointmentIds =
-            existingAppointments.filter { newAppointments.firstOrNull { appointment: Appointment -> it.appointmentId == appointment.appointmentId }?.hash != it.hash }
-                .map { it.appointmentId }.toSet()
+        val deletedAppointmentIds = existingById.keys.filterNot { it in newById }.toSet()
+        val newAppointmentIds = newById.keys.filterNot { it in existingById }.toSet()
+        val changedAppointmentIds = existingById.filter { (appointmentId, existing) ->
+            newById[appointmentId]?.map { it.hash }?.toSet() != existing.map { it.hash }.toSet()
+        }.keys
         return Triple(deletedAppointmentIds, changedAppointmentIds, newAppointmentIds)
     }
 
+    override fun replaceRecurringEvents(
+        recurringEvents: List<RecurringEvent>,
+        owner: FriendshipId,
+        calendarConfigId: CalendarConfigId,
+        calendarId: CalendarId,
+        relatedVEvents: Set<String>?
+    ) {
+        val criteria = where("owner").`is`(owner.toString())
+            .and("calendarConfigId").`is`(calendarConfigId.toString())
+            .and("calendarId").`is`(calendarId.toString())
+        if (relatedVEvents != null) criteria.and("relatedVEvent").`in`(relatedVEvents)
+        val bulk = mongoTemplate.bulkOps(ORDERED, RecurringEvent::class.java).remove(query(criteria))
+        if (recurringEvents.isNotEmpty()) bulk.insert(recurringEvents)
+        bulk.execute()
+    }
+
+    override fun saveRecurringEvent(recurringEvent: RecurringEvent) {
+        mongoTemplate.save(recurringEvent)
+    }
+
+    override fun loadRecurringEvents(
+        owner: FriendshipId,
+        calendarConfigId: CalendarConfigId,
+        calendarId: CalendarId
+    ): List<RecurringEvent> = mongoTemplate.find(
+        query(
+            where("owner").`is`(owner.toString())
+                .and("calendarConfigId").`is`(calendarConfigId.toString())
+                .and("calendarId").`is`(calendarId.toString())
+        ), RecurringEvent::class.java
+    )
+
     override fun loadAppointmentsForTimeRange(
         timeRange: TimeRange,
         friendshipId: FriendshipId
     ): List<Appointment> {
-        val criteria = where("owner").`is`(friendshipId.toString())
-        return mongoTemplate.find(
-            query(criteria), Appointment::class.java
-        ).filter {
-            (it.startAt.instant.isBefore(timeRange.startAt) && it.endAt.instant.isAfter(timeRange.startAt)) ||
-                    it.startAt.instant.isAfter(timeRange.startAt) && it.startAt.instant.isBefore(
-                timeRange.startAt.plus(
-                    timeRange.duration
+        val stored = mongoTemplate.find(overlapping(timeRange, friendshipId), Appointment::class.java)
+        val expanded = expandedOutsideOfMaterialization(timeRange, friendshipId)
+        return if (expanded.isEmpty()) stored else (stored + expanded).sortedBy { it.startAt.instant }
+    }
+
+    override fun loadAppointmentOverviewsForTimeRange(
+        timeRange: TimeRange,
+        friendshipId: FriendshipId
+    ): List<AppointmentOverview> {
+        val stored = mongoTemplate.query(Appointment::class.java)
+            .`as`(AppointmentOverview::class.java)
+            .matching(overlapping(timeRange, friendshipId))
+            .all()
+        val expanded = expandedOutsideOfMaterialization(timeRange, friendshipId)
+            .map { AppointmentOverview(it._id, it.calendarId, it.summary, it.startAt, it.endAt) }
+        return if (expanded.isEmpty()) stored else (stored + expanded).sortedBy { it.startAt.instant }
+    }
+
+    /**
+     * Expands the occurrences of recurring events whose materialized window does not cover the time range.
+     */
+    private fun expandedOutsideOfMaterialization(
+        timeRange: TimeRange,
+        friendshipId: FriendshipId
+    ): List<Appointment> {
+        val window = timeRange.startAt..timeRange.startAt.plus(timeRange.duration)
+        val recurringEvents = mongoTemplate.find(
+            query(
+                where("owner").`is`(friendshipId.toString()).orOperator(
+                    where("materializedFrom").gt(window.start),
+                    where("materializedUntil").lt(window.endInclusive)
                 )
-            )
+            ), RecurringEvent::class.java
+        )
+        return recurringEvents.flatMap { recurringEvent ->
+            val materialized = recurringEvent.materializedFrom..recurringEvent.materializedUntil
+            expand(recurringEvent, window).filterNot { it.overlaps(materialized) }
         }
     }
 
+    private fun expand(recurringEvent: RecurringEvent, window: ClosedRange<Instant>): List<Appointment> = try {
+        recurringEvent.expand(window, parsed(recurringEvent)).map { it.copy(_id = it.appointmentId.toString()) }
+    } catch (e: Exception) {
+        LOG.warn("Failed to expand recurring event {}", recurringEvent.relatedVEvent, e)
+        emptyList()
+    }
+
+    private fun parsed(recurringEvent: RecurringEvent): ParsedIcs =
+        parsedRecurringEvents.getOrPut(recurringEvent.hash) { parseIcs(StringReader(recurringEvent.ics)) }!!
+
+    /**
+     * Appointments of the friend starting before the end of the time range and ending after its start.
+     */
+    private fun overlapping(timeRange: TimeRange, friendshipId: FriendshipId): Query = query(
+        where("owner").`is`(friendshipId.toString())
+            .and("startAt.instant").lt(timeRange.startAt.plus(timeRange.duration))
+            .and("endAt.instant").gt(timeRange.startAt)
+    ).with(Sort.by(ASC, "startAt.instant"))
+
     override fun loadAppointments(
         owner: FriendshipId,
         calendarConfigId: CalendarConfigId,
@@ -125,12 +315,52 @@ class CalendarRepositoryUsingMongoDb(
     }
 
     override fun loadAppointmentsById(owner: FriendshipId, ids: Set<String>): List<Appointment> {
-        return mongoTemplate.find(
+        val stored = mongoTemplate.find(
             query(
                 where("owner").`is`(owner.toString())
                     .andOperator(where("_id").`in`(ids))
             ), Appointment::class.java
         )
+        val missingIds = ids - stored.mapNotNull { it._id }.toSet()
+        if (missingIds.isEmpty()) return stored
+        val missingOccurrences = missingIds.mapNotNull { occurrenceIdOrNull(it) }
+        if (missingOccurrences.isEmpty()) return stored
+        val recurringEvents = mongoTemplate.find(
+            query(
+                where("owner").`is`(owner.toString())
+                    .and("relatedVEvent").`in`(missingOccurrences.map { it.relatedVEvent }.toSet())
+            ), RecurringEvent::class.java
+        ).groupBy { it.relatedVEvent }
+        return stored + missingOccurrences.mapNotNull { id ->
+            recurringEvents[id.relatedVEvent].orEmpty().firstNotNullOfOrNull { expandOccurrence(it, id) }
+        }
+    }
+
+    private fun expandOccurrence(recurringEvent: RecurringEvent, id: OccurrenceId): Appointment? = try {
+        recurringEvent.occurrence(AppointmentId(id.value), id.startAt, parsed(recurringEvent))
+            ?.copy(_id = id.value)
+    } catch (e: Exception) {
+        LOG.warn("Failed to expand recurring event {}", recurringEvent.relatedVEvent, e)
+        null
+    }
+
+    /**
+     * Splits an id of an occurrence, see [AppointmentId.from], into the related VEVENT and the start.
+     */
+    private fun occurrenceIdOrNull(id: String): OccurrenceId? {
+        val match = OCCURRENCE_ID.matchEntire(id) ?: return null
+        val startAt = try {
+            ZonedDateTime.parse(match.groupValues[2]).toInstant()
+        } catch (e: DateTimeParseException) {
+            return null
+        }
+        return OccurrenceId(id, match.groupValues[1], startAt)
+    }
+
+    private class OccurrenceId(val value: String, val relatedVEvent: String, val startAt: Instant)
 
+    companion object {
+        private val LOG = LoggerFactory.getLogger(CalendarRepositoryUsingMongoDb::class.java)
+        private val OCCURRENCE_ID = Regex("""(.+)-(\d{4}-\d{2}-\d{2}T.+)""")
     }
 }
\ No newline at end of file
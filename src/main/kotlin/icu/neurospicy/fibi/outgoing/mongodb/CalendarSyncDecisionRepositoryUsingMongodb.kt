@@ -0,0 +1,54 @@
+package icu.neurospicy.fibi.outgoing.mongodb
+
+import icu.neurospicy.fibi.domain.model.CalendarConfigId
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.repository.CalendarSyncDecision
+import icu.neurospicy.fibi.domain.repository.CalendarSyncDecisionRepository
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.boot.context.event.ApplicationStartedEvent
+import org.springframework.context.event.EventListener
+import org.springframework.data.domain.Sort
+import org.springframework.data.domain.Sort.Direction.ASC
+import org.springframework.data.domain.Sort.Direction.DESC
+import org.springframework.data.mongodb.core.MongoTemplate
+import org.springframework.data.mongodb.core.index.Index
+import org.springframework.data.mongodb.core.query.Criteria.where
+import org.springframework.data.mongodb.core.query.Query.query
+import org.springframework.stereotype.Repository
+import java.time.Duration
+
+/**
+ * Decisions expire after [retention], they are only kept for inspection and as recent change history.
+ */
+@Repository
+class CalendarSyncDecisionRepositoryUsingMongodb(
+    private val mongoTemplate: MongoTemplate,
+    @Value("\${fibi.calendar.sync.decision-retention:P14D}") private val retention: Duration,
+) : CalendarSyncDecisionRepository {
+
+    @EventListener(ApplicationStartedEvent::class)
+    fun ensureIndexes() {
+        mongoTemplate.indexOps(COLLECTION).apply {
+            ensureIndex(Index().on("owner", ASC).on("calendarConfigId", ASC).on("decidedAt", DESC))
+            ensureIndex(Index().on("decidedAt", ASC).expire(retention))
+        }
+    }
+
+    override fun save(decision: CalendarSyncDecision) {
+        mongoTemplate.insert(decision, COLLECTION)
+    }
+
+    override fun findLatest(
+        owner: FriendshipId, calendarConfigId: CalendarConfigId, limit: Int
+    ): List<CalendarSyncDecision> = mongoTemplate.find(
+        query(
+            where("owner").`is`(owner.toString()).and("calendarConfigId").`is`(calendarConfigId.toString())
+        ).with(Sort.by(DESC, "decidedAt")).limit(limit),
+        CalendarSyncDecision::class.java,
+        COLLECTION
+    )
+
+    companion object {
+        private const val COLLECTION = "calendar-sync-decisions"
+    }
+}
@@ -0,0 +1,60 @@
+package icu.neurospicy.fibi.outgoing.mongodb
+
+import icu.neurospicy.fibi.domain.model.ChatHistory
+import org.slf4j.LoggerFactory
+import org.springframework.boot.context.event.ApplicationStartedEvent
+import org.springframework.context.event.EventListener
+import org.springframework.data.mongodb.core.MongoTemplate
+import org.springframework.data.mongodb.core.query.Criteria.where
+import org.springframework.data.mongodb.core.query.Query
+import org.springframework.data.mongodb.core.query.Query.query
+import org.springframework.scheduling.annotation.Async
+import org.springframework.stereotype.Component
+
+/**
+ * Moves chat histories stored as one document per friend (collection "chat") into day buckets.
+ *
+ * Messages already present in a bucket are skipped, so an interrupted migration can safely run again on next start.
+ * Buckets that already held newer messages are sorted afterwards.
+ */
+@Component
+class ChatHistoryMigration(
+    private val mongoTemplate: MongoTemplate,
+    private val chatRepository: ChatRepositoryUsingMongodb,
+) {
+    @Async
+    @EventListener(ApplicationStartedEvent::class)
+    fun onApplicationStarted() {
+        if (!mongoTemplate.collectionExists(LEGACY_COLLECTION)) return
+        var migrated = 0
+        mongoTemplate.stream(Query(), ChatHistory::class.java, LEGACY_COLLECTION).use { histories ->
+            histories.forEach { history ->
+                try {
+                    migrate(history)
+                    migrated++
+                } catch (e: Exception) {
+                    LOG.error("Failed to migrate chat history of {}", history.friendshipId, e)
+                }
+            }
+        }
+        if (migrated > 0) LOG.info("Migrated {} chat histories into buckets", migrated)
+    }
+
+    private fun migrate(history: ChatHistory) {
+        val friendshipId = history.friendshipId.toString()
+        val alreadyMigrated = mongoTemplate.findDistinct(
+            query(where("friendshipId").`is`(friendshipId)), "messageKeys", ChatBucket::class.java, String::class.java
+        ).toSet()
+        val pending = history.timeline.filterNot { it.messageId.toString() in alreadyMigrated }
+        pending.forEach { chatRepository.append(history.friendshipId, it) }
+        pending.map { it.timestamp().dayKey() }.distinct()
+            .forEach { chatRepository.sortBuckets(history.friendshipId, it) }
+        mongoTemplate.remove(query(where("_id").`is`(history._id)), ChatHistory::class.java, LEGACY_COLLECTION)
+        LOG.debug("Migrated {} messages of {}", history.timeline.size, friendshipId)
+    }
+
+    companion object {
+        private const val LEGACY_COLLECTION = "chat"
+        private val LOG = LoggerFactory.getLogger(ChatHistoryMigration::class.java)
+    }
+}
@@ -2,31 +2,81 @@ package icu.neurospicy.fibi.outgoing.mongodb
 
 import icu.neurospicy.fibi.domain.model.*
 import icu.neurospicy.fibi.domain.repository.ChatRepository
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.boot.context.event.ApplicationStartedEvent
+import org.springframework.context.event.EventListener
+import org.springframework.data.annotation.Id
+import org.springframework.data.domain.Sort
+import org.springframework.data.domain.Sort.Direction.ASC
+import org.springframework.data.domain.Sort.Direction.DESC
 import org.springframework.data.mongodb.core.MongoTemplate
+import org.springframework.data.mongodb.core.index.Index
+import org.springframework.data.mongodb.core.mapping.Document
 import org.springframework.data.mongodb.core.query.Criteria.where
 import org.springframework.data.mongodb.core.query.Query.query
+import org.springframework.data.mongodb.core.query.Update
 import org.springframework.stereotype.Repository
 import java.time.Instant
+import java.time.ZoneOffset.UTC
 import java.util.*
 
+/**
+ * Stores the chat of a friend in buckets of one UTC day, holding at most [bucketSize] messages each.
+ *
+ * Messages are appended with `$push`, so adding a message never reads or rewrites the history. Messages are read in
+ * chronological order even if they were appended out of order.
+ */
 @Repository
 class ChatRepositoryUsingMongodb(
-    private val mongoTemplate: MongoTemplate
+    private val mongoTemplate: MongoTemplate,
+    @Value("\${fibi.chat.bucket-size:200}") private val bucketSize: Int,
 ) : ChatRepository {
+
+    @EventListener(ApplicationStartedEvent::class)
+    fun ensureIndexes() {
+        mongoTemplate.indexOps(ChatBucket::class.java).apply {
+            ensureIndex(Index().on("friendshipId", ASC).on("day", ASC))
+            ensureIndex(Index().on("friendshipId", ASC).on("lastAt", DESC))
+            ensureIndex(Index().on("friendshipId", ASC).on("messageKeys", ASC))
+        }
+    }
+
     override fun findHistory(friendshipId: FriendshipId): ChatHistory {
-        return mongoTemplate.findOne(
-            query(where("friendshipId").`is`(friendshipId.toString())), ChatHistory::class.java, "chat"
-        ) ?: ChatHistory(null, friendshipId, Stack())
+        val timeline = Stack<Message>()
+        mongoTemplate.find(
+            query(where("friendshipId").`is`(friendshipId.toString())).with(Sort.by(ASC, "firstAt", "lastAt")),
+            ChatBucket::class.java
+        ).flatMap { it.messages }.sortedBy { it.timestamp() }.forEach { timeline.push(it) }
+        return ChatHistory(null, friendshipId, timeline)
+    }
+
+    override fun findLatest(friendshipId: FriendshipId, limit: Int, since: Instant?): List<Message> {
+        val criteria = where("friendshipId").`is`(friendshipId.toString())
+        if (since != null) criteria.and("lastAt").gt(since)
+        val bucketQuery = query(criteria).with(Sort.by(DESC, "lastAt"))
+        val latestFirst = mutableListOf<Message>()
+        mongoTemplate.stream(bucketQuery, ChatBucket::class.java).use { buckets ->
+            for (bucket in buckets.iterator()) {
+                // buckets of a day may overlap once migrated messages were added, so read on until none can be newer
+                if (latestFirst.size >= limit && bucket.lastAt < latestFirst[limit - 1].timestamp()) break
+                latestFirst += bucket.messages.filter { since == null || it.timestamp().isAfter(since) }
+                latestFirst.sortByDescending { it.timestamp() }
+            }
+        }
+        return latestFirst.take(limit).asReversed()
     }
 
     override fun find(friendshipId: FriendshipId, messageId: MessageId?): Message? {
-        return findHistory(friendshipId).timeline.find { it.messageId == messageId }
+        if (messageId == null) return null
+        return mongoTemplate.findOne(
+            query(where("friendshipId").`is`(friendshipId.toString()).and("messageKeys").`is`(messageId.toString())),
+            ChatBucket::class.java
+        )?.messages?.find { it.messageId == messageId }
     }
 
     override fun add(friendshipId: FriendshipId, incomingMessage: UserMessage, rawMessage: String?) {
-        val history = findHistory(friendshipId)
-        history.timeline.add(
-            UserMessage(
+        append(
+            friendshipId, UserMessage(
                 incomingMessage.messageId,
                 incomingMessage.receivedAt,
                 incomingMessage.text,
@@ -34,13 +84,11 @@ class ChatRepositoryUsingMongodb(
                 rawMessage
             )
         )
-        mongoTemplate.save(history, "chat")
     }
 
     override fun add(friendshipId: FriendshipId, outgoingMessage: OutgoingMessage, text: String, sentAt: Instant) {
-        val history = findHistory(friendshipId)
-        history.timeline.add(
-            FibiMessage(
+        append(
+            friendshipId, FibiMessage(
                 outgoingMessage.messageId,
                 sentAt,
                 text,
@@ -48,12 +96,72 @@ class ChatRepositoryUsingMongodb(
                 outgoingMessage.toolCalls
             )
         )
-        mongoTemplate.save(history, "chat")
+    }
+
+    /**
+     * Pushes the message into the friend's bucket of the message's day that still has room, creating it if needed.
+     */
+    internal fun append(friendshipId: FriendshipId, message: Message) {
+        val at = message.timestamp()
+        mongoTemplate.upsert(
+            query(
+                where("friendshipId").`is`(friendshipId.toString())
+                    .and("day").`is`(at.dayKey())
+                    .and("count").lt(bucketSize)
+            ),
+            Update().push("messages", message)
+                .push("messageKeys", message.messageId.toString())
+                .inc("count", 1)
+                .min("firstAt", at)
+                .max("lastAt", at),
+            ChatBucket::class.java
+        )
+    }
+
+    /**
+     * Sorts the messages of the friend's buckets of [day] that were appended out of order, unless a message was
+     * appended to them meanwhile.
+     */
+    internal fun sortBuckets(friendshipId: FriendshipId, day: String) {
+        mongoTemplate.find(
+            query(where("friendshipId").`is`(friendshipId.toString()).and("day").`is`(day)), ChatBucket::class.java
+        ).forEach { bucket ->
+            val sorted = bucket.messages.sortedBy { it.timestamp() }
+            if (sorted == bucket.messages) return@forEach
+            mongoTemplate.updateFirst(
+                query(where("_id").`is`(bucket._id).and("count").`is`(bucket.count)),
+                Update().set("messages", sorted).set("messageKeys", sorted.map { it.messageId.toString() }),
+                ChatBucket::class.java
+            )
+        }
     }
 
     override fun applyDeletionRequest(friendshipId: FriendshipId) {
+        mongoTemplate.remove(query(where("friendshipId").`is`(friendshipId.toString())), ChatBucket::class.java)
         mongoTemplate.findAllAndRemove(
             query(where("friendshipId").`is`(friendshipId.toString())), ChatHistory::class.java, "chat"
         )
     }
 }
+
+/**
+ * Messages of one friend on one UTC day. A busy day is split into several buckets.
+ */
+@Document(collection = "chat-buckets")
+data class ChatBucket(
+    @Id val _id: String? = null,
+    val friendshipId: FriendshipId,
+    val day: String,
+    val count: Int,
+    val firstAt: Instant,
+    val lastAt: Instant,
+    val messages: List<Message>,
+    val messageKeys: List<String>,
+)
+
+internal fun Message.timestamp(): Instant = when (this) {
+    is UserMessage -> receivedAt
+    is FibiMessage -> sentAt
+}
+
+internal fun Instant.dayKey(): String = atZone(UTC).toLocalDate().toString()
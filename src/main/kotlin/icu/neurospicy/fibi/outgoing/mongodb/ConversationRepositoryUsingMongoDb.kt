@@ -3,17 +3,25 @@ package icu.neurospicy.fibi.outgoing.mongodb
 import icu.neurospicy.fibi.domain.model.*
 import icu.neurospicy.fibi.domain.repository.ConversationRepository
 import icu.neurospicy.fibi.domain.service.friends.interaction.Intent
+import org.springframework.beans.factory.annotation.Value
 import org.springframework.data.annotation.Id
 import org.springframework.data.mongodb.core.MongoTemplate
 import org.springframework.data.mongodb.core.mapping.Document
 import org.springframework.data.mongodb.core.query.Criteria.where
 import org.springframework.data.mongodb.core.query.Query.query
+import org.springframework.data.mongodb.core.query.Update
 import org.springframework.stereotype.Repository
 import java.time.Instant
 
+/**
+ * Stores the ongoing conversation of each friend, keeping only the last [maxMessages] messages.
+ *
+ * Messages are appended atomically with `$push`, so concurrent events cannot overwrite each other's messages.
+ */
 @Repository
 class ConversationRepositoryUsingMongoDb(
     private val mongoTemplate: MongoTemplate,
+    @Value("\${fibi.conversation.max-messages:50}") private val maxMessages: Int,
 ) : ConversationRepository {
     override fun findByFriendshipId(friendshipId: FriendshipId): Conversation? {
         return mongoTemplate.findOne(
@@ -24,35 +32,33 @@ class ConversationRepositoryUsingMongoDb(
     }
 
     override fun save(friendshipId: FriendshipId, conversation: Conversation) {
-        mongoTemplate.remove(
-            query(where("friendshipId").`is`(friendshipId.toString())),
-            ConversationOfFriend::class.java
+        // the friendship id is the document id, thus save replaces an existing conversation or inserts a new one
+        mongoTemplate.save(
+            ConversationOfFriend.fromConversation(
+                friendshipId, conversation.copy(messages = conversation.messages.takeLast(maxMessages))
+            )
         )
-        mongoTemplate.save(ConversationOfFriend.fromConversation(friendshipId, conversation))
     }
 
     override fun addFibisResponse(friendshipId: FriendshipId, message: FibiMessage) {
-        mongoTemplate.save(
-            mongoTemplate.findOne(
-                query(where("friendshipId").`is`(friendshipId.toString())),
-                ConversationOfFriend::class.java
-            )?.let {
-                it.copy(messages = it.messages + message)
-            } ?: return
-        )
+        push(friendshipId, message)
     }
 
     override fun addUserResponse(
         friendshipId: FriendshipId,
         message: UserMessage
     ) {
-        mongoTemplate.save(
-            mongoTemplate.findOne(
-                query(where("friendshipId").`is`(friendshipId.toString())),
-                ConversationOfFriend::class.java
-            )?.let {
-                it.copy(messages = it.messages + message)
-            } ?: return
+        push(friendshipId, message)
+    }
+
+    /**
+     * Appends the message to an existing conversation only; without conversation there is nothing to add to.
+     */
+    private fun push(friendshipId: FriendshipId, message: Message) {
+        mongoTemplate.updateFirst(
+            query(where("friendshipId").`is`(friendshipId.toString())),
+            Update().push("messages").slice(-maxMessages).each(message),
+            ConversationOfFriend::class.java
         )
     }
 
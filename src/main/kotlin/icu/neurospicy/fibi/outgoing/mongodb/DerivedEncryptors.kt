@@ -0,0 +1,14 @@
+package icu.neurospicy.fibi.outgoing.mongodb
+
+import org.springframework.security.crypto.encrypt.Encryptors
+import org.springframework.security.crypto.encrypt.TextEncryptor
+
+/**
+ * Encryptors for a secret key, cached per salt. Deriving the AES key from the secret (PBKDF2) is the expensive part of
+ * [Encryptors.delux]; the derived encryptors are thread-safe and generate a random IV for each encryption.
+ */
+internal class DerivedEncryptors(private val key: String, maxSize: Int) {
+    private val encryptors = LruCache<String, TextEncryptor>(maxSize)
+
+    fun forSalt(salt: String): TextEncryptor = encryptors.getOrPut(salt) { Encryptors.delux(key, salt) }!!
+}
@@ -6,27 +6,56 @@ import icu.neurospicy.fibi.domain.model.LedgerEntry
 import icu.neurospicy.fibi.domain.model.RelationStatus.*
 import icu.neurospicy.fibi.domain.model.SignalId
 import icu.neurospicy.fibi.domain.repository.FriendshipLedger
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.boot.context.event.ApplicationStartedEvent
+import org.springframework.context.event.EventListener
+import org.springframework.data.domain.Sort.Direction.ASC
+import org.springframework.data.mongodb.core.FindAndModifyOptions
 import org.springframework.data.mongodb.core.MongoTemplate
+import org.springframework.data.mongodb.core.index.Index
 import org.springframework.data.mongodb.core.query.Criteria.where
+import org.springframework.data.mongodb.core.query.Query
 import org.springframework.data.mongodb.core.query.Query.query
+import org.springframework.data.mongodb.core.query.Update
 import org.springframework.stereotype.Repository
 import java.time.Instant.now
 import java.time.ZoneId
+import java.util.*
 
+/**
+ * Ledger of all friendships. Lookups by signal id and friendship id are served by a bounded write-through cache.
+ * Each mutator sets only its own fields in a single findAndModify and caches the returned entry.
+ */
 @Repository
 class FriendshipLedgerUsingMongodb(
     private val mongoTemplate: MongoTemplate,
+    @Value("\${fibi.friendship-ledger.cache-size:1000}") cacheSize: Int,
 ) : FriendshipLedger {
-    override fun findBy(signalId: SignalId): LedgerEntry? {
-        return mongoTemplate.findAll(
-            LedgerEntry::class.java, "friendshipledger"
-        ).find { entry -> entry.signalId == signalId }
+    private val entriesByFriendshipId = LruCache<FriendshipId, LedgerEntry>(cacheSize)
+    private val friendshipIdsBySignalId = LruCache<SignalId, FriendshipId>(cacheSize)
+    private val modificationLocks = Array(MODIFICATION_LOCK_STRIPES) { Any() }
+
+    @EventListener(ApplicationStartedEvent::class)
+    fun ensureIndexes() {
+        mongoTemplate.indexOps("friendshipledger").ensureIndex(Index().on("signalId", ASC).unique().sparse())
     }
 
-    override fun findBy(friendshipId: FriendshipId): LedgerEntry? {
+    override fun findBy(signalId: SignalId): LedgerEntry? {
+        friendshipIdsBySignalId[signalId]?.let { friendshipId -> return findBy(friendshipId) }
         return mongoTemplate.findOne(
+            query(where("signalId").`is`(UUID.fromString(signalId.toString()))),
+            LedgerEntry::class.java,
+            "friendshipledger"
+        )?.let { entry ->
+            friendshipIdsBySignalId[signalId] = entry.friendshipId
+            entriesByFriendshipId.putIfAbsent(entry.friendshipId, entry)
+        }
+    }
+
+    override fun findBy(friendshipId: FriendshipId): LedgerEntry? = entriesByFriendshipId.getOrPut(friendshipId) {
+        mongoTemplate.findOne(
             query(where("friendshipId").`is`(friendshipId.toString())), LedgerEntry::class.java, "friendshipledger"
-        )
+        )?.also { entry -> entry.signalId?.let { friendshipIdsBySignalId[it] = entry.friendshipId } }
     }
 
     override fun findTimezoneBy(friendshipId: FriendshipId): ZoneId? {
@@ -37,77 +66,74 @@ class FriendshipLedgerUsingMongodb(
         mongoTemplate.findAll(LedgerEntry::class.java, "friendshipledger").map { it.friendshipId }.toSet()
 
     override fun addEntry(signalId: SignalId, sourceName: String?, sourceNumber: String?): LedgerEntry {
-        return mongoTemplate.save(
+        return save(
             LedgerEntry(
                 friendshipId = FriendshipId(),
                 signalId = signalId,
                 signalName = sourceName,
                 signalNumber = sourceNumber,
                 relationStatus = Curious
-            ), "friendshipledger"
+            )
         )
     }
 
     override fun sentTermsOfUseRequest(friendshipId: FriendshipId) {
-        findBy(friendshipId)?.let { u -> mongoTemplate.save(u.copy(relationStatus = Acquaintance)) }
+        modify(friendshipId, Update().set("relationStatus", Acquaintance))
     }
 
     override fun acceptTermsOfUse(friendshipId: FriendshipId, acceptedAgreement: AcceptedAgreement) {
-        findBy(friendshipId)?.let { u ->
-            mongoTemplate.save(
-                u.copy(
-                    relationStatus = Friend,
-                    acceptedAgreements = u.acceptedAgreements.toMutableList().plus(acceptedAgreement)
-                )
-            )
-        }
+        modify(friendshipId, Update().set("relationStatus", Friend).push("acceptedAgreements", acceptedAgreement))
     }
 
     override fun startActivity(friendshipId: FriendshipId, activityName: String) {
-        findBy(friendshipId)?.let { u ->
-            mongoTemplate.save(
-                u.copy(
-                    activeActivity = activityName
-                )
-            )
-        }
+        modify(friendshipId, Update().set("activeActivity", activityName))
     }
 
     override fun finishActivity(friendshipId: FriendshipId, activityName: String) {
-        findBy(friendshipId)?.takeIf { it.activeActivity == activityName }?.let { u ->
-            mongoTemplate.save(
-                u.copy(
-                    activeActivity = null
-                )
-            )
-        }
-
+        modify(
+            friendshipId,
+            query(where("friendshipId").`is`(friendshipId.toString()).and("activeActivity").`is`(activityName)),
+            Update().unset("activeActivity")
+        )
     }
 
     override fun updateSignalInfo(friendshipId: FriendshipId, number: String?, name: String?) {
-        findBy(friendshipId)?.let {
-            mongoTemplate.save(it.copy(signalNumber = number, signalName = name))
-        }
+        modify(friendshipId, Update().set("signalNumber", number).set("signalName", name))
     }
 
     override fun deniedTermsOfUse(friendshipId: FriendshipId) {
-        findBy(friendshipId)?.let {
-            mongoTemplate.save(
-                it.copy(
-                    deniedTermsOfServiceAt = now(),
-                    relationStatus = Curious
-                )
-            )
-        }
+        modify(friendshipId, Update().set("deniedTermsOfServiceAt", now()).set("relationStatus", Curious))
     }
 
     override fun updateZoneId(friendshipId: FriendshipId, mostFrequentZoneId: ZoneId) {
-        findBy(friendshipId)?.let {
-            mongoTemplate.save(
-                it.copy(
-                    timeZone = mostFrequentZoneId
-                )
-            )
-        }
+        modify(friendshipId, Update().set("timeZone", mostFrequentZoneId))
+    }
+
+    private fun modify(friendshipId: FriendshipId, update: Update) =
+        modify(friendshipId, query(where("friendshipId").`is`(friendshipId.toString())), update)
+
+    /**
+     * Updates only the fields of [update], so concurrent mutators of other fields are kept, and caches the result.
+     * Modifications of one friend are serialized, so an older result never replaces a newer one in the cache, while
+     * other friends are modified in parallel.
+     */
+    private fun modify(friendshipId: FriendshipId, query: Query, update: Update) = synchronized(
+        modificationLocks[Math.floorMod(friendshipId.hashCode(), MODIFICATION_LOCK_STRIPES)]
+    ) {
+        mongoTemplate.findAndModify(
+            query, update, FindAndModifyOptions.options().returnNew(true), LedgerEntry::class.java, "friendshipledger"
+        )?.let { cache(it) }
+    }
+
+    private fun save(entry: LedgerEntry): LedgerEntry =
+        mongoTemplate.save(entry, "friendshipledger").also { cache(it) }
+
+    private fun cache(entry: LedgerEntry) {
+        entriesByFriendshipId[entry.friendshipId] = entry
+        entry.signalId?.let { friendshipIdsBySignalId[it] = entry.friendshipId }
+    }
+
+    companion object {
+        private const val MODIFICATION_LOCK_STRIPES = 64
     }
 }
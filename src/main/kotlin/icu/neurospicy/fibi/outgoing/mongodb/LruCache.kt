@@ -0,0 +1,33 @@
+package icu.neurospicy.fibi.outgoing.mongodb
+
+/**
+ * Small thread-safe cache evicting the least recently used entry once [maxSize] is exceeded.
+ */
+internal class LruCache<K : Any, V : Any>(private val maxSize: Int) {
+    private val entries = object : LinkedHashMap<K, V>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<K, V>?): Boolean = size > maxSize
+    }
+
+    @Synchronized
+    operator fun get(key: K): V? = entries[key]
+
+    @Synchronized
+    operator fun set(key: K, value: V) {
+        entries[key] = value
+    }
+
+    /**
+     * Returns the cached value or caches the loaded one. Loading happens outside the lock, so a value cached
+     * meanwhile wins over the loaded one.
+     */
+    fun getOrPut(key: K, load: () -> V?): V? = get(key) ?: load()?.let { putIfAbsent(key, it) }
+
+    @Synchronized
+    fun putIfAbsent(key: K, value: V): V = entries.getOrPut(key) { value }
+
+    @Synchronized
+    fun remove(key: K): V? = entries.remove(key)
+
+    @Synchronized
+    fun clear() = entries.clear()
+}
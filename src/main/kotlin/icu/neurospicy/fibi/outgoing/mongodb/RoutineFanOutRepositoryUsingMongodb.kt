@@ -0,0 +1,115 @@
+package icu.neurospicy.fibi.outgoing.mongodb
+
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutEntry
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutRepository
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutType
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutType.ROUTINE_EXECUTION
+import org.springframework.boot.context.event.ApplicationStartedEvent
+import org.springframework.context.event.EventListener
+import org.springframework.data.domain.Sort
+import org.springframework.data.domain.Sort.Direction.ASC
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode.UNORDERED
+import org.springframework.data.mongodb.core.FindAndReplaceOptions
+import org.springframework.data.mongodb.core.MongoTemplate
+import org.springframework.data.mongodb.core.index.Index
+import org.springframework.data.mongodb.core.query.Criteria.where
+import org.springframework.data.mongodb.core.query.Query.query
+import org.springframework.data.mongodb.core.query.Update
+import org.springframework.stereotype.Repository
+import java.time.Instant
+
+@Repository
+class RoutineFanOutRepositoryUsingMongodb(
+    private val mongoTemplate: MongoTemplate,
+) : RoutineFanOutRepository {
+
+    @EventListener(ApplicationStartedEvent::class)
+    fun ensureIndexes() {
+        mongoTemplate.indexOps(COLLECTION).apply {
+            ensureIndex(Index().on("minute", ASC))
+            ensureIndex(Index().on("friendshipId", ASC))
+            ensureIndex(Index().on("claimedBy", ASC).sparse())
+            ensureIndex(Index().on("type", ASC).on("pregenerationStarted", ASC).on("minute", ASC))
+        }
+    }
+
+    override fun save(entry: RoutineFanOutEntry) {
+        mongoTemplate.save(entry, COLLECTION)
+    }
+
+    override fun saveAll(entries: Collection<RoutineFanOutEntry>) {
+        if (entries.isEmpty()) return
+        val bulk = mongoTemplate.bulkOps(UNORDERED, RoutineFanOutEntry::class.java, COLLECTION)
+        entries.forEach { bulk.replaceOne(query(where("_id").`is`(it.key)), it, upsertOptions) }
+        bulk.execute()
+    }
+
+    override fun findByType(type: RoutineFanOutType): List<RoutineFanOutEntry> =
+        mongoTemplate.find(query(where("type").`is`(type)), RoutineFanOutEntry::class.java, COLLECTION)
+
+    override fun findByFriendshipId(friendshipId: FriendshipId): List<RoutineFanOutEntry> = mongoTemplate.find(
+        query(where("friendshipId").`is`(friendshipId.toString())), RoutineFanOutEntry::class.java, COLLECTION
+    )
+
+    override fun remove(key: String) {
+        mongoTemplate.remove(query(where("_id").`is`(key)), COLLECTION)
+    }
+
+    override fun removeAll(keys: Collection<String>) {
+        if (keys.isEmpty()) return
+        mongoTemplate.remove(query(where("_id").`in`(keys)), COLLECTION)
+    }
+
+    override fun claimDueUntil(
+        minute: Instant, owner: String, claimedAt: Instant, staleBefore: Instant
+    ): List<RoutineFanOutEntry> {
+        mongoTemplate.updateMulti(
+            query(where("minute").lte(minute).orOperator(where("claimedAt").`is`(null), where("claimedAt").lt(staleBefore))),
+            Update().set("claimedBy", owner).set("claimedAt", claimedAt).set("pregenerationStarted", true),
+            COLLECTION
+        )
+        return mongoTemplate.find(
+            query(where("claimedBy").`is`(owner).and("claimedAt").`is`(claimedAt)).with(Sort.by(ASC, "fireAt")),
+            RoutineFanOutEntry::class.java,
+            COLLECTION
+        )
+    }
+
+    override fun completeDispatch(entry: RoutineFanOutEntry, next: RoutineFanOutEntry?) {
+        val claimed = query(
+            where("_id").`is`(entry.key).and("claimedBy").`is`(entry.claimedBy).and("claimedAt").`is`(entry.claimedAt)
+        )
+        if (next == null) mongoTemplate.remove(claimed, COLLECTION)
+        else mongoTemplate.findAndReplace(claimed, next, COLLECTION)
+    }
+
+    override fun findPregenerationCandidates(minute: Instant): List<RoutineFanOutEntry> = mongoTemplate.find(
+        query(
+            where("type").`is`(ROUTINE_EXECUTION).and("pregenerationStarted").`is`(false).and("minute").lte(minute)
+                .and("claimedAt").`is`(null)
+        ).with(Sort.by(ASC, "fireAt")),
+        RoutineFanOutEntry::class.java,
+        COLLECTION
+    )
+
+    override fun markPregenerationStarted(keys: Collection<String>) {
+        if (keys.isEmpty()) return
+        mongoTemplate.updateMulti(
+            query(where("_id").`in`(keys)), Update().set("pregenerationStarted", true), COLLECTION
+        )
+    }
+
+    override fun savePregeneratedMessage(key: String, fireAt: Instant, message: String) {
+        mongoTemplate.updateFirst(
+            query(where("_id").`is`(key).and("fireAt").`is`(fireAt)),
+            Update().set("pregeneratedMessage", message),
+            COLLECTION
+        )
+    }
+
+    companion object {
+        private const val COLLECTION = "routine-fan-out"
+        private val upsertOptions = FindAndReplaceOptions.options().upsert()
+    }
+}
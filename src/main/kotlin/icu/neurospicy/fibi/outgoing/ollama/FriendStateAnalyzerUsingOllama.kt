@@ -1,6 +1,5 @@
 package icu.neurospicy.fibi.outgoing.ollama
 
-import com.fasterxml.jackson.databind.ObjectMapper
 import icu.neurospicy.fibi.domain.model.FibiMessage
 import icu.neurospicy.fibi.domain.model.Message
 import icu.neurospicy.fibi.domain.model.UserMessage
@@ -16,7 +15,6 @@ import java.time.ZoneOffset
 @Component
 class FriendStateAnalyzerUsingOllama(
     private val llmClient: LlmClient,
-    private val objectMapper: ObjectMapper,
     private val complexTaskModel: String,
 ) : FriendStateAnalyzer {
     override suspend fun analyze(
@@ -33,12 +31,12 @@ class FriendStateAnalyzerUsingOllama(
                 }
             }
 
-        val json = llmClient.promptReceivingJson(
+        return llmClient.promptReceivingJson(
             listOf(SystemMessage(systemPrompt), org.springframework.ai.chat.messages.UserMessage(prompt)),
             OllamaOptions.builder().model(complexTaskModel).temperature(0.0).topP(0.8).build(),
-            ZoneOffset.UTC, Instant.now()
-        )
-        return objectMapper.readValue(json, FriendStateAnalysisResult::class.java)
+            ZoneOffset.UTC, Instant.now(),
+            responseType = FriendStateAnalysisResult::class.java
+        ) ?: FriendStateAnalysisResult(emotions = emptyList())
     }
 
     private val systemPrompt = """
@@ -1,6 +1,5 @@
 package icu.neurospicy.fibi.outgoing.ollama
 
-import com.fasterxml.jackson.databind.ObjectMapper
 import icu.neurospicy.fibi.config.PromptsConfiguration
 import icu.neurospicy.fibi.domain.model.FriendshipId
 import icu.neurospicy.fibi.domain.repository.ChatRepository
@@ -17,14 +16,14 @@ import java.time.ZoneOffset.UTC
 
 @Service
 class InformationExtractor(
-    private val objectMapper: ObjectMapper,
     private val llmClient: LlmClient,
+    private val jsonSchemas: JsonSchemas,
     private val friendshipLedger: FriendshipLedger,
     private val chatRepository: ChatRepository,
     private val promptsConfiguration: PromptsConfiguration,
 ) {
 
-    suspend fun <T> extract(
+    suspend fun <T : Any> extract(
         text: String,
         spec: ExtractionSpec<T>,
         friendshipId: FriendshipId? = null,
@@ -34,25 +33,28 @@ class InformationExtractor(
         val userMessage = UserMessage(generatePrompt(text, spec))
         val systemMessage = SystemMessage(promptsConfiguration.informationExtractionSystemPromptTemplate)
 
-        val sanitizedMessage = llmClient.promptReceivingJson(
+        val extracted = llmClient.promptReceivingJson(
             listOf(systemMessage, userMessage),
             OllamaOptions.builder().model(OllamaModel.QWEN_2_5_7B).temperature(0.4).build(),
             friendshipId?.let { friendshipLedger.findBy(it)?.timeZone } ?: UTC,
             now(),
+            responseType = spec.targetType,
+            schema = spec.expectedFields?.let { jsonSchemas.of(it) } ?: jsonSchemas.of(spec.targetType),
+            callSite = "InformationExtractor.${spec.targetType.simpleName}",
             tools = (friendshipId?.let {
                 additionalTools.plus(ChatHistoryTools(friendshipLedger, chatRepository, friendshipId))
-            } ?: additionalTools).toSet()) ?: ""
-        LOG.debug("Information extraction succeeded. Mapping response to expected spec.")
-        try {
-            return objectMapper.readValue(sanitizedMessage, spec.targetType)
-        } catch (ex: Exception) {
-            LOG.debug("Information could not be extracted: {}", sanitizedMessage)
-            throw ExtractionException("Failed to extract information", ex)
+            } ?: additionalTools).toSet()
+        )
+        if (extracted == null) {
+            LOG.debug("Information could not be extracted as {}", spec.targetType.simpleName)
+            throw ExtractionException("Failed to extract information")
         }
+        LOG.debug("Information extraction succeeded.")
+        return extracted
     }
 
 
-    private fun <T> generatePrompt(text: String, spec: ExtractionSpec<T>): String {
+    private fun <T : Any> generatePrompt(text: String, spec: ExtractionSpec<T>): String {
         val fields =
             spec.expectedFields?.joinToString() { field -> "\"${field.name}\": ${field.type} (${if (field.required) "required" else "optional"})" }
                 ?: spec.targetType.declaredFields.joinToString(separator = ",\n") { field ->
@@ -68,14 +70,14 @@ class InformationExtractor(
     }
 }
 
-class ExtractionException(msg: String, exception: Exception) : java.lang.Exception(msg, exception)
+class ExtractionException(msg: String, exception: Exception? = null) : java.lang.Exception(msg, exception)
 
 fun Class<*>.isNullable(): Boolean {
     // Simplified; in Kotlin you might use reflection or metadata inspection
     return name.endsWith("?")
 }
 
-class ExtractionSpec<T>(
+class ExtractionSpec<T : Any>(
     val targetType: Class<T>,
     val additionalContext: String? = null,
     val expectedFields: List<ExpectedField>? = null,
@@ -0,0 +1,39 @@
+package icu.neurospicy.fibi.outgoing.ollama
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.springframework.ai.converter.BeanOutputConverter
+import org.springframework.stereotype.Component
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * JSON schemas constraining the answers of the LLM via Ollama's `format`, derived once per type and cached.
+ */
+@Component
+class JsonSchemas(
+    private val objectMapper: ObjectMapper,
+) {
+    private val byType = ConcurrentHashMap<Class<*>, Map<String, Any>>()
+    private val byFields = ConcurrentHashMap<List<ExpectedField>, Map<String, Any>>()
+
+    fun of(type: Class<*>): Map<String, Any> = byType.computeIfAbsent(type) {
+        BeanOutputConverter(it, objectMapper).jsonSchemaMap
+    }
+
+    /**
+     * Schema of an object with the [fields], for extractions listing their fields explicitly.
+     */
+    fun of(fields: List<ExpectedField>): Map<String, Any> = byFields.computeIfAbsent(fields) {
+        mapOf(
+            "type" to "object",
+            "properties" to fields.associate { it.name to mapOf("type" to jsonTypeOf(it.type)) },
+            "required" to fields.filter { it.required }.map { it.name },
+        )
+    }
+
+    private fun jsonTypeOf(type: String): String = when (type.removeSuffix("?")) {
+        "Int", "Integer", "Long" -> "integer"
+        "Float", "Double", "Number" -> "number"
+        "Boolean" -> "boolean"
+        else -> "string"
+    }
+}
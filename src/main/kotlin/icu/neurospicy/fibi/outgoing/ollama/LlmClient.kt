@@ -1,5 +1,16 @@
 package icu.neurospicy.fibi.outgoing.ollama;
 
+import com.fasterxml.jackson.core.JsonProcessingException
+import com.fasterxml.jackson.databind.ObjectMapper
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.MeterRegistry
+import kotlinx.coroutines.channels.Channel.Factory.UNLIMITED
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.reactive.asFlow
+import org.slf4j.LoggerFactory
 import org.springframework.ai.chat.client.ChatClient
 import org.springframework.ai.chat.messages.Message
 import org.springframework.ai.chat.prompt.Prompt
@@ -11,10 +22,73 @@ import kotlin.math.max
 import kotlin.math.min
 
 
+/**
+ * Prompts the LLM. Requests are queued per model by the [LlmRequestScheduler], tag them with [withLlmPriority] or a
+ * [LlmRequestTag] in the coroutine context. Deterministic prompts run within [withCachedLlmResults] are answered from
+ * the [LlmResultCache] when asked again.
+ */
 @Service
 class LlmClient(
     private val chatClient: ChatClient,
+    private val scheduler: LlmRequestScheduler,
+    private val resultCache: LlmResultCache,
+    private val jsonSchemas: JsonSchemas,
+    private val objectMapper: ObjectMapper,
+    private val meterRegistry: MeterRegistry,
 ) {
+    /**
+     * Prompts for an answer of [responseType]. Ollama constrains the answer to [schema] via its `format`, so it is
+     * deserialized as is. Answers not matching the type are asked for again as configured by [retryConfig]; parse
+     * failures and retries are counted per [callSite].
+     */
+    suspend fun <T : Any> promptReceivingJson(
+        messages: List<Message>,
+        ollamaOptions: OllamaOptions,
+        timezone: ZoneId,
+        receivedAt: Instant,
+        responseType: Class<T>,
+        schema: Map<String, Any> = jsonSchemas.of(responseType),
+        callSite: String = responseType.simpleName,
+        context: Map<String, Any>? = null,
+        tools: Set<Any>? = null,
+        retryConfig: RetryConfig = RetryConfig(),
+    ): T? {
+        var options = ollamaOptions.copy().apply { format = schema }
+        val cacheKey = cacheKeyOf("structured", messages, options, tools)
+        cacheKey?.let { resultCache[it] }?.let { return objectMapper.readValue(it, responseType) }
+        repeat(max(1, retryConfig.maxRetries)) { trial ->
+            if (trial > 0) retries(callSite).increment()
+            try {
+                val answer = scheduled(options) {
+                    chatClient.prompt(Prompt(messages, options))
+                        .apply { tools?.takeIf { it.isNotEmpty() }?.let { this.tools(*it.toTypedArray()) } }
+                        .toolContext(
+                            (context?.plus(loadDefaultContext(timezone, receivedAt)) ?: loadDefaultContext(
+                                timezone, receivedAt
+                            ))
+                        ).call().content()
+                }
+                if (!answer.isNullOrBlank()) {
+                    try {
+                        return objectMapper.readValue(answer, responseType)
+                            .also { cacheKey?.let { key -> resultCache[key] = answer } }
+                    } catch (e: JsonProcessingException) {
+                        parseFailures(callSite).increment()
+                        LOG.debug("Answer for {} does not match {}: {}", callSite, responseType.simpleName, answer)
+                    }
+                }
+            } catch (e: Exception) {
+                if (retryConfig.failWithException && trial == retryConfig.maxRetries) throw e
+            }
+            options = retryConfig.adaptOptionsOnRetry(options)
+        }
+        return null
+    }
+
+    /**
+     * Prompts for a JSON answer that is cleaned up from code fences, tool call tags and thinking. Prefer the variant
+     * receiving a type, which needs no cleanup.
+     */
     suspend fun promptReceivingJson(
         messages: List<Message>,
         ollamaOptions: OllamaOptions,
@@ -24,10 +98,12 @@ class LlmClient(
         tools: Set<Any>? = null,
         retryConfig: RetryConfig = RetryConfig(),
     ): String? {
+        val cacheKey = cacheKeyOf("json", messages, ollamaOptions, tools)
+        cacheKey?.let { resultCache[it] }?.let { return it }
         var options = ollamaOptions
         repeat(max(1, retryConfig.maxRetries)) { trial ->
             try {
-                val answer =
+                val answer = scheduled(options) {
                     chatClient.prompt(Prompt(messages, options))
                         .apply { tools?.takeIf { it.isNotEmpty() }?.let { this.tools(*it.toTypedArray()) } }
                         .toolContext(
@@ -35,7 +111,8 @@ class LlmClient(
                                 timezone, receivedAt
                             ))
                         ).let { prompt -> prompt.call().content()?.let { sanitize(it) } }
-                if (!answer.isNullOrBlank()) return answer
+                }
+                if (!answer.isNullOrBlank()) return answer.also { cacheKey?.let { key -> resultCache[key] = it } }
             } catch (e: Exception) {
                 if (retryConfig.failWithException && trial == retryConfig.maxRetries) throw e
             }
@@ -53,17 +130,23 @@ class LlmClient(
         tools: Set<Any>? = null,
         retryConfig: RetryConfig = RetryConfig(),
     ): String? {
+        val cacheKey = cacheKeyOf("text", messages, ollamaOptions, tools)
+        cacheKey?.let { resultCache[it] }?.let { return it }
         var options = ollamaOptions
         repeat(max(1, retryConfig.maxRetries)) { trial ->
             try {
-                val prompt = chatClient.prompt(Prompt(messages, options))
-                tools?.takeIf { it.isNotEmpty() }?.let { prompt.tools(*it.toTypedArray()) }
-                val answer = prompt.toolContext(
-                    (context?.plus(loadDefaultContext(timezone, receivedAt)) ?: loadDefaultContext(
-                        timezone, receivedAt
-                    ))
-                ).call().content()
-                if (!answer.isNullOrBlank()) return removeThinking(answer)
+                val answer = scheduled(options) {
+                    val prompt = chatClient.prompt(Prompt(messages, options))
+                    tools?.takeIf { it.isNotEmpty() }?.let { prompt.tools(*it.toTypedArray()) }
+                    prompt.toolContext(
+                        (context?.plus(loadDefaultContext(timezone, receivedAt)) ?: loadDefaultContext(
+                            timezone, receivedAt
+                        ))
+                    ).call().content()
+                }
+                if (!answer.isNullOrBlank()) {
+                    return removeThinking(answer).also { cacheKey?.let { key -> resultCache[key] = it } }
+                }
             } catch (e: Exception) {
                 if (retryConfig.failWithException && trial == retryConfig.maxRetries) throw e
             }
@@ -72,6 +155,54 @@ class LlmClient(
         return null
     }
 
+    /**
+     * Streams the answer as it is generated, with thinking sections removed. Unlike [promptReceivingText] it is not
+     * retried, as the caller may have used parts of the answer already. Chunks are buffered, so the model is released
+     * once the answer is generated, however long the collector takes to handle them.
+     */
+    fun streamText(
+        messages: List<Message>,
+        ollamaOptions: OllamaOptions,
+        timezone: ZoneId,
+        receivedAt: Instant,
+        context: Map<String, Any>? = null,
+        tools: Set<Any>? = null,
+    ): Flow<String> = channelFlow {
+        scheduled(ollamaOptions) {
+            val prompt = chatClient.prompt(Prompt(messages, ollamaOptions))
+            tools?.takeIf { it.isNotEmpty() }?.let { prompt.tools(*it.toTypedArray()) }
+            val thinkingFilter = ThinkingFilter()
+            prompt.toolContext(
+                (context?.plus(loadDefaultContext(timezone, receivedAt)) ?: loadDefaultContext(timezone, receivedAt))
+            ).stream().content().asFlow().collect { chunk ->
+                thinkingFilter.accept(chunk).takeIf { it.isNotEmpty() }?.let { send(it) }
+            }
+            thinkingFilter.finish().takeIf { it.isNotEmpty() }?.let { send(it) }
+        }
+    }.buffer(UNLIMITED)
+
+    /**
+     * Key of the answer if the caller opted into caching. Prompts offering tools are never cached, as their answer
+     * may depend on what the tools return.
+     */
+    private suspend fun cacheKeyOf(
+        kind: String, messages: List<Message>, options: OllamaOptions, tools: Set<Any>?,
+    ): String? = if (currentCoroutineContext()[LlmResultCaching.Key] == null || !tools.isNullOrEmpty()) null
+    else resultCache.keyOf(kind, messages, options)
+
+    private fun retries(callSite: String): Counter =
+        Counter.builder("fibi.llm.structured-output.retries").tag("call-site", callSite)
+            .description("Structured LLM requests asked again").register(meterRegistry)
+
+    private fun parseFailures(callSite: String): Counter =
+        Counter.builder("fibi.llm.structured-output.parse-failures").tag("call-site", callSite)
+            .description("Structured LLM answers not matching their type").register(meterRegistry)
+
+    private suspend fun <T> scheduled(options: OllamaOptions, block: suspend () -> T): T {
+        val tag = currentCoroutineContext()[LlmRequestTag] ?: UNTAGGED
+        return scheduler.schedule(options.model, tag.priority, tag.friendshipId, block)
+    }
+
     fun loadDefaultContext(timezone: ZoneId, receivedAt: Instant): Map<String, Any> {
         return mapOf(
             "timezone" to timezone, "receivedAt" to receivedAt,
@@ -93,6 +224,11 @@ class LlmClient(
                 if (start != -1 && end != -1 && start < end) text.substring(start, end + 1) else text
             }
     }
+
+    companion object {
+        private val LOG = LoggerFactory.getLogger(LlmClient::class.java)
+        private val UNTAGGED = LlmRequestTag(LlmPriority.INTERACTIVE)
+    }
 }
 
 data class RetryConfig(
@@ -0,0 +1,169 @@
+package icu.neurospicy.fibi.outgoing.ollama
+
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Timer
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.withContext
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Component
+import java.time.Duration
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.coroutines.AbstractCoroutineContextElement
+import kotlin.coroutines.CoroutineContext
+
+/**
+ * How urgent an LLM request is. The higher the weight, the larger the share of a model a request gets while others
+ * are waiting.
+ */
+enum class LlmPriority(val weight: Int) {
+    /** A friend is waiting for the answer to their message. */
+    INTERACTIVE(16),
+
+    /** A friend answered a question of fibi and waits for it to continue. */
+    CLARIFICATION(8),
+
+    /** Messages fibi sends on its own, like routine steps and reminders. */
+    ROUTINE(4),
+
+    /** Nobody is waiting, like analyses and messages generated ahead of time. */
+    BACKGROUND(1),
+}
+
+/**
+ * Tags the LLM requests of a coroutine with their [priority] and the friend they are made for, see
+ * [LlmRequestScheduler]. Requests without a tag are scheduled as [LlmPriority.INTERACTIVE] without a friend.
+ */
+class LlmRequestTag(
+    val priority: LlmPriority,
+    val friendshipId: FriendshipId? = null,
+) : AbstractCoroutineContextElement(LlmRequestTag) {
+    companion object Key : CoroutineContext.Key<LlmRequestTag>
+
+    override fun toString(): String = "LlmRequestTag($priority, $friendshipId)"
+}
+
+/**
+ * Runs [block] with its LLM requests tagged as [priority], keeping the friend of the surrounding tag.
+ */
+suspend fun <T> withLlmPriority(priority: LlmPriority, block: suspend CoroutineScope.() -> T): T =
+    withContext(LlmRequestTag(priority, currentCoroutineContext()[LlmRequestTag]?.friendshipId), block)
+
+/**
+ * Limits how many requests reach each model at once, so requests queue here instead of in Ollama. The limit should
+ * match Ollama's `OLLAMA_NUM_PARALLEL`, [numParallelPerModel] overrides it per model, e.g. `qwen3:32b=1,qwen3:8b=4`.
+ *
+ * Waiting requests are served in weighted fair order: every friend has a virtual clock per model that a request
+ * advances by the inverse of its priority's weight, and the request finishing earliest on its friend's clock goes
+ * next. Interactive requests thereby overtake routine and background work, a friend keeping a model busy falls behind
+ * other friends, and background work still progresses under load. Requests without a friend share one clock.
+ */
+@Component
+class LlmRequestScheduler(
+    private val meterRegistry: MeterRegistry,
+    @Value("\${fibi.llm.num-parallel:4}") private val numParallel: Int,
+    @Value("\${fibi.llm.num-parallel-per-model:}") numParallelPerModel: String,
+) {
+    private val limits: Map<String, Int> = numParallelPerModel.split(',').filter { it.isNotBlank() }
+        .associate { it.substringBeforeLast('=').trim() to it.substringAfterLast('=').trim().toInt() }
+    private val models = ConcurrentHashMap<String, ModelQueue>()
+
+    /**
+     * Runs [block] once [model] has capacity and it is the turn of this request.
+     */
+    suspend fun <T> schedule(
+        model: String?,
+        priority: LlmPriority,
+        friendshipId: FriendshipId?,
+        block: suspend () -> T,
+    ): T {
+        val name = model ?: UNKNOWN_MODEL
+        val queue = models.computeIfAbsent(name) { ModelQueue(it, limits[it] ?: numParallel) }
+        val enqueuedAt = System.nanoTime()
+        queue.acquire(priority, friendshipId)
+        Timer.builder("fibi.llm.queue.wait").tag("model", name).tag("priority", priority.name.lowercase())
+            .description("Time an LLM request waits for its model").register(meterRegistry)
+            .record(Duration.ofNanos(System.nanoTime() - enqueuedAt))
+        try {
+            return block()
+        } finally {
+            queue.release()
+        }
+    }
+
+    private inner class ModelQueue(private val model: String, private val limit: Int) {
+        private var running = 0
+        private var virtualTime = 0.0
+        private var sequence = 0L
+        private val lastFinish = HashMap<FriendshipId?, Double>()
+        private val waiting = PriorityQueue(compareBy<Waiter> { it.finish }.thenBy { it.sequence })
+
+        init {
+            Gauge.builder("fibi.llm.queue.depth", this) { synchronized(it) { it.waiting.size.toDouble() } }
+                .tag("model", model).description("LLM requests waiting for the model").register(meterRegistry)
+            Gauge.builder("fibi.llm.running", this) { synchronized(it) { it.running.toDouble() } }
+                .tag("model", model).description("LLM requests running on the model").register(meterRegistry)
+            LOG.info("Running at most {} requests at once on {}", limit, model)
+        }
+
+        suspend fun acquire(priority: LlmPriority, friendshipId: FriendshipId?) {
+            val waiter = synchronized(this) {
+                val start = maxOf(virtualTime, lastFinish[friendshipId] ?: 0.0)
+                val waiter = Waiter(start, start + 1.0 / priority.weight, sequence++, CompletableDeferred())
+                lastFinish[friendshipId] = waiter.finish
+                if (running < limit && waiting.isEmpty()) {
+                    running++
+                    advanceTo(waiter)
+                    return
+                }
+                waiting.add(waiter)
+                waiter
+            }
+            try {
+                waiter.granted.await()
+            } catch (e: CancellationException) {
+                synchronized(this) { if (!waiting.remove(waiter)) release() }
+                throw e
+            }
+        }
+
+        fun release() {
+            synchronized(this) {
+                val next = waiting.poll()
+                if (next == null) {
+                    running--
+                    return
+                }
+                advanceTo(next)
+                next.granted.complete(Unit)
+            }
+        }
+
+        /**
+         * Moves the virtual time to the start of the request that runs next and forgets friends that are not ahead
+         * of it anymore.
+         */
+        private fun advanceTo(waiter: Waiter) {
+            virtualTime = maxOf(virtualTime, waiter.start)
+            lastFinish.values.removeIf { it <= virtualTime }
+        }
+    }
+
+    private class Waiter(
+        val start: Double,
+        val finish: Double,
+        val sequence: Long,
+        val granted: CompletableDeferred<Unit>,
+    )
+
+    companion object {
+        private val LOG = LoggerFactory.getLogger(LlmRequestScheduler::class.java)
+        private const val UNKNOWN_MODEL = "unknown"
+    }
+}
@@ -0,0 +1,82 @@
+package icu.neurospicy.fibi.outgoing.ollama
+
+import icu.neurospicy.fibi.outgoing.mongodb.LruCache
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.MeterRegistry
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.withContext
+import org.springframework.ai.chat.messages.Message
+import org.springframework.ai.ollama.api.OllamaOptions
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Component
+import java.security.MessageDigest
+import java.time.Duration
+import java.time.Instant
+import java.util.*
+import kotlin.coroutines.AbstractCoroutineContextElement
+import kotlin.coroutines.CoroutineContext
+
+/**
+ * Marks the LLM requests of a coroutine as deterministic, so [LlmClient] may answer them from the [LlmResultCache].
+ */
+object LlmResultCaching : AbstractCoroutineContextElement(Key) {
+    object Key : CoroutineContext.Key<LlmResultCaching>
+}
+
+/**
+ * Runs [block] with its LLM requests answered from the [LlmResultCache] if the same prompt was answered recently.
+ * Only meant for prompts whose answer depends on nothing but the prompt, like yes/no questions and extractions at
+ * temperature 0.
+ */
+suspend fun <T> withCachedLlmResults(block: suspend CoroutineScope.() -> T): T = withContext(LlmResultCaching, block)
+
+/**
+ * Answers of deterministic prompts by model, options and the normalised messages. Answers expire after [ttl] and the
+ * least recently used ones are evicted beyond [size].
+ */
+@Component
+class LlmResultCache(
+    meterRegistry: MeterRegistry,
+    @Value("\${fibi.llm.cache.size:1000}") size: Int,
+    @Value("\${fibi.llm.cache.ttl:PT10M}") private val ttl: Duration,
+) {
+    private val answers = LruCache<String, CachedAnswer>(size)
+
+    private val hits = Counter.builder("fibi.llm.cache.requests").tag("result", "hit")
+        .description("Cacheable LLM requests by whether their answer was cached").register(meterRegistry)
+    private val misses = Counter.builder("fibi.llm.cache.requests").tag("result", "miss")
+        .description("Cacheable LLM requests by whether their answer was cached").register(meterRegistry)
+
+    /**
+     * @param kind distinguishes answers post-processed differently for the same prompt
+     */
+    fun keyOf(kind: String, messages: List<Message>, options: OllamaOptions): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        val parts = listOf(kind, options.toMap().toSortedMap().toString()) +
+                messages.flatMap { listOf(it.messageType.name, normalise(it.text.orEmpty())) }
+        parts.forEach { part ->
+            digest.update(part.toByteArray())
+            digest.update(SEPARATOR)
+        }
+        return HexFormat.of().formatHex(digest.digest())
+    }
+
+    operator fun get(key: String): String? {
+        val cached = answers[key]?.takeIf { it.expiresAt.isAfter(Instant.now()) }
+        if (cached == null) misses.increment() else hits.increment()
+        return cached?.answer
+    }
+
+    operator fun set(key: String, answer: String) {
+        answers[key] = CachedAnswer(answer, Instant.now().plus(ttl))
+    }
+
+    private fun normalise(text: String): String = text.trim().replace(WHITESPACE, " ")
+
+    private data class CachedAnswer(val answer: String, val expiresAt: Instant)
+
+    companion object {
+        private val WHITESPACE = Regex("\\s+")
+        private const val SEPARATOR: Byte = 0
+    }
+}
@@ -13,6 +13,7 @@ import org.springframework.ai.ollama.api.OllamaOptions
 import org.springframework.context.ApplicationEventPublisher
 import org.springframework.stereotype.Service
 import java.time.Instant
+import java.time.ZoneId
 import java.time.ZoneOffset.UTC
 import java.time.ZonedDateTime
 
@@ -49,6 +50,16 @@ class ResponseGenerator(
         return generateMessageWithRetries(friendshipId, message, requestId)
     }
 
+    /**
+     * Adapts the text of a message to be sent later, without showing the friend that a message is being generated.
+     *
+     * @return null if the text could not be adapted
+     */
+    suspend fun pregenerateResponseWith(friendshipId: FriendshipId, message: OutgoingAdaptedTextMessage): String? {
+        LOG.debug("Adapting text of message '{}' ahead of time.", message)
+        return generateMessage(friendshipId, message, null, announce = false)
+    }
+
     private suspend fun generateMessageWithRetries(
         friendshipId: FriendshipId, message: OutgoingMessageNeedsGenerator, requestId: MessageId?,
     ): String {
@@ -57,35 +68,18 @@ class ResponseGenerator(
 
     private suspend fun generateMessage(
         friendshipId: FriendshipId, message: OutgoingMessageNeedsGenerator, requestId: MessageId?,
+        announce: Boolean = true,
     ): String? {
-        val friendshipLedgerEntry = friendshipLedger.findBy(friendshipId)
-        val zone = friendshipLedgerEntry?.timeZone ?: UTC
-        val sendingTimeAtUserZone = ZonedDateTime.now(zone)
-        val name = friendshipLedgerEntry?.signalName
-        val messageRespondingTo =
-            requestId?.let { chatRepository.find(friendshipId, messageId = requestId) }?.takeIf { it.byUser() }
-                ?.let { it as UserMessage }
+        if (announce) announceGenerationStarted(friendshipId, message, requestId)
 
-        applicationEventPublisher.publishEvent(
-            MessageGenerationStarted(
-                _source = this.javaClass, friendshipId, message.channel, requestId
-            )
-        )
-
-        val tools = createListOfTools(message, friendshipId)
         val response = try {
+            val prompt = messagePromptFor(friendshipId, message, requestId)
             llmClient.promptReceivingText(
-                createMessagePrompt(
-                    when (message) {
-                        is OutgoingGeneratedMessage -> createDescriptionForMessage(message)
-                        is OutgoingAdaptedTextMessage -> createDescriptionForMessage(message)
-                    }, friendshipId, name, sendingTimeAtUserZone, messageRespondingTo, message.useHistory
-                ),
-                OllamaOptions.builder().model(messageGenerationModel).temperature(0.3).build(),
-                zone,
-                chatRepository.find(friendshipId, message.messageId).takeIf { it is UserMessage }
-                    ?.let { it as UserMessage }?.receivedAt ?: Instant.now(),
-                tools = tools,
+                prompt.messages,
+                prompt.options,
+                prompt.zone,
+                prompt.receivedAt,
+                tools = prompt.tools,
                 retryConfig = RetryConfig(maxRetries = 3, failWithException = true)
             )
         } catch (e: Exception) {
@@ -94,15 +88,121 @@ class ResponseGenerator(
             null
         }
 
+        if (announce) announceGenerationFinished(friendshipId, message, requestId)
+
+        return response
+    }
+
+    /**
+     * Generates the message while streaming it from the LLM, passing each paragraph to [onParagraph] as soon as it
+     * is complete. Falls back to generating the message at once if streaming fails before the first paragraph. If it
+     * fails later, the message ends with [TRUNCATION_NOTICE], so neither the friend nor the chat history mistake the
+     * partial answer for a complete one.
+     *
+     * @return the whole message
+     */
+    suspend fun streamResponseWith(
+        friendshipId: FriendshipId,
+        message: OutgoingMessageNeedsGenerator,
+        requestId: MessageId? = null,
+        onParagraph: suspend (String) -> Unit,
+    ): String {
+        LOG.debug("Streaming response for message '{}'.", message)
+        val paragraphs = mutableListOf<String>()
+        announceGenerationStarted(friendshipId, message, requestId)
+        try {
+            val prompt = messagePromptFor(friendshipId, message, requestId)
+            val pending = StringBuilder()
+            val complete: suspend (String) -> Unit = { paragraph ->
+                paragraph.trim().takeIf { it.isNotEmpty() }?.let {
+                    paragraphs += it
+                    onParagraph(it)
+                }
+            }
+            llmClient.streamText(prompt.messages, prompt.options, prompt.zone, prompt.receivedAt, tools = prompt.tools)
+                .collect { chunk ->
+                    pending.append(chunk)
+                    var end = pending.indexOf(PARAGRAPH_BREAK)
+                    while (end >= 0) {
+                        complete(pending.substring(0, end))
+                        pending.delete(0, end + PARAGRAPH_BREAK.length)
+                        end = pending.indexOf(PARAGRAPH_BREAK)
+                    }
+                }
+            complete(pending.toString())
+        } catch (e: Exception) {
+            if (paragraphs.isEmpty()) {
+                LOG.error("Failed streaming response for message '{}', generating it at once.", message, e)
+            } else {
+                LOG.error(
+                    "Failed streaming response for message '{}' after {} paragraphs, marking it as truncated.",
+                    message, paragraphs.size, e
+                )
+                paragraphs += TRUNCATION_NOTICE
+                runCatching { onParagraph(TRUNCATION_NOTICE) }.onFailure {
+                    LOG.error("Failed sending truncation notice for message '{}'.", message, it)
+                }
+            }
+        } finally {
+            announceGenerationFinished(friendshipId, message, requestId)
+        }
+        if (paragraphs.isNotEmpty()) return paragraphs.joinToString(PARAGRAPH_BREAK)
+        return generateMessageWithRetries(friendshipId, message, requestId).also { onParagraph(it) }
+    }
+
+    private fun announceGenerationStarted(
+        friendshipId: FriendshipId, message: OutgoingMessageNeedsGenerator, requestId: MessageId?,
+    ) {
+        applicationEventPublisher.publishEvent(
+            MessageGenerationStarted(
+                _source = this.javaClass, friendshipId, message.channel, requestId
+            )
+        )
+    }
+
+    private fun announceGenerationFinished(
+        friendshipId: FriendshipId, message: OutgoingMessageNeedsGenerator, requestId: MessageId?,
+    ) {
         applicationEventPublisher.publishEvent(
             MessageGenerationFinished(
                 _source = this.javaClass, friendshipId, message.channel, requestId
             )
         )
+    }
 
-        return response
+    private fun messagePromptFor(
+        friendshipId: FriendshipId, message: OutgoingMessageNeedsGenerator, requestId: MessageId?,
+    ): MessagePrompt {
+        val friendshipLedgerEntry = friendshipLedger.findBy(friendshipId)
+        val zone = friendshipLedgerEntry?.timeZone ?: UTC
+        val sendingTimeAtUserZone = ZonedDateTime.now(zone)
+        val name = friendshipLedgerEntry?.signalName
+        val messageRespondingTo =
+            requestId?.let { chatRepository.find(friendshipId, messageId = requestId) }?.takeIf { it.byUser() }
+                ?.let { it as UserMessage }
+        return MessagePrompt(
+            createMessagePrompt(
+                when (message) {
+                    is OutgoingGeneratedMessage -> createDescriptionForMessage(message)
+                    is OutgoingAdaptedTextMessage -> createDescriptionForMessage(message)
+                }, friendshipId, name, sendingTimeAtUserZone, messageRespondingTo, message.useHistory
+            ),
+            OllamaOptions.builder().model(messageGenerationModel).temperature(0.3).build(),
+            zone,
+            chatRepository.find(friendshipId, message.messageId).takeIf { it is UserMessage }
+                ?.let { it as UserMessage }?.receivedAt ?: Instant.now(),
+            createListOfTools(message, friendshipId),
+        )
     }
 
+    private class MessagePrompt(
+        val messages: List<Message>,
+        val options: OllamaOptions,
+        val zone: ZoneId,
+        val receivedAt: Instant,
+        val tools: Set<Any>,
+    )
+
     private fun createListOfTools(
         message: OutgoingMessageNeedsGenerator, friendshipId: FriendshipId,
     ): MutableSet<Any> = mutableSetOf<Any>().apply {
@@ -170,5 +270,7 @@ class ResponseGenerator(
 
     companion object {
         private val LOG = LoggerFactory.getLogger(ResponseGenerator::class.java)
+        private const val PARAGRAPH_BREAK = "\n\n"
+        internal const val TRUNCATION_NOTICE = "(Sorry, my answer got cut off here.)"
     }
 }
\ No newline at end of file
@@ -0,0 +1,55 @@
+package icu.neurospicy.fibi.outgoing.ollama
+
+/**
+ * Removes `<think>` sections from an answer arriving in chunks. Text that might be the start of a tag is held back
+ * until the next chunk tells.
+ */
+internal class ThinkingFilter {
+    private val pending = StringBuilder()
+    private var thinking = false
+
+    /**
+     * @return the text of [chunk] that is certainly not part of a thinking section, may be empty
+     */
+    fun accept(chunk: String): String {
+        pending.append(chunk)
+        val visible = StringBuilder()
+        while (true) {
+            if (thinking) {
+                val end = pending.indexOf(THINK_END)
+                if (end < 0) {
+                    pending.delete(0, maxOf(0, pending.length - THINK_END.length + 1))
+                    return visible.toString()
+                }
+                pending.delete(0, end + THINK_END.length)
+                thinking = false
+            } else {
+                val start = pending.indexOf(THINK_START)
+                if (start < 0) {
+                    val held = partialTagLength()
+                    visible.append(pending, 0, pending.length - held)
+                    pending.delete(0, pending.length - held)
+                    return visible.toString()
+                }
+                visible.append(pending, 0, start)
+                pending.delete(0, start + THINK_START.length)
+                thinking = true
+            }
+        }
+    }
+
+    /**
+     * @return the text held back, unless the answer ended within a thinking section
+     */
+    fun finish(): String = (if (thinking) "" else pending.toString()).also { pending.clear() }
+
+    private fun partialTagLength(): Int =
+        (minOf(THINK_START.length - 1, pending.length) downTo 1).firstOrNull { length ->
+            THINK_START.startsWith(pending.substring(pending.length - length))
+        } ?: 0
+
+    companion object {
+        private const val THINK_START = "<think>"
+        private const val THINK_END = "</think>"
+    }
+}
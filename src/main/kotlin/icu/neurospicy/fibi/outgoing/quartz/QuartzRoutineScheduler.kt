@@ -1,11 +1,13 @@
 package icu.neurospicy.fibi.outgoing.quartz
 
+import icu.neurospicy.fibi.application.routine.RoutineFanOut
 import icu.neurospicy.fibi.application.routine.RoutinePhaseIterationSchedulerJob
 import icu.neurospicy.fibi.application.routine.RoutinePhaseSchedulerJob
 import icu.neurospicy.fibi.application.routine.RoutineStepSchedulerJob
-import icu.neurospicy.fibi.application.routine.RoutineTriggerSchedulerJob
 import icu.neurospicy.fibi.domain.model.FriendshipId
 import icu.neurospicy.fibi.domain.repository.FriendshipLedger
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutEntry
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutType.ROUTINE_TRIGGER
 import icu.neurospicy.fibi.domain.service.friends.routines.*
 import icu.neurospicy.fibi.domain.service.friends.routines.events.RoutinePhaseIterationsScheduled
 import icu.neurospicy.fibi.domain.service.friends.routines.events.RoutinePhaseScheduled
@@ -31,7 +33,11 @@ class QuartzRoutineScheduler(
     private val eventPublisher: ApplicationEventPublisher,
     private val routineEventLog: RoutineEventLog,
     private val timeExpressionEvaluator: TimeExpressionEvaluator,
+    private val routineFanOut: RoutineFanOut,
 ) : RoutineScheduler {
+    /**
+     * Triggers fire in the per-minute buckets of the [RoutineFanOut] rather than as Quartz jobs of their own.
+     */
     override fun scheduleTrigger(
         result: RoutineInstance,
         timeBasedTrigger: RoutineTrigger,
@@ -71,14 +77,14 @@ class QuartzRoutineScheduler(
             "triggerId" to timeBasedTrigger.id.toString()
         )
 
-        val jobKeyStr = "routine-trigger-${result.friendshipId}-${result.instanceId}-${timeBasedTrigger.id}"
-        quartzSchedulerService.scheduleJob(
-            jobKeyStr,
-            GROUP_ROUTINE_JOBS_KEY,
-            triggerTime,
-            RoutineTriggerSchedulerJob::class.java,
-            payload,
-            simpleSchedule().withMisfireHandlingInstructionFireNow()
+        routineFanOut.schedule(
+            RoutineFanOutEntry(
+                "routine-trigger-${result.friendshipId}-${result.instanceId}-${timeBasedTrigger.id}",
+                ROUTINE_TRIGGER,
+                result.friendshipId,
+                triggerTime.toInstant(),
+                payload
+            )
         )
         LOG.info("Scheduled time-based trigger: ${timeBasedTrigger.id} for routine ${result.instanceId} at $triggerTime")
         eventPublisher.publishEvent(
@@ -3,30 +3,63 @@ package icu.neurospicy.fibi.outgoing.quartz
 import icu.neurospicy.fibi.application.GeneratingMessageJob
 import icu.neurospicy.fibi.application.reminder.AppointmentReminderJob
 import icu.neurospicy.fibi.application.reminder.TimeBasedReminderJob
-import icu.neurospicy.fibi.application.routine.GenericRoutineJob
+import icu.neurospicy.fibi.application.routine.RoutineFanOut
+import icu.neurospicy.fibi.application.routine.RoutineFanOutJob
 import icu.neurospicy.fibi.application.timers.TimerJob
 import icu.neurospicy.fibi.calendar.sync.GenericCalendarJob
 import icu.neurospicy.fibi.domain.model.*
 import icu.neurospicy.fibi.domain.model.Timer
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutEntry
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutType.ROUTINE_EXECUTION
+import icu.neurospicy.fibi.outgoing.SchedulerReconciliation
 import icu.neurospicy.fibi.outgoing.SchedulerService
+import icu.neurospicy.fibi.outgoing.timingwheel.TimingWheelScheduler
 import org.quartz.*
 import org.quartz.CronScheduleBuilder.cronSchedule
 import org.quartz.JobBuilder.newJob
 import org.quartz.SimpleScheduleBuilder.simpleSchedule
 import org.quartz.Trigger
 import org.quartz.TriggerBuilder.newTrigger
+import org.quartz.impl.matchers.GroupMatcher
 import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.boot.context.event.ApplicationStartedEvent
+import org.springframework.context.event.EventListener
 import org.springframework.stereotype.Service
+import java.time.Duration
+import java.time.Instant
 import java.time.ZoneId
 import java.time.ZonedDateTime
 import java.time.ZonedDateTime.now
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import kotlin.math.ceil
 import kotlin.random.Random.Default.nextInt
 
+/**
+ * Schedules jobs with Quartz. Timers and time-based reminders due within the horizon of the [TimingWheelScheduler]
+ * run in process instead, only those due later become Quartz jobs. Which of them are Quartz jobs is tracked in
+ * memory from the startup reconciliation on, so timers and reminders living on the timing wheel are scheduled,
+ * rescheduled and cancelled without asking the job store.
+ *
+ * Jobs scheduled again are only rewritten if they changed, which matters with the persistent job store of the
+ * `quartz-jdbc` profile. When several instances share that job store ([clustered]), timers and reminders always
+ * become Quartz jobs, as the timing wheel of one instance is not visible to the others.
+ *
+ * At startup the jobs of a group are reconciled with the jobs that should exist in one pass (see [reconcile]) instead
+ * of scheduling them one by one.
+ *
+ * Routines are not Quartz jobs of their own, they fire in the per-minute buckets of the [RoutineFanOut].
+ */
 @Service
 class QuartzSchedulerService(
     private val scheduler: Scheduler,
+    private val timingWheelScheduler: TimingWheelScheduler,
+    private val timerJob: TimerJob,
+    private val timeBasedReminderJob: TimeBasedReminderJob,
+    private val routineFanOut: RoutineFanOut,
+    @Value("\${fibi.scheduler.clustered:false}") private val clustered: Boolean,
+    @Value("\${fibi.scheduler.reconcile-batch-size:500}") private val reconcileBatchSize: Int,
 ) : SchedulerService {
 
     companion object {
@@ -37,34 +70,27 @@ class QuartzSchedulerService(
         private const val TIMER_GROUP = "timerJobs"
         private const val APPOINTMENT_REMINDER_GROUP = "appointmentReminderJobs"
         private const val GENERATING_MESSAGE_GROUP = "generatingMessageJobs"
+        private const val ROUTINE_FAN_OUT_GROUP = "routineFanOutJobs"
+
+        /** Jobs of routine instances share the routine group, see [QuartzRoutineScheduler]. */
+        private val ROUTINE_INSTANCE_JOB_PREFIXES = listOf("routine-trigger-", "routine-step-", "routine-phase-")
     }
 
+    /** Timers and time-based reminders that are Quartz jobs rather than on the timing wheel. */
+    private val storedInQuartz: MutableSet<JobKey> = ConcurrentHashMap.newKeySet()
+
     /**
-     * Schedules a routine based on its configuration.
+     * Schedules a routine based on its configuration, or cancels its next start if it is not enabled.
      * The payload is generated internally.
      * Assumes that routine.id is not null.
      */
     override fun scheduleRoutine(routine: RoutineConfiguration) {
         if (!routine.enabled) {
-            LOG.debug("Routine ${routine.id} for friendshipId=${routine.friendshipId} is not enabled; skipping scheduling.")
+            LOG.debug("Routine ${routine.id} for friendshipId=${routine.friendshipId} is not enabled; cancelling its schedule.")
+            routineFanOut.cancel(routineKey(routine))
             return
         }
-
-        // Compute the next occurrence based on the trigger.
-        val triggerTime = computeNextOccurrence(routine.trigger)
-
-        // Generate a payload from the routine configuration.
-        val payload = generatePayload(routine)
-
-        val jobKeyStr = "routine-${routine.friendshipId}-${routine.id}"
-        scheduleJob(
-            jobKeyStr,
-            ROUTINE_GROUP,
-            triggerTime,
-            GenericRoutineJob::class.java,
-            payload,
-            simpleSchedule().withIntervalInHours(24).repeatForever().withMisfireHandlingInstructionFireNow()
-        )
+        routineFanOut.schedule(routineEntryFor(routine))
     }
 
     /**
@@ -75,7 +101,38 @@ class QuartzSchedulerService(
     }
 
     /**
-     * Generic method to schedule a job using Quartz. Deletes job first if it existed.
+     * Also removes the Quartz jobs of routines scheduled before routines moved to the [RoutineFanOut].
+     */
+    override fun reconcileRoutines(routines: List<RoutineConfiguration>): SchedulerReconciliation {
+        val legacyJobs = reconcile(ROUTINE_GROUP, emptyList()) { jobKey ->
+            ROUTINE_INSTANCE_JOB_PREFIXES.none { jobKey.name.startsWith(it) }
+        }
+        val reconciliation =
+            routineFanOut.reconcile(ROUTINE_EXECUTION, routines.filter { it.enabled }.map { routineEntryFor(it) })
+        return reconciliation.copy(removed = reconciliation.removed + legacyJobs.removed)
+    }
+
+    private fun routineKey(routine: RoutineConfiguration) = "routine-${routine.friendshipId}-${routine.id}"
+
+    private fun routineEntryFor(routine: RoutineConfiguration) = RoutineFanOutEntry(
+        routineKey(routine),
+        ROUTINE_EXECUTION,
+        routine.friendshipId,
+        computeNextOccurrence(routine.trigger).toInstant(),
+        generatePayload(routine),
+        recurrence = routine.trigger,
+    )
+
+    /**
+     * Runs the [RoutineFanOutJob] at the start of every minute.
+     */
+    @EventListener(ApplicationStartedEvent::class)
+    fun scheduleRoutineFanOut() {
+        scheduleJob("routine-fan-out", ROUTINE_FAN_OUT_GROUP, RoutineFanOutJob::class.java, emptyMap(), "0 * * * * ?")
+    }
+
+    /**
+     * Generic method to schedule a job using Quartz. Replaces the job if it existed with different data or trigger.
      */
     fun scheduleJob(
         jobKeyStr: String,
@@ -85,17 +142,11 @@ class QuartzSchedulerService(
         payload: Map<String, Any>,
         scheduleBuilder: SimpleScheduleBuilder,
     ) {
-        val jobKey = JobKey.jobKey(jobKeyStr, group)
-        val jobData = JobDataMap(payload)
-        val trigger = newTrigger().withIdentity("trigger-$jobKeyStr", group)
-            .startAt(Date.from(triggerTime.toInstant())).withSchedule(
-                scheduleBuilder
-            ).build()
-        scheduleJob(jobKey, jobClass, jobData, trigger)
+        schedule(scheduledJob(jobKeyStr, group, triggerTime, jobClass, payload, scheduleBuilder))
     }
 
     /**
-     * Generic method to schedule a job using Quartz. Deletes job first if it existed.
+     * Generic method to schedule a job using Quartz. Replaces the job if it existed with different data or trigger.
      */
     fun scheduleJob(
         jobKeyStr: String,
@@ -104,29 +155,77 @@ class QuartzSchedulerService(
         payload: Map<String, Any>,
         cronExpression: String,
     ) {
-        val jobKey = JobKey.jobKey(jobKeyStr, group)
-        val jobData = JobDataMap(payload)
         val trigger = newTrigger().withIdentity("trigger-$jobKeyStr", group)
             .withSchedule(cronSchedule(cronExpression))
             .build()
-        scheduleJob(jobKey, jobClass, jobData, trigger)
+        schedule(ScheduledJob(jobDetail(jobKeyStr, group, jobClass, payload), trigger))
     }
 
+    /**
+     * Makes the jobs of [group] match [jobs]: jobs missing or differing from the job store are scheduled in batches
+     * of [reconcileBatchSize] replacing the stored ones, stored jobs not among [jobs] are deleted. Only stored jobs
+     * within [scope] are considered, for groups shared with jobs managed elsewhere.
+     */
+    fun reconcile(
+        group: String, jobs: Collection<ScheduledJob>, scope: (JobKey) -> Boolean = { true },
+    ): SchedulerReconciliation {
+        val start = System.nanoTime()
+        val stored = scheduler.getJobKeys(GroupMatcher.jobGroupEquals(group)).filter(scope).toSet()
+        val wanted = jobs.associateBy { it.jobDetail.key }
+        val obsolete = stored.filter { it !in wanted }
+        obsolete.chunked(reconcileBatchSize).forEach { scheduler.deleteJobs(it) }
+        val (existing, missing) = wanted.values.partition { it.jobDetail.key in stored }
+        val changed = existing.filterNot { it.keepTrigger || isScheduled(it) }
+        (missing + changed).chunked(reconcileBatchSize).forEach { batch ->
+            scheduler.scheduleJobs(batch.associate { it.jobDetail to setOf(it.trigger) }, true)
+        }
+        return SchedulerReconciliation(
+            group = group,
+            created = missing.size,
+            updated = changed.size,
+            removed = obsolete.size,
+            unchanged = existing.size - changed.size,
+            duration = Duration.ofNanos(System.nanoTime() - start),
+        ).also {
+            LOG.info(
+                "Reconciled {} in {}: {} created, {} updated, {} removed, {} unchanged",
+                group, it.duration, it.created, it.updated, it.removed, it.unchanged
+            )
+        }
+    }
 
-    private fun scheduleJob(
-        jobKey: JobKey,
-        jobClass: Class<out Job>,
-        jobData: JobDataMap,
-        trigger: Trigger,
-    ) {
+    private fun schedule(job: ScheduledJob) {
+        val jobKey = job.jobDetail.key
+        if (isScheduled(job)) {
+            LOG.debug("Job {} is already scheduled", jobKey)
+            return
+        }
         deleteJob(jobKey)
-        val jobDetail = newJob(jobClass).withIdentity(jobKey).usingJobData(jobData).build()
-        scheduler.scheduleJob(jobDetail, trigger)
-        LOG.debug("Scheduled job {} to run at {}", jobKey, trigger.nextFireTime)
+        scheduler.scheduleJob(job.jobDetail, job.trigger)
+        LOG.debug("Scheduled job {} to run at {}", jobKey, job.trigger.nextFireTime)
+    }
+
+    private fun scheduledJob(
+        jobKeyStr: String,
+        group: String,
+        triggerTime: ZonedDateTime,
+        jobClass: Class<out Job>,
+        payload: Map<String, Any>,
+        scheduleBuilder: SimpleScheduleBuilder,
+        keepTrigger: Boolean = false,
+    ): ScheduledJob {
+        val trigger = newTrigger().withIdentity("trigger-$jobKeyStr", group)
+            .startAt(Date.from(triggerTime.toInstant())).withSchedule(
+                scheduleBuilder
+            ).build()
+        return ScheduledJob(jobDetail(jobKeyStr, group, jobClass, payload), trigger, keepTrigger)
     }
 
+    private fun jobDetail(jobKeyStr: String, group: String, jobClass: Class<out Job>, payload: Map<String, Any>) =
+        newJob(jobClass).withIdentity(JobKey.jobKey(jobKeyStr, group)).usingJobData(JobDataMap(payload)).build()
+
     fun deleteJob(jobKeyStr: String, group: String) {
-        val jobKey = JobKey.jobKey(jobKeyStr, group)
+        deleteJob(JobKey.jobKey(jobKeyStr, group))
     }
 
     private fun deleteJob(jobKey: JobKey) {
@@ -135,6 +234,65 @@ class QuartzSchedulerService(
         }
     }
 
+    /**
+     * Whether the job store already holds the job with the same data and a trigger firing at the same times.
+     */
+    private fun isScheduled(job: ScheduledJob): Boolean {
+        val jobDetail = scheduler.getJobDetail(job.jobDetail.key) ?: return false
+        val existingTrigger = scheduler.getTrigger(job.trigger.key) ?: return false
+        return jobDetail.jobClass == job.jobDetail.jobClass && jobDetail.jobDataMap == job.jobDetail.jobDataMap &&
+                hasSameSchedule(existingTrigger, job.trigger)
+    }
+
+    private fun hasSameSchedule(existing: Trigger, trigger: Trigger): Boolean = when {
+        existing is CronTrigger && trigger is CronTrigger ->
+            existing.cronExpression == trigger.cronExpression && existing.timeZone == trigger.timeZone
+
+        existing is SimpleTrigger && trigger is SimpleTrigger ->
+            existing.repeatInterval == trigger.repeatInterval && existing.repeatCount == trigger.repeatCount &&
+                    existing.misfireInstruction == trigger.misfireInstruction &&
+                    existing.nextFireTime == trigger.startTime
+
+        else -> false
+    }
+
+    /**
+     * Schedules [task] on the timing wheel unless the instance is clustered or the job is [stored] already, e.g.
+     * because it was beyond the horizon when it was scheduled before a restart.
+     */
+    private fun scheduleInProcess(
+        jobKey: JobKey, fireAt: Instant, stored: Boolean = jobKey in storedInQuartz, task: () -> Unit,
+    ): Boolean = !clustered && !stored && timingWheelScheduler.schedule(inProcessKey(jobKey), fireAt, task)
+
+    /**
+     * Schedules [job] of a timer or time-based reminder with Quartz and remembers it is stored there.
+     */
+    private fun scheduleInQuartz(job: ScheduledJob) {
+        schedule(job)
+        storedInQuartz += job.jobDetail.key
+    }
+
+    /**
+     * Reconciles the timers or time-based reminders of [group] that are not scheduled in process and remembers
+     * them as the ones stored in Quartz.
+     */
+    private fun reconcileInQuartz(group: String, jobs: List<ScheduledJob>): SchedulerReconciliation =
+        reconcile(group, jobs).also {
+            storedInQuartz.removeIf { it.group == group }
+            storedInQuartz += jobs.map { it.jobDetail.key }
+        }
+
+    /**
+     * Cancels the timer or time-based reminder of [jobKey], only asking Quartz if it was not on the timing wheel.
+     * When clustered another instance may have stored the job, so Quartz is always asked then.
+     */
+    private fun cancel(jobKey: JobKey) {
+        if (timingWheelScheduler.cancel(inProcessKey(jobKey))) return
+        if (storedInQuartz.remove(jobKey) || clustered) scheduler.deleteJob(jobKey)
+    }
+
+    private fun inProcessKey(jobKey: JobKey) = "${jobKey.group}.${jobKey.name}"
+
     /**
      * Computes the next occurrence for a TimeBasedTrigger.
      */
@@ -149,30 +307,55 @@ class QuartzSchedulerService(
     }
 
     override fun scheduleCalendarSync(friendshipId: FriendshipId, calendarConfigId: CalendarConfigId) {
-        // Compute the next occurrence
-        val triggerTime = computeNextOccurrence(nextInt(0, 20))
-
-        // Generate a payload from the routine configuration.
-        val payload = generatePayload(friendshipId, calendarConfigId)
+        schedule(calendarSyncJobFor(friendshipId, calendarConfigId))
+    }
 
-        val jobKeyStr = "calendar-${friendshipId}-${calendarConfigId}"
+    /**
+     * Syncs already scheduled keep their interval, see [icu.neurospicy.fibi.calendar.sync.CalendarSyncIntervals].
+     */
+    override fun reconcileCalendarSyncs(calendarConfigurations: List<CalendarConfiguration>): SchedulerReconciliation =
+        reconcile(CALENDAR_GROUP, calendarConfigurations.map { calendarSyncJobFor(it.friendshipId, it.calendarConfigId) })
+
+    private fun calendarSyncJobFor(friendshipId: FriendshipId, calendarConfigId: CalendarConfigId) = scheduledJob(
+        calendarJobKey(friendshipId, calendarConfigId),
+        CALENDAR_GROUP,
+        computeNextOccurrence(nextInt(0, 20)),
+        GenericCalendarJob::class.java,
+        generatePayload(friendshipId, calendarConfigId),
+        simpleSchedule().withIntervalInMinutes(20).repeatForever().withMisfireHandlingInstructionFireNow(),
+        keepTrigger = true
+    )
+
+    override fun scheduleCalendarSync(
+        friendshipId: FriendshipId, calendarConfigId: CalendarConfigId, interval: Duration
+    ) {
         scheduleJob(
-            jobKeyStr,
+            calendarJobKey(friendshipId, calendarConfigId),
             CALENDAR_GROUP,
-            triggerTime,
+            now().plus(interval),
             GenericCalendarJob::class.java,
-            payload,
-            simpleSchedule().withIntervalInMinutes(20).repeatForever().withMisfireHandlingInstructionFireNow()
+            generatePayload(friendshipId, calendarConfigId),
+            simpleSchedule().withIntervalInMilliseconds(interval.toMillis()).repeatForever()
+                .withMisfireHandlingInstructionFireNow()
         )
     }
 
+    /**
+     * Returns when the next routine start or trigger of the friend fires, if any is scheduled. Step and phase jobs
+     * of running routines are not considered.
+     */
+    fun nextRoutineFireTime(friendshipId: FriendshipId): Instant? = routineFanOut.nextFireTime(friendshipId)
+
+    private fun calendarJobKey(friendshipId: FriendshipId, calendarConfigId: CalendarConfigId) =
+        "calendar-${friendshipId}-${calendarConfigId}"
+
     private fun computeNextOccurrence(startMinutes: Int): ZonedDateTime {
         val now = now()
         return now.withMinute(startMinutes.times(ceil(now.minute.toFloat() / startMinutes.toFloat()).toInt()).mod(60))
             .let { if (it > now) it else it.plusHours(1) }
     }
 
-    private fun generatePayload(routine: RoutineConfiguration): Map<String, Any> {
+    private fun generatePayload(routine: RoutineConfiguration): Map<String, String> {
         return mapOf(
             "friendshipId" to routine.friendshipId.toString(),
             "routineId" to routine.id!!.toString(), // routine.id is not null by design.
@@ -188,31 +371,55 @@ class QuartzSchedulerService(
     }
 
     override fun scheduleReminder(reminder: Reminder) {
-        val jobKeyStr = "reminder-${reminder.owner}-${reminder._id}"
-        scheduleJob(
-            jobKeyStr,
-            TIME_BASED_REMINDER_GROUP,
-            reminder.trigger.localTime.atZone(reminder.trigger.timezone),
-            TimeBasedReminderJob::class.java,
-            mapOf("owner" to reminder.owner.toString(), "reminderId" to reminder._id!!),
-            simpleSchedule().withMisfireHandlingInstructionFireNow()
-        )
+        val job = reminderJobFor(reminder)
+        if (!scheduleReminderInProcess(reminder, job)) scheduleInQuartz(job)
+    }
+
+    override fun reconcileReminders(reminders: List<Reminder>): SchedulerReconciliation {
+        val stored = scheduler.getJobKeys(GroupMatcher.jobGroupEquals(TIME_BASED_REMINDER_GROUP))
+        return reconcileInQuartz(TIME_BASED_REMINDER_GROUP, reminders.map { it to reminderJobFor(it) }
+            .filterNot { (reminder, job) -> scheduleReminderInProcess(reminder, job, job.jobDetail.key in stored) }
+            .map { it.second })
     }
 
+    private fun scheduleReminderInProcess(
+        reminder: Reminder, job: ScheduledJob, stored: Boolean = job.jobDetail.key in storedInQuartz,
+    ) = scheduleInProcess(job.jobDetail.key, job.trigger.startTime.toInstant(), stored) {
+        timeBasedReminderJob.fire(reminder.owner, reminder._id!!)
+    }
+
+    private fun reminderJobFor(reminder: Reminder) = scheduledJob(
+        "reminder-${reminder.owner}-${reminder._id}",
+        TIME_BASED_REMINDER_GROUP,
+        reminder.trigger.localTime.atZone(reminder.trigger.timezone),
+        TimeBasedReminderJob::class.java,
+        mapOf("owner" to reminder.owner.toString(), "reminderId" to reminder._id!!),
+        simpleSchedule().withMisfireHandlingInstructionFireNow()
+    )
+
     override fun removeSchedulerForReminder(owner: FriendshipId, reminderId: String) {
-        val jobKeyStr = "reminder-${owner}-${reminderId}"
-        scheduler.deleteJob(JobKey.jobKey(jobKeyStr, TIME_BASED_REMINDER_GROUP))
+        cancel(JobKey.jobKey("reminder-${owner}-${reminderId}", TIME_BASED_REMINDER_GROUP))
     }
 
     override fun rescheduleReminder(reminder: Reminder) {
+        removeSchedulerForReminder(reminder.owner, reminder._id!!)
         scheduleReminder(reminder)
     }
 
     override fun scheduleReminder(reminder: AppointmentReminder, appointment: Appointment) {
+        schedule(appointmentReminderJobFor(reminder, appointment))
+    }
+
+    override fun reconcileAppointmentReminders(
+        reminders: List<Pair<AppointmentReminder, Appointment>>
+    ): SchedulerReconciliation = reconcile(
+        APPOINTMENT_REMINDER_GROUP,
+        reminders.map { (reminder, appointment) -> appointmentReminderJobFor(reminder, appointment) })
+
+    private fun appointmentReminderJobFor(reminder: AppointmentReminder, appointment: Appointment): ScheduledJob {
         val remindAt = if (reminder.remindBeforeAppointment) appointment.startAt else appointment.endAt
-        val jobKeyStr = "reminder-${reminder.owner}-${reminder._id}-${appointment.appointmentId}"
-        scheduleJob(
-            jobKeyStr,
+        return scheduledJob(
+            "reminder-${reminder.owner}-${reminder._id}-${appointment.appointmentId}",
             APPOINTMENT_REMINDER_GROUP,
             remindAt.instant.atZone(remindAt.zoneId),
             AppointmentReminderJob::class.java,
@@ -252,25 +459,47 @@ class QuartzSchedulerService(
     }
 
     override fun scheduleTimer(timer: Timer) {
-        val jobKeyStr = "timer-${timer.owner}-${timer._id}"
-        scheduleJob(
-            jobKeyStr,
-            TIMER_GROUP,
-            (timer.startedAt + timer.duration).atZone(ZoneId.systemDefault()),
-            TimerJob::class.java,
-            mapOf("owner" to timer.owner.toString(), "timerId" to timer._id!!),
-            simpleSchedule().withMisfireHandlingInstructionFireNow()
-        )
+        val job = timerJobFor(timer)
+        if (!scheduleTimerInProcess(timer, job)) scheduleInQuartz(job)
+    }
+
+    override fun reconcileTimers(timers: List<Timer>): SchedulerReconciliation {
+        val stored = scheduler.getJobKeys(GroupMatcher.jobGroupEquals(TIMER_GROUP))
+        return reconcileInQuartz(TIMER_GROUP, timers.map { it to timerJobFor(it) }
+            .filterNot { (timer, job) -> scheduleTimerInProcess(timer, job, job.jobDetail.key in stored) }
+            .map { it.second })
     }
 
+    private fun scheduleTimerInProcess(
+        timer: Timer, job: ScheduledJob, stored: Boolean = job.jobDetail.key in storedInQuartz,
+    ) = scheduleInProcess(job.jobDetail.key, timer.startedAt + timer.duration, stored) {
+        timerJob.fire(timer.owner, timer._id!!)
+    }
+
+    private fun timerJobFor(timer: Timer) = scheduledJob(
+        "timer-${timer.owner}-${timer._id}",
+        TIMER_GROUP,
+        (timer.startedAt + timer.duration).atZone(ZoneId.systemDefault()),
+        TimerJob::class.java,
+        mapOf("owner" to timer.owner.toString(), "timerId" to timer._id!!),
+        simpleSchedule().withMisfireHandlingInstructionFireNow()
+    )
+
     override fun rescheduleTimer(timer: Timer) {
+        removeSchedulerForTimer(timer.owner, timer._id!!)
         scheduleTimer(timer)
     }
 
     override fun removeSchedulerForTimer(
         friendshipId: FriendshipId, timerId: String,
     ) {
-        val jobKeyStr = "timer-${friendshipId}-${timerId}"
-        scheduler.deleteJob(JobKey.jobKey(jobKeyStr, TIMER_GROUP))
+        cancel(JobKey.jobKey("timer-${friendshipId}-${timerId}", TIMER_GROUP))
     }
-}
\ No newline at end of file
+}
+
+/**
+ * A job with its trigger as it should be scheduled.
+ *
+ * @param keepTrigger whether a stored job keeps its trigger when reconciling, e.g. the adapted interval of a sync
+ */
+class ScheduledJob(val jobDetail: JobDetail, val trigger: Trigger, val keepTrigger: Boolean = false)
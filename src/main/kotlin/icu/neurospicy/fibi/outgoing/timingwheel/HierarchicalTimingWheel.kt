@@ -0,0 +1,85 @@
+package icu.neurospicy.fibi.outgoing.timingwheel
+
+/**
+ * Hierarchical timing wheel (Varghese & Lauck) with [levels] wheels of [wheelSize] slots each. A slot of level 0
+ * covers one tick, a slot of level n covers `wheelSize^n` ticks. Entries move to lower levels when the wheel
+ * reaches their slot, so scheduling and cancelling are O(1) and advancing costs O(1) per tick.
+ *
+ * Not thread-safe on its own, [TimingWheelScheduler] synchronizes access.
+ */
+internal class HierarchicalTimingWheel<K : Any>(
+    private val tickMillis: Long,
+    startMillis: Long,
+    private val wheelSize: Int = 64,
+    private val levels: Int = 3,
+) {
+    private var currentTick = startMillis / tickMillis
+    private val slots = List(levels) { List(wheelSize) { ArrayList<Entry<K>>() } }
+    private val entries = HashMap<K, Entry<K>>()
+    private val spans = LongArray(levels + 1).also { spans ->
+        spans[0] = 1
+        for (level in 1..levels) spans[level] = spans[level - 1] * wheelSize
+    }
+
+    /** Longest delay the wheel can hold. */
+    val capacityMillis: Long get() = (spans[levels] - 1) * tickMillis
+
+    val size: Int get() = entries.size
+
+    /**
+     * Schedules [task] under [key], replacing an entry with the same key. Deadlines in the past fire on the next tick.
+     *
+     * @return false if the deadline is beyond [capacityMillis]
+     */
+    fun schedule(key: K, deadlineMillis: Long, task: () -> Unit): Boolean {
+        val deadlineTick = maxOf(Math.ceilDiv(deadlineMillis, tickMillis), currentTick + 1)
+        if (deadlineTick - currentTick >= spans[levels]) return false
+        cancel(key)
+        val entry = Entry(key, deadlineMillis, deadlineTick, task)
+        entries[key] = entry
+        place(entry)
+        return true
+    }
+
+    fun cancel(key: K): Boolean {
+        val entry = entries.remove(key) ?: return false
+        entry.cancelled = true
+        return true
+    }
+
+    /**
+     * Advances the wheel up to [nowMillis] and returns the entries that are due, in deadline order.
+     */
+    fun advanceTo(nowMillis: Long): List<Entry<K>> {
+        val targetTick = nowMillis / tickMillis
+        val due = ArrayList<Entry<K>>()
+        while (currentTick < targetTick) {
+            currentTick++
+            for (level in levels - 1 downTo 1) {
+                if (currentTick % spans[level] != 0L) continue
+                val slot = slots[level][((currentTick / spans[level]) % wheelSize).toInt()]
+                val cascading = ArrayList(slot)
+                slot.clear()
+                cascading.filterNot { it.cancelled }.forEach {
+                    if (it.deadlineTick <= currentTick) due += it else place(it)
+                }
+            }
+            val slot = slots[0][(currentTick % wheelSize).toInt()]
+            slot.filterTo(due) { !it.cancelled }
+            slot.clear()
+        }
+        due.forEach { entries.remove(it.key, it) }
+        return due.sortedBy { it.deadlineMillis }
+    }
+
+    private fun place(entry: Entry<K>) {
+        val delta = entry.deadlineTick - currentTick
+        val level = (0 until levels).first { delta < spans[it + 1] }
+        slots[level][((entry.deadlineTick / spans[level]) % wheelSize).toInt()] += entry
+    }
+
+    class Entry<K>(val key: K, val deadlineMillis: Long, val deadlineTick: Long, val task: () -> Unit) {
+        @Volatile
+        var cancelled = false
+    }
+}
@@ -0,0 +1,96 @@
+package icu.neurospicy.fibi.outgoing.timingwheel
+
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Timer
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Component
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * In-process scheduler for near-term tasks like timers and time-based reminders, backed by a
+ * [HierarchicalTimingWheel]. Tasks are not persisted, their owners reschedule them from their repositories at
+ * startup. Tasks due later than [horizon] are rejected and belong to Quartz.
+ */
+@Component
+class TimingWheelScheduler(
+    meterRegistry: MeterRegistry,
+    @Value("\${fibi.timing-wheel.tick:PT1S}") tick: Duration,
+    @Value("\${fibi.timing-wheel.horizon:PT24H}") private val horizon: Duration,
+    @Value("\${fibi.timing-wheel.parallelism:4}") parallelism: Int,
+) : DisposableBean {
+    private val wheel = HierarchicalTimingWheel<String>(tick.toMillis(), System.currentTimeMillis())
+    private val threadCount = AtomicInteger()
+    private val ticker = Executors.newSingleThreadScheduledExecutor { Thread(it, "timing-wheel").apply { isDaemon = true } }
+    private val workers = Executors.newFixedThreadPool(parallelism) {
+        Thread(it, "timing-wheel-worker-${threadCount.incrementAndGet()}").apply { isDaemon = true }
+    }
+
+    private val fireLatency = Timer.builder("fibi.timing-wheel.fire.latency")
+        .description("Delay between the deadline of a task and the moment it starts")
+        .publishPercentiles(0.5, 0.95, 0.99).register(meterRegistry)
+    private val firedCounter = Counter.builder("fibi.timing-wheel.fired")
+        .description("Tasks fired by the timing wheel").register(meterRegistry)
+
+    init {
+        require(horizon.toMillis() <= wheel.capacityMillis) {
+            "fibi.timing-wheel.horizon $horizon exceeds the wheel's capacity of ${Duration.ofMillis(wheel.capacityMillis)}"
+        }
+        Gauge.builder("fibi.timing-wheel.pending", this) { it.pending().toDouble() }
+            .description("Tasks waiting in the timing wheel").register(meterRegistry)
+        ticker.scheduleAtFixedRate(::tick, tick.toMillis(), tick.toMillis(), MILLISECONDS)
+    }
+
+    /**
+     * Schedules [task] to run at [fireAt], replacing the task scheduled under [key].
+     *
+     * @return false if [fireAt] is beyond the horizon, a task scheduled under [key] is cancelled then
+     */
+    fun schedule(key: String, fireAt: Instant, task: () -> Unit): Boolean = synchronized(wheel) {
+        if (fireAt.isAfter(Instant.now().plus(horizon))) {
+            wheel.cancel(key)
+            return false
+        }
+        wheel.schedule(key, fireAt.toEpochMilli(), task)
+    }
+
+    fun cancel(key: String): Boolean = synchronized(wheel) { wheel.cancel(key) }
+
+    fun pending(): Int = synchronized(wheel) { wheel.size }
+
+    private fun tick() {
+        val due = try {
+            synchronized(wheel) { wheel.advanceTo(System.currentTimeMillis()) }
+        } catch (e: Exception) {
+            LOG.error("Failed to advance timing wheel", e)
+            return
+        }
+        due.forEach { entry ->
+            workers.execute {
+                fireLatency.record(Duration.ofMillis(maxOf(0, System.currentTimeMillis() - entry.deadlineMillis)))
+                firedCounter.increment()
+                try {
+                    entry.task()
+                } catch (e: Exception) {
+                    LOG.error("Failed to run task {}", entry.key, e)
+                }
+            }
+        }
+    }
+
+    override fun destroy() {
+        ticker.shutdownNow()
+        workers.shutdown()
+    }
+
+    companion object {
+        private val LOG = LoggerFactory.getLogger(TimingWheelScheduler::class.java)
+    }
+}
@@ -0,0 +1,80 @@
+package icu.neurospicy.fibi.application
+
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import java.time.Duration
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class FriendMailboxDispatcherTest {
+    private val meterRegistry = SimpleMeterRegistry()
+    private val dispatcher = FriendMailboxDispatcher(meterRegistry, 4, 4, Duration.ofMillis(200))
+
+    @AfterEach
+    fun tearDown() {
+        dispatcher.destroy()
+    }
+
+    @Test
+    fun `processes messages of one friend in order`() {
+        val friendshipId = FriendshipId()
+        val processed = CopyOnWriteArrayList<Int>()
+        val done = CountDownLatch(4)
+        (1..4).forEach { i ->
+            dispatcher.dispatch(friendshipId) {
+                Thread.sleep(10L * (5 - i))
+                processed += i
+                done.countDown()
+            }
+        }
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue()
+        assertThat(processed).containsExactly(1, 2, 3, 4)
+    }
+
+    @Test
+    fun `processes different friends concurrently`() {
+        val slowFriendStarted = CountDownLatch(1)
+        val releaseSlowFriend = CountDownLatch(1)
+        val otherFriendDone = CountDownLatch(1)
+        dispatcher.dispatch(FriendshipId()) {
+            slowFriendStarted.countDown()
+            releaseSlowFriend.await(5, TimeUnit.SECONDS)
+        }
+        assertThat(slowFriendStarted.await(5, TimeUnit.SECONDS)).isTrue()
+        dispatcher.dispatch(FriendshipId()) { otherFriendDone.countDown() }
+        assertThat(otherFriendDone.await(5, TimeUnit.SECONDS)).isTrue()
+        releaseSlowFriend.countDown()
+    }
+
+    @Test
+    fun `rejects messages when mailbox is full`() {
+        val friendshipId = FriendshipId()
+        val release = CountDownLatch(1)
+        val started = CountDownLatch(1)
+        dispatcher.dispatch(friendshipId) {
+            started.countDown()
+            release.await(5, TimeUnit.SECONDS)
+        }
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue()
+        val accepted = (1..5).map { dispatcher.dispatch(friendshipId) {} }
+        release.countDown()
+        assertThat(accepted).containsExactly(true, true, true, true, false)
+        assertThat(meterRegistry.counter("fibi.mailbox.rejected").count()).isEqualTo(1.0)
+    }
+
+    @Test
+    fun `reopens mailbox after it went idle`() {
+        val friendshipId = FriendshipId()
+        val first = CountDownLatch(1)
+        dispatcher.dispatch(friendshipId) { first.countDown() }
+        assertThat(first.await(5, TimeUnit.SECONDS)).isTrue()
+        Thread.sleep(400)
+        val second = CountDownLatch(1)
+        assertThat(dispatcher.dispatch(friendshipId) { second.countDown() }).isTrue()
+        assertThat(second.await(5, TimeUnit.SECONDS)).isTrue()
+    }
+}
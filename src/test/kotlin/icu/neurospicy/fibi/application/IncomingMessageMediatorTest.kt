@@ -1,13 +1,105 @@
 package icu.neurospicy.fibi.application
 
+import icu.neurospicy.fibi.domain.model.Channel
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.model.LedgerEntry
+import icu.neurospicy.fibi.domain.model.OutgoingAdaptedTextMessage
+import icu.neurospicy.fibi.domain.model.RelationStatus
+import icu.neurospicy.fibi.domain.model.SignalMessageId
+import icu.neurospicy.fibi.domain.model.UserMessage
+import icu.neurospicy.fibi.domain.model.events.IncomingFriendMessageReceived
+import icu.neurospicy.fibi.domain.model.events.MessageForActivityReceived
+import icu.neurospicy.fibi.domain.model.events.SendMessageCmd
+import icu.neurospicy.fibi.domain.model.events.UnidentifiedIncomingMessageReceived
+import icu.neurospicy.fibi.domain.repository.ChatRepository
+import icu.neurospicy.fibi.domain.repository.FriendshipLedger
+import icu.neurospicy.fibi.domain.service.friends.interaction.GoalContext
+import icu.neurospicy.fibi.domain.service.friends.interaction.GoalContextRepository
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import io.mockk.verifyOrder
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import org.springframework.context.ApplicationEvent
+import org.springframework.context.ApplicationEventPublisher
+
 internal class IncomingMessageMediatorTest {
-/*
-    verify {
-        chatRepository.add(friendshipId, withArg<IncomingMessage> {
-            kotlin.test.assertTrue { it.channel == Channel.SIGNAL }
-            kotlin.test.assertTrue { it.content == "Hello" }
-            kotlin.test.assertTrue { Instant.now().minusSeconds(2) < it.receivedAt }
-        }, rawMessage)
-    }
-*/
-}
\ No newline at end of file
+
+    private val friendshipId = FriendshipId()
+    private val chatRepository = mockk<ChatRepository>(relaxed = true)
+    private val eventPublisher = mockk<ApplicationEventPublisher>(relaxed = true)
+    private val friendMailboxDispatcher = mockk<FriendMailboxDispatcher>()
+    private val goalContextRepository = object : GoalContextRepository {
+        override fun loadContext(friendshipId: FriendshipId) = null
+        override fun saveContext(friendshipId: FriendshipId, context: GoalContext) {}
+    }
+    private val friendshipLedger = mockk<FriendshipLedger>()
+    private val mediator = IncomingMessageMediator(
+        chatRepository, eventPublisher, friendMailboxDispatcher, goalContextRepository, friendshipLedger
+    )
+    private val message = UserMessage(SignalMessageId(1), text = "Hello", channel = Channel.SIGNAL)
+    private val event = UnidentifiedIncomingMessageReceived(
+        LedgerEntry(friendshipId = friendshipId, relationStatus = RelationStatus.Friend), message, "raw"
+    )
+
+    @Test
+    fun `stores the message before processing it in the friend's mailbox`() {
+        //given
+        every { friendMailboxDispatcher.dispatch(friendshipId, any()) } answers {
+            secondArg<() -> Unit>().invoke()
+            true
+        }
+        every { friendshipLedger.findBy(friendshipId) } returns event.entry
+        //when
+        mediator.handleIncomingMessage(event)
+        //then
+        verifyOrder {
+            chatRepository.add(friendshipId, message, "raw")
+            eventPublisher.publishEvent(IncomingFriendMessageReceived(friendshipId, message))
+        }
+    }
+
+    @Test
+    fun `stores the message and tells the friend to send it again when their mailbox is full`() {
+        //given
+        every { friendMailboxDispatcher.dispatch(friendshipId, any()) } returns false
+        //when
+        mediator.handleIncomingMessage(event)
+        //then
+        verify { chatRepository.add(friendshipId, message, "raw") }
+        verify(exactly = 0) { eventPublisher.publishEvent(any<IncomingFriendMessageReceived>()) }
+        verify {
+            eventPublisher.publishEvent(withArg<ApplicationEvent> {
+                assertThat(it).isInstanceOf(SendMessageCmd::class.java)
+                val cmd = it as SendMessageCmd
+                assertThat(cmd.friendshipId).isEqualTo(friendshipId)
+                assertThat(cmd.answerToMessageId).isEqualTo(message.messageId)
+                assertThat((cmd.outgoingMessage as OutgoingAdaptedTextMessage).text).contains("send it again")
+            })
+        }
+    }
+
+    @Test
+    fun `routes a queued message by the activity an earlier message started`() {
+        //given
+        val queued = mutableListOf<() -> Unit>()
+        every { friendMailboxDispatcher.dispatch(friendshipId, any()) } answers {
+            queued += secondArg<() -> Unit>()
+            true
+        }
+        var entry = event.entry
+        every { friendshipLedger.findBy(friendshipId) } answers { entry }
+        every { eventPublisher.publishEvent(IncomingFriendMessageReceived(friendshipId, message)) } answers {
+            entry = entry.copy(activeActivity = "morning-routine")
+        }
+        val secondMessage = UserMessage(SignalMessageId(2), text = "At 7", channel = Channel.SIGNAL)
+        mediator.handleIncomingMessage(event)
+        mediator.handleIncomingMessage(UnidentifiedIncomingMessageReceived(event.entry, secondMessage, "raw"))
+        //when
+        queued.forEach { it() }
+        //then
+        verify { eventPublisher.publishEvent(MessageForActivityReceived("morning-routine", friendshipId, secondMessage)) }
+        verify(exactly = 0) { eventPublisher.publishEvent(IncomingFriendMessageReceived(friendshipId, secondMessage)) }
+    }
+}
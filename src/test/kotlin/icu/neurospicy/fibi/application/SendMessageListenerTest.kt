@@ -6,11 +6,14 @@ import icu.neurospicy.fibi.domain.model.events.SendMessageCmd
 import icu.neurospicy.fibi.outgoing.mongodb.ChatRepositoryUsingMongodb
 import icu.neurospicy.fibi.outgoing.ollama.ResponseGenerator
 import icu.neurospicy.fibi.outgoing.signal.SignalMessageSender
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
 import io.mockk.coEvery
 import io.mockk.impl.annotations.MockK
 import io.mockk.junit5.MockKExtension
 import io.mockk.mockk
 import io.mockk.verify
+import io.mockk.verifyOrder
+import org.assertj.core.api.Assertions.assertThat
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.extension.ExtendWith
 
@@ -35,7 +38,9 @@ internal class SendMessageListenerTest {
                 responseGenerator,
                 chatRepository,
                 mockk(relaxed = true),
-                mockk(relaxed = true)
+                mockk(relaxed = true),
+                SimpleMeterRegistry(),
+                false
             )
         val text = "The text to send"
         val friendshipId = FriendshipId()
@@ -60,7 +65,9 @@ internal class SendMessageListenerTest {
                 responseGenerator,
                 chatRepository,
                 mockk(relaxed = true),
-                mockk(relaxed = true)
+                mockk(relaxed = true),
+                SimpleMeterRegistry(),
+                false
             )
         val text = "The text to send"
         val friendshipId = FriendshipId()
@@ -94,7 +101,9 @@ internal class SendMessageListenerTest {
                 responseGenerator,
                 chatRepository,
                 mockk(relaxed = true),
-                mockk(relaxed = true)
+                mockk(relaxed = true),
+                SimpleMeterRegistry(),
+                false
             )
         val message = OutgoingAdaptedTextMessage(SIGNAL, "description", "chat")
         val messageFromGenerator = "generated text"
@@ -126,7 +135,9 @@ internal class SendMessageListenerTest {
                 responseGenerator,
                 chatRepository,
                 mockk(relaxed = true),
-                mockk(relaxed = true)
+                mockk(relaxed = true),
+                SimpleMeterRegistry(),
+                false
             )
         val message = OutgoingAdaptedTextMessage(SIGNAL, "description", "chat")
         val messageFromGenerator = "generated text"
@@ -158,7 +169,9 @@ internal class SendMessageListenerTest {
                 responseGenerator,
                 chatRepository,
                 mockk(relaxed = true),
-                mockk(relaxed = true)
+                mockk(relaxed = true),
+                SimpleMeterRegistry(),
+                false
             )
         val message =
             OutgoingGeneratedMessage(SIGNAL, "description", useTaskActions = true, useFriendSettingActions = false)
@@ -191,7 +204,9 @@ internal class SendMessageListenerTest {
                 responseGenerator,
                 chatRepository,
                 mockk(relaxed = true),
-                mockk(relaxed = true)
+                mockk(relaxed = true),
+                SimpleMeterRegistry(),
+                false
             )
         val message =
             OutgoingGeneratedMessage(SIGNAL, "description", useTaskActions = true, useFriendSettingActions = false)
@@ -214,4 +229,41 @@ internal class SendMessageListenerTest {
         //then
         verify(exactly = 1) { chatRepository.add(friendshipId, message, messageFromGenerator, any()) }
     }
-}
\ No newline at end of file
+
+    @Test
+    fun `sends paragraphs as they are generated when streaming`() {
+        //given
+        val meterRegistry = SimpleMeterRegistry()
+        val sendMessageListener =
+            SendMessageListener(
+                signalMessageSender,
+                responseGenerator,
+                chatRepository,
+                mockk(relaxed = true),
+                mockk(relaxed = true),
+                meterRegistry,
+                true
+            )
+        val message = OutgoingGeneratedMessage(SIGNAL, "description")
+        val friendshipId = FriendshipId()
+        coEvery { responseGenerator.streamResponseWith(friendshipId, message, any(), any()) } coAnswers {
+            val onParagraph = arg<suspend (String) -> Unit>(3)
+            onParagraph("Good morning!")
+            onParagraph("How did you sleep?")
+            "Good morning!\n\nHow did you sleep?"
+        }
+        //when
+        sendMessageListener.onMessageSendRequested(SendMessageCmd(this.javaClass, friendshipId, message))
+        //then
+        verifyOrder {
+            signalMessageSender.sendMessageToUser(friendshipId, "Good morning!")
+            signalMessageSender.sendMessageToUser(friendshipId, "How did you sleep?")
+        }
+        verify(exactly = 1) {
+            chatRepository.add(friendshipId, message, "Good morning!\n\nHow did you sleep?", any())
+        }
+        assertThat(
+            meterRegistry.get("fibi.message.time-to-first-message").tag("delivery", "paragraphs").timer().count()
+        ).isEqualTo(1)
+    }
+}
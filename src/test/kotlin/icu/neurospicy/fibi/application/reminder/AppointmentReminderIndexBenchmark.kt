@@ -0,0 +1,51 @@
+package icu.neurospicy.fibi.application.reminder
+
+import icu.neurospicy.fibi.domain.model.AppointmentReminder
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.repository.ReminderRepository
+import io.mockk.every
+import io.mockk.mockk
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import kotlin.random.Random
+import kotlin.time.measureTimedValue
+
+/**
+ * Compares matching 10k appointment titles against 1k keyword reminders one by one with the inverted
+ * [AppointmentReminderIndex]. Run with `./gradlew benchmark`.
+ */
+@Tag("benchmark")
+class AppointmentReminderIndexBenchmark {
+    private val owner = FriendshipId()
+    private val random = Random(42)
+    private val words = (1..5_000).map { syntheticWord() }
+    private val reminders = (1..1_000).map { i ->
+        AppointmentReminder("reminder-$i", owner, setOf(words.random(random), words.random(random)), "Reminder $i")
+    }
+    private val titles = (1..10_000).map { (1..4).joinToString(" ") { words.random(random) } }
+
+    @Test
+    fun `compares index lookup with matching every reminder`(reporter: TestReporter) {
+        val reminderRepository = mockk<ReminderRepository>()
+        every { reminderRepository.findAppointmentRemindersBy(owner) } returns reminders
+        val index = AppointmentReminderIndex(reminderRepository, 10)
+        titles.take(500).forEach { index.matchingReminderIds(owner, it) } // warm up and load the index
+
+        val (scanned, scanTime) = measureTimedValue {
+            titles.map { title -> reminders.filter { it.matches(title) }.mapTo(HashSet()) { it._id!! } }
+        }
+        val (indexed, indexTime) = measureTimedValue {
+            titles.map { index.matchingReminderIds(owner, it) }
+        }
+
+        reporter.publishEntry(
+            "Matching ${titles.size} titles against ${reminders.size} reminders", "scan $scanTime, index $indexTime"
+        )
+        assertThat(indexed).isEqualTo(scanned)
+    }
+
+    private fun syntheticWord(): String =
+        (1..random.nextInt(4, 10)).map { 'a' + random.nextInt(26) }.joinToString("")
+}
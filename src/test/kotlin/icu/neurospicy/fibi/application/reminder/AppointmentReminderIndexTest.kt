@@ -0,0 +1,81 @@
+package icu.neurospicy.fibi.application.reminder
+
+import icu.neurospicy.fibi.domain.model.AppointmentReminder
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.model.events.AppointmentReminderSet
+import icu.neurospicy.fibi.domain.model.events.AppointmentReminderUnset
+import icu.neurospicy.fibi.domain.model.events.AppointmentReminderUpdated
+import icu.neurospicy.fibi.domain.repository.ReminderRepository
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+
+class AppointmentReminderIndexTest {
+
+    private val owner = FriendshipId()
+    private val reminderRepository = mockk<ReminderRepository>()
+    private val index = AppointmentReminderIndex(reminderRepository, 100)
+
+    @Test
+    fun `matches keywords anywhere in the title ignoring case`() {
+        //given
+        every { reminderRepository.findAppointmentRemindersBy(owner) } returns listOf(
+            reminder("dentist", setOf("Dentist")),
+            reminder("infix", setOf("ENT")),
+            reminder("short", setOf("go")),
+            reminder("other", setOf("yoga")),
+        )
+        //when
+        val matching = index.matchingReminderIds(owner, "Go to the dentist")
+        //then
+        assertThat(matching).containsExactlyInAnyOrder("dentist", "infix", "short")
+    }
+
+    @Test
+    fun `matches reminders with an empty keyword for every title`() {
+        //given
+        every { reminderRepository.findAppointmentRemindersBy(owner) } returns listOf(
+            reminder("any", setOf("")),
+            reminder("other", setOf("yoga")),
+        )
+        //when
+        val matching = index.matchingReminderIds(owner, "Go to the dentist")
+        //then
+        assertThat(matching).containsExactly("any")
+    }
+
+    @Test
+    fun `stays in sync with reminder events`() {
+        //given
+        every { reminderRepository.findAppointmentRemindersBy(owner) } returns listOf(reminder("yoga", setOf("yoga")))
+        assertThat(index.matchingReminderIds(owner, "Yoga class")).containsExactly("yoga")
+        //when
+        index.onSet(AppointmentReminderSet(javaClass, owner, reminder("class", setOf("class"))))
+        index.onUpdated(AppointmentReminderUpdated(javaClass, owner, reminder("yoga", setOf("pilates"))))
+        //then
+        assertThat(index.matchingReminderIds(owner, "Yoga class")).containsExactly("class")
+        assertThat(index.matchingReminderIds(owner, "Pilates")).containsExactly("yoga")
+        //when
+        index.onUnset(AppointmentReminderUnset(javaClass, owner, "class", emptySet()))
+        //then
+        assertThat(index.matchingReminderIds(owner, "Yoga class")).isEmpty()
+        verify(exactly = 1) { reminderRepository.findAppointmentRemindersBy(owner) }
+    }
+
+    @Test
+    fun `picks up reminders changed without an event when refreshed`() {
+        //given
+        every { reminderRepository.findAppointmentRemindersBy(owner) } returns listOf(reminder("yoga", setOf("yoga")))
+        assertThat(index.matchingReminderIds(owner, "Yoga class")).containsExactly("yoga")
+        val storedMeanwhile = listOf(reminder("yoga", setOf("yoga")), reminder("class", setOf("class")))
+        //when
+        index.refresh(owner, storedMeanwhile)
+        //then
+        assertThat(index.matchingReminderIds(owner, "Yoga class")).containsExactlyInAnyOrder("yoga", "class")
+    }
+
+    private fun reminder(id: String, keywords: Set<String>) =
+        AppointmentReminder(id, owner, keywords, "Reminder $id")
+}
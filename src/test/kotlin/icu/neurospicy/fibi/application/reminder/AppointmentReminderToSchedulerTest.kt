@@ -0,0 +1,120 @@
+package icu.neurospicy.fibi.application.reminder
+
+import icu.neurospicy.fibi.domain.model.*
+import icu.neurospicy.fibi.domain.model.events.AppointmentsUpdated
+import icu.neurospicy.fibi.domain.repository.CalendarRepository
+import icu.neurospicy.fibi.domain.repository.FriendshipLedger
+import icu.neurospicy.fibi.domain.repository.ReminderRepository
+import icu.neurospicy.fibi.domain.repository.TimeRange
+import icu.neurospicy.fibi.outgoing.SchedulerService
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.slot
+import io.mockk.verify
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import java.time.Duration
+import java.time.Instant
+import java.time.Instant.now
+import java.time.ZoneId
+import java.time.temporal.ChronoUnit.SECONDS
+
+class AppointmentReminderToSchedulerTest {
+
+    private val owner = FriendshipId()
+    private val friendshipLedger = mockk<FriendshipLedger>()
+    private val reminderRepository = mockk<ReminderRepository>(relaxed = true)
+    private val calendarRepository = mockk<CalendarRepository>()
+    private val schedulerService = mockk<SchedulerService>(relaxed = true)
+    private val appointmentReminderToScheduler = AppointmentReminderToScheduler(
+        friendshipLedger, reminderRepository, calendarRepository, schedulerService,
+        AppointmentReminderIndex(reminderRepository, 100), Duration.ofHours(48), 100
+    )
+    private val reminder = AppointmentReminder("reminder", owner, setOf("dentist"), "Brush your teeth")
+
+    @Test
+    fun `schedules changed appointments only within the horizon`() {
+        //given
+        val soon = appointment("Dentist", now().plus(Duration.ofHours(2)))
+        val other = appointment("Lunch", now().plus(Duration.ofHours(3)))
+        every { reminderRepository.findAppointmentRemindersBy(owner) } returns listOf(reminder)
+        val timeRange = slot<TimeRange>()
+        every { calendarRepository.loadAppointmentsForTimeRange(capture(timeRange), owner) } returns listOf(soon, other)
+        //when
+        appointmentReminderToScheduler.onAppointmentsUpdated(
+            AppointmentsUpdated(
+                javaClass, owner, CalendarConfigId(), CalendarId("private"),
+                setOf(soon.appointmentId, other.appointmentId, AppointmentId("in-a-year")), emptySet(), emptySet()
+            )
+        )
+        //then
+        assertThat(timeRange.captured.duration).isCloseTo(Duration.ofHours(48), Duration.ofMinutes(1))
+        verify(exactly = 1) { schedulerService.scheduleReminder(reminder, soon) }
+        verify(exactly = 0) { calendarRepository.loadAppointmentsByAppointmentId(any(), any()) }
+        verify { reminderRepository.updateRelatedAppointmentIds("reminder", setOf(soon.appointmentId)) }
+    }
+
+    @Test
+    fun `changes of friends without appointment reminders cost no query`() {
+        //given
+        every { reminderRepository.findAppointmentRemindersBy(owner) } returns emptyList()
+        //when
+        appointmentReminderToScheduler.onAppointmentsUpdated(
+            AppointmentsUpdated(
+                javaClass, owner, CalendarConfigId(), CalendarId("private"),
+                setOf(AppointmentId("new")), emptySet(), emptySet()
+            )
+        )
+        //then
+        verify(exactly = 0) { calendarRepository.loadAppointmentsForTimeRange(any(), any()) }
+    }
+
+    @Test
+    fun `sweep schedules appointments entering the horizon and forgets past ones`() {
+        //given
+        val alreadyScheduled = appointment("Dentist", now().plus(Duration.ofHours(1)))
+        val entering = appointment("Dentist again", now().plus(Duration.ofHours(47)))
+        val sweptReminder = reminder.copy(
+            relatedAppointmentIds = setOf(alreadyScheduled.appointmentId, AppointmentId("fired-yesterday"))
+        )
+        every { friendshipLedger.findAllIds() } returns setOf(owner)
+        every { reminderRepository.findAppointmentRemindersBy(owner) } returns listOf(sweptReminder)
+        every { calendarRepository.loadAppointmentsForTimeRange(any(), owner) } returns
+                listOf(alreadyScheduled, entering)
+        //when
+        appointmentReminderToScheduler.sweep()
+        //then
+        verify(exactly = 1) { schedulerService.scheduleReminder(any(), any()) }
+        verify { schedulerService.scheduleReminder(sweptReminder, entering) }
+        verify {
+            reminderRepository.updateRelatedAppointmentIds(
+                "reminder", setOf(alreadyScheduled.appointmentId, entering.appointmentId)
+            )
+        }
+    }
+
+    @Test
+    fun `startup reconciles the reminders firing within the horizon in one call`() {
+        //given
+        val soon = appointment("Dentist", now().plus(Duration.ofHours(2)))
+        val other = appointment("Lunch", now().plus(Duration.ofHours(3)))
+        every { friendshipLedger.findAllIds() } returns setOf(owner)
+        every { reminderRepository.findAppointmentRemindersBy(owner) } returns listOf(reminder)
+        every { calendarRepository.loadAppointmentsForTimeRange(any(), owner) } returns listOf(soon, other)
+        //when
+        appointmentReminderToScheduler.onApplicationStarted(mockk())
+        //then
+        verify { schedulerService.reconcileAppointmentReminders(listOf(reminder to soon)) }
+        verify(exactly = 0) { schedulerService.scheduleReminder(any(), any()) }
+        verify { reminderRepository.updateRelatedAppointmentIds("reminder", setOf(soon.appointmentId)) }
+    }
+
+    private fun appointment(summary: String, startAt: Instant): Appointment {
+        val start = startAt.truncatedTo(SECONDS)
+        return Appointment(
+            null, owner, AppointmentId.from(summary, start), CalendarConfigId(), CalendarId("private"), summary,
+            summary, DateTimeInformation.fromTemporal(start, ZoneId.of("UTC"), null),
+            DateTimeInformation.fromTemporal(start.plus(Duration.ofHours(1)), ZoneId.of("UTC"), null), "hash"
+        )
+    }
+}
@@ -0,0 +1,199 @@
+package icu.neurospicy.fibi.application.routine
+
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.model.LocalTimeBasedTrigger
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutEntry
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutRepository
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutType
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutType.ROUTINE_EXECUTION
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutType.ROUTINE_TRIGGER
+import icu.neurospicy.fibi.domain.service.friends.routines.events.RoutineTriggerFired
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import io.mockk.every
+import io.mockk.justRun
+import io.mockk.mockk
+import io.mockk.verify
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.springframework.context.ApplicationEvent
+import org.springframework.context.ApplicationEventPublisher
+import java.time.Duration
+import java.time.Instant
+import java.time.LocalTime
+import java.time.ZoneId
+import java.util.*
+
+class RoutineFanOutTest {
+
+    private val repository = mockk<RoutineFanOutRepository>(relaxed = true)
+    private val eventPublisher = mockk<ApplicationEventPublisher>()
+    private val pregenerator = mockk<RoutineMessagePregenerator>()
+    private val meterRegistry = SimpleMeterRegistry()
+    private val fanOut = RoutineFanOut(
+        repository, eventPublisher, listOf(pregenerator), meterRegistry,
+        Duration.ofMillis(600), Duration.ofMinutes(5), 4, Duration.ofMinutes(5), 2
+    )
+    private val published = Collections.synchronizedList(mutableListOf<Pair<ApplicationEvent, Long>>())
+    private val minute = Instant.parse("2030-01-01T07:00:00Z")
+
+    @AfterEach
+    fun shutdown() {
+        fanOut.destroy()
+    }
+
+    @Test
+    fun `fires triggers on time and spreads routines needing their message over the smoothing window`() {
+        //given
+        recordPublishedEvents()
+        every { repository.findPregenerationCandidates(any()) } returns emptyList()
+        val trigger = entry(ROUTINE_TRIGGER)
+        val routines = listOf(entry(ROUTINE_EXECUTION), entry(ROUTINE_EXECUTION), entry(ROUTINE_EXECUTION))
+        every { repository.claimDueUntil(minute, any(), any(), any()) } returns listOf(trigger) + routines
+        //when
+        fanOut.fanOut(minute.plusSeconds(1))
+        //then
+        awaitPublished(4)
+        assertThat(published.map { it.first }).hasAtLeastOneElementOfType(RoutineTriggerFired::class.java)
+        val routineTimes = published.filter { it.first is RoutineExecutionEvent }.map { it.second }
+        assertThat(routineTimes.last() - routineTimes.first()).isGreaterThanOrEqualTo(300)
+        assertThat(meterRegistry.get("fibi.routine.fan-out.bucket.size").summary().totalAmount()).isEqualTo(4.0)
+        assertThat(
+            meterRegistry.get("fibi.routine.fan-out.executions").tag("message", "live").counter().count()
+        ).isEqualTo(3.0)
+    }
+
+    @Test
+    fun `pre-generates messages of routines due within the lead`() {
+        //given
+        every { repository.claimDueUntil(any(), any(), any(), any()) } returns emptyList()
+        val upcoming = entry(ROUTINE_EXECUTION, minute.plus(Duration.ofMinutes(4)))
+        val unsupported = entry(ROUTINE_EXECUTION, minute.plus(Duration.ofMinutes(4)), routineType = "Evening")
+        every { repository.findPregenerationCandidates(minute.plus(Duration.ofMinutes(5))) } returns
+                listOf(upcoming, unsupported)
+        every { pregenerator.supports("Morning routine") } returns true
+        every { pregenerator.supports("Evening") } returns false
+        every { pregenerator.pregenerate(upcoming.friendshipId, any()) } returns "Good morning!"
+        //when
+        fanOut.fanOut(minute)
+        //then
+        verify { repository.markPregenerationStarted(listOf(upcoming.key, unsupported.key)) }
+        verify(timeout = 2000) { repository.savePregeneratedMessage(upcoming.key, upcoming.fireAt, "Good morning!") }
+        verify(exactly = 0) { pregenerator.pregenerate(unsupported.friendshipId, any()) }
+    }
+
+    @Test
+    fun `starts routines with their pre-generated message`() {
+        //given
+        recordPublishedEvents()
+        every { repository.findPregenerationCandidates(any()) } returns emptyList()
+        every { repository.claimDueUntil(minute, any(), any(), any()) } returns
+                listOf(entry(ROUTINE_EXECUTION).copy(pregenerationStarted = true, pregeneratedMessage = "Good morning!"))
+        //when
+        fanOut.fanOut(minute)
+        //then
+        awaitPublished(1)
+        assertThat((published.single().first as RoutineExecutionEvent).pregeneratedMessage).isEqualTo("Good morning!")
+        assertThat(
+            meterRegistry.get("fibi.routine.fan-out.executions").tag("message", "pregenerated").counter().count()
+        ).isEqualTo(1.0)
+    }
+
+    @Test
+    fun `claims due entries and re-claims stale claims`() {
+        //given
+        every { repository.claimDueUntil(any(), any(), any(), any()) } returns emptyList()
+        every { repository.findPregenerationCandidates(any()) } returns emptyList()
+        val now = minute.plusSeconds(1)
+        //when
+        fanOut.fanOut(now)
+        //then
+        verify { repository.claimDueUntil(minute, any(), now, now.minus(Duration.ofMinutes(5))) }
+    }
+
+    @Test
+    fun `completes dispatched entries and replaces routines with their next occurrence`() {
+        //given
+        recordPublishedEvents()
+        every { repository.findPregenerationCandidates(any()) } returns emptyList()
+        val trigger = entry(ROUTINE_TRIGGER)
+        val routine = entry(ROUTINE_EXECUTION).copy(
+            recurrence = LocalTimeBasedTrigger(LocalTime.of(8, 0), ZoneId.of("Europe/Berlin")),
+            pregenerationStarted = true,
+            pregeneratedMessage = "Good morning!",
+            claimedBy = "fan-out",
+            claimedAt = minute,
+        )
+        every { repository.claimDueUntil(minute, any(), any(), any()) } returns listOf(trigger, routine)
+        //when
+        fanOut.fanOut(minute)
+        //then
+        verify(timeout = 2000) { repository.completeDispatch(trigger, null) }
+        verify(timeout = 2000) {
+            repository.completeDispatch(
+                routine, RoutineFanOutEntry(
+                    routine.key, ROUTINE_EXECUTION, routine.friendshipId, Instant.parse("2030-01-02T07:00:00Z"),
+                    routine.payload, recurrence = routine.recurrence
+                )
+            )
+        }
+    }
+
+    @Test
+    fun `completes entries whose listener failed`() {
+        //given
+        every { eventPublisher.publishEvent(any<ApplicationEvent>()) } throws IllegalStateException("listener failed")
+        every { repository.findPregenerationCandidates(any()) } returns emptyList()
+        val trigger = entry(ROUTINE_TRIGGER)
+        every { repository.claimDueUntil(minute, any(), any(), any()) } returns listOf(trigger)
+        //when
+        fanOut.fanOut(minute)
+        //then
+        verify(timeout = 2000) { repository.completeDispatch(trigger, null) }
+    }
+
+    @Test
+    fun `reconciles the entries of a type`() {
+        //given
+        val unchanged = entry(ROUTINE_EXECUTION)
+        val changed = entry(ROUTINE_EXECUTION)
+        val obsolete = entry(ROUTINE_EXECUTION)
+        val added = entry(ROUTINE_EXECUTION)
+        every { repository.findByType(ROUTINE_EXECUTION) } returns listOf(unchanged, changed, obsolete)
+        justRun { repository.saveAll(any()) }
+        val movedChange = changed.copy(fireAt = changed.fireAt.plus(Duration.ofDays(1)))
+        //when
+        val reconciliation = fanOut.reconcile(ROUTINE_EXECUTION, listOf(unchanged, movedChange, added))
+        //then
+        assertThat(reconciliation.created).isEqualTo(1)
+        assertThat(reconciliation.updated).isEqualTo(1)
+        assertThat(reconciliation.removed).isEqualTo(1)
+        assertThat(reconciliation.unchanged).isEqualTo(1)
+        verify { repository.removeAll(setOf(obsolete.key)) }
+        verify { repository.saveAll(listOf(added, movedChange)) }
+    }
+
+    private fun entry(
+        type: RoutineFanOutType,
+        fireAt: Instant = minute,
+        routineType: String = "Morning routine",
+    ): RoutineFanOutEntry {
+        val friendshipId = FriendshipId()
+        return RoutineFanOutEntry(
+            "$type-$friendshipId", type, friendshipId, fireAt,
+            if (type == ROUTINE_EXECUTION) mapOf("routineId" to "routine", "routineType" to routineType)
+            else mapOf("routineInstanceId" to "instance", "triggerId" to "trigger")
+        )
+    }
+
+    private fun recordPublishedEvents() {
+        every { eventPublisher.publishEvent(any<ApplicationEvent>()) } answers {
+            published += firstArg<ApplicationEvent>() to System.currentTimeMillis()
+        }
+    }
+
+    private fun awaitPublished(count: Int) {
+        val deadline = System.currentTimeMillis() + 5000
+        while (published.size < count && System.currentTimeMillis() < deadline) Thread.sleep(10)
+    }
+}
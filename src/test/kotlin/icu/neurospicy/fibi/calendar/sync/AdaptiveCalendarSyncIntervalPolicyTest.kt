@@ -0,0 +1,90 @@
+package icu.neurospicy.fibi.calendar.sync
+
+import icu.neurospicy.fibi.domain.model.CalendarConfigId
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.repository.CalendarSyncDecision
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import java.time.Duration
+import java.time.Duration.ofHours
+import java.time.Duration.ofMinutes
+import java.time.Instant
+
+class AdaptiveCalendarSyncIntervalPolicyTest {
+
+    private val policy = AdaptiveCalendarSyncIntervalPolicy(ofMinutes(5), ofMinutes(20), ofHours(4), ofHours(1))
+    private val now = Instant.parse("2025-03-01T10:00:00Z")
+    private val owner = FriendshipId()
+    private val calendarConfigId = CalendarConfigId()
+
+    @Test
+    fun `backs off from calendars without changes up to the max interval`() {
+        //given
+        var history = emptyList<CalendarSyncDecision>()
+        val intervals = mutableListOf<Duration>()
+        //when
+        repeat(10) {
+            val decided = policy.decide(observation(AppointmentChanges(), history))
+            intervals += decided.interval
+            history = listOf(decision(decided.backoffInterval)) + history
+        }
+        //then
+        assertThat(intervals.first()).isEqualTo(ofMinutes(30))
+        assertThat(intervals).isSorted()
+        assertThat(intervals.last()).isEqualTo(ofHours(4))
+    }
+
+    @Test
+    fun `halves the interval when appointments changed`() {
+        //when
+        val decided = policy.decide(observation(AppointmentChanges(new = 1), listOf(decision(ofHours(2)))))
+        //then
+        assertThat(decided.interval).isEqualTo(ofHours(1))
+        assertThat(decided.reason).isEqualTo("1 appointment changes")
+    }
+
+    @Test
+    fun `syncs every min interval while the friend is chatting without losing the backoff`() {
+        //when
+        val decided = policy.decide(observation(AppointmentChanges(), listOf(decision(ofHours(2))), chatting = true))
+        //then
+        assertThat(decided.interval).isEqualTo(ofMinutes(5))
+        assertThat(decided.backoffInterval).isEqualTo(ofHours(3))
+    }
+
+    @Test
+    fun `syncs every min interval when a routine is coming up`() {
+        //when
+        val soon = policy.decide(
+            observation(AppointmentChanges(), listOf(decision(ofHours(2))), nextRoutineAt = now.plus(ofMinutes(30)))
+        )
+        val later = policy.decide(
+            observation(AppointmentChanges(), listOf(decision(ofHours(2))), nextRoutineAt = now.plus(ofHours(5)))
+        )
+        //then
+        assertThat(soon.interval).isEqualTo(ofMinutes(5))
+        assertThat(later.interval).isEqualTo(ofHours(3))
+    }
+
+    @Test
+    fun `syncs before the lead time of the next routine starts`() {
+        //when
+        val decided = policy.decide(
+            observation(AppointmentChanges(), listOf(decision(ofHours(2))), nextRoutineAt = now.plus(ofHours(2)))
+        )
+        //then
+        assertThat(decided.interval).isEqualTo(ofHours(1))
+        assertThat(decided.backoffInterval).isEqualTo(ofHours(3))
+    }
+
+    private fun observation(
+        changes: AppointmentChanges,
+        history: List<CalendarSyncDecision>,
+        chatting: Boolean = false,
+        nextRoutineAt: Instant? = null
+    ) = CalendarSyncObservation(owner, calendarConfigId, changes, history, chatting, nextRoutineAt, now)
+
+    private fun decision(backoffInterval: Duration) = CalendarSyncDecision(
+        owner, calendarConfigId, now, "adaptive", 0, 0, 0, false, null, backoffInterval, backoffInterval, ""
+    )
+}
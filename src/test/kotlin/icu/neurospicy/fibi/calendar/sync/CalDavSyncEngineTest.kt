@@ -0,0 +1,273 @@
+package icu.neurospicy.fibi.calendar.sync
+
+import com.sun.net.httpserver.HttpServer
+import icu.neurospicy.fibi.domain.model.CalendarConfigId
+import icu.neurospicy.fibi.domain.model.CalendarConfiguration
+import icu.neurospicy.fibi.domain.model.CalendarId
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.model.UsernamePasswordCredential
+import icu.neurospicy.fibi.domain.repository.CalendarFileManifest
+import icu.neurospicy.fibi.domain.repository.CalendarFileManifestRepository
+import icu.neurospicy.fibi.domain.repository.CalendarFileState
+import icu.neurospicy.fibi.outgoing.http.CalDavClient
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.slot
+import io.mockk.verify
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.net.InetSocketAddress
+import java.time.Duration
+import java.time.Instant
+import java.util.*
+
+class CalDavSyncEngineTest {
+
+    private val owner = FriendshipId()
+    private val calendarConfigId = CalendarConfigId()
+    private val calendarId = CalendarId("personal")
+    private val calendarFileManifestRepository = mockk<CalendarFileManifestRepository>()
+    private val calendarUpdater = mockk<CalendarUpdater>(relaxed = true)
+    private val calendarSyncCompletion = mockk<CalendarSyncCompletion>(relaxed = true)
+    private val requests = Collections.synchronizedList(mutableListOf<String>())
+    private lateinit var server: HttpServer
+    private lateinit var engine: CalDavSyncEngine
+
+    @BeforeEach
+    fun startServer() {
+        server = HttpServer.create(InetSocketAddress("localhost", 0), 0)
+        server.createContext("/") { exchange ->
+            val body = exchange.requestBody.readAllBytes().decodeToString()
+            requests += "${exchange.requestMethod} ${exchange.requestURI.path} ${body.davRequestName()}"
+            val response = when {
+                exchange.requestHeaders.getFirst("Authorization") != "Basic " +
+                        Base64.getEncoder().encodeToString("fibi:secret".toByteArray()) -> null
+
+                exchange.requestMethod == "PROPFIND" -> COLLECTIONS
+                body.contains("sync-collection") && body.contains(">token-1<") -> SYNC_COLLECTION
+                body.contains("sync-collection") -> null
+                body.contains("calendar-query") -> EVENT_LIST
+                body.contains("calendar-multiget") -> multiget(body)
+                else -> null
+            }
+            if (response == null) {
+                exchange.sendResponseHeaders(if (exchange.requestMethod == "REPORT") 403 else 401, -1)
+            } else {
+                val bytes = response.toByteArray()
+                exchange.responseHeaders.add("Content-Type", "application/xml; charset=utf-8")
+                exchange.sendResponseHeaders(207, bytes.size.toLong())
+                exchange.responseBody.use { it.write(bytes) }
+            }
+            exchange.close()
+        }
+        server.start()
+        engine = CalDavSyncEngine(
+            CalDavClient(Duration.ofSeconds(5)), calendarFileManifestRepository, calendarUpdater, calendarSyncCompletion
+        )
+    }
+
+    @AfterEach
+    fun stopServer() {
+        server.stop(0)
+    }
+
+    @Test
+    fun `first sync lists and fetches all events of the discovered calendars`() {
+        //given
+        every { calendarFileManifestRepository.load(owner, calendarConfigId, calendarId) } returns null
+        val changes = slot<CalendarChanges>()
+        every { calendarUpdater.update(capture(changes)) } returns emptyList()
+        //when
+        engine.sync(configuration())
+        //then
+        assertThat(requests).containsExactly(
+            "PROPFIND /calendars/fibi/ propfind",
+            "REPORT /calendars/fibi/personal/ calendar-query",
+            "REPORT /calendars/fibi/personal/ calendar-multiget",
+        )
+        assertThat(changes.captured.calendarId).isEqualTo(calendarId)
+        assertThat(changes.captured.calendarName).isEqualTo("Personal")
+        assertThat(changes.captured.manifest).isNull()
+        assertThat(changes.captured.changedFiles.map { it.fileName }).containsExactlyInAnyOrder(A, B)
+        assertThat(changes.captured.changedFiles.first { it.fileName == B }.content.decodeToString())
+            .contains("UID:b")
+        assertThat(changes.captured.files.map { it.fileName to it.hash })
+            .containsExactlyInAnyOrder(A to "\"a1\"", B to "\"b2\"")
+        assertThat(changes.captured.collectionTag).isEqualTo("ctag-2")
+        assertThat(changes.captured.syncToken).isEqualTo("token-2")
+        verify { calendarUpdater.rollMaterializedOccurrences(owner, calendarConfigId, calendarId) }
+        verify { calendarSyncCompletion.complete(owner, calendarConfigId, listOf("Personal"), any()) }
+    }
+
+    @Test
+    fun `skips calendars with an unchanged ctag`() {
+        //given
+        val manifest = manifest(collectionTag = "ctag-2", syncToken = "token-2")
+        every { calendarFileManifestRepository.load(owner, calendarConfigId, calendarId) } returns manifest
+        val changes = slot<CalendarChanges>()
+        every { calendarUpdater.update(capture(changes)) } returns emptyList()
+        //when
+        engine.sync(configuration())
+        //then
+        assertThat(requests).containsExactly("PROPFIND /calendars/fibi/ propfind")
+        assertThat(changes.captured.changedFiles).isEmpty()
+        assertThat(changes.captured.deletedFiles).isEmpty()
+        assertThat(changes.captured.files).isEqualTo(manifest.files)
+    }
+
+    @Test
+    fun `fetches only the events reported by sync-collection`() {
+        //given
+        every { calendarFileManifestRepository.load(owner, calendarConfigId, calendarId) } returns
+                manifest(collectionTag = "ctag-1", syncToken = "token-1")
+        val changes = slot<CalendarChanges>()
+        every { calendarUpdater.update(capture(changes)) } returns emptyList()
+        //when
+        engine.sync(configuration())
+        //then
+        assertThat(requests).containsExactly(
+            "PROPFIND /calendars/fibi/ propfind",
+            "REPORT /calendars/fibi/personal/ sync-collection",
+            "REPORT /calendars/fibi/personal/ calendar-multiget",
+        )
+        assertThat(changes.captured.changedFiles.map { it.fileName }).containsExactly(B)
+        assertThat(changes.captured.deletedFiles).containsExactly(C)
+        assertThat(changes.captured.files.map { it.fileName }).containsExactlyInAnyOrder(A, B)
+        assertThat(changes.captured.syncToken).isEqualTo("token-3")
+    }
+
+    @Test
+    fun `falls back to comparing etags when the sync token is not accepted`() {
+        //given
+        every { calendarFileManifestRepository.load(owner, calendarConfigId, calendarId) } returns
+                manifest(collectionTag = "ctag-1", syncToken = "expired")
+        val changes = slot<CalendarChanges>()
+        every { calendarUpdater.update(capture(changes)) } returns emptyList()
+        //when
+        engine.sync(configuration())
+        //then
+        assertThat(requests).containsExactly(
+            "PROPFIND /calendars/fibi/ propfind",
+            "REPORT /calendars/fibi/personal/ sync-collection",
+            "REPORT /calendars/fibi/personal/ calendar-query",
+            "REPORT /calendars/fibi/personal/ calendar-multiget",
+        )
+        assertThat(changes.captured.changedFiles.map { it.fileName }).containsExactly(B)
+        assertThat(changes.captured.deletedFiles).containsExactly(C)
+        assertThat(changes.captured.syncToken).isEqualTo("token-2")
+    }
+
+    @Test
+    fun `does not complete the sync when the server rejects the credentials`() {
+        //when
+        engine.sync(configuration().copy(credential = UsernamePasswordCredential("fibi", "wrong")))
+        //then
+        verify(exactly = 0) { calendarUpdater.update(any()) }
+        verify(exactly = 0) { calendarSyncCompletion.complete(any(), any(), any(), any()) }
+    }
+
+    private fun configuration() = CalendarConfiguration(
+        owner, calendarConfigId, "http://localhost:${server.address.port}/calendars/fibi/",
+        UsernamePasswordCredential("fibi", "secret")
+    )
+
+    private fun manifest(collectionTag: String, syncToken: String) = CalendarFileManifest(
+        owner, calendarConfigId, calendarId, "Personal", listOf(
+            CalendarFileState(A, 100, Instant.EPOCH, "\"a1\"", setOf("a")),
+            CalendarFileState(B, 100, Instant.EPOCH, "\"b1\"", setOf("b")),
+            CalendarFileState(C, 100, Instant.EPOCH, "\"c1\"", setOf("c")),
+        ), collectionTag, syncToken
+    )
+
+    private fun String.davRequestName() = Regex("<\\w+:([\\w-]+)").find(this)?.groupValues?.get(1)
+
+    private fun multiget(body: String): String {
+        val hrefs = Regex("<d:href>([^<]+)</d:href>").findAll(body).map { it.groupValues[1] }.toList()
+        return multistatus(hrefs.joinToString("") { href ->
+            val uid = href.substringAfterLast('/').substringBefore('.')
+            """
+            <d:response>
+              <d:href>$href</d:href>
+              <d:propstat>
+                <d:prop><d:getetag>"${ETAGS[href]}"</d:getetag><c:calendar-data>${ics(uid)}</c:calendar-data></d:prop>
+                <d:status>HTTP/1.1 200 OK</d:status>
+              </d:propstat>
+            </d:response>
+            """
+        })
+    }
+
+    private fun ics(uid: String) = """
+        BEGIN:VCALENDAR
+        VERSION:2.0
+        PRODID:-//fibi//test//EN
+        BEGIN:VEVENT
+        UID:$uid
+        DTSTAMP:20250101T000000Z
+        DTSTART:20250301T090000Z
+        DTEND:20250301T100000Z
+        SUMMARY:Event $uid
+        END:VEVENT
+        END:VCALENDAR
+    """.trimIndent()
+
+    companion object {
+        private const val A = "/calendars/fibi/personal/a.ics"
+        private const val B = "/calendars/fibi/personal/b.ics"
+        private const val C = "/calendars/fibi/personal/c.ics"
+        private val ETAGS = mapOf(A to "a1", B to "b2")
+
+        private fun multistatus(responses: String) = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+                "<d:multistatus xmlns:d=\"DAV:\" xmlns:c=\"urn:ietf:params:xml:ns:caldav\" " +
+                "xmlns:cs=\"http://calendarserver.org/ns/\">$responses</d:multistatus>"
+
+        private val COLLECTIONS = multistatus(
+            """
+            <d:response>
+              <d:href>/calendars/fibi/</d:href>
+              <d:propstat>
+                <d:prop><d:resourcetype><d:collection/></d:resourcetype></d:prop>
+                <d:status>HTTP/1.1 200 OK</d:status>
+              </d:propstat>
+            </d:response>
+            <d:response>
+              <d:href>/calendars/fibi/personal/</d:href>
+              <d:propstat>
+                <d:prop>
+                  <d:resourcetype><d:collection/><c:calendar/></d:resourcetype>
+                  <d:displayname>Personal</d:displayname>
+                  <cs:getctag>ctag-2</cs:getctag>
+                  <d:sync-token>token-2</d:sync-token>
+                </d:prop>
+                <d:status>HTTP/1.1 200 OK</d:status>
+              </d:propstat>
+            </d:response>
+            """
+        )
+
+        private val EVENT_LIST = multistatus(ETAGS.entries.joinToString("") { (href, etag) ->
+            """
+            <d:response>
+              <d:href>$href</d:href>
+              <d:propstat><d:prop><d:getetag>"$etag"</d:getetag></d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat>
+            </d:response>
+            """
+        })
+
+        private val SYNC_COLLECTION = multistatus(
+            """
+            <d:response>
+              <d:href>$B</d:href>
+              <d:propstat><d:prop><d:getetag>"b2"</d:getetag></d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat>
+            </d:response>
+            <d:response>
+              <d:href>$C</d:href>
+              <d:status>HTTP/1.1 404 Not Found</d:status>
+            </d:response>
+            <d:sync-token>token-3</d:sync-token>
+            """
+        )
+    }
+}
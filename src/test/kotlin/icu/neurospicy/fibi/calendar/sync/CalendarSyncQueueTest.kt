@@ -0,0 +1,137 @@
+package icu.neurospicy.fibi.calendar.sync
+
+import icu.neurospicy.fibi.domain.model.CalendarConfiguration
+import icu.neurospicy.fibi.domain.model.Channel.SIGNAL
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.model.SignalMessageId
+import icu.neurospicy.fibi.domain.model.UserMessage
+import icu.neurospicy.fibi.domain.model.events.IncomingFriendMessageReceived
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import io.mockk.every
+import io.mockk.mockk
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import java.time.Duration
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit.SECONDS
+import java.util.concurrent.atomic.AtomicInteger
+
+class CalendarSyncQueueTest {
+
+    private val calendarSyncEngine = mockk<CalendarSyncEngine>()
+    private val recentChatActivity = RecentChatActivity(mockk(relaxed = true), Duration.ofMinutes(15), 100)
+    private val meterRegistry = SimpleMeterRegistry()
+    private val queue = CalendarSyncQueue(calendarSyncEngine, recentChatActivity, meterRegistry, 1)
+    private val synced = Collections.synchronizedList(mutableListOf<String>())
+    private val firstSyncRunning = CountDownLatch(1)
+    private val releaseFirstSync = CountDownLatch(1)
+    private val runningSyncs = AtomicInteger()
+    private val maxRunningSyncs = AtomicInteger()
+
+    @AfterEach
+    fun shutdown() {
+        queue.destroy()
+    }
+
+    @Test
+    fun `queues a calendar configuration only once`() {
+        //given
+        val blocking = configuration()
+        val other = configuration()
+        recordSyncs(blocking)
+        queue.enqueue(blocking)
+        firstSyncRunning.await(5, SECONDS)
+        //when
+        val first = queue.enqueue(other)
+        val second = queue.enqueue(other, discover = true)
+        releaseFirstSync.countDown()
+        //then
+        assertThat(first).isTrue()
+        assertThat(second).isFalse()
+        awaitSyncs(2)
+        assertThat(synced).containsExactly("sync ${blocking.calendarConfigId}", "discover ${other.calendarConfigId}")
+        assertThat(meterRegistry.get("fibi.calendar.sync.deduplicated").counter().count()).isEqualTo(1.0)
+        assertThat(meterRegistry.get("fibi.calendar.sync.duration").timer().count()).isEqualTo(2)
+    }
+
+    @Test
+    fun `takes syncs of friends who are chatting first`() {
+        //given
+        val blocking = configuration()
+        val quiet = configuration()
+        val chatting = configuration()
+        recordSyncs(blocking)
+        queue.enqueue(blocking)
+        firstSyncRunning.await(5, SECONDS)
+        queue.enqueue(quiet)
+        queue.enqueue(chatting)
+        assertThat(meterRegistry.get("fibi.calendar.sync.queue.length").gauge().value()).isEqualTo(2.0)
+        //when
+        val message = IncomingFriendMessageReceived(
+            chatting.friendshipId, UserMessage(SignalMessageId(1), text = "Hi", channel = SIGNAL)
+        )
+        recentChatActivity.onMessage(message)
+        queue.onMessage(message)
+        releaseFirstSync.countDown()
+        //then
+        awaitSyncs(3)
+        assertThat(synced).containsExactly(
+            "sync ${blocking.calendarConfigId}", "sync ${chatting.calendarConfigId}", "sync ${quiet.calendarConfigId}"
+        )
+    }
+
+    @Test
+    fun `syncs a calendar configuration requested while it is syncing once afterwards`() {
+        //given
+        val twoSlots = CalendarSyncQueue(calendarSyncEngine, recentChatActivity, meterRegistry, 2)
+        val blocking = configuration()
+        recordSyncs(blocking)
+        twoSlots.enqueue(blocking)
+        firstSyncRunning.await(5, SECONDS)
+        //when
+        val followUp = twoSlots.enqueue(blocking)
+        val duplicate = twoSlots.enqueue(blocking, discover = true)
+        releaseFirstSync.countDown()
+        //then
+        assertThat(followUp).isTrue()
+        assertThat(duplicate).isFalse()
+        awaitSyncs(2)
+        assertThat(synced).containsExactly("sync ${blocking.calendarConfigId}", "discover ${blocking.calendarConfigId}")
+        assertThat(maxRunningSyncs.get()).isEqualTo(1)
+        twoSlots.destroy()
+    }
+
+    private fun configuration() = CalendarConfiguration(FriendshipId(), url = "https://calendar.example.com")
+
+    private fun recordSyncs(blocking: CalendarConfiguration) {
+        every { calendarSyncEngine.sync(any()) } answers {
+            val configuration = firstArg<CalendarConfiguration>()
+            running {
+                if (configuration == blocking) {
+                    firstSyncRunning.countDown()
+                    releaseFirstSync.await(5, SECONDS)
+                }
+                synced += "sync ${configuration.calendarConfigId}"
+            }
+        }
+        every { calendarSyncEngine.discoverAndSync(any()) } answers {
+            running { synced += "discover ${firstArg<CalendarConfiguration>().calendarConfigId}" }
+        }
+    }
+
+    private fun running(sync: () -> Unit) {
+        maxRunningSyncs.accumulateAndGet(runningSyncs.incrementAndGet()) { max, current -> maxOf(max, current) }
+        try {
+            sync()
+        } finally {
+            runningSyncs.decrementAndGet()
+        }
+    }
+
+    private fun awaitSyncs(count: Int) {
+        val deadline = System.currentTimeMillis() + 5000
+        while (synced.size < count && System.currentTimeMillis() < deadline) Thread.sleep(10)
+    }
+}
@@ -0,0 +1,100 @@
+package icu.neurospicy.fibi.calendar.sync
+
+import icu.neurospicy.fibi.domain.model.CalendarConfigId
+import icu.neurospicy.fibi.domain.model.CalendarId
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.repository.CalendarFileManifest
+import icu.neurospicy.fibi.domain.repository.CalendarFileManifestRepository
+import icu.neurospicy.fibi.domain.repository.CalendarFileState
+import icu.neurospicy.fibi.domain.repository.CalendarRepository
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.slot
+import io.mockk.verify
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import java.time.Duration
+import java.time.Instant
+
+class CalendarUpdaterTest {
+
+    private val owner = FriendshipId()
+    private val calendarConfigId = CalendarConfigId()
+    private val calendarId = CalendarId("personal")
+    private val calendarRepository = mockk<CalendarRepository>(relaxed = true)
+    private val calendarFileManifestRepository = mockk<CalendarFileManifestRepository>(relaxed = true)
+    private val icsFileParser = mockk<IcsFileParser>()
+    private val updater =
+        CalendarUpdater(calendarRepository, calendarFileManifestRepository, icsFileParser, Duration.ofDays(35))
+
+    private val manifest = CalendarFileManifest(
+        owner, calendarConfigId, calendarId, "Personal", listOf(
+            CalendarFileState("a.ics", 100, Instant.EPOCH, "a1", setOf("a")),
+            CalendarFileState("b.ics", 100, Instant.EPOCH, "b1", setOf("b")),
+        ), "ctag-1", "token-1"
+    )
+
+    @Test
+    fun `keeps appointments and manifest state of files failing to parse`() {
+        //given
+        val a = IcsFile("a.ics", "a2", ByteArray(0))
+        val b = IcsFile("b.ics", "b2", ByteArray(0))
+        every { icsFileParser.parse(listOf(a, b), owner, calendarConfigId, calendarId, any(), any()) } returns listOf(
+            ParsedIcsFile(a, "a", emptyList(), null, failed = false),
+            ParsedIcsFile(b, null, emptyList(), null, failed = true),
+        )
+        val saved = slot<CalendarFileManifest>()
+        every { calendarFileManifestRepository.save(capture(saved)) } returns Unit
+        //when
+        updater.update(
+            changes(
+                listOf(a, b), listOf(
+                    CalendarFileState("a.ics", 200, Instant.now(), "a2", emptySet()),
+                    CalendarFileState("b.ics", 200, Instant.now(), "b2", emptySet()),
+                )
+            )
+        )
+        //then
+        verify { calendarRepository.replaceAppointmentsOfVEvents(any(), owner, calendarConfigId, calendarId, setOf("a")) }
+        assertThat(saved.captured.files.map { Triple(it.fileName, it.hash, it.uids) }).containsExactlyInAnyOrder(
+            Triple("a.ics", "a2", setOf("a")),
+            Triple("b.ics", "b1", setOf("b")),
+        )
+        assertThat(saved.captured.collectionTag).isEqualTo("ctag-1")
+        assertThat(saved.captured.syncToken).isEqualTo("token-1")
+    }
+
+    @Test
+    fun `advances collection tag and sync token when all files were parsed`() {
+        //given
+        val a = IcsFile("a.ics", "a2", ByteArray(0))
+        every { icsFileParser.parse(listOf(a), owner, calendarConfigId, calendarId, any(), any()) } returns
+                listOf(ParsedIcsFile(a, "a", emptyList(), null, failed = false))
+        val saved = slot<CalendarFileManifest>()
+        every { calendarFileManifestRepository.save(capture(saved)) } returns Unit
+        //when
+        updater.update(changes(listOf(a), manifest.files))
+        //then
+        assertThat(saved.captured.collectionTag).isEqualTo("ctag-2")
+        assertThat(saved.captured.syncToken).isEqualTo("token-2")
+    }
+
+    @Test
+    fun `leaves new files failing to parse out of the manifest`() {
+        //given
+        val c = IcsFile("c.ics", "c1", ByteArray(0))
+        every { icsFileParser.parse(listOf(c), owner, calendarConfigId, calendarId, any(), any()) } returns
+                listOf(ParsedIcsFile(c, null, emptyList(), null, failed = true))
+        val saved = slot<CalendarFileManifest>()
+        every { calendarFileManifestRepository.save(capture(saved)) } returns Unit
+        //when
+        updater.update(changes(listOf(c), manifest.files + CalendarFileState("c.ics", 100, Instant.now(), "c1", emptySet())))
+        //then
+        verify { calendarRepository.replaceAppointmentsOfVEvents(any(), owner, calendarConfigId, calendarId, emptySet()) }
+        assertThat(saved.captured.files).containsExactlyInAnyOrderElementsOf(manifest.files)
+    }
+
+    private fun changes(changedFiles: List<IcsFile>, files: List<CalendarFileState>) = CalendarChanges(
+        owner, calendarConfigId, calendarId, "Personal", manifest, files, changedFiles, emptySet(), "ctag-2", "token-2"
+    )
+}
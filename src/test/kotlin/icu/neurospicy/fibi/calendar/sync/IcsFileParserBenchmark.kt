@@ -0,0 +1,68 @@
+package icu.neurospicy.fibi.calendar.sync
+
+import icu.neurospicy.fibi.domain.model.*
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import java.time.Instant
+import java.time.temporal.ChronoUnit.DAYS
+import kotlin.time.measureTimedValue
+
+/**
+ * Compares parsing a synthetic calendar of 10k events one file after another (as string copies) with the parallel,
+ * streaming [IcsFileParser]. Run with `./gradlew benchmark`.
+ */
+@Tag("benchmark")
+class IcsFileParserBenchmark {
+    private val owner = FriendshipId()
+    private val calendarConfigId = CalendarConfigId()
+    private val calendarId = CalendarId("benchmark")
+    private val repetitionEnd = Instant.now().plus(366, DAYS)
+    private val files = (1..10_000).map { i ->
+        val content = syntheticEvent(i).toByteArray()
+        IcsFile("event-$i.ics", sha256Hex(content), content)
+    }
+
+    @Test
+    fun `compares the parallel streaming parser with parsing string copies sequentially`(reporter: TestReporter) {
+        val parser = IcsFileParser(Runtime.getRuntime().availableProcessors())
+        parser.parse(files.take(500), owner, calendarConfigId, calendarId, repetitionEnd) // warm up
+
+        val (sequential, sequentialTime) = measureTimedValue {
+            calendarAndAppointmentsFrom(
+                calendarConfigId, calendarId, "benchmark", owner,
+                files.associate { it.fileName to unfoldIcsContent(it.content.decodeToString()).reader() },
+                repetitionEnd
+            ).appointments
+        }
+        val (parallel, parallelTime) = measureTimedValue {
+            parser.parse(files, owner, calendarConfigId, calendarId, repetitionEnd).flatMap { it.appointments }
+        }
+
+        reporter.publishEntry("Parsing ${files.size} ics files", "sequential $sequentialTime, parallel $parallelTime")
+        assertThat(parallel).hasSize(files.size)
+        assertThat(parallel.map { it.appointmentId }).containsExactlyInAnyOrderElementsOf(sequential.map { it.appointmentId })
+    }
+
+    private fun syntheticEvent(i: Int): String {
+        val day = 1 + i % 28
+        val hour = i % 24
+        return listOf(
+            "BEGIN:VCALENDAR",
+            "VERSION:2.0",
+            "PRODID:-//fibi//benchmark//EN",
+            "BEGIN:VEVENT",
+            "UID:event-$i@benchmark",
+            "DTSTAMP:20250101T000000Z",
+            "DTSTART:202503${"%02d".format(day)}T${"%02d".format(hour)}0000Z",
+            "DTEND:202503${"%02d".format(day)}T${"%02d".format(hour)}3000Z",
+            "SUMMARY:Appointment number $i",
+            "DESCRIPTION:A long description that vdirsyncer folds into several lines be",
+            " cause it is longer than seventy-five characters, which happens a lot in r",
+            " eal calendars.",
+            "END:VEVENT",
+            "END:VCALENDAR",
+        ).joinToString("\n")
+    }
+}
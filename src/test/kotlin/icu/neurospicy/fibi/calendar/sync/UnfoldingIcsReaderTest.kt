@@ -0,0 +1,34 @@
+package icu.neurospicy.fibi.calendar.sync
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+
+class UnfoldingIcsReaderTest {
+
+    @Test
+    fun `joins continuation lines and separates lines by CRLF`() {
+        //given
+        val folded = "BEGIN:VEVENT\nSUMMARY:A very long sum\n mary split\n\tin three\r\nEND:VEVENT"
+        //when
+        val unfolded = UnfoldingIcsReader(folded.reader()).use { it.readText() }
+        //then
+        assertThat(unfolded).isEqualTo("BEGIN:VEVENT\r\nSUMMARY:A very long summary splitin three\r\nEND:VEVENT")
+    }
+
+    @Test
+    fun `reads in small chunks`() {
+        //given
+        val folded = "LINE:one\n two\nLINE:three"
+        val reader = UnfoldingIcsReader(folded.reader())
+        val buffer = CharArray(3)
+        val result = StringBuilder()
+        //when
+        var read = reader.read(buffer, 0, buffer.size)
+        while (read >= 0) {
+            result.append(buffer, 0, read)
+            read = reader.read(buffer, 0, buffer.size)
+        }
+        //then
+        assertThat(result.toString()).isEqualTo("LINE:onetwo\r\nLINE:three")
+    }
+}
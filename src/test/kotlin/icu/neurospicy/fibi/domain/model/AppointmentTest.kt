@@ -528,4 +528,41 @@ class AppointmentTest {
         assertThat(privateCalendar.appointments).hasSizeGreaterThan(20)
     }
 
-}
\ No newline at end of file
+    @Test
+    fun `should find the occurrence of a recurring event without a duration by its id`() {
+        // given
+        val ics = """
+            BEGIN:VCALENDAR
+            VERSION:2.0
+            PRODID:-//Sh Ine.//Bright//EN
+            BEGIN:VEVENT
+            DTSTAMP:20240826T090818Z
+            DTSTART:20250211T110000Z
+            DTEND:20250211T110000Z
+            SUMMARY:Take medication
+            UID:medication
+            RRULE:FREQ=DAILY;COUNT=10
+            END:VEVENT
+            END:VCALENDAR
+        """.trimIndent()
+        val recurringEvent = RecurringEvent(
+            owner = FriendshipId(),
+            calendarConfigId = CalendarConfigId(),
+            calendarId = CalendarId("test"),
+            relatedVEvent = "medication",
+            icsFileName = "medication.ics",
+            hash = "medication",
+            ics = ics,
+            materializedFrom = Instant.parse("2025-02-11T00:00:00Z"),
+            materializedUntil = Instant.parse("2025-02-12T00:00:00Z"),
+        )
+        val startAt = Instant.parse("2025-02-15T11:00:00Z")
+
+        // when
+        val occurrence = recurringEvent.occurrence(AppointmentId.from("medication", startAt), startAt)
+
+        // then
+        assertThat(occurrence?.startAt?.instant).isEqualTo(startAt)
+        assertThat(occurrence?.endAt?.instant).isEqualTo(startAt)
+    }
+}
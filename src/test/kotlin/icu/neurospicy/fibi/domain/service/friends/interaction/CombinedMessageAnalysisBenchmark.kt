@@ -0,0 +1,161 @@
+package icu.neurospicy.fibi.domain.service.friends.interaction
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import icu.neurospicy.fibi.domain.model.Channel
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.model.SignalMessageId
+import icu.neurospicy.fibi.domain.model.Task
+import icu.neurospicy.fibi.domain.model.UserMessage
+import icu.neurospicy.fibi.domain.model.events.IncomingFriendMessageReceived
+import icu.neurospicy.fibi.domain.repository.FriendshipLedger
+import icu.neurospicy.fibi.domain.repository.TaskRepository
+import icu.neurospicy.fibi.domain.service.friends.interaction.tasks.AddTaskSubtaskContributor
+import icu.neurospicy.fibi.domain.service.friends.interaction.tasks.AddTaskSubtaskHandler
+import icu.neurospicy.fibi.domain.service.friends.interaction.tasks.LlmTaskClassifier
+import icu.neurospicy.fibi.domain.service.friends.interaction.tasks.TaskIntents
+import icu.neurospicy.fibi.outgoing.ollama.JsonSchemas
+import icu.neurospicy.fibi.outgoing.ollama.LlmClient
+import icu.neurospicy.fibi.outgoing.ollama.LlmRequestScheduler
+import icu.neurospicy.fibi.outgoing.ollama.LlmResultCache
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import io.mockk.every
+import io.mockk.mockk
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.runBlocking
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import org.springframework.ai.chat.client.ChatClient
+import org.springframework.ai.chat.prompt.Prompt
+import java.time.Duration
+import java.util.*
+
+/**
+ * Compares LLM calls per message of the per-step pipeline and the [CombinedMessageAnalyzer] for messages adding a
+ * task, from intent classification to the extracted task. The calls are counted by the [LlmRequestScheduler] the
+ * pipeline runs through; only the model's answers are simulated, so the benchmark says nothing about latency.
+ * Run with `./gradlew benchmark`.
+ */
+@Tag("benchmark")
+class CombinedMessageAnalysisBenchmark {
+    private val objectMapper = jacksonObjectMapper()
+    private val friendshipId = FriendshipId()
+    private val titles = (1..10).map { "water plant $it" }
+
+    @Test
+    fun `combined analysis needs fewer LLM calls per message`(reporter: TestReporter) {
+        val perStep = Pipeline(combined = false).run()
+        val combined = Pipeline(combined = true).run()
+
+        reporter.publishEntry("LLM calls per message", "per-step ${perStep.calls}, combined ${combined.calls}")
+        assertThat(combined.savedTitles).isEqualTo(perStep.savedTitles).containsExactlyElementsOf(titles)
+        assertThat(combined.calls).isLessThan(perStep.calls)
+    }
+
+    private data class Measurement(val calls: Double, val savedTitles: List<String>)
+
+    private inner class Pipeline(combined: Boolean) {
+        private val meterRegistry = SimpleMeterRegistry()
+        private val saved = Collections.synchronizedList(mutableListOf<Task>())
+        private val currentPrompt = ThreadLocal<Prompt>()
+
+        private val callSpec = mockk<ChatClient.CallResponseSpec> {
+            every { content() } answers { simulate(currentPrompt.get()) }
+        }
+        private val requestSpec = mockk<ChatClient.ChatClientRequestSpec> {
+            every { toolContext(any()) } returns callSpec
+        }
+        private val chatClient = mockk<ChatClient> {
+            every { prompt(any<Prompt>()) } answers {
+                currentPrompt.set(firstArg())
+                requestSpec
+            }
+        }
+        private val llmClient = LlmClient(
+            chatClient,
+            LlmRequestScheduler(meterRegistry, 4, ""),
+            LlmResultCache(meterRegistry, 100, Duration.ofMinutes(10)),
+            JsonSchemas(objectMapper),
+            objectMapper,
+            meterRegistry
+        )
+        private val intentRegistry = mockk<IntentRegistry> {
+            val descriptions = mapOf(
+                CoreIntents.Smalltalk to "Small casual conversations",
+                TaskIntents.Add to "Add a new task to the user's task list",
+                TaskIntents.List to "Show the user's task list",
+            )
+            every { getDescriptions() } returns descriptions
+            every { getAll() } returns descriptions.keys.toList()
+        }
+        private val friendshipLedger = mockk<FriendshipLedger> {
+            every { findBy(any<FriendshipId>()) } returns null
+        }
+        private val taskRepository = mockk<TaskRepository> {
+            every { save(any()) } answers { firstArg<Task>().also { saved += it } }
+        }
+        private val analyzer =
+            CombinedMessageAnalyzer(llmClient, intentRegistry, "qwen3:32b", meterRegistry, combined, 100)
+        private val intentClassifier =
+            IntentClassifier(llmClient, intentRegistry, objectMapper, analyzer, "qwen3:8b", "qwen3:32b")
+        private val contributor =
+            AddTaskSubtaskContributor(LlmTaskClassifier(llmClient, friendshipLedger, analyzer, "qwen3:32b"))
+        private val handler =
+            AddTaskSubtaskHandler(llmClient, objectMapper, taskRepository, friendshipLedger, analyzer, "qwen3:32b")
+
+        fun run(): Measurement {
+            titles.forEachIndexed { index, title ->
+                handle(UserMessage(SignalMessageId(index.toLong()), text = "Add a task: $title", channel = Channel.SIGNAL))
+            }
+            val calls = meterRegistry.find("fibi.llm.queue.wait").timers().sumOf { it.count() }
+            return Measurement(calls.toDouble() / titles.size, saved.map { it.title })
+        }
+
+        private fun handle(message: UserMessage) = runBlocking(Dispatchers.IO) {
+            val intents = intentClassifier.classifyIntent(IncomingFriendMessageReceived(friendshipId, message))
+            if (intents.maxByOrNull { it.confidence }?.intent != TaskIntents.Add) return@runBlocking
+            contributor.provideSubtasks(TaskIntents.Add, friendshipId, message).forEach {
+                handler.handle(it, GoalContext(originalMessage = message), friendshipId)
+            }
+        }
+
+        private fun simulate(prompt: Prompt): String {
+            val text = prompt.contents
+            val message = MESSAGE.find(text)!!.groupValues[1]
+            val title = message.substringAfter(": ")
+            return when {
+                text.startsWith("Analyze the final user message") -> objectMapper.writeValueAsString(
+                    mapOf(
+                        "intents" to listOf(mapOf("intent" to "AddTask", "confidence" to 0.95)),
+                        "segments" to listOf(
+                            mapOf(
+                                "intent" to "AddTask",
+                                "relevantText" to message,
+                                "description" to "Add the task $title",
+                                "parameters" to listOf(mapOf("name" to "title", "value" to title)),
+                            )
+                        ),
+                    )
+                )
+
+                text.contains("Classify the user's message") ->
+                    objectMapper.writeValueAsString(listOf(mapOf("intent" to "AddTask", "confidence" to 0.95)))
+
+                text.contains("clearly and explicitly") -> "yes"
+                text.contains("Extract all task-related segments") -> objectMapper.writeValueAsString(
+                    listOf(mapOf("relevantText" to message, "description" to "Add the task $title"))
+                )
+
+                text.contains("helping the user create a new task") ->
+                    objectMapper.writeValueAsString(mapOf("title" to title, "completed" to false))
+
+                else -> error("Unexpected prompt: $text")
+            }
+        }
+    }
+
+    companion object {
+        private val MESSAGE = Regex("\"(Add a task: [^\"]+)\"")
+    }
+}
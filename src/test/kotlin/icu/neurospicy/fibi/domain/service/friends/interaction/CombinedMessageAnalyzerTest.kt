@@ -0,0 +1,95 @@
+package icu.neurospicy.fibi.domain.service.friends.interaction
+
+import icu.neurospicy.fibi.domain.model.Channel
+import icu.neurospicy.fibi.domain.model.SignalMessageId
+import icu.neurospicy.fibi.domain.model.UserMessage
+import icu.neurospicy.fibi.domain.service.friends.interaction.MessageAnalysis.AnalyzedIntent
+import icu.neurospicy.fibi.domain.service.friends.interaction.MessageAnalysis.AnalyzedSegment
+import icu.neurospicy.fibi.domain.service.friends.interaction.MessageAnalysis.Parameter
+import icu.neurospicy.fibi.domain.service.friends.interaction.tasks.TaskIntents
+import icu.neurospicy.fibi.outgoing.ollama.LlmClient
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import io.mockk.coEvery
+import io.mockk.coVerify
+import io.mockk.every
+import io.mockk.mockk
+import kotlinx.coroutines.runBlocking
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import java.time.Instant
+
+class CombinedMessageAnalyzerTest {
+
+    private val llmClient = mockk<LlmClient>()
+    private val intentRegistry = mockk<IntentRegistry> {
+        every { getDescriptions() } returns mapOf(TaskIntents.Add to "Add a new task to the user's task list")
+    }
+    private val message = UserMessage(
+        SignalMessageId(Instant.now().toEpochMilli()), text = "I need to call the clinic, add it", channel = Channel.SIGNAL
+    )
+
+    @Test
+    fun `does not prompt when disabled`() = runBlocking<Unit> {
+        //given
+        val analyzer = analyzer(enabled = false)
+        //when
+        val analysis = analyzer.analyze(message)
+        //then
+        assertThat(analysis).isNull()
+        assertThat(analyzer.relevantTextsFor(message.messageId, TaskIntents.Add)).isNull()
+        coVerify(exactly = 0) { llmClient.promptReceivingJson(any(), any(), any(), any(), MessageAnalysis::class.java, any(), any(), any(), any(), any()) }
+    }
+
+    @Test
+    fun `analyzes a message once for all steps`() = runBlocking<Unit> {
+        //given
+        val analyzer = analyzer()
+        answer(
+            MessageAnalysis(
+                intents = listOf(AnalyzedIntent("AddTask", 0.9f)),
+                segments = listOf(
+                    AnalyzedSegment(
+                        "AddTask", "I need to call the clinic, add it", "call the clinic",
+                        listOf(Parameter("title", "Call the clinic"), Parameter("description", " "))
+                    ),
+                    AnalyzedSegment("AddTask", "", "blank segment"),
+                )
+            )
+        )
+        //when
+        val first = analyzer.analyze(message)
+        val second = analyzer.analyze(message)
+        //then
+        assertThat(second).isSameAs(first)
+        assertThat(analyzer.relevantTextsFor(message.messageId, TaskIntents.Add))
+            .containsExactly(RelevantText("I need to call the clinic, add it", "call the clinic"))
+        assertThat(analyzer.parametersFor(message.messageId, TaskIntents.Add, " I need to call the clinic, add it"))
+            .containsExactlyEntriesOf(mapOf("title" to "Call the clinic"))
+        assertThat(analyzer.relevantTextsFor(message.messageId, TaskIntents.List)).isNull()
+        coVerify(exactly = 1) { llmClient.promptReceivingJson(any(), any(), any(), any(), MessageAnalysis::class.java, any(), any(), any(), any(), any()) }
+    }
+
+    @Test
+    fun `remembers failed analyses to fall back for all steps`() = runBlocking<Unit> {
+        //given
+        val analyzer = analyzer()
+        answer(MessageAnalysis(intents = emptyList()))
+        //when
+        val first = analyzer.analyze(message)
+        val second = analyzer.analyze(message)
+        //then
+        assertThat(first).isNull()
+        assertThat(second).isNull()
+        assertThat(analyzer.relevantTextsFor(message.messageId, TaskIntents.Add)).isNull()
+        coVerify(exactly = 1) { llmClient.promptReceivingJson(any(), any(), any(), any(), MessageAnalysis::class.java, any(), any(), any(), any(), any()) }
+    }
+
+    private fun analyzer(enabled: Boolean = true) =
+        CombinedMessageAnalyzer(llmClient, intentRegistry, "qwen3:32b", SimpleMeterRegistry(), enabled, 10)
+
+    private fun answer(analysis: MessageAnalysis) {
+        coEvery {
+            llmClient.promptReceivingJson(any(), any(), any(), any(), MessageAnalysis::class.java, any(), any(), any(), any(), any())
+        } returns analysis
+    }
+}
@@ -0,0 +1,97 @@
+package icu.neurospicy.fibi.domain.service.friends.interaction
+
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.jupiter.api.Test
+import org.springframework.dao.DuplicateKeyException
+import org.springframework.dao.OptimisticLockingFailureException
+import org.springframework.data.mongodb.core.MongoTemplate
+import org.springframework.data.mongodb.core.query.Query
+import org.springframework.data.mongodb.core.query.Update
+
+class GoalContextRepositoryBasedOnMongoDbTest {
+
+    private val friendshipId = FriendshipId()
+    private val mongoTemplate = mockk<MongoTemplate>(relaxed = true)
+    private val repository = GoalContextRepositoryBasedOnMongoDb(mongoTemplate, 10)
+    private val stored = GoalContext(parameters = mapOf("stored" to true))
+    private val concurrent = GoalContext(parameters = mapOf("concurrent" to true))
+    private val mine = GoalContext(parameters = mapOf("mine" to true))
+
+    @Test
+    fun `flushes the context saved within a turn once it completed`() {
+        //given
+        stored(stored, version = 1)
+        //when
+        repository.inTurn(friendshipId) {
+            repository.saveContext(friendshipId, mine)
+            assertThat(repository.loadContext(friendshipId)).isEqualTo(mine)
+        }
+        //then
+        verify(exactly = 1) { mongoTemplate.upsert(any<Query>(), any<Update>(), GoalContextOfFriend::class.java) }
+        assertThat(repository.loadContext(friendshipId)).isEqualTo(mine)
+    }
+
+    @Test
+    fun `discards the context saved within a turn that failed`() {
+        //given
+        stored(stored, version = 1)
+        //when
+        assertThatThrownBy {
+            repository.inTurn(friendshipId) {
+                repository.saveContext(friendshipId, mine)
+                throw IllegalStateException("turn failed")
+            }
+        }.isInstanceOf(IllegalStateException::class.java)
+        //then
+        verify(exactly = 0) { mongoTemplate.upsert(any<Query>(), any<Update>(), GoalContextOfFriend::class.java) }
+        assertThat(repository.loadContext(friendshipId)).isEqualTo(stored)
+    }
+
+    @Test
+    fun `keeps the changes of a turn and of a context saved concurrently outside of it`() {
+        //given
+        stored(stored, version = 1)
+        val question = GoalClarificationQuestion("Which calendar?", emptySet())
+        //when
+        repository.inTurn(friendshipId) {
+            repository.saveContext(friendshipId, stored.copy(goalClarificationQuestion = question))
+            val other = Thread { repository.saveContext(friendshipId, concurrent) }
+            other.start()
+            other.join()
+            stored(concurrent, version = 2)
+            every {
+                mongoTemplate.upsert(any<Query>(), any<Update>(), GoalContextOfFriend::class.java)
+            } throws DuplicateKeyException("version conflict") andThen mockk(relaxed = true)
+        }
+        //then
+        verify(exactly = 3) { mongoTemplate.upsert(any<Query>(), any<Update>(), GoalContextOfFriend::class.java) }
+        val saved = repository.loadContext(friendshipId)!!
+        assertThat(saved.goalClarificationQuestion).isEqualTo(question)
+        assertThat(saved.parameters).isEqualTo(concurrent.parameters)
+    }
+
+    @Test
+    fun `fails a write only once the context kept changing concurrently`() {
+        //given
+        stored(stored, version = 1)
+        every {
+            mongoTemplate.upsert(any<Query>(), any<Update>(), GoalContextOfFriend::class.java)
+        } throws DuplicateKeyException("version conflict")
+        //when
+        assertThatThrownBy { repository.saveContext(friendshipId, mine) }
+            .isInstanceOf(OptimisticLockingFailureException::class.java)
+        //then
+        verify(exactly = 3) { mongoTemplate.upsert(any<Query>(), any<Update>(), GoalContextOfFriend::class.java) }
+        assertThat(repository.loadContext(friendshipId)).isEqualTo(stored)
+    }
+
+    private fun stored(context: GoalContext, version: Long) {
+        every { mongoTemplate.findOne(any<Query>(), GoalContextOfFriend::class.java) } returns
+                GoalContextOfFriend(friendshipId = friendshipId, goalContext = context, version = version)
+    }
+}
@@ -9,6 +9,7 @@ import icu.neurospicy.fibi.domain.model.UserMessage
 import icu.neurospicy.fibi.domain.model.events.IncomingFriendMessageReceived
 import icu.neurospicy.fibi.outgoing.ollama.LlmClient
 import io.mockk.coEvery
+import io.mockk.coVerify
 import io.mockk.every
 import io.mockk.impl.annotations.MockK
 import io.mockk.junit5.MockKExtension
@@ -29,6 +30,9 @@ class IntentClassifierTest {
     @MockK
     private lateinit var intentRegistry: IntentRegistry
 
+    @MockK
+    private lateinit var combinedMessageAnalyzer: CombinedMessageAnalyzer
+
     @MockK
     private lateinit var intentClassifier: IntentClassifier
     private lateinit var objectMapper: ObjectMapper
@@ -37,7 +41,9 @@ class IntentClassifierTest {
     fun setup() {
         objectMapper = jacksonObjectMapper()
 
-        intentClassifier = IntentClassifier(llmClient, intentRegistry, objectMapper, "fibi64", "fibi64")
+        intentClassifier =
+            IntentClassifier(llmClient, intentRegistry, objectMapper, combinedMessageAnalyzer, "fibi64", "fibi64")
+        coEvery { combinedMessageAnalyzer.analyze(any(), any()) } returns null
     }
 
     @Test
@@ -143,6 +149,33 @@ class IntentClassifierTest {
         assertEquals(1, result.size)
     }
 
+    @Test
+    fun `should use the combined analysis without prompting per step`() = runBlocking {
+        // Given
+        val message = "Add 'buy milk' and show my tasks"
+        val addTaskIntent = Intent("AddTask")
+        val listTasksIntent = Intent("ListTasks")
+        coEvery { combinedMessageAnalyzer.analyze(any(), any()) } returns MessageAnalysis(
+            intents = listOf(
+                MessageAnalysis.AnalyzedIntent("ListTasks", 0.6f),
+                MessageAnalysis.AnalyzedIntent("AddTask", 0.95f),
+                MessageAnalysis.AnalyzedIntent("Gibberish", 0.1f),
+            )
+        )
+        every { intentRegistry.getDescriptions() } returns mapOf(
+            addTaskIntent to "Add a new task to the user's task list", listTasksIntent to "Show the user's task list"
+        )
+        every { intentRegistry.getAll() } returns listOf(addTaskIntent, listTasksIntent)
+
+        // When
+        val result = intentClassifier.classifyIntent(createIncomingMessage(message))
+
+        // Then
+        assertThat(result.map { it.intent }).containsExactly(addTaskIntent, listTasksIntent, CoreIntents.Unknown)
+        coVerify(exactly = 0) { llmClient.promptReceivingJson(any(), any(), any(), any()) }
+        coVerify(exactly = 0) { llmClient.promptReceivingText(any(), any(), any(), any()) }
+    }
+
     private fun createIncomingMessage(text: String): IncomingFriendMessageReceived = IncomingFriendMessageReceived(
         FriendshipId("test-friendship"), UserMessage(
             SignalMessageId(Instant.now().epochSecond), text = text, channel = Channel.SIGNAL
@@ -364,7 +364,7 @@ class RoutineTaskIntegrationServiceTest {
                 SignalMessageId(Instant.now().epochSecond), Instant.now(), "Something about the task...", SIGNAL
             )
         )
-        every { chatRepository.findHistory(any()) } returns ChatHistory("history", friendshipId, history)
+        every { chatRepository.findLatest(friendshipId, any(), any()) } returns history
         every { instanceRepository.findByConceptRelatedToTask(friendshipId, task.id!!) } returns listOf(instance)
         every { templateRepository.findById(template.templateId) } returns template
         coEvery { friendStateAnalyzer.analyze(any(), any()) } returns analysisResult
@@ -24,7 +24,6 @@ import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.boot.test.context.SpringBootTest
 import org.springframework.context.ApplicationEventPublisher
 import java.time.Instant.now
-import java.util.*
 
 
 @ExtendWith(MockKExtension::class)
@@ -61,7 +60,7 @@ internal class AcquaintanceInteractionTest {
         val incomingMessage = UserMessage(
             text = "Yes or No or Maybe", messageId = SignalMessageId(now().epochSecond), channel = SIGNAL
         )
-        every { chatRepository.findHistory(friendshipId) } returns ChatHistory(null, friendshipId, Stack())
+        every { chatRepository.findLatest(friendshipId, any(), any()) } returns emptyList()
         coEvery {
             intentRecognizer.recognize(
                 any(), incomingMessage, any(), any(), true
@@ -93,7 +92,7 @@ internal class AcquaintanceInteractionTest {
             val friendshipId = FriendshipId()
             val incomingMessage =
                 UserMessage(text = "Some question", messageId = SignalMessageId(now().epochSecond), channel = SIGNAL)
-            every { chatRepository.findHistory(friendshipId) } returns ChatHistory(null, friendshipId, Stack())
+            every { chatRepository.findLatest(friendshipId, any(), any()) } returns emptyList()
             coEvery {
                 intentRecognizer.recognize(
                     any(), incomingMessage, any<Set<PossibleIntent>>(), any(), true
@@ -124,7 +123,7 @@ internal class AcquaintanceInteractionTest {
         val friendshipId = FriendshipId()
         val incomingMessage =
             UserMessage(text = "Yes", messageId = SignalMessageId(now().epochSecond), channel = SIGNAL)
-        every { chatRepository.findHistory(friendshipId) } returns ChatHistory(null, friendshipId, Stack())
+        every { chatRepository.findLatest(friendshipId, any(), any()) } returns emptyList()
         coEvery { intentRecognizer.recognize(any(), incomingMessage, any(), any(), true) } answers {
             Result(possibleIntentsFromCall(it).find { pi -> pi.name == confirmingIntent } ?: fail())
         }
@@ -176,7 +175,7 @@ internal class AcquaintanceInteractionTest {
         val friendshipId = FriendshipId()
         val incomingMessage =
             UserMessage(text = "Yes", messageId = SignalMessageId(now().epochSecond), channel = SIGNAL)
-        every { chatRepository.findHistory(friendshipId) } returns ChatHistory(null, friendshipId, Stack())
+        every { chatRepository.findLatest(friendshipId, any(), any()) } returns emptyList()
         coEvery { intentRecognizer.recognize(any(), incomingMessage, any(), any(), true) } answers {
             Result(possibleIntentsFromCall(it).find { pi -> pi.name == "Denies TOS" } ?: fail())
         }
@@ -201,7 +200,7 @@ internal class AcquaintanceInteractionTest {
         val friendshipId = FriendshipId()
         val incomingMessage =
             UserMessage(text = "Some question", messageId = SignalMessageId(now().epochSecond), channel = SIGNAL)
-        every { chatRepository.findHistory(friendshipId) } returns ChatHistory(null, friendshipId, Stack())
+        every { chatRepository.findLatest(friendshipId, any(), any()) } returns emptyList()
         coEvery {
             intentRecognizer.recognize(
                 any(), incomingMessage, any(), any(), true
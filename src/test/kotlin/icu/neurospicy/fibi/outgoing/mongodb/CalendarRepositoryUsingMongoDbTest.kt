@@ -0,0 +1,69 @@
+package icu.neurospicy.fibi.outgoing.mongodb
+
+import icu.neurospicy.fibi.domain.model.*
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import org.junit.jupiter.api.Test
+import org.springframework.context.ApplicationEventPublisher
+import org.springframework.data.mongodb.core.BulkOperations
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode.UNORDERED
+import org.springframework.data.mongodb.core.MongoTemplate
+import org.springframework.data.mongodb.core.query.Query
+import java.time.Instant
+import java.time.ZoneOffset.UTC
+
+class CalendarRepositoryUsingMongoDbTest {
+
+    private val owner = FriendshipId()
+    private val calendarConfigId = CalendarConfigId()
+    private val calendarId = CalendarId("personal")
+    private val mongoTemplate = mockk<MongoTemplate>(relaxed = true)
+    private val bulk = mockk<BulkOperations>(relaxed = true)
+    private val eventPublisher = mockk<ApplicationEventPublisher>(relaxed = true)
+    private val repository = CalendarRepositoryUsingMongoDb(mongoTemplate, eventPublisher, 10)
+
+    @Test
+    fun `keeps new appointments sharing an id`() {
+        //given
+        every { mongoTemplate.find(any<Query>(), Appointment::class.java) } returns emptyList()
+        every { mongoTemplate.bulkOps(UNORDERED, Appointment::class.java) } returns bulk
+        val inFirstFile = appointment("first")
+        val inSecondFile = appointment("second")
+        //when
+        repository.replaceCalendarAppointments(listOf(inFirstFile, inSecondFile), owner, calendarConfigId, calendarId)
+        //then
+        verify { bulk.insert(inFirstFile) }
+        verify { bulk.insert(inSecondFile) }
+        verify(exactly = 1) { bulk.execute() }
+    }
+
+    @Test
+    fun `keeps stored appointments sharing an id that did not change`() {
+        //given
+        val inFirstFile = appointment("first")
+        val inSecondFile = appointment("second")
+        every { mongoTemplate.find(any<Query>(), Appointment::class.java) } returns
+                listOf(inFirstFile.copy(_id = "1"), inSecondFile.copy(_id = "2"))
+        every { mongoTemplate.bulkOps(UNORDERED, Appointment::class.java) } returns bulk
+        //when
+        repository.replaceCalendarAppointments(listOf(inFirstFile, inSecondFile), owner, calendarConfigId, calendarId)
+        //then
+        verify(exactly = 0) { bulk.execute() }
+    }
+
+    private fun appointment(hash: String): Appointment {
+        val startAt = Instant.parse("2030-01-01T10:00:00Z")
+        return Appointment(
+            owner = owner,
+            appointmentId = AppointmentId.from("party", startAt),
+            calendarConfigId = calendarConfigId,
+            calendarId = calendarId,
+            relatedVEvent = "party",
+            summary = "Party",
+            startAt = DateTimeInformation(startAt, UTC, startAt.atZone(UTC)),
+            endAt = DateTimeInformation(startAt.plusSeconds(3600), UTC, startAt.plusSeconds(3600).atZone(UTC)),
+            hash = hash,
+        )
+    }
+}
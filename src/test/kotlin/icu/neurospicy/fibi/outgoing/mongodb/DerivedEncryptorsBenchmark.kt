@@ -0,0 +1,50 @@
+package icu.neurospicy.fibi.outgoing.mongodb
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import org.springframework.security.crypto.encrypt.Encryptors
+import org.springframework.security.crypto.keygen.KeyGenerators
+import kotlin.time.measureTime
+import kotlin.time.measureTimedValue
+
+/**
+ * Compares deriving an encryptor for every load and save of a calendar configuration with the cached encryptors.
+ * Run with `./gradlew benchmark`.
+ */
+@Tag("benchmark")
+class DerivedEncryptorsBenchmark {
+    private val key = "jsladkfjalskdfjlcvanlknre"
+    private val salts = (1..20).map { KeyGenerators.string().generateKey() }
+    private val configuration = """{"configurations":[{"url":"https://example.com/dav","credential":null}]}"""
+    private val rounds = 500
+
+    @Test
+    fun `compares cached derived encryptors with deriving the key per call`(reporter: TestReporter) {
+        val blobs = salts.associateWith { Encryptors.delux(key, it).encrypt(configuration) }
+        val encryptors = DerivedEncryptors(key, salts.size)
+        repeat(50) { i -> salts[i % salts.size].let { encryptors.forSalt(it).decrypt(blobs[it]) } } // warm up
+
+        val uncached = measureTime {
+            repeat(rounds) { i ->
+                val salt = salts[i % salts.size]
+                val decrypted = Encryptors.delux(key, salt).decrypt(blobs[salt])
+                Encryptors.delux(key, salt).encrypt(decrypted)
+            }
+        }
+        val (decrypted, cached) = measureTimedValue {
+            (0 until rounds).map { i ->
+                val salt = salts[i % salts.size]
+                val decrypted = encryptors.forSalt(salt).decrypt(blobs[salt])
+                encryptors.forSalt(salt).encrypt(decrypted)
+                decrypted
+            }
+        }
+
+        reporter.publishEntry(
+            "Load and save of $rounds calendar configurations", "deriving per call $uncached, cached $cached"
+        )
+        assertThat(decrypted).containsOnly(configuration)
+    }
+}
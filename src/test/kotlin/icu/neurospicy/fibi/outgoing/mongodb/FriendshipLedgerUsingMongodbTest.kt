@@ -0,0 +1,64 @@
+package icu.neurospicy.fibi.outgoing.mongodb
+
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.model.LedgerEntry
+import icu.neurospicy.fibi.domain.model.RelationStatus.Friend
+import io.mockk.every
+import io.mockk.mockk
+import org.assertj.core.api.Assertions.assertThat
+import org.bson.Document
+import org.junit.jupiter.api.Test
+import org.springframework.data.mongodb.core.FindAndModifyOptions
+import org.springframework.data.mongodb.core.MongoTemplate
+import org.springframework.data.mongodb.core.query.Query
+import org.springframework.data.mongodb.core.query.Update
+import org.springframework.data.mongodb.core.query.UpdateDefinition
+import java.time.ZoneId
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class FriendshipLedgerUsingMongodbTest {
+
+    private val friendshipId = FriendshipId()
+    private val mongoTemplate = mockk<MongoTemplate>(relaxed = true)
+    private val ledger = FriendshipLedgerUsingMongodb(mongoTemplate, 10)
+    private var stored = LedgerEntry(friendshipId = friendshipId, relationStatus = Friend)
+
+    @Test
+    fun `keeps the changes of concurrent mutators of different fields`() {
+        //given
+        every { mongoTemplate.findOne(any<Query>(), LedgerEntry::class.java, "friendshipledger") } answers { stored }
+        every {
+            mongoTemplate.findAndModify(
+                any<Query>(),
+                any<UpdateDefinition>(),
+                any<FindAndModifyOptions>(),
+                LedgerEntry::class.java,
+                "friendshipledger"
+            )
+        } answers { applySet(secondArg<Update>().updateObject["\$set"] as Document) }
+        ledger.findBy(friendshipId)
+        val start = CountDownLatch(1)
+        val mutators = listOf(
+            Thread { start.await(5, TimeUnit.SECONDS); ledger.startActivity(friendshipId, "routine") },
+            Thread { start.await(5, TimeUnit.SECONDS); ledger.updateZoneId(friendshipId, ZoneId.of("Europe/Berlin")) },
+        )
+        //when
+        mutators.forEach { it.start() }
+        start.countDown()
+        mutators.forEach { it.join() }
+        //then
+        assertThat(stored.activeActivity).isEqualTo("routine")
+        assertThat(stored.timeZone).isEqualTo(ZoneId.of("Europe/Berlin"))
+        assertThat(ledger.findBy(friendshipId)).isEqualTo(stored)
+    }
+
+    @Synchronized
+    private fun applySet(set: Document): LedgerEntry {
+        stored = stored.copy(
+            activeActivity = if (set.containsKey("activeActivity")) set["activeActivity"] as String? else stored.activeActivity,
+            timeZone = if (set.containsKey("timeZone")) set["timeZone"] as ZoneId? else stored.timeZone,
+        )
+        return stored
+    }
+}
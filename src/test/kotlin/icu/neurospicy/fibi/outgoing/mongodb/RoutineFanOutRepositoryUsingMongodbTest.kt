@@ -0,0 +1,37 @@
+package icu.neurospicy.fibi.outgoing.mongodb
+
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutEntry
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.slot
+import org.assertj.core.api.Assertions.assertThat
+import org.bson.Document
+import org.junit.jupiter.api.Test
+import org.springframework.data.mongodb.core.MongoTemplate
+import org.springframework.data.mongodb.core.query.Query
+import org.springframework.data.mongodb.core.query.UpdateDefinition
+import java.time.Instant
+
+class RoutineFanOutRepositoryUsingMongodbTest {
+
+    private val mongoTemplate = mockk<MongoTemplate>(relaxed = true)
+    private val repository = RoutineFanOutRepositoryUsingMongodb(mongoTemplate)
+    private val minute = Instant.parse("2030-01-01T07:00:00Z")
+
+    @Test
+    fun `does not pre-generate claimed entries`() {
+        //given
+        val claim = slot<UpdateDefinition>()
+        every { mongoTemplate.updateMulti(any<Query>(), capture(claim), "routine-fan-out") } returns mockk()
+        val candidates = slot<Query>()
+        every {
+            mongoTemplate.find(capture(candidates), RoutineFanOutEntry::class.java, "routine-fan-out")
+        } returns emptyList()
+        //when
+        repository.claimDueUntil(minute, "fan-out", minute, minute.minusSeconds(300))
+        repository.findPregenerationCandidates(minute.plusSeconds(300))
+        //then
+        assertThat((claim.captured.updateObject["\$set"] as Document)["pregenerationStarted"]).isEqualTo(true)
+        assertThat(candidates.captured.queryObject).containsEntry("claimedAt", null)
+    }
+}
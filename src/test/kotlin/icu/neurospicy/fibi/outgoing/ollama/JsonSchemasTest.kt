@@ -0,0 +1,42 @@
+package icu.neurospicy.fibi.outgoing.ollama
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import icu.neurospicy.fibi.domain.service.friends.interaction.RelevantText
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+
+class JsonSchemasTest {
+
+    private val jsonSchemas = JsonSchemas(jacksonObjectMapper())
+
+    @Test
+    fun `derives the schema of a type once`() {
+        //when
+        val schema = jsonSchemas.of(RelevantText::class.java)
+        //then
+        assertThat(schema["type"]).isEqualTo("object")
+        @Suppress("UNCHECKED_CAST")
+        assertThat((schema["properties"] as Map<String, Any>).keys).containsExactlyInAnyOrder(
+            "relevantText", "description"
+        )
+        assertThat(jsonSchemas.of(RelevantText::class.java)).isSameAs(schema)
+    }
+
+    @Test
+    fun `describes the expected fields of an extraction`() {
+        //when
+        val schema = jsonSchemas.of(
+            listOf(ExpectedField("wakeUpTime", "String"), ExpectedField("minutes", "Int", required = false))
+        )
+        //then
+        assertThat(schema).isEqualTo(
+            mapOf(
+                "type" to "object",
+                "properties" to mapOf(
+                    "wakeUpTime" to mapOf("type" to "string"), "minutes" to mapOf("type" to "integer")
+                ),
+                "required" to listOf("wakeUpTime"),
+            )
+        )
+    }
+}
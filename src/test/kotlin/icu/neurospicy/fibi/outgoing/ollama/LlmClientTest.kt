@@ -1,9 +1,13 @@
 package icu.neurospicy.fibi.outgoing.ollama
 
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import icu.neurospicy.fibi.domain.service.friends.interaction.RelevantText
 import icu.neurospicy.fibi.domain.service.friends.tools.SimpleCalendarTools
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
 import io.mockk.every
 import io.mockk.mockk
 import io.mockk.verify
+import kotlinx.coroutines.flow.toList
 import kotlinx.coroutines.runBlocking
 import org.assertj.core.api.AssertionsForInterfaceTypes.assertThat
 import org.junit.jupiter.api.Nested
@@ -11,16 +15,32 @@ import org.junit.jupiter.api.Test
 import org.springframework.ai.chat.client.ChatClient
 import org.springframework.ai.chat.messages.UserMessage
 import org.springframework.ai.chat.prompt.Prompt
+import org.springframework.ai.ollama.api.OllamaOptions
+import reactor.core.publisher.Flux
+import java.time.Duration
 import java.time.Instant
 import java.time.ZoneOffset
 
 class LlmClientTest {
+    private val meterRegistry = SimpleMeterRegistry()
+
+    private val objectMapper = jacksonObjectMapper()
+
+    private fun client(chatClient: ChatClient) = LlmClient(
+        chatClient,
+        LlmRequestScheduler(meterRegistry, 4, ""),
+        LlmResultCache(meterRegistry, 100, Duration.ofMinutes(10)),
+        JsonSchemas(objectMapper),
+        objectMapper,
+        meterRegistry
+    )
+
     @Nested
     inner class PromptReceivingText {
         @Test
         fun `prompts with tools`() = runBlocking<Unit> {
             val chatClient = mockk<ChatClient>()
-            val client = LlmClient(chatClient)
+            val client = client(chatClient)
             val requestSpec = mockk<ChatClient.ChatClientRequestSpec>()
             every { chatClient.prompt(any<Prompt>()) } returns requestSpec
             val answer = "Answer of the llm"
@@ -46,7 +66,7 @@ class LlmClientTest {
         @Test
         fun `does not apply empty tools`() = runBlocking<Unit> {
             val chatClient = mockk<ChatClient>()
-            val client = LlmClient(chatClient)
+            val client = client(chatClient)
             val requestSpec = mockk<ChatClient.ChatClientRequestSpec>()
             every { chatClient.prompt(any<Prompt>()) } returns requestSpec
             val answer = "Answer of the llm"
@@ -73,7 +93,7 @@ class LlmClientTest {
         @Test
         fun `prompts with tools`() = runBlocking<Unit> {
             val chatClient = mockk<ChatClient>()
-            val client = LlmClient(chatClient)
+            val client = client(chatClient)
             val requestSpec = mockk<ChatClient.ChatClientRequestSpec>()
             every { chatClient.prompt(any<Prompt>()) } returns requestSpec
             val answer = """{"key":"value"}"""
@@ -99,7 +119,7 @@ class LlmClientTest {
         @Test
         fun `does not apply empty tools`() = runBlocking<Unit> {
             val chatClient = mockk<ChatClient>()
-            val client = LlmClient(chatClient)
+            val client = client(chatClient)
             val requestSpec = mockk<ChatClient.ChatClientRequestSpec>()
             every { chatClient.prompt(any<Prompt>()) } returns requestSpec
             val answer = """{"key":"value"}"""
@@ -120,4 +140,112 @@ class LlmClientTest {
             verify(exactly = 0) { requestSpec.tools(any()) }
         }
     }
-}
\ No newline at end of file
+
+    @Nested
+    inner class PromptReceivingType {
+        private val chatClient = mockk<ChatClient>()
+        private val prompts = mutableListOf<Prompt>()
+
+        @Test
+        fun `constrains the answer to the schema of the type`() = runBlocking<Unit> {
+            answers("""{"relevantText": "call the clinic", "description": "Call the clinic"}""")
+            val answer = ask()
+            assertThat(answer).isEqualTo(RelevantText("call the clinic", "Call the clinic"))
+            val format = (prompts.single().options as OllamaOptions).format
+            assertThat(format).isEqualTo(JsonSchemas(objectMapper).of(RelevantText::class.java))
+        }
+
+        @Test
+        fun `asks again when the answer does not match the type and counts it`() = runBlocking<Unit> {
+            answers("<think>Hm</think>{}", """{"relevantText": "call", "description": "Call"}""")
+            val answer = ask()
+            assertThat(answer).isEqualTo(RelevantText("call", "Call"))
+            assertThat(prompts).hasSize(2)
+            assertThat(structuredOutputCount("parse-failures")).isEqualTo(1.0)
+            assertThat(structuredOutputCount("retries")).isEqualTo(1.0)
+        }
+
+        private fun answers(vararg answers: String) {
+            val requestSpec = mockk<ChatClient.ChatClientRequestSpec>()
+            every { chatClient.prompt(capture(prompts)) } returns requestSpec
+            every { requestSpec.toolContext(any()) } returns mockk {
+                every { call() } returns mockk { every { content() } returnsMany answers.toList() }
+            }
+        }
+
+        private suspend fun ask() = client(chatClient).promptReceivingJson(
+            listOf(UserMessage("I need to call the clinic")),
+            OllamaOptions.builder().model("qwen3:8b").temperature(0.0).build(),
+            ZoneOffset.UTC,
+            Instant.now(),
+            responseType = RelevantText::class.java,
+            callSite = "test"
+        )
+
+        private fun structuredOutputCount(name: String) =
+            meterRegistry.get("fibi.llm.structured-output.$name").tag("call-site", "test").counter().count()
+    }
+
+    @Nested
+    inner class Caching {
+        private val chatClient = mockk<ChatClient>()
+        private val llmClient = client(chatClient)
+
+        init {
+            val requestSpec = mockk<ChatClient.ChatClientRequestSpec>()
+            every { chatClient.prompt(any<Prompt>()) } returns requestSpec
+            every { requestSpec.toolContext(any()) } returns mockk {
+                every { call() } returns mockk { every { content() } returns "yes" }
+            }
+        }
+
+        @Test
+        fun `answers prompts opted into caching from the cache when asked again`() = runBlocking<Unit> {
+            val answers = listOf("Add  a task\n", "Add a task").map { text ->
+                withCachedLlmResults { ask(text) }
+            }
+            assertThat(answers).containsExactly("yes", "yes")
+            verify(exactly = 1) { chatClient.prompt(any<Prompt>()) }
+            assertThat(cacheRequests("hit")).isEqualTo(1.0)
+            assertThat(cacheRequests("miss")).isEqualTo(1.0)
+        }
+
+        @Test
+        fun `asks again for a different model or prompts not opted in`() = runBlocking<Unit> {
+            withCachedLlmResults { ask("Add a task") }
+            withCachedLlmResults { ask("Add a task", model = "qwen3:32b") }
+            ask("Add a task")
+            verify(exactly = 3) { chatClient.prompt(any<Prompt>()) }
+        }
+
+        private suspend fun ask(text: String, model: String = "qwen3:8b") = llmClient.promptReceivingText(
+            listOf(UserMessage("Does the user want to: $text?")),
+            OllamaOptions.builder().model(model).temperature(0.0).build(),
+            ZoneOffset.UTC,
+            Instant.now()
+        )
+
+        private fun cacheRequests(result: String) =
+            meterRegistry.get("fibi.llm.cache.requests").tag("result", result).counter().count()
+    }
+    @Nested
+    inner class StreamText {
+        @Test
+        fun `removes thinking split across chunks`() = runBlocking<Unit> {
+            val chatClient = mockk<ChatClient>()
+            val client = client(chatClient)
+            val requestSpec = mockk<ChatClient.ChatClientRequestSpec>()
+            every { chatClient.prompt(any<Prompt>()) } returns requestSpec
+            every { requestSpec.toolContext(any()) } returns mockk {
+                every { stream() } returns mockk {
+                    every { content() } returns Flux.just("<thi", "nk>Let me plan.</th", "ink>Good", " morning! <", "3")
+                }
+            }
+            val chunks = client.streamText(
+                listOf(UserMessage("Some message to the llm")), mockk(relaxed = true), ZoneOffset.UTC, Instant.now()
+            ).toList()
+            assertThat(chunks.joinToString("")).isEqualTo("Good morning! <3")
+            assertThat(chunks.first()).isEqualTo("Good")
+        }
+    }
+}
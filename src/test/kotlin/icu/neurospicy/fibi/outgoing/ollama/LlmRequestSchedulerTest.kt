@@ -0,0 +1,107 @@
+package icu.neurospicy.fibi.outgoing.ollama
+
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart.UNDISPATCHED
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import java.util.*
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicInteger
+
+class LlmRequestSchedulerTest {
+
+    private val meterRegistry = SimpleMeterRegistry()
+    private val scheduler = LlmRequestScheduler(meterRegistry, 1, "qwen3:8b=2")
+    private val completed = Collections.synchronizedList(mutableListOf<String>())
+
+    @Test
+    fun `runs at most the configured number of requests per model at once`() = runBlocking<Unit> {
+        //given
+        val running = AtomicInteger()
+        val peak = AtomicInteger()
+        //when
+        (1..6).map { index ->
+            launch {
+                scheduler.schedule(if (index % 2 == 0) "qwen3:8b" else "qwen3:32b", LlmPriority.INTERACTIVE, null) {
+                    peak.accumulateAndGet(running.incrementAndGet()) { a, b -> maxOf(a, b) }
+                    delay(20)
+                    running.decrementAndGet()
+                }
+            }
+        }.joinAll()
+        //then
+        assertThat(peak.get()).isEqualTo(3)
+    }
+
+    @Test
+    fun `lets interactive requests overtake waiting background requests`() = runBlocking<Unit> {
+        //given
+        val busy = occupy("qwen3:32b")
+        val requests = listOf(
+            request("background-1", LlmPriority.BACKGROUND, null),
+            request("background-2", LlmPriority.BACKGROUND, null),
+            request("routine", LlmPriority.ROUTINE, FriendshipId()),
+            request("interactive", LlmPriority.INTERACTIVE, FriendshipId()),
+        )
+        //when
+        busy.complete(Unit)
+        requests.joinAll()
+        //then
+        assertThat(completed).containsExactly("interactive", "routine", "background-1", "background-2")
+    }
+
+    @Test
+    fun `shares the model fairly between friends`() = runBlocking<Unit> {
+        //given
+        val busy = occupy("qwen3:32b")
+        val busyFriend = FriendshipId()
+        val otherFriend = FriendshipId()
+        val requests = listOf(
+            request("busy-1", LlmPriority.ROUTINE, busyFriend),
+            request("busy-2", LlmPriority.ROUTINE, busyFriend),
+            request("busy-3", LlmPriority.ROUTINE, busyFriend),
+            request("other-1", LlmPriority.ROUTINE, otherFriend),
+        )
+        //when
+        busy.complete(Unit)
+        requests.joinAll()
+        //then
+        assertThat(completed).containsExactly("busy-1", "other-1", "busy-2", "busy-3")
+    }
+
+    @Test
+    fun `records the time requests wait for their model`() = runBlocking<Unit> {
+        //given
+        val busy = occupy("qwen3:32b")
+        val request = request("background", LlmPriority.BACKGROUND, null)
+        //when
+        delay(20)
+        busy.complete(Unit)
+        request.join()
+        //then
+        val waited = meterRegistry.get("fibi.llm.queue.wait").tag("model", "qwen3:32b").tag("priority", "background")
+            .timer()
+        assertThat(waited.count()).isEqualTo(1)
+        assertThat(waited.max(MILLISECONDS)).isGreaterThanOrEqualTo(20.0)
+    }
+
+    private fun CoroutineScope.occupy(model: String): CompletableDeferred<Unit> {
+        val release = CompletableDeferred<Unit>()
+        launch(start = UNDISPATCHED) {
+            scheduler.schedule(model, LlmPriority.INTERACTIVE, FriendshipId()) { release.await() }
+        }
+        return release
+    }
+
+    private fun CoroutineScope.request(name: String, priority: LlmPriority, friendshipId: FriendshipId?) =
+        launch(start = UNDISPATCHED) {
+            scheduler.schedule("qwen3:32b", priority, friendshipId) { completed += name }
+        }
+}
@@ -0,0 +1,56 @@
+package icu.neurospicy.fibi.outgoing.ollama
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import org.springframework.ai.chat.messages.SystemMessage
+import org.springframework.ai.chat.messages.UserMessage
+import org.springframework.ai.ollama.api.OllamaOptions
+import java.time.Duration
+
+class LlmResultCacheTest {
+
+    private val options = OllamaOptions.builder().model("qwen3:8b").temperature(0.0).build()
+
+    @Test
+    fun `keys prompts by kind, options and normalised messages`() {
+        //given
+        val cache = LlmResultCache(SimpleMeterRegistry(), 10, Duration.ofMinutes(10))
+        val key = cache.keyOf("text", listOf(UserMessage(" Is it  late?\n")), options)
+        //then
+        assertThat(cache.keyOf("text", listOf(UserMessage("Is it late?")), options)).isEqualTo(key)
+        assertThat(cache.keyOf("json", listOf(UserMessage("Is it late?")), options)).isNotEqualTo(key)
+        assertThat(cache.keyOf("text", listOf(SystemMessage("Is it late?")), options)).isNotEqualTo(key)
+        assertThat(
+            cache.keyOf("text", listOf(UserMessage("Is it late?")), options.copy().apply { topP = 0.5 })
+        ).isNotEqualTo(key)
+    }
+
+    @Test
+    fun `forgets answers after their ttl`() {
+        //given
+        val cache = LlmResultCache(SimpleMeterRegistry(), 10, Duration.ofMillis(20))
+        cache["key"] = "yes"
+        //when
+        val beforeExpiry = cache["key"]
+        Thread.sleep(40)
+        //then
+        assertThat(beforeExpiry).isEqualTo("yes")
+        assertThat(cache["key"]).isNull()
+    }
+
+    @Test
+    fun `evicts the least recently used answer beyond its size`() {
+        //given
+        val cache = LlmResultCache(SimpleMeterRegistry(), 2, Duration.ofMinutes(10))
+        cache["first"] = "1"
+        cache["second"] = "2"
+        cache["first"]
+        //when
+        cache["third"] = "3"
+        //then
+        assertThat(cache["first"]).isEqualTo("1")
+        assertThat(cache["second"]).isNull()
+        assertThat(cache["third"]).isEqualTo("3")
+    }
+}
@@ -9,7 +9,9 @@ import icu.neurospicy.fibi.domain.repository.FriendshipLedger
 import io.mockk.*
 import io.mockk.impl.annotations.MockK
 import io.mockk.junit5.MockKExtension
+import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.runBlocking
+import org.assertj.core.api.Assertions.assertThat
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.extension.ExtendWith
@@ -131,4 +133,26 @@ internal class ResponseGeneratorTest {
             )
         }
     }
+
+    @Test
+    fun `marks a streamed message as truncated when streaming fails after the first paragraph`() = runBlocking {
+        val responseGenerator = ResponseGenerator(
+            llmClient, chatRepository, applicationEventPublisher, friendshipLedger,
+            mockk(), mockk(), mockk(relaxed = true), mockk(), mockk(relaxed = true), "fibi64"
+        )
+        val message = OutgoingGeneratedMessage(SIGNAL, "Tell a long story")
+        every { applicationEventPublisher.publishEvent(any()) } just runs
+        every { friendshipLedger.findBy(friendshipId) } returns mockk(relaxed = true)
+        every { llmClient.streamText(any(), any(), any(), any(), any(), any()) } returns flow {
+            emit("Once upon a time.\n\n")
+            throw IllegalStateException("connection reset")
+        }
+        val sent = mutableListOf<String>()
+        //when
+        val whole = responseGenerator.streamResponseWith(friendshipId, message) { sent += it }
+        //then
+        assertThat(sent).containsExactly("Once upon a time.", ResponseGenerator.TRUNCATION_NOTICE)
+        assertThat(whole).isEqualTo("Once upon a time.\n\n${ResponseGenerator.TRUNCATION_NOTICE}")
+        coVerify(exactly = 0) { llmClient.promptReceivingText(any(), any(), any(), any(), tools = any()) }
+    }
 }
\ No newline at end of file
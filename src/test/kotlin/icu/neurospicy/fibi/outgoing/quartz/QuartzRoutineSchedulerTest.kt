@@ -1,11 +1,12 @@
 package icu.neurospicy.fibi.outgoing.quartz
 
+import icu.neurospicy.fibi.application.routine.RoutineFanOut
 import icu.neurospicy.fibi.application.routine.RoutinePhaseIterationSchedulerJob
 import icu.neurospicy.fibi.application.routine.RoutinePhaseSchedulerJob
 import icu.neurospicy.fibi.application.routine.RoutineStepSchedulerJob
-import icu.neurospicy.fibi.application.routine.RoutineTriggerSchedulerJob
 import icu.neurospicy.fibi.domain.model.FriendshipId
 import icu.neurospicy.fibi.domain.repository.FriendshipLedger
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutType.ROUTINE_TRIGGER
 import icu.neurospicy.fibi.domain.service.friends.routines.*
 import icu.neurospicy.fibi.domain.service.friends.routines.events.RoutinePhaseScheduled
 import icu.neurospicy.fibi.domain.service.friends.routines.events.RoutineStepScheduled
@@ -27,13 +28,15 @@ class QuartzRoutineSchedulerTest {
     private val eventPublisher = mockk<ApplicationEventPublisher>(relaxed = true)
     private val routineEventLog = mockk<RoutineEventLog>(relaxed = true)
     private val timeExpressionEvaluator = mockk<TimeExpressionEvaluator>(relaxed = true)
+    private val routineFanOut = mockk<RoutineFanOut>(relaxed = true)
     private val scheduler =
         QuartzRoutineScheduler(
             friendshipLedger,
             quartzSchedulerService,
             eventPublisher,
             routineEventLog,
-            timeExpressionEvaluator
+            timeExpressionEvaluator,
+            routineFanOut
         )
 
     @Nested
@@ -54,21 +57,15 @@ class QuartzRoutineSchedulerTest {
             scheduler.scheduleTrigger(instance, trigger)
 
             verify {
-                quartzSchedulerService.scheduleJob(
-                    match {
-                        it.contains(friendshipId.toString()) && it.contains(instance.instanceId.toString()) && it.contains(
-                            trigger.id.toString()
-                        )
-                    },
-                    "routineJobs",
-                    withArg {
-                        val expectedTime = ZonedDateTime.now(zoneId).plusDays(2).withSecond(0).withNano(0)
-                        assertThat(expectedTime.toInstant()).isCloseTo(it.toInstant(), within(2, ChronoUnit.MINUTES))
-                    },
-                    RoutineTriggerSchedulerJob::class.java,
-                    match { it["routineInstanceId"] == instance.instanceId.toString() },
-                    any()
-                )
+                routineFanOut.schedule(withArg {
+                    assertThat(it.key).contains(
+                        friendshipId.toString(), instance.instanceId.toString(), trigger.id.toString()
+                    )
+                    assertThat(it.type).isEqualTo(ROUTINE_TRIGGER)
+                    val expectedTime = ZonedDateTime.now(zoneId).plusDays(2).withSecond(0).withNano(0)
+                    assertThat(expectedTime.toInstant()).isCloseTo(it.fireAt, within(2, ChronoUnit.MINUTES))
+                    assertThat(it.payload["routineInstanceId"]).isEqualTo(instance.instanceId.toString())
+                })
                 eventPublisher.publishEvent(match { it is RoutineTriggerScheduled && it.routineInstanceId == instance.instanceId })
                 routineEventLog.log(match {
                     it.event == RoutineEventType.TRIGGER_SCHEDULED && it.routineInstanceId == instance.instanceId
@@ -106,20 +103,14 @@ class QuartzRoutineSchedulerTest {
             scheduler.scheduleTrigger(instance, trigger)
 
             verify {
-                quartzSchedulerService.scheduleJob(
-                    match {
-                        it.contains(friendshipId.toString()) && it.contains(instance.instanceId.toString()) && it.contains(
-                            trigger.id.toString()
-                        )
-                    },
-                    "routineJobs",
-                    withArg {
-                        assertThat(expectedTime.toInstant()).isCloseTo(it.toInstant(), within(2, ChronoUnit.MINUTES))
-                    },
-                    RoutineTriggerSchedulerJob::class.java,
-                    match { it["routineInstanceId"] == instance.instanceId.toString() },
-                    any()
-                )
+                routineFanOut.schedule(withArg {
+                    assertThat(it.key).contains(
+                        friendshipId.toString(), instance.instanceId.toString(), trigger.id.toString()
+                    )
+                    assertThat(it.type).isEqualTo(ROUTINE_TRIGGER)
+                    assertThat(expectedTime.toInstant()).isCloseTo(it.fireAt, within(2, ChronoUnit.MINUTES))
+                    assertThat(it.payload["routineInstanceId"]).isEqualTo(instance.instanceId.toString())
+                })
                 eventPublisher.publishEvent(match { it is RoutineTriggerScheduled && it.routineInstanceId == instance.instanceId })
                 routineEventLog.log(match {
                     it.event == RoutineEventType.TRIGGER_SCHEDULED && it.routineInstanceId == instance.instanceId
@@ -153,20 +144,14 @@ class QuartzRoutineSchedulerTest {
             scheduler.scheduleTrigger(instance, trigger)
 
             verify {
-                quartzSchedulerService.scheduleJob(
-                    match {
-                        it.contains(friendshipId.toString()) && it.contains(instance.instanceId.toString()) && it.contains(
-                            trigger.id.toString()
-                        )
-                    },
-                    "routineJobs",
-                    withArg {
-                        assertThat(expectedTime.toInstant()).isCloseTo(it.toInstant(), within(2, ChronoUnit.MINUTES))
-                    },
-                    RoutineTriggerSchedulerJob::class.java,
-                    match { it["routineInstanceId"] == instance.instanceId.toString() },
-                    any()
-                )
+                routineFanOut.schedule(withArg {
+                    assertThat(it.key).contains(
+                        friendshipId.toString(), instance.instanceId.toString(), trigger.id.toString()
+                    )
+                    assertThat(it.type).isEqualTo(ROUTINE_TRIGGER)
+                    assertThat(expectedTime.toInstant()).isCloseTo(it.fireAt, within(2, ChronoUnit.MINUTES))
+                    assertThat(it.payload["routineInstanceId"]).isEqualTo(instance.instanceId.toString())
+                })
                 eventPublisher.publishEvent(match { it is RoutineTriggerScheduled && it.routineInstanceId == instance.instanceId })
                 routineEventLog.log(match {
                     it.event == RoutineEventType.TRIGGER_SCHEDULED && it.routineInstanceId == instance.instanceId
@@ -200,20 +185,14 @@ class QuartzRoutineSchedulerTest {
             scheduler.scheduleTrigger(instance, trigger)
 
             verify {
-                quartzSchedulerService.scheduleJob(
-                    match {
-                        it.contains(friendshipId.toString()) && it.contains(instance.instanceId.toString()) && it.contains(
-                            trigger.id.toString()
-                        )
-                    },
-                    "routineJobs",
-                    withArg {
-                        assertThat(expectedTime.toInstant()).isCloseTo(it.toInstant(), within(2, ChronoUnit.MINUTES))
-                    },
-                    RoutineTriggerSchedulerJob::class.java,
-                    match { it["routineInstanceId"] == instance.instanceId.toString() },
-                    any()
-                )
+                routineFanOut.schedule(withArg {
+                    assertThat(it.key).contains(
+                        friendshipId.toString(), instance.instanceId.toString(), trigger.id.toString()
+                    )
+                    assertThat(it.type).isEqualTo(ROUTINE_TRIGGER)
+                    assertThat(expectedTime.toInstant()).isCloseTo(it.fireAt, within(2, ChronoUnit.MINUTES))
+                    assertThat(it.payload["routineInstanceId"]).isEqualTo(instance.instanceId.toString())
+                })
                 eventPublisher.publishEvent(match { it is RoutineTriggerScheduled && it.routineInstanceId == instance.instanceId })
                 routineEventLog.log(match {
                     it.event == RoutineEventType.TRIGGER_SCHEDULED && it.routineInstanceId == instance.instanceId
@@ -251,20 +230,14 @@ class QuartzRoutineSchedulerTest {
             scheduler.scheduleTrigger(instance, trigger)
 
             verify {
-                quartzSchedulerService.scheduleJob(
-                    match {
-                        it.contains(friendshipId.toString()) && it.contains(instance.instanceId.toString()) && it.contains(
-                            trigger.id.toString()
-                        )
-                    },
-                    "routineJobs",
-                    withArg {
-                        assertThat(expectedTime.toInstant()).isCloseTo(it.toInstant(), within(2, ChronoUnit.MINUTES))
-                    },
-                    RoutineTriggerSchedulerJob::class.java,
-                    match { it["routineInstanceId"] == instance.instanceId.toString() },
-                    any()
-                )
+                routineFanOut.schedule(withArg {
+                    assertThat(it.key).contains(
+                        friendshipId.toString(), instance.instanceId.toString(), trigger.id.toString()
+                    )
+                    assertThat(it.type).isEqualTo(ROUTINE_TRIGGER)
+                    assertThat(expectedTime.toInstant()).isCloseTo(it.fireAt, within(2, ChronoUnit.MINUTES))
+                    assertThat(it.payload["routineInstanceId"]).isEqualTo(instance.instanceId.toString())
+                })
                 eventPublisher.publishEvent(match { it is RoutineTriggerScheduled && it.routineInstanceId == instance.instanceId })
                 routineEventLog.log(match {
                     it.event == RoutineEventType.TRIGGER_SCHEDULED && it.routineInstanceId == instance.instanceId
@@ -304,20 +277,14 @@ class QuartzRoutineSchedulerTest {
             scheduler.scheduleTrigger(instance, trigger)
 
             verify {
-                quartzSchedulerService.scheduleJob(
-                    match {
-                        it.contains(friendshipId.toString()) && it.contains(instance.instanceId.toString()) && it.contains(
-                            trigger.id.toString()
-                        )
-                    },
-                    "routineJobs",
-                    withArg {
-                        assertThat(expectedTime.toInstant()).isCloseTo(it.toInstant(), within(2, ChronoUnit.MINUTES))
-                    },
-                    RoutineTriggerSchedulerJob::class.java,
-                    match { it["routineInstanceId"] == instance.instanceId.toString() },
-                    any()
-                )
+                routineFanOut.schedule(withArg {
+                    assertThat(it.key).contains(
+                        friendshipId.toString(), instance.instanceId.toString(), trigger.id.toString()
+                    )
+                    assertThat(it.type).isEqualTo(ROUTINE_TRIGGER)
+                    assertThat(expectedTime.toInstant()).isCloseTo(it.fireAt, within(2, ChronoUnit.MINUTES))
+                    assertThat(it.payload["routineInstanceId"]).isEqualTo(instance.instanceId.toString())
+                })
                 eventPublisher.publishEvent(match { it is RoutineTriggerScheduled && it.routineInstanceId == instance.instanceId })
                 routineEventLog.log(match {
                     it.event == RoutineEventType.TRIGGER_SCHEDULED && it.routineInstanceId == instance.instanceId
@@ -348,20 +315,14 @@ class QuartzRoutineSchedulerTest {
             scheduler.scheduleTrigger(instance, trigger)
 
             verify {
-                quartzSchedulerService.scheduleJob(
-                    match {
-                        it.contains(friendshipId.toString()) && it.contains(instance.instanceId.toString()) && it.contains(
-                            trigger.id.toString()
-                        )
-                    },
-                    "routineJobs",
-                    withArg {
-                        assertThat(expectedTime.toInstant()).isCloseTo(it.toInstant(), within(2, ChronoUnit.MINUTES))
-                    },
-                    RoutineTriggerSchedulerJob::class.java,
-                    match { it["routineInstanceId"] == instance.instanceId.toString() },
-                    any()
-                )
+                routineFanOut.schedule(withArg {
+                    assertThat(it.key).contains(
+                        friendshipId.toString(), instance.instanceId.toString(), trigger.id.toString()
+                    )
+                    assertThat(it.type).isEqualTo(ROUTINE_TRIGGER)
+                    assertThat(expectedTime.toInstant()).isCloseTo(it.fireAt, within(2, ChronoUnit.MINUTES))
+                    assertThat(it.payload["routineInstanceId"]).isEqualTo(instance.instanceId.toString())
+                })
                 eventPublisher.publishEvent(match { it is RoutineTriggerScheduled && it.routineInstanceId == instance.instanceId })
                 routineEventLog.log(match {
                     it.event == RoutineEventType.TRIGGER_SCHEDULED && it.routineInstanceId == instance.instanceId
@@ -390,20 +351,14 @@ class QuartzRoutineSchedulerTest {
             scheduler.scheduleTrigger(instance, trigger)
 
             verify {
-                quartzSchedulerService.scheduleJob(
-                    match {
-                        it.contains(friendshipId.toString()) && it.contains(instance.instanceId.toString()) && it.contains(
-                            trigger.id.toString()
-                        )
-                    },
-                    "routineJobs",
-                    withArg {
-                        assertThat(expectedTime.toInstant()).isCloseTo(it.toInstant(), within(2, ChronoUnit.MINUTES))
-                    },
-                    RoutineTriggerSchedulerJob::class.java,
-                    match { it["routineInstanceId"] == instance.instanceId.toString() },
-                    any()
-                )
+                routineFanOut.schedule(withArg {
+                    assertThat(it.key).contains(
+                        friendshipId.toString(), instance.instanceId.toString(), trigger.id.toString()
+                    )
+                    assertThat(it.type).isEqualTo(ROUTINE_TRIGGER)
+                    assertThat(expectedTime.toInstant()).isCloseTo(it.fireAt, within(2, ChronoUnit.MINUTES))
+                    assertThat(it.payload["routineInstanceId"]).isEqualTo(instance.instanceId.toString())
+                })
                 eventPublisher.publishEvent(match { it is RoutineTriggerScheduled && it.routineInstanceId == instance.instanceId })
                 routineEventLog.log(match {
                     it.event == RoutineEventType.TRIGGER_SCHEDULED && it.routineInstanceId == instance.instanceId
@@ -428,7 +383,7 @@ class QuartzRoutineSchedulerTest {
 
             scheduler.scheduleTrigger(instance, trigger)
 
-            verify { quartzSchedulerService wasNot Called }
+            verify { routineFanOut wasNot Called }
         }
     }
 
@@ -449,7 +404,7 @@ class QuartzRoutineSchedulerTest {
                 effect = SendMessage("Should not schedule")
             )
             scheduler.scheduleTrigger(instance, trigger)
-            verify { quartzSchedulerService wasNot Called }
+            verify { routineFanOut wasNot Called }
         }
 
         @Test
@@ -463,7 +418,7 @@ class QuartzRoutineSchedulerTest {
                 effect = SendMessage("Should not schedule")
             )
             scheduler.scheduleTrigger(instance, trigger)
-            verify { quartzSchedulerService wasNot Called }
+            verify { routineFanOut wasNot Called }
         }
 
         @Test
@@ -488,7 +443,7 @@ class QuartzRoutineSchedulerTest {
 
             scheduler.scheduleTrigger(instance, trigger)
 
-            verify { quartzSchedulerService wasNot Called }
+            verify { routineFanOut wasNot Called }
         }
 
         @Test
@@ -513,7 +468,7 @@ class QuartzRoutineSchedulerTest {
 
             scheduler.scheduleTrigger(instance, trigger)
 
-            verify { quartzSchedulerService wasNot Called }
+            verify { routineFanOut wasNot Called }
         }
 
         @Test
@@ -536,7 +491,7 @@ class QuartzRoutineSchedulerTest {
 
             scheduler.scheduleTrigger(instance, trigger)
 
-            verify { quartzSchedulerService wasNot Called }
+            verify { routineFanOut wasNot Called }
         }
     }
 
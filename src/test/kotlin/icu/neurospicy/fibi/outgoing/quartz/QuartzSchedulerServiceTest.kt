@@ -0,0 +1,238 @@
+package icu.neurospicy.fibi.outgoing.quartz
+
+import icu.neurospicy.fibi.application.routine.RoutineFanOut
+import icu.neurospicy.fibi.application.timers.TimerJob
+import icu.neurospicy.fibi.domain.model.CalendarConfigId
+import icu.neurospicy.fibi.domain.model.CalendarConfiguration
+import icu.neurospicy.fibi.domain.model.FriendshipId
+import icu.neurospicy.fibi.domain.model.LocalTimeBasedTrigger
+import icu.neurospicy.fibi.domain.model.RoutineConfiguration
+import icu.neurospicy.fibi.domain.model.Timer
+import icu.neurospicy.fibi.domain.repository.RoutineFanOutType.ROUTINE_EXECUTION
+import icu.neurospicy.fibi.outgoing.SchedulerReconciliation
+import icu.neurospicy.fibi.outgoing.timingwheel.TimingWheelScheduler
+import io.mockk.Called
+import io.mockk.every
+import io.mockk.justRun
+import io.mockk.mockk
+import io.mockk.spyk
+import io.mockk.verify
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.quartz.JobDetail
+import org.quartz.JobKey
+import org.quartz.Scheduler
+import org.quartz.SimpleScheduleBuilder
+import org.quartz.SimpleTrigger
+import org.quartz.Trigger
+import org.quartz.TriggerKey
+import org.quartz.impl.StdSchedulerFactory
+import org.quartz.impl.matchers.GroupMatcher
+import java.time.Duration
+import java.time.Instant
+import java.time.LocalTime
+import java.time.ZoneId
+import java.time.ZonedDateTime
+import java.util.*
+
+class QuartzSchedulerServiceTest {
+
+    private val scheduler: Scheduler = spyk(StdSchedulerFactory(Properties().apply {
+        setProperty("org.quartz.scheduler.instanceName", "test-${UUID.randomUUID()}")
+        setProperty("org.quartz.threadPool.threadCount", "1")
+        setProperty("org.quartz.jobStore.class", "org.quartz.simpl.RAMJobStore")
+    }).scheduler)
+    private val timingWheelScheduler = mockk<TimingWheelScheduler>()
+    private val routineFanOut = mockk<RoutineFanOut>()
+    private val owner = FriendshipId()
+
+    @AfterEach
+    fun shutdown() {
+        scheduler.shutdown()
+    }
+
+    @Test
+    fun `does not rewrite a job scheduled again unchanged`() {
+        //given
+        every { timingWheelScheduler.schedule(any(), any(), any()) } returns false
+        val service = service(clustered = false)
+        val timer = timer(Duration.ofDays(3))
+        service.scheduleTimer(timer)
+        //when
+        service.scheduleTimer(timer)
+        //then
+        verify(exactly = 1) { scheduler.scheduleJob(any<JobDetail>(), any<Trigger>()) }
+        verify(exactly = 0) { scheduler.deleteJob(any()) }
+    }
+
+    @Test
+    fun `replaces a job whose trigger changed`() {
+        //given
+        every { timingWheelScheduler.schedule(any(), any(), any()) } returns false
+        val service = service(clustered = false)
+        val timer = timer(Duration.ofDays(3))
+        service.scheduleTimer(timer)
+        //when
+        service.scheduleTimer(timer.copy(duration = Duration.ofDays(4)))
+        //then
+        verify(exactly = 2) { scheduler.scheduleJob(any<JobDetail>(), any<Trigger>()) }
+        assertThat(scheduler.getTrigger(TriggerKey.triggerKey("trigger-timer-$owner-${timer._id}", "timerJobs"))
+            .nextFireTime.toInstant()).isEqualTo(timer.startedAt.plus(Duration.ofDays(4)))
+    }
+
+    @Test
+    fun `keeps timers already in the job store out of the timing wheel`() {
+        //given
+        every { timingWheelScheduler.schedule(any(), any(), any()) } returns false
+        val timer = timer(Duration.ofDays(3))
+        service(clustered = false).scheduleTimer(timer)
+        every { timingWheelScheduler.schedule(any(), any(), any()) } returns true
+        val restarted = service(clustered = false)
+        restarted.reconcileTimers(listOf(timer))
+        //when
+        restarted.scheduleTimer(timer)
+        //then
+        verify(exactly = 1) { timingWheelScheduler.schedule(any(), any(), any()) }
+        assertThat(scheduler.checkExists(JobKey.jobKey("timer-$owner-${timer._id}", "timerJobs"))).isTrue()
+    }
+
+    @Test
+    fun `reschedules and cancels timers on the timing wheel without Quartz`() {
+        //given
+        every { timingWheelScheduler.schedule(any(), any(), any()) } returns true
+        every { timingWheelScheduler.cancel(any()) } returns true
+        val service = service(clustered = false)
+        val timer = timer(Duration.ofMinutes(5))
+        service.scheduleTimer(timer)
+        //when
+        service.rescheduleTimer(timer.copy(duration = Duration.ofMinutes(10)))
+        service.removeSchedulerForTimer(owner, timer._id!!)
+        //then
+        verify(exactly = 2) { timingWheelScheduler.schedule("timerJobs.timer-$owner-${timer._id}", any(), any()) }
+        verify(exactly = 2) { timingWheelScheduler.cancel("timerJobs.timer-$owner-${timer._id}") }
+        verify { scheduler wasNot Called }
+    }
+
+    @Test
+    fun `schedules timers with Quartz when clustered`() {
+        //given
+        val service = service(clustered = true)
+        //when
+        service.scheduleTimer(timer(Duration.ofMinutes(5)))
+        //then
+        verify(exactly = 0) { timingWheelScheduler.schedule(any(), any(), any()) }
+        assertThat(scheduler.getJobKeys(GroupMatcher.jobGroupEquals("timerJobs"))).hasSize(1)
+    }
+
+    @Test
+    fun `schedules missing and removes obsolete calendar syncs`() {
+        //given
+        val service = service(clustered = false)
+        val kept = CalendarConfiguration(owner, url = "https://calendar.example.com/kept")
+        val obsolete = CalendarConfigId()
+        val added = CalendarConfiguration(owner, url = "https://calendar.example.com/added")
+        service.scheduleCalendarSync(owner, kept.calendarConfigId, Duration.ofMinutes(30))
+        service.scheduleCalendarSync(owner, obsolete, Duration.ofMinutes(30))
+        //when
+        val reconciliation = service.reconcileCalendarSyncs(listOf(kept, added))
+        //then
+        assertThat(reconciliation.created).isEqualTo(1)
+        assertThat(reconciliation.removed).isEqualTo(1)
+        assertThat(reconciliation.unchanged).isEqualTo(1)
+        assertThat(scheduler.getJobKeys(GroupMatcher.jobGroupEquals("calendarJobs")).map { it.name })
+            .containsExactlyInAnyOrder(
+                "calendar-$owner-${kept.calendarConfigId}", "calendar-$owner-${added.calendarConfigId}"
+            )
+        val keptTrigger = scheduler.getTrigger(
+            TriggerKey.triggerKey("trigger-calendar-$owner-${kept.calendarConfigId}", "calendarJobs")
+        ) as SimpleTrigger
+        assertThat(keptTrigger.repeatInterval).isEqualTo(Duration.ofMinutes(30).toMillis())
+    }
+
+    @Test
+    fun `reconciles timers in batches`() {
+        //given
+        every { timingWheelScheduler.schedule(any(), any(), any()) } returns false
+        val service = service(clustered = false)
+        val unchanged = timer(Duration.ofDays(3))
+        val changed = timer(Duration.ofDays(3))
+        val stopped = timer(Duration.ofDays(3))
+        listOf(unchanged, changed, stopped).forEach { service.scheduleTimer(it) }
+        val added = (1..3).map { timer(Duration.ofDays(5)) }
+        //when
+        val reconciliation = service.reconcileTimers(
+            listOf(unchanged, changed.copy(duration = Duration.ofDays(4))) + added
+        )
+        //then
+        assertThat(reconciliation.group).isEqualTo("timerJobs")
+        assertThat(reconciliation.created).isEqualTo(3)
+        assertThat(reconciliation.updated).isEqualTo(1)
+        assertThat(reconciliation.removed).isEqualTo(1)
+        assertThat(reconciliation.unchanged).isEqualTo(1)
+        verify(exactly = 2) { scheduler.scheduleJobs(any(), true) }
+        assertThat(scheduler.getJobKeys(GroupMatcher.jobGroupEquals("timerJobs")).map { it.name })
+            .containsExactlyInAnyOrderElementsOf((listOf(unchanged, changed) + added).map { "timer-$owner-${it._id}" })
+        assertThat(scheduler.getTrigger(TriggerKey.triggerKey("trigger-timer-$owner-${changed._id}", "timerJobs"))
+            .nextFireTime.toInstant()).isEqualTo(changed.startedAt.plus(Duration.ofDays(4)))
+    }
+
+    @Test
+    fun `reconciling leaves jobs of routine instances alone`() {
+        //given
+        val service = service(clustered = false)
+        every { routineFanOut.reconcile(ROUTINE_EXECUTION, emptyList()) } returns fanOutReconciliation()
+        val instanceJob = "routine-trigger-$owner-instance-trigger"
+        service.scheduleJob(
+            instanceJob, "routineJobs", ZonedDateTime.now().plusDays(1), TimerJob::class.java, emptyMap(),
+            SimpleScheduleBuilder.simpleSchedule()
+        )
+        //when
+        val reconciliation = service.reconcileRoutines(emptyList())
+        //then
+        assertThat(reconciliation.removed).isZero()
+        assertThat(scheduler.checkExists(JobKey.jobKey(instanceJob, "routineJobs"))).isTrue()
+    }
+
+    @Test
+    fun `reconciling routines removes their former Quartz jobs`() {
+        //given
+        val service = service(clustered = false)
+        every { routineFanOut.reconcile(ROUTINE_EXECUTION, emptyList()) } returns fanOutReconciliation(removed = 1)
+        val routineJob = "routine-$owner-routine"
+        service.scheduleJob(
+            routineJob, "routineJobs", ZonedDateTime.now().plusDays(1), TimerJob::class.java, emptyMap(),
+            SimpleScheduleBuilder.simpleSchedule().withIntervalInHours(24).repeatForever()
+        )
+        //when
+        val reconciliation = service.reconcileRoutines(emptyList())
+        //then
+        assertThat(reconciliation.removed).isEqualTo(2)
+        assertThat(scheduler.checkExists(JobKey.jobKey(routineJob, "routineJobs"))).isFalse()
+    }
+
+    @Test
+    fun `scheduling a disabled routine cancels its start`() {
+        //given
+        val service = service(clustered = false)
+        justRun { routineFanOut.cancel(any()) }
+        val routine = RoutineConfiguration(
+            id = "routine", friendshipId = owner, trigger = LocalTimeBasedTrigger(LocalTime.of(7, 0), ZoneId.of("UTC"))
+        )
+        //when
+        service.scheduleRoutine(routine)
+        //then
+        verify { routineFanOut.cancel("routine-$owner-routine") }
+        verify(exactly = 0) { routineFanOut.schedule(any()) }
+    }
+
+    private fun service(clustered: Boolean) = QuartzSchedulerService(
+        scheduler, timingWheelScheduler, mockk<TimerJob>(), mockk(), routineFanOut, clustered, 2
+    )
+
+    private fun fanOutReconciliation(removed: Int = 0) =
+        SchedulerReconciliation("routineFanOut.ROUTINE_EXECUTION", 0, 0, removed, 0, Duration.ZERO)
+
+    private fun timer(duration: Duration) =
+        Timer(UUID.randomUUID().toString(), owner, "Tea", duration, Instant.parse("2030-01-01T10:00:00Z"))
+}
@@ -0,0 +1,68 @@
+package icu.neurospicy.fibi.outgoing.timingwheel
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+
+class HierarchicalTimingWheelTest {
+
+    private val start = 1_000_000L
+    private val wheel = HierarchicalTimingWheel<String>(tickMillis = 1000, startMillis = start, wheelSize = 8, levels = 3)
+
+    @Test
+    fun `fires entries of all levels at their deadline`() {
+        //given
+        val deadlines = listOf(3L, 8L, 9L, 63L, 64L, 65L, 200L, 511L).associateBy { "in ${it}s" }
+        deadlines.forEach { (key, seconds) -> wheel.schedule(key, start + seconds * 1000, {}) }
+        //when
+        val firedAt = mutableMapOf<String, Long>()
+        for (second in 1L..511L) {
+            wheel.advanceTo(start + second * 1000).forEach { firedAt[it.key] = second }
+        }
+        //then
+        assertThat(firedAt).isEqualTo(deadlines)
+        assertThat(wheel.size).isZero()
+    }
+
+    @Test
+    fun `rescheduling replaces and cancelling removes an entry`() {
+        //given
+        wheel.schedule("tea", start + 5_000, {})
+        wheel.schedule("pasta", start + 7_000, {})
+        //when
+        wheel.schedule("tea", start + 100_000, {})
+        wheel.cancel("pasta")
+        //then
+        assertThat(wheel.advanceTo(start + 99_000)).isEmpty()
+        assertThat(wheel.advanceTo(start + 100_000).map { it.key }).containsExactly("tea")
+    }
+
+    @Test
+    fun `fires overdue entries on the next tick`() {
+        //given
+        wheel.schedule("overdue", start - 60_000, {})
+        //when
+        val due = wheel.advanceTo(start + 1_000)
+        //then
+        assertThat(due.map { it.key }).containsExactly("overdue")
+    }
+
+    @Test
+    fun `rejects deadlines beyond its capacity`() {
+        //when
+        val scheduled = wheel.schedule("next year", start + wheel.capacityMillis + 1_000, {})
+        //then
+        assertThat(scheduled).isFalse()
+        assertThat(wheel.capacityMillis).isEqualTo(511_000)
+    }
+
+    @Test
+    fun `catches up after a long pause`() {
+        //given
+        wheel.schedule("a", start + 10_000, {})
+        wheel.schedule("b", start + 300_000, {})
+        //when
+        val due = wheel.advanceTo(start + 400_000)
+        //then
+        assertThat(due.map { it.key }).containsExactly("a", "b")
+    }
+}